@@ -1,13 +1,57 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
-# Indicate the path of the java compiler to use
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+# Indicate the path of the java compiler to use (JDK 11 or newer, the
+# Flight Recorder events need jdk.jfr). Defaults to the java on PATH.
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../src/Messenger.java $DIR/../src/ShardRebalancer.java $DIR/../src/StorageBench.java $DIR/../src/Purger.java $DIR/../src/ChatExport.java $DIR/../src/ChatImport.java $DIR/../src/RenderBench.java $DIR/../src/StartupBench.java $DIR/../src/ChatStats.java $DIR/../src/Reports.java
 
 #run the java program
 #Use your database name, port number and login
+#Add -Dmessenger.stats=true to print operation latencies on exit and
+#-Dmessenger.slowQueryMs=<ms> / -Dmessenger.slowQueryLog=<file> to tune the slow query log
+#Add -XX:StartFlightRecording=filename=messenger.jfr to record operation and JDBC events
+#Add -Dmessenger.metrics.port=<port> to serve Prometheus metrics on http://localhost:<port>/metrics
+#Operations are stopped after -Dmessenger.budgetMs=<ms> (default 30000), -Dmessenger.budget.<operation>=<ms>
+#sets the budget of one operation, e.g. -Dmessenger.budget.SelectChat=5000
+#A lost connection is made again with -Dmessenger.reconnectAttempts=<n> jittered attempts (default 3),
+#-Dmessenger.breakerFailures=<n> failed attempts in a row (default 3) stop connecting for -Dmessenger.breakerOpenMs=<ms>
+#The newest -Dmessenger.recentMessages=<n> messages (default 50, 0 for none) of the hot chats are cached for
+#-Dmessenger.recentTtlMs=<ms> (default 10000) in at most -Dmessenger.recentCacheBytes=<bytes> (default 8 MB)
+#Suggested contacts list -Dmessenger.suggestions=<n> users (default 10) from an in-memory graph of the lists,
+#reloaded in the background every -Dmessenger.graphRefreshMs=<ms> (default 300000)
+#Importing contacts by phone number resolves and adds -Dmessenger.importPhones=<n> numbers per statement (default 10000),
+#an existing database needs ../../sql/src/migrate_phone_digits.sql
+#Contacts show as online until -Dmessenger.presenceTtlMs=<ms> (default 60000) after their last action, their
+#statuses are read again after -Dmessenger.statusTtlMs=<ms> (default 60000)
+#Read cursors are written in batches -Dmessenger.readDebounceMs=<ms> (default 2000) after the first read, unread
+#messages are counted up to -Dmessenger.unreadLimit=<n> per chat (default 100); an existing database needs
+#../../sql/src/migrate_read_cursors.sql on the primary and every shard
+#ChatStats <dbname> <port> <user> check|repair compares the per-chat statistics (../../sql/src/create_chat_stats.sql)
+#with the rows and repairs the chats that drifted
+#Reports <dbname> <port> <user> [refresh|rebuild|active|chats|hourly|degrees|blocks ...] prints the reports of the
+#menu (../../sql/src/create_reports.sql), -Dmessenger.reportTop=<n> sets the rows of the top lists (default 10)
+#Append replica host:port arguments (see ../../sql/scripts/create_replica.sh) to read from replicas
+#Add -Dmessenger.shards=<host:port>,... to keep the messages on shards (see ../../sql/scripts/create_shards.sh),
+#chats are moved between them with ShardRebalancer
+#Add -Dmessenger.storage=memory to keep everything in memory instead of the database,
+#StorageBench memory|postgres compares the two engines
+#Sent messages and new chats are first written to messenger-outbox.log and replayed from there,
+#-Dmessenger.outbox=<file>|off picks the file, -Dmessenger.outboxDrainMs=<ms> how long exit waits for it to drain
+#sends the database rejects are kept in messenger-outbox.dead (<file>.dead) and shown to the sender at the next menu
+#Deleted chats and accounts are purged in the background in chunks, -Dmessenger.purgeChunk=<rows> and
+#-Dmessenger.purgePauseMs=<ms> throttle it, -Dmessenger.purge=off leaves it to other sessions,
+#Purger <dbname> <port> <user> status|run shows or runs the pending purges
+#ChatExport <dbname> <port> <user> <login> <file> exports all chats of a user (.jsonl or .csv, .gz compresses),
+#-Dmessenger.fetchRows=<rows> sets how many rows each round trip of the export cursor fetches
+#ChatImport <dbname> <port> <user> <file> <import name> [<user map>] imports an exported history,
+#run it again with the same name to resume, -Dmessenger.importThreads=<n> sets the parallel inserters
+#Lists are aligned over windows of -Dmessenger.renderWindow=<rows> rows (default 256),
+#RenderBench [<contacts> [<file>]] compares the buffered output with printing field by field
+#Add -Dmessenger.lazyConnect=true to connect while the menu is shown, fast_start.sh also
+#launches on a class-data-sharing archive made by a training run
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
 
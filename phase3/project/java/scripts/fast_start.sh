@@ -0,0 +1,34 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Startup-optimized launch of the program compiled by compile.sh.
+# Needs JDK 13 or newer for the dynamic class-data-sharing archive.
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+JAR=$DIR/../classes/messenger.jar
+ARCHIVE=$DIR/../classes/messenger.jsa
+CP=$JAR:$DIR/../lib/pg73jdbc3.jar
+
+# class-data sharing only maps classes loaded from jar files, the archive
+# is rebuilt whenever the classes were compiled again
+if [ ! -f $JAR ] || [ -n "$(find $DIR/../classes -name '*.class' -newer $JAR)" ]; then
+   (cd $DIR/../classes && jar cf messenger.jar *.class)
+   rm -f $ARCHIVE
+fi
+
+# training run: a failed log in goes through the menu, the driver, the
+# connection and a query, the classes it loaded are archived at exit
+# (except the driver, its class files are too old for the archive)
+if [ ! -f $ARCHIVE ]; then
+   echo "Creating the class-data-sharing archive $ARCHIVE..."
+   printf '2\ncds-training\ncds-training\n0\n' | java -XX:ArchiveClassesAtExit=$ARCHIVE -Xlog:cds=off \
+      -Dmessenger.lazyConnect=true -Dmessenger.outbox=off -Dmessenger.purge=off \
+      -cp $CP Messenger $DB_NAME $PGPORT $USER > /dev/null
+fi
+
+#run the java program on the archive, connecting while the menu is shown
+#Use your database name, port number and login
+#StartupBench <dbname> <port> <user> [<login> <password>] with -Dbench.archive=$ARCHIVE and -cp $CP
+#compares time-to-first-prompt and time-to-first-query of the launch modes
+java -XX:SharedArchiveFile=$ARCHIVE -Dmessenger.lazyConnect=true -cp $CP Messenger $DB_NAME $PGPORT $USER "$@"
@@ -0,0 +1,131 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Per-chat access control cache: the owner (CHAT.init_sender) and the
+ * member set (CHAT_LIST) of every chat this session has touched.
+ *
+ * A chat is loaded with one query the first time it is checked and is
+ * then kept up to date by the membership writes of this session, so the
+ * ownership and membership checks of the chat menu need no round trip.
+ * Entries are reloaded after messenger.aclTtlMs (default 60s) to pick up
+ * changes made by other sessions.  Users are identified by user id.
+ *
+ */
+class ChatAcl {
+
+   private static final long ttlMillis = Long.getLong("messenger.aclTtlMs", 60000L);
+
+   /**
+    * Owner and members of one chat.
+    */
+   static class Entry {
+      final int owner;
+      final IntHashSet members = new IntHashSet();
+      final long loadedAt;
+
+      Entry(int owner) {
+         this.owner = owner;
+         this.loadedAt = System.currentTimeMillis();
+      }
+   }//end Entry
+
+   private final IntHashMap<Entry> chats = new IntHashMap<Entry>();
+
+   /**
+    * Returns true if the user created the chat.
+    */
+   public boolean isOwner(Messenger esql, int chatId, int user) throws SQLException {
+      Entry e = entry(esql, chatId);
+      return e != null && e.owner == user;
+   }//end isOwner
+
+   /**
+    * Returns true if the user is in the chat's member list.
+    */
+   public boolean isMember(Messenger esql, int chatId, int user) throws SQLException {
+      Entry e = entry(esql, chatId);
+      if (e == null) return false;
+      synchronized (this) {
+         return e.members.contains(user);
+      }
+   }//end isMember
+
+   /**
+    * Records a chat created by this session.
+    */
+   public synchronized void chatCreated(int chatId, int owner, int[] members) {
+      Entry e = new Entry(owner);
+      for (int m : members) {
+         e.members.add(m);
+      }//end for
+      chats.put(chatId, e);
+   }//end chatCreated
+
+   public synchronized void memberAdded(int chatId, int user) {
+      Entry e = chats.get(chatId);
+      if (e != null) e.members.add(user);
+   }
+
+   public synchronized void memberRemoved(int chatId, int user) {
+      Entry e = chats.get(chatId);
+      if (e != null) e.members.remove(user);
+   }
+
+   public synchronized void chatDeleted(int chatId) {
+      chats.remove(chatId);
+   }
+
+   /**
+    * Drops a cached chat, e.g. after a write on it failed.
+    */
+   public synchronized void invalidate(int chatId) {
+      chats.remove(chatId);
+   }
+
+   private Entry entry(Messenger esql, int chatId) throws SQLException {
+      synchronized (this) {
+         Entry e = chats.get(chatId);
+         if (e != null && System.currentTimeMillis() - e.loadedAt < ttlMillis) return e;
+      }
+      Entry e = load(esql, chatId);
+      synchronized (this) {
+         if (e == null) chats.remove(chatId);
+         else chats.put(chatId, e);
+      }
+      return e;
+   }//end entry
+
+   /**
+    * Reads owner and members of a chat in one round trip, or in two when
+    * the members are on a shard.
+    *
+    * @return the entry, or null if the chat does not exist or was deleted
+    */
+   private static Entry load(Messenger esql, int chatId) throws SQLException {
+      if (esql.isSharded()) return loadSharded(esql, chatId);
+      String query = String.format("SELECT c.init_sender, l.member FROM CHAT c LEFT OUTER JOIN CHAT_LIST l ON l.chat_id = c.chat_id WHERE c.chat_id = %d AND NOT c.deleted;", chatId);
+      List<List<String>> rows = esql.executeQueryAndReturnResult(query);
+      if (rows.isEmpty()) return null;
+      String owner = rows.get(0).get(0);
+      Entry e = new Entry(owner == null ? UserDirectory.UNKNOWN : Integer.parseInt(owner.trim()));
+      for (List<String> row : rows) {
+         if (row.get(1) != null) e.members.add(Integer.parseInt(row.get(1).trim()));
+      }//end for
+      return e;
+   }//end load
+
+   private static Entry loadSharded(Messenger esql, int chatId) throws SQLException {
+      String query = String.format("SELECT init_sender FROM CHAT WHERE chat_id = %d AND NOT deleted;", chatId);
+      List<List<String>> rows = esql.executeQueryAndReturnResult(query);
+      if (rows.isEmpty()) return null;
+      String owner = rows.get(0).get(0);
+      Entry e = new Entry(owner == null ? UserDirectory.UNKNOWN : Integer.parseInt(owner.trim()));
+      query = String.format("SELECT member FROM CHAT_LIST WHERE chat_id = %d;", chatId);
+      for (List<String> row : esql.executeQueryAndReturnResult(chatId, query)) {
+         e.members.add(Integer.parseInt(row.get(0).trim()));
+      }//end for
+      return e;
+   }//end loadSharded
+
+}//end ChatAcl
@@ -0,0 +1,222 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the full history of chats to a file, one message per line.
+ *
+ * The messages are streamed from the database through a cursor (see
+ * Messenger.executeQueryStreaming) and written as they arrive, so a chat
+ * of any size is exported in constant memory.  A file name ending in
+ * .csv or .csv.gz gets CSV with a header line, anything else JSON lines;
+ * a name ending in .gz is gzip compressed.  Each line has the chat id,
+ * the message id, the sender's login, the time and the text.
+ *
+ * The chat menu exports the chat on screen; for all the chats of a user,
+ * e.g. for a compliance request:
+ *
+ *    java ChatExport <dbname> <port> <user> <login> <file>
+ *
+ */
+class ChatExport {
+
+   /**
+    * Counts the bytes written before compression.
+    */
+   private static class CountingStream extends FilterOutputStream {
+      long count = 0;
+
+      CountingStream(OutputStream out) {
+         super(out);
+      }
+
+      public void write(int b) throws IOException {
+         out.write(b);
+         count++;
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException {
+         out.write(b, off, len);
+         count += len;
+      }
+   }//end CountingStream
+
+   private final Storage store;
+   private final File file;
+   private final boolean csv;
+   private final CountingStream counter;
+   private final Writer out;
+   private final long startNanos = System.nanoTime();
+   private long messages = 0;
+
+   ChatExport(Storage store, File file) throws IOException {
+      this.store = store;
+      this.file = file;
+      String name = file.getName().toLowerCase();
+      boolean gzip = name.endsWith(".gz");
+      if (gzip) name = name.substring(0, name.length() - 3);
+      this.csv = name.endsWith(".csv");
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+      if (gzip) os = new GZIPOutputStream(os, 1 << 16);
+      this.counter = new CountingStream(os);
+      this.out = new BufferedWriter(new OutputStreamWriter(counter, "UTF-8"), 1 << 16);
+      if (csv) out.write("chat_id,msg_id,sender,msg_timestamp,msg_text\n");
+   }//end ChatExport
+
+   public static void main(String[] args) {
+      if (args.length < 5) {
+         System.err.println("Usage: java ChatExport <dbname> <port> <user> <login> <file>");
+         return;
+      }//end if
+      Messenger esql = null;
+      try {
+         Class.forName("org.postgresql.Driver").newInstance();
+         esql = new Messenger("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], new ArrayList<String>(), args[2], "", false);
+         int user = esql.store.userId(args[3]);
+         if (user == UserDirectory.UNKNOWN) {
+            System.err.println("User <" + args[3] + "> does not exist");
+            return;
+         }//end if
+         ChatExport export = new ChatExport(esql.store, new File(args[4]));
+         try {
+            for (int chat : esql.store.chatsOf(user)) {
+               export.chat(chat);
+            }//end for
+         }finally {
+            export.close();
+         }//end try
+         System.out.println(export.summary());
+      }catch (Exception e) {
+         System.err.println(e.getMessage());
+      }finally {
+         if (esql != null) esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Appends all messages of a chat.
+    *
+    * @return the number of messages written
+    */
+   public long chat(int chat) throws SQLException, IOException {
+      long n = store.streamMessages(chat, new Storage.MessageHandler() {
+         public void message(Storage.Message m) throws IOException {
+            write(m);
+         }
+      });
+      messages += n;
+      return n;
+   }//end chat
+
+   private void write(Storage.Message m) throws IOException {
+      String sender;
+      try {
+         // logins are cached, one lookup per sender and session
+         sender = store.login(m.sender);
+      }catch (SQLException e) {
+         sender = "#" + m.sender;
+      }//end try
+      String text = rtrim(m.text);
+      if (csv) {
+         out.write(Integer.toString(m.chat));
+         out.write(',');
+         out.write(Integer.toString(m.id));
+         out.write(',');
+         csvField(sender);
+         out.write(',');
+         csvField(m.time);
+         out.write(',');
+         csvField(text);
+      }else {
+         out.write("{\"chat_id\":");
+         out.write(Integer.toString(m.chat));
+         out.write(",\"msg_id\":");
+         out.write(Integer.toString(m.id));
+         out.write(",\"sender\":");
+         jsonString(sender);
+         out.write(",\"msg_timestamp\":");
+         jsonString(m.time);
+         out.write(",\"msg_text\":");
+         jsonString(text);
+         out.write('}');
+      }//end if
+      out.write('\n');
+   }//end write
+
+   // msg_text is char(300), the padding is not part of the message
+   private static String rtrim(String s) {
+      if (s == null) return null;
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ') end--;
+      return s.substring(0, end);
+   }//end rtrim
+
+   private void csvField(String s) throws IOException {
+      if (s == null) return;
+      boolean quote = false;
+      for (int i = 0; i < s.length() && !quote; i++) {
+         char c = s.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }//end for
+      if (!quote) {
+         out.write(s);
+         return;
+      }//end if
+      out.write('"');
+      out.write(s.replace("\"", "\"\""));
+      out.write('"');
+   }//end csvField
+
+   private void jsonString(String s) throws IOException {
+      if (s == null) {
+         out.write("null");
+         return;
+      }//end if
+      out.write('"');
+      // the runs between characters to escape are written in one piece
+      int from = 0;
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c >= 0x20 && c != '"' && c != '\\') continue;
+         out.write(s, from, i - from);
+         from = i + 1;
+         switch (c) {
+            case '"': out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            default: out.write(String.format("\\u%04x", (int) c));
+         }//end switch
+      }//end for
+      out.write(s, from, s.length() - from);
+      out.write('"');
+   }//end jsonString
+
+   /**
+    * Finishes the file.
+    */
+   public void close() throws IOException {
+      out.close();
+   }
+
+   /**
+    * @return messages, size and throughput of the export, after close
+    */
+   public String summary() {
+      double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+      double mb = counter.count / 1e6;
+      return String.format("%d messages, %.1f MB (%.1f MB on disk) in %.2f s, %.1f MB/s",
+            messages, mb, file.length() / 1e6, seconds, mb / seconds);
+   }//end summary
+
+}//end ChatExport
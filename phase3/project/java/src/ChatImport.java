@@ -0,0 +1,656 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Imports chat histories, e.g. of users coming from another messenger,
+ * from files in the format ChatExport writes (JSON lines or CSV, .gz
+ * compressed or not).
+ *
+ *    java [-Dmessenger.shards=...] ChatImport <dbname> <port> <user> <file> <import name> [<user map>]
+ *
+ * The chat ids of the file are foreign: each gets a new CHAT row, with
+ * the senders of its messages as members.  Senders are logins, or are
+ * translated to logins by the user map, a CSV file of "foreign,login"
+ * lines; messages of senders without a USR row are imported without a
+ * sender.  Messages keep their original time and get new ids from the
+ * MESSAGE sequence of the database they land on, so the sequences stay
+ * ahead of every imported id.  Before that the CHAT and MESSAGE
+ * sequences of the primary are moved past the highest id in use, in
+ * case rows were loaded with explicit ids as load_data.sql does.
+ *
+ * The file is read twice: once for the chats and their members, then
+ * for the messages, which are cut into numbered batches of 1000 and
+ * inserted by messenger.importThreads (default 4) threads in parallel.
+ * The batches of a chat are all inserted by one thread in file order,
+ * so the chat's messages get ascending ids in the order of the file.
+ * Every batch is one transaction per database, which also records the
+ * batch in IMPORT_BATCH under the import name.  An import that stopped
+ * is resumed by running it again with the same file and name: the chats
+ * are found again by their client_key and recorded batches are skipped.
+ *
+ * The JDBC driver shipped with the project cannot COPY, the messages
+ * are inserted with batched prepared statements like ShardRebalancer
+ * does.
+ *
+ */
+class ChatImport {
+
+   private static final int BATCH = 1000;
+   private static final int LANES = 64;
+   private static final int TEXT_LENGTH = 300;
+
+   static final int threads = Integer.getInteger("messenger.importThreads", 4);
+
+   /**
+    * One message of the file.
+    */
+   static class Row {
+      final String chat;
+      final String sender;
+      final Timestamp time;
+      final String text;
+
+      Row(String chat, String sender, Timestamp time, String text) {
+         this.chat = chat;
+         this.sender = sender;
+         this.time = time;
+         this.text = text;
+      }
+   }//end Row
+
+   /**
+    * A numbered slice of the file, the unit of checkpointing.
+    */
+   static class Batch {
+      final int number;
+      final List<Row> rows;
+
+      Batch(int number, List<Row> rows) {
+         this.number = number;
+         this.rows = rows;
+      }
+   }//end Batch
+
+   /**
+    * Reads the messages of an export file in order.
+    */
+   static class RowReader {
+      private final BufferedReader in;
+      private final boolean csv;
+      private final Map<String, Integer> columns = new HashMap<String, Integer>();
+      long line = 0;
+
+      RowReader(File file) throws IOException {
+         String name = file.getName().toLowerCase();
+         InputStream is = new FileInputStream(file);
+         if (name.endsWith(".gz")) {
+            is = new GZIPInputStream(is, 1 << 16);
+            name = name.substring(0, name.length() - 3);
+         }//end if
+         this.in = new BufferedReader(new InputStreamReader(is, "UTF-8"), 1 << 16);
+         this.csv = name.endsWith(".csv");
+         if (csv) {
+            List<String> header = csvRecord();
+            if (header == null) throw new IOException(file + " is empty");
+            for (int i = 0; i < header.size(); i++) {
+               columns.put(header.get(i), i);
+            }//end for
+         }//end if
+      }//end RowReader
+
+      /**
+       * @return the next message, or null at the end of the file
+       */
+      Row next() throws IOException {
+         Map<String, String> fields;
+         if (csv) {
+            List<String> record = csvRecord();
+            if (record == null) return null;
+            fields = new HashMap<String, String>();
+            for (Map.Entry<String, Integer> c : columns.entrySet()) {
+               fields.put(c.getKey(), c.getValue() < record.size() ? record.get(c.getValue()) : null);
+            }//end for
+         }else {
+            String s;
+            do {
+               s = in.readLine();
+               if (s == null) return null;
+               line++;
+            } while (s.trim().length() == 0);
+            fields = jsonObject(s);
+         }//end if
+         String chat = fields.get("chat_id");
+         String time = fields.get("msg_timestamp");
+         if (chat == null || time == null) throw new IOException("Line " + line + ": no chat_id or msg_timestamp");
+         try {
+            return new Row(chat, fields.get("sender"), Timestamp.valueOf(time.trim()), fields.get("msg_text"));
+         }catch (IllegalArgumentException e) {
+            throw new IOException("Line " + line + ": bad msg_timestamp " + time);
+         }//end try
+      }//end next
+
+      /**
+       * Reads one CSV record, quoted fields may span lines.
+       */
+      private List<String> csvRecord() throws IOException {
+         String s = in.readLine();
+         if (s == null) return null;
+         line++;
+         List<String> record = new ArrayList<String>();
+         StringBuilder field = new StringBuilder();
+         boolean quoted = false;
+         int i = 0;
+         while (true) {
+            if (i == s.length()) {
+               if (!quoted) break;
+               s = in.readLine();
+               if (s == null) throw new IOException("Line " + line + ": unterminated quote");
+               line++;
+               field.append('\n');
+               i = 0;
+               continue;
+            }//end if
+            char c = s.charAt(i++);
+            if (quoted) {
+               if (c != '"') field.append(c);
+               else if (i < s.length() && s.charAt(i) == '"') field.append(s.charAt(i++));
+               else quoted = false;
+            }else if (c == '"') {
+               quoted = true;
+            }else if (c == ',') {
+               record.add(field.toString());
+               field.setLength(0);
+            }else {
+               field.append(c);
+            }//end if
+         }//end while
+         record.add(field.toString());
+         return record;
+      }//end csvRecord
+
+      void close() throws IOException {
+         in.close();
+      }
+   }//end RowReader
+
+   /**
+    * Parses a flat JSON object of strings, numbers and nulls, as
+    * ChatExport writes them.
+    */
+   static Map<String, String> jsonObject(String s) throws IOException {
+      Map<String, String> fields = new HashMap<String, String>();
+      int[] pos = { skip(s, 0) };
+      expect(s, pos, '{');
+      if (s.charAt(skip(s, pos[0])) == '}') return fields;
+      while (true) {
+         pos[0] = skip(s, pos[0]);
+         String key = jsonString(s, pos);
+         pos[0] = skip(s, pos[0]);
+         expect(s, pos, ':');
+         pos[0] = skip(s, pos[0]);
+         String value;
+         if (pos[0] < s.length() && s.charAt(pos[0]) == '"') {
+            value = jsonString(s, pos);
+         }else {
+            int start = pos[0];
+            while (pos[0] < s.length() && ",} \t".indexOf(s.charAt(pos[0])) < 0) pos[0]++;
+            value = s.substring(start, pos[0]);
+            if (value.equals("null")) value = null;
+         }//end if
+         fields.put(key, value);
+         pos[0] = skip(s, pos[0]);
+         if (pos[0] < s.length() && s.charAt(pos[0]) == ',') {
+            pos[0]++;
+            continue;
+         }//end if
+         expect(s, pos, '}');
+         return fields;
+      }//end while
+   }//end jsonObject
+
+   private static int skip(String s, int i) {
+      while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+      return i;
+   }
+
+   private static void expect(String s, int[] pos, char c) throws IOException {
+      if (pos[0] >= s.length() || s.charAt(pos[0]) != c) throw new IOException("Expected '" + c + "' at column " + pos[0]);
+      pos[0]++;
+   }
+
+   private static String jsonString(String s, int[] pos) throws IOException {
+      expect(s, pos, '"');
+      StringBuilder sb = new StringBuilder();
+      while (true) {
+         if (pos[0] >= s.length()) throw new IOException("Unterminated string");
+         char c = s.charAt(pos[0]++);
+         if (c == '"') return sb.toString();
+         if (c != '\\') {
+            sb.append(c);
+            continue;
+         }//end if
+         char e = s.charAt(pos[0]++);
+         switch (e) {
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'u':
+               sb.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16));
+               pos[0] += 4;
+               break;
+            default: sb.append(e);
+         }//end switch
+      }//end while
+   }//end jsonString
+
+   private final String url;
+   private final String dbname;
+   private final String user;
+   private final String passwd;
+   private final File file;
+   private final String name;
+   private final Map<String, String> loginMap;
+
+   // foreign chat id -> CHAT.chat_id, foreign sender -> USR.user_id
+   private final Map<String, Integer> chatIds = new HashMap<String, Integer>();
+   private final Map<String, Integer> senderIds = new HashMap<String, Integer>();
+
+   private final AtomicLong imported = new AtomicLong();
+   private final AtomicLong skipped = new AtomicLong();
+   private final AtomicLong truncated = new AtomicLong();
+   private volatile Exception failure = null;
+
+   ChatImport(String url, String dbname, String user, String passwd, File file, String name, Map<String, String> loginMap) {
+      this.url = url;
+      this.dbname = dbname;
+      this.user = user;
+      this.passwd = passwd;
+      this.file = file;
+      this.name = name;
+      this.loginMap = loginMap;
+   }//end ChatImport
+
+   public static void main(String[] args) {
+      if (args.length < 5) {
+         System.err.println("Usage: java [-Dmessenger.shards=<host:port>,...] ChatImport"
+               + " <dbname> <port> <user> <file> <import name> [<user map>]");
+         return;
+      }//end if
+      try {
+         Class.forName("org.postgresql.Driver").newInstance();
+         Map<String, String> loginMap = new HashMap<String, String>();
+         if (args.length > 5) loginMap = readUserMap(new File(args[5]));
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         new ChatImport(url, args[0], args[2], "", new File(args[3]), args[4], loginMap).run();
+      }catch (Exception e) {
+         System.err.println(e.getMessage());
+      }//end try
+   }//end main
+
+   /**
+    * Reads "foreign,login" lines.
+    */
+   static Map<String, String> readUserMap(File file) throws IOException {
+      Map<String, String> map = new HashMap<String, String>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+         String s;
+         while ((s = in.readLine()) != null) {
+            int comma = s.indexOf(',');
+            if (comma > 0) map.put(s.substring(0, comma).trim(), s.substring(comma + 1).trim());
+         }//end while
+      }finally {
+         in.close();
+      }//end try
+      return map;
+   }//end readUserMap
+
+   void run() throws Exception {
+      long start = System.currentTimeMillis();
+      Connection primary = DriverManager.getConnection(url, user, passwd);
+      ShardMap shards = null;
+      try {
+         shards = ShardMap.fromProperties(primary, dbname, user, passwd);
+         Map<String, LinkedHashSet<String>> members = scanChats();
+         fixSequence(primary, "chat_chat_id_seq", "CHAT", "chat_id");
+         fixSequence(primary, "message_msg_id_seq", "MESSAGE", "msg_id");
+         resolveSenders(primary, members);
+         createChats(primary, shards, members);
+         System.out.println(chatIds.size() + " chats, " + senderIds.size() + " of the senders are users");
+      }finally {
+         if (shards != null) shards.close();
+         primary.close();
+      }//end try
+
+      importMessages();
+      long millis = Math.max(1, System.currentTimeMillis() - start);
+      System.out.println(imported.get() + " messages imported, " + skipped.get() + " already imported before, "
+            + truncated.get() + " cut to " + TEXT_LENGTH + " characters, in " + millis + " ms ("
+            + imported.get() * 1000 / millis + " messages/s)");
+      if (failure != null) {
+         throw new SQLException("Import stopped, run it again to resume: " + failure.getMessage());
+      }//end if
+   }//end run
+
+   private String login(String sender) {
+      String login = loginMap.get(sender);
+      return login != null ? login : sender;
+   }
+
+   /**
+    * First pass: the chats of the file and the senders in each.
+    */
+   private Map<String, LinkedHashSet<String>> scanChats() throws IOException {
+      Map<String, LinkedHashSet<String>> members = new LinkedHashMap<String, LinkedHashSet<String>>();
+      RowReader in = new RowReader(file);
+      try {
+         Row row;
+         while ((row = in.next()) != null) {
+            LinkedHashSet<String> m = members.get(row.chat);
+            if (m == null) members.put(row.chat, m = new LinkedHashSet<String>());
+            if (row.sender != null) m.add(row.sender);
+         }//end while
+      }finally {
+         in.close();
+      }//end try
+      return members;
+   }//end scanChats
+
+   /**
+    * Moves a sequence past the highest id of its table, so the rows the
+    * import adds cannot collide with rows inserted with explicit ids.
+    */
+   private static void fixSequence(Connection primary, String sequence, String table, String column) throws SQLException {
+      List<List<String>> rows = ShardMap.rows(primary, String.format(
+            "SELECT setval('%s', m) FROM (SELECT max(%s) AS m FROM %s) t, %s s WHERE m >= s.last_value;",
+            sequence, column, table, sequence));
+      if (!rows.isEmpty()) System.out.println(sequence + " moved to " + rows.get(0).get(0).trim());
+   }//end fixSequence
+
+   /**
+    * Looks the senders' logins up, a few hundred per query.
+    */
+   private void resolveSenders(Connection primary, Map<String, LinkedHashSet<String>> members) throws SQLException {
+      Map<String, List<String>> byLogin = new HashMap<String, List<String>>();
+      for (LinkedHashSet<String> m : members.values()) {
+         for (String sender : m) {
+            String login = login(sender);
+            List<String> senders = byLogin.get(login);
+            if (senders == null) byLogin.put(login, senders = new ArrayList<String>());
+            if (!senders.contains(sender)) senders.add(sender);
+         }//end for
+      }//end for
+      List<String> logins = new ArrayList<String>(byLogin.keySet());
+      for (int from = 0; from < logins.size(); from += 500) {
+         List<String> chunk = logins.subList(from, Math.min(logins.size(), from + 500));
+         StringBuilder in = new StringBuilder();
+         for (int i = 0; i < chunk.size(); i++) {
+            in.append(i == 0 ? "?" : ",?");
+         }//end for
+         PreparedStatement select = primary.prepareStatement(
+               "SELECT user_id, login FROM USR WHERE NOT deleted AND login IN (" + in + ")");
+         try {
+            for (int i = 0; i < chunk.size(); i++) {
+               select.setString(i + 1, chunk.get(i));
+            }//end for
+            ResultSet rs = select.executeQuery();
+            while (rs.next()) {
+               int id = rs.getInt(1);
+               for (String sender : byLogin.get(rs.getString(2).trim())) {
+                  senderIds.put(sender, id);
+               }//end for
+            }//end while
+            rs.close();
+         }finally {
+            select.close();
+         }//end try
+      }//end for
+   }//end resolveSenders
+
+   /**
+    * Creates a chat for every foreign chat, or finds the one a previous
+    * run created, and its member list.
+    */
+   private void createChats(Connection primary, ShardMap shards, Map<String, LinkedHashSet<String>> members) throws SQLException {
+      PreparedStatement insert = primary.prepareStatement(
+            "INSERT INTO CHAT(chat_type, init_sender, client_key) SELECT ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM CHAT WHERE client_key = ?)");
+      PreparedStatement select = primary.prepareStatement("SELECT chat_id FROM CHAT WHERE client_key = ?");
+      try {
+         for (Map.Entry<String, LinkedHashSet<String>> e : members.entrySet()) {
+            LinkedHashSet<Integer> ids = new LinkedHashSet<Integer>();
+            for (String sender : e.getValue()) {
+               Integer id = senderIds.get(sender);
+               if (id != null) ids.add(id);
+            }//end for
+            String key = chatKey(e.getKey());
+            insert.setString(1, ids.size() == 2 ? "private" : "group");
+            if (ids.isEmpty()) insert.setNull(2, Types.INTEGER);
+            else insert.setInt(2, ids.iterator().next());
+            insert.setString(3, key);
+            insert.setString(4, key);
+            insert.executeUpdate();
+            select.setString(1, key);
+            ResultSet rs = select.executeQuery();
+            rs.next();
+            int chat = rs.getInt(1);
+            rs.close();
+            chatIds.put(e.getKey(), chat);
+
+            Connection conn = shards == null ? primary : shards.forWrite(chat);
+            for (int member : ids) {
+               update(conn, String.format(
+                     "INSERT INTO CHAT_LIST(chat_id, member) SELECT %d, %d WHERE NOT EXISTS (SELECT 1 FROM CHAT_LIST WHERE chat_id = %d AND member = %d);",
+                     chat, member, chat, member));
+            }//end for
+         }//end for
+      }finally {
+         insert.close();
+         select.close();
+      }//end try
+   }//end createChats
+
+   private static int update(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         return stmt.executeUpdate(sql);
+      }finally {
+         stmt.close();
+      }//end try
+   }//end update
+
+   /**
+    * The client_key of the chat made for a foreign chat, the same for
+    * every run of the import.
+    */
+   private String chatKey(String foreignChat) {
+      try {
+         MessageDigest md5 = MessageDigest.getInstance("MD5");
+         byte[] digest = md5.digest((name + "\n" + foreignChat).getBytes("UTF-8"));
+         StringBuilder sb = new StringBuilder("import-");
+         for (int i = 0; i < 12; i++) sb.append(String.format("%02x", digest[i]));
+         return sb.toString();
+      }catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }catch (IOException e) {
+         throw new IllegalStateException(e);
+      }//end try
+   }//end chatKey
+
+   /**
+    * Second pass: reads the messages into numbered batches and has the
+    * workers insert them.  A chat's messages all go to one of LANES
+    * lanes, and a lane's batches to one worker, which inserts them in
+    * order, so a chat's new msg_ids follow the file as its readers
+    * expect.  The lanes do not depend on the number of threads, a run
+    * resumed with another messenger.importThreads cuts the same batches.
+    */
+   private void importMessages() throws Exception {
+      final Batch end = new Batch(-1, null);
+      List<BlockingQueue<Batch>> queues = new ArrayList<BlockingQueue<Batch>>(threads);
+      Thread[] workers = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+         final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(2);
+         queues.add(queue);
+         workers[i] = new Thread(new Runnable() {
+            public void run() {
+               work(queue, end);
+            }
+         }, "import-" + i);
+         workers[i].start();
+      }//end for
+
+      RowReader in = new RowReader(file);
+      long lastReport = System.currentTimeMillis();
+      try {
+         List<List<Row>> lanes = new ArrayList<List<Row>>(LANES);
+         for (int i = 0; i < LANES; i++) {
+            lanes.add(new ArrayList<Row>(BATCH));
+         }//end for
+         int number = 0;
+         Row row;
+         while (failure == null && (row = in.next()) != null) {
+            int lane = chatIds.get(row.chat) % LANES;
+            List<Row> batch = lanes.get(lane);
+            batch.add(row);
+            if (batch.size() < BATCH) continue;
+            queues.get(lane % threads).put(new Batch(number++, batch));
+            lanes.set(lane, new ArrayList<Row>(BATCH));
+            if (System.currentTimeMillis() - lastReport >= 10000) {
+               lastReport = System.currentTimeMillis();
+               System.out.println("..." + imported.get() + " messages imported");
+            }//end if
+         }//end while
+         for (int lane = 0; failure == null && lane < LANES; lane++) {
+            List<Row> batch = lanes.get(lane);
+            if (!batch.isEmpty()) queues.get(lane % threads).put(new Batch(number++, batch));
+         }//end for
+      }finally {
+         in.close();
+         for (BlockingQueue<Batch> queue : queues) {
+            queue.put(end);
+         }//end for
+         for (Thread t : workers) {
+            t.join();
+         }//end for
+      }//end try
+   }//end importMessages
+
+   /**
+    * Inserts batches until the end marker, on connections of its own.
+    */
+   private void work(BlockingQueue<Batch> queue, Batch end) {
+      Connection primary = null;
+      ShardMap shards = null;
+      try {
+         primary = DriverManager.getConnection(url, user, passwd);
+         shards = ShardMap.fromProperties(primary, dbname, user, passwd);
+         while (true) {
+            Batch batch = queue.take();
+            if (batch == end) return;
+            if (failure != null) continue;
+            insert(primary, shards, batch);
+         }//end while
+      }catch (Exception e) {
+         failure = e;
+         // keep taking so the reader is not blocked
+         try {
+            while (queue.take() != end) { }
+         }catch (InterruptedException ie) {
+            // ignored.
+         }//end try
+      }finally {
+         if (shards != null) shards.close();
+         try {
+            if (primary != null) primary.close();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end work
+
+   /**
+    * Inserts one batch, in one transaction on every database it touches
+    * that also records the batch there, unless it was recorded before.
+    */
+   private void insert(Connection primary, ShardMap shards, Batch batch) throws SQLException {
+      int number = batch.number;
+      Map<Connection, List<Row>> parts = new LinkedHashMap<Connection, List<Row>>();
+      for (Row row : batch.rows) {
+         Connection conn = shards == null ? primary : shards.forWrite(chatIds.get(row.chat));
+         List<Row> part = parts.get(conn);
+         if (part == null) parts.put(conn, part = new ArrayList<Row>());
+         part.add(row);
+      }//end for
+
+      for (Map.Entry<Connection, List<Row>> e : parts.entrySet()) {
+         Connection conn = e.getKey();
+         List<Row> rows = e.getValue();
+         if (Messenger.exists(conn, "SELECT 1 FROM IMPORT_BATCH WHERE import_name = ? AND batch = ?", name, number)) {
+            skipped.addAndGet(rows.size());
+            continue;
+         }//end if
+         PreparedStatement insert = conn.prepareStatement(
+               "INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_id, chat_id) VALUES (?, ?, ?, ?)");
+         PreparedStatement done = conn.prepareStatement(
+               "INSERT INTO IMPORT_BATCH(import_name, batch, rows) VALUES (?, ?, ?)");
+         try {
+            conn.setAutoCommit(false);
+            for (Row row : rows) {
+               String text = row.text == null ? "" : row.text;
+               if (text.length() > TEXT_LENGTH) {
+                  text = text.substring(0, TEXT_LENGTH);
+                  truncated.incrementAndGet();
+               }//end if
+               insert.setString(1, text);
+               insert.setTimestamp(2, row.time);
+               Integer sender = row.sender == null ? null : senderIds.get(row.sender);
+               if (sender == null) insert.setNull(3, Types.INTEGER);
+               else insert.setInt(3, sender);
+               insert.setInt(4, chatIds.get(row.chat));
+               insert.addBatch();
+            }//end for
+            insert.executeBatch();
+            done.setString(1, name);
+            done.setInt(2, number);
+            done.setInt(3, rows.size());
+            done.executeUpdate();
+            conn.commit();
+            imported.addAndGet(rows.size());
+         }catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+         }finally {
+            conn.setAutoCommit(true);
+            insert.close();
+            done.close();
+         }//end try
+      }//end for
+   }//end insert
+
+}//end ChatImport
@@ -0,0 +1,132 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Checks the per-chat statistics in CHAT_STATS against the MESSAGE and
+ * CHAT_LIST rows they count, and repairs the chats that drifted.
+ *
+ *    java [-Dmessenger.shards=<host:port>,...] ChatStats <dbname> <port> <user> check|repair
+ *
+ * The triggers of create_chat_stats.sql keep the statistics of every
+ * database in the same transaction as the rows, so they only drift when
+ * rows were changed around them: an update of chat_id, a TRUNCATE, a
+ * trigger that was disabled for a bulk load.  The check compares
+ * CHAT_STATS with CHAT_STATS_ACTUAL in one statement, on one snapshot, so
+ * the sends going on meanwhile are not reported.  A repair recounts each
+ * drifted chat in a transaction of its own that holds the chat's
+ * statistics row, which the triggers of concurrent sends wait for, so
+ * the sessions keep running.
+ *
+ */
+class ChatStats {
+
+   private static final String DRIFT =
+         "SELECT COALESCE(a.chat_id, s.chat_id), s.msg_count, a.msg_count, s.member_count, a.member_count"
+         + " FROM CHAT_STATS_ACTUAL a FULL OUTER JOIN CHAT_STATS s ON s.chat_id = a.chat_id"
+         + " WHERE (a.msg_count, a.member_count, a.last_msg_id, a.last_activity, a.last_sender)"
+         + " IS DISTINCT FROM (s.msg_count, s.member_count, s.last_msg_id, s.last_activity, s.last_sender)"
+         + " ORDER BY 1;";
+
+   public static void main(String[] args) {
+      if (args.length < 4) {
+         System.err.println("Usage: java [-Dmessenger.shards=<host:port>,...] ChatStats <dbname> <port> <user> check|repair");
+         return;
+      }//end if
+      Connection primary = null;
+      ShardMap shards = null;
+      try {
+         Class.forName("org.postgresql.Driver").newInstance();
+         primary = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+         shards = ShardMap.fromProperties(primary, args[0], args[2], "");
+         boolean repair = args[3].equals("repair");
+         if (!repair && !args[3].equals("check")) {
+            System.err.println("Unknown command: " + args[3]);
+            return;
+         }//end if
+         if (shards == null) {
+            run(primary, "primary", repair);
+         }else {
+            for (int i = ShardMap.PRIMARY; i < shards.size(); i++) {
+               run(shards.connection(i), shards.url(i), repair);
+            }//end for
+         }//end if
+      }catch (Exception e) {
+         System.err.println(e.getMessage());
+      }finally {
+         if (shards != null) shards.close();
+         try {
+            if (primary != null) primary.close();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+   /**
+    * Checks, and repairs if asked to, the statistics of one database.
+    */
+   private static void run(Connection conn, String name, boolean repair) throws SQLException {
+      List<List<String>> drifted = check(conn);
+      for (List<String> row : drifted) {
+         System.out.println(name + ": chat " + row.get(0).trim()
+               + " messages " + value(row.get(1)) + " counted " + value(row.get(2))
+               + ", members " + value(row.get(3)) + " counted " + value(row.get(4)));
+      }//end for
+      if (!repair || drifted.isEmpty()) {
+         System.out.println(name + ": " + drifted.size() + " chats drifted");
+         return;
+      }//end if
+      for (List<String> row : drifted) {
+         repair(conn, Integer.parseInt(row.get(0).trim()));
+      }//end for
+      System.out.println(name + ": " + drifted.size() + " chats repaired, " + check(conn).size() + " drifted now");
+   }//end run
+
+   /**
+    * @return chat id, stored and counted messages, stored and counted
+    *         members of every chat whose statistics are wrong
+    */
+   static List<List<String>> check(Connection conn) throws SQLException {
+      return ShardMap.rows(conn, DRIFT);
+   }
+
+   /**
+    * Recounts the statistics of one chat.
+    */
+   static void repair(Connection conn, int chat) throws SQLException {
+      conn.setAutoCommit(false);
+      Statement stmt = conn.createStatement();
+      try {
+         // the row must exist to be held; a send that creates it first is waited for
+         stmt.executeUpdate(String.format("INSERT INTO CHAT_STATS(chat_id) VALUES (%d) ON CONFLICT (chat_id) DO NOTHING;", chat));
+         // sends to the chat now wait for the repair, the ones before it are counted
+         ShardMap.rows(conn, String.format("SELECT chat_id FROM CHAT_STATS WHERE chat_id = %d FOR UPDATE;", chat));
+         stmt.executeUpdate(String.format("UPDATE CHAT_STATS SET"
+               + " msg_count = (SELECT count(*) FROM MESSAGE WHERE chat_id = %d),"
+               + " member_count = (SELECT count(*) FROM CHAT_LIST WHERE chat_id = %d),"
+               + " (last_msg_id, last_activity, last_sender) = (SELECT msg_id, msg_timestamp, sender_id FROM MESSAGE"
+               + " WHERE chat_id = %d ORDER BY msg_id DESC LIMIT 1)"
+               + " WHERE chat_id = %d;", chat, chat, chat, chat));
+         stmt.executeUpdate(String.format("DELETE FROM CHAT_STATS WHERE chat_id = %d AND msg_count = 0 AND member_count = 0;", chat));
+         conn.commit();
+      }catch (SQLException e) {
+         try {
+            conn.rollback();
+         }catch (SQLException ignored) {
+            // reported below.
+         }//end try
+         throw e;
+      }finally {
+         stmt.close();
+         conn.setAutoCommit(true);
+      }//end try
+   }//end repair
+
+   private static String value(String v) {
+      return v == null ? "-" : v.trim();
+   }
+
+}//end ChatStats
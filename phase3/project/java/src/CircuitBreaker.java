@@ -0,0 +1,113 @@
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stops the sessions from hammering a database that is down.
+ *
+ * Every failed attempt to connect is counted; after
+ * messenger.breakerFailures (default 3) in a row the breaker opens and
+ * requests fail at once, without trying to connect, for
+ * messenger.breakerOpenMs (default 15s).  Then one request may try
+ * again (half open), the others keep failing at once while it does: if
+ * it connects the breaker closes, if not it opens for another period.
+ * A successful connection resets the count.
+ *
+ * Between the attempts of one request the caller waits backoffMillis(),
+ * an exponential delay with jitter so that the sessions of a restarted
+ * server do not all reconnect in the same instant.
+ *
+ */
+class CircuitBreaker {
+
+   static final int threshold = Integer.getInteger("messenger.breakerFailures", 3);
+   static final long openMillis = Long.getLong("messenger.breakerOpenMs", 15000L);
+
+   private static final long BASE_BACKOFF_MILLIS = 200L;
+   private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+   private int failures = 0;
+   private long openUntil = 0;
+   private long opened = 0;
+
+   // claimed by the one request that tries again while half open
+   private final AtomicBoolean probing = new AtomicBoolean(false);
+
+   /**
+    * Fails fast while the breaker is open, and while half open for every
+    * request but the one that tries again; that request must report
+    * success() or failure(), or release() if it gave up without trying.
+    *
+    * @return true if the request is the one that tries again
+    * @throws java.sql.SQLException with SQLState 08001 while open
+    */
+   public synchronized boolean check() throws SQLException {
+      long wait = openUntil - System.currentTimeMillis();
+      if (wait > 0) {
+         throw new SQLException("Database unavailable, trying again in " + ((wait + 999) / 1000) + " s", "08001");
+      }//end if
+      if (failures >= threshold && !probing.compareAndSet(false, true)) {
+         throw new SQLException("Database unavailable, another request is trying to connect", "08001");
+      }//end if
+      return failures >= threshold;
+   }//end check
+
+   /**
+    * Lets another request try again, for the one that check() chose when
+    * it stops without an outcome.
+    */
+   public synchronized void release() {
+      probing.set(false);
+   }
+
+   public synchronized void success() {
+      failures = 0;
+      openUntil = 0;
+      probing.set(false);
+   }
+
+   /**
+    * Counts a failed attempt to connect.
+    *
+    * @return true if the breaker is open now
+    */
+   public synchronized boolean failure() {
+      failures++;
+      if (failures < threshold) return false;
+      openUntil = System.currentTimeMillis() + openMillis;
+      opened++;
+      probing.set(false);
+      return true;
+   }//end failure
+
+   public synchronized boolean isOpen() {
+      return openUntil > System.currentTimeMillis();
+   }
+
+   /**
+    * @return how often the breaker has opened
+    */
+   public synchronized long timesOpened() {
+      return opened;
+   }
+
+   /**
+    * The wait before the given retry (0 for the first), half of the
+    * exponential delay plus a random part of the other half.
+    */
+   static long backoffMillis(int retry) {
+      long delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(retry, 16));
+      return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+   }//end backoffMillis
+
+   /**
+    * Returns true if the error may mean the connection is gone: a
+    * connection exception (08xxx), a server shutting down (57P0x), or an
+    * error without SQLState, which is all the old pg73 driver reports.
+    */
+   static boolean isConnectionError(SQLException e) {
+      String state = e.getSQLState();
+      return state == null || state.startsWith("08") || state.startsWith("57P0");
+   }//end isConnectionError
+
+}//end CircuitBreaker
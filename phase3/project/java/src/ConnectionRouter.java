@@ -0,0 +1,196 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Routes Messenger statements between one primary and any number of
+ * streaming replicas.
+ *
+ * Updates always go to the primary.  Queries go to a replica, round robin,
+ * unless that could hide one of the session's own writes: after every
+ * write the primary's WAL position (LSN) is noted, and a replica only
+ * serves the session's reads once it has replayed up to that position.
+ * The replay position of each replica is cached and only asked for again
+ * while the replica is behind, so a session that is not writing pays no
+ * extra round trips.  A replica that fails with a connection error is
+ * left out for a while and its reads go to the primary.
+ *
+ * Needs PostgreSQL 10 or newer on the servers (pg_current_wal_lsn).
+ *
+ */
+class ConnectionRouter {
+
+   private static final long RETRY_DOWN_MILLIS = 30000L;
+
+   /**
+    * One read-only replica.
+    */
+   static class Replica {
+      final String url;
+      Connection connection = null;
+      long replayedLsn = 0;
+      long downUntil = 0;
+
+      Replica(String url) {
+         this.url = url;
+      }
+   }//end Replica
+
+   private final Connection primary;
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private final String user;
+   private final String passwd;
+   private int next = 0;
+
+   // WAL position of the session's last write, 0 if it has not written
+   private long writeLsn = 0;
+
+   public ConnectionRouter(Connection primary, List<String> replicaUrls, String user, String passwd) {
+      this.primary = primary;
+      this.user = user;
+      this.passwd = passwd;
+      for (String url : replicaUrls) {
+         replicas.add(new Replica(url));
+      }//end for
+   }//end ConnectionRouter
+
+   public Connection primary() {
+      return primary;
+   }
+
+   /**
+    * Returns the connection a query should run on.  Falls back to the
+    * primary when no replica is up or has caught up with the session.
+    */
+   public synchronized Connection forRead() {
+      int n = replicas.size();
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < n; i++) {
+         Replica r = replicas.get((next + i) % n);
+         if (r.downUntil > now) continue;
+         try {
+            if (r.connection == null) {
+               r.connection = DriverManager.getConnection(r.url, user, passwd);
+               OpStats.openConnections.incrementAndGet();
+            }//end if
+            if (r.replayedLsn < writeLsn) {
+               r.replayedLsn = lsn(r.connection, "SELECT pg_last_wal_replay_lsn()");
+            }//end if
+            if (r.replayedLsn >= writeLsn) {
+               next = (next + i + 1) % n;
+               return r.connection;
+            }//end if
+         }catch (SQLException e) {
+            markDown(r);
+         }//end try
+      }//end for
+      return primary;
+   }//end forRead
+
+   /**
+    * Notes the primary's WAL position after a write of this session.  If
+    * the position cannot be read the session reads from the primary until
+    * its next write.
+    */
+   public synchronized void wrote() {
+      if (replicas.isEmpty()) return;
+      try {
+         writeLsn = lsn(primary, "SELECT pg_current_wal_lsn()");
+      }catch (SQLException e) {
+         writeLsn = Long.MAX_VALUE;
+      }//end try
+   }//end wrote
+
+   /**
+    * Notes a write made for this session on another connection to the
+    * same primary, e.g. an outbox replay, at the given WAL position.
+    */
+   public synchronized void wroteAt(long lsn) {
+      if (replicas.isEmpty()) return;
+      writeLsn = Math.max(writeLsn, lsn);
+   }//end wroteAt
+
+   public synchronized boolean hasReplicas() {
+      return !replicas.isEmpty();
+   }
+
+   /**
+    * Returns the primary's current WAL position.
+    */
+   public long primaryLsn() throws SQLException {
+      return lsn(primary, "SELECT pg_current_wal_lsn()");
+   }
+
+   /**
+    * Reports a failed query.  Returns true if the connection it ran on is
+    * a replica that was taken out of rotation, so the query can be retried.
+    */
+   public synchronized boolean failed(Connection conn, SQLException e) {
+      if (conn == primary) return false;
+      String state = e.getSQLState();
+      boolean broken = state == null || state.startsWith("08");
+      try {
+         broken = broken || conn.isClosed();
+      }catch (SQLException ignored) {
+         broken = true;
+      }//end try
+      if (!broken) return false;
+      for (Replica r : replicas) {
+         if (r.connection == conn) markDown(r);
+      }//end for
+      return true;
+   }//end failed
+
+   private void markDown(Replica r) {
+      System.err.println("Replica " + r.url + " unavailable, reading from the primary");
+      close(r);
+      r.downUntil = System.currentTimeMillis() + RETRY_DOWN_MILLIS;
+   }//end markDown
+
+   private static void close(Replica r) {
+      if (r.connection == null) return;
+      try {
+         r.connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }//end try
+      r.connection = null;
+      OpStats.openConnections.decrementAndGet();
+   }//end close
+
+   /**
+    * Closes the replica connections, the primary is closed by Messenger.
+    */
+   public synchronized void closeReplicas() {
+      for (Replica r : replicas) {
+         close(r);
+      }//end for
+   }//end closeReplicas
+
+   private static long lsn(Connection conn, String query) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(query);
+         // NULL on a server that is not in recovery
+         if (!rs.next() || rs.getString(1) == null) return Long.MAX_VALUE;
+         return parseLsn(rs.getString(1));
+      }finally {
+         stmt.close();
+      }//end try
+   }//end lsn
+
+   /**
+    * Parses a pg_lsn in its text form, e.g. 16/B374D848.
+    */
+   static long parseLsn(String text) {
+      int slash = text.indexOf('/');
+      long hi = Long.parseLong(text.substring(0, slash).trim(), 16);
+      long lo = Long.parseLong(text.substring(slash + 1).trim(), 16);
+      return (hi << 32) | lo;
+   }//end parseLsn
+
+}//end ConnectionRouter
@@ -0,0 +1,397 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The contact and blocked lists of all users as an in-memory directed
+ * graph, for the friends-of-friends suggestions: the contacts of a user's
+ * contacts, ranked by how many of the user's contacts have them, without
+ * the users blocked either way.
+ *
+ * Each list is held in compressed sparse row form over the int user ids:
+ * the members of user u are targets[offsets[u] .. offsets[u + 1]), sorted,
+ * so a suggestion walks two flat arrays and a lookup is a binary search.
+ * The graph is read in bulk through Storage.listEdges on the first
+ * suggestion.  The list changes and account deletions of this process
+ * are applied to it at once, as an overlay of added and removed members
+ * per user; changes made by other processes are picked up by a reload in
+ * the background after messenger.graphRefreshMs (default 5 minutes), or
+ * earlier once the overlay grew past a sixteenth of the graph.  The
+ * suggestions are served from the old graph while it reloads.
+ *
+ */
+class ContactGraph {
+
+   static final long refreshMillis = Long.getLong("messenger.graphRefreshMs", 300000L);
+
+   private static final int ADD = 0, REMOVE = 1, DELETE_USER = 2;
+
+   /**
+    * One list of every user in compressed sparse row form.
+    */
+   static class Csr {
+      final int[] offsets;
+      final int[] targets;
+
+      Csr(int[] offsets, int[] targets) {
+         this.offsets = offsets;
+         this.targets = targets;
+      }
+
+      int start(int user) {
+         return user < offsets.length - 1 ? offsets[user] : 0;
+      }
+
+      int end(int user) {
+         return user < offsets.length - 1 ? offsets[user + 1] : 0;
+      }
+
+      boolean contains(int user, int member) {
+         int from = start(user), to = end(user);
+         return from < to && Arrays.binarySearch(targets, from, to, member) >= 0;
+      }
+
+      /**
+       * Builds the rows from edges in any order.
+       */
+      static Csr of(int[] from, int[] to, int count, int users) {
+         int[] offsets = new int[users + 1];
+         for (int i = 0; i < count; i++) offsets[from[i] + 1]++;
+         for (int u = 0; u < users; u++) offsets[u + 1] += offsets[u];
+         int[] targets = new int[count];
+         int[] next = Arrays.copyOf(offsets, users);
+         for (int i = 0; i < count; i++) targets[next[from[i]]++] = to[i];
+         for (int u = 0; u < users; u++) Arrays.sort(targets, offsets[u], offsets[u + 1]);
+         return new Csr(offsets, targets);
+      }//end of
+   }//end Csr
+
+   /**
+    * Edges read from the storage, grown as they arrive.
+    */
+   private static class Edges implements Storage.EdgeHandler {
+      int[] from = new int[1024];
+      int[] to = new int[1024];
+      int count = 0;
+      int maxId = 0;
+
+      public void edge(int user, int member) {
+         if (count == from.length) {
+            from = Arrays.copyOf(from, count << 1);
+            to = Arrays.copyOf(to, count << 1);
+         }//end if
+         from[count] = user;
+         to[count] = member;
+         count++;
+         maxId = Math.max(maxId, Math.max(user, member));
+      }//end edge
+   }//end Edges
+
+   /**
+    * The members added to and removed from the lists since a load; a
+    * member is in added only if the loaded row lacks it, in removed only
+    * if the row has it.
+    */
+   private static class Overlay {
+      final List<IntHashMap<IntHashSet>> added = new ArrayList<IntHashMap<IntHashSet>>();
+      final List<IntHashMap<IntHashSet>> removed = new ArrayList<IntHashMap<IntHashSet>>();
+      final IntHashSet deleted = new IntHashSet();
+      int changes = 0;
+
+      Overlay() {
+         for (int i = 0; i < Storage.UserList.values().length; i++) {
+            added.add(new IntHashMap<IntHashSet>());
+            removed.add(new IntHashMap<IntHashSet>());
+         }//end for
+      }
+
+      static IntHashSet row(IntHashMap<IntHashSet> rows, int user, boolean create) {
+         IntHashSet row = rows.get(user);
+         if (row == null && create) {
+            row = new IntHashSet();
+            rows.put(user, row);
+         }//end if
+         return row;
+      }//end row
+   }//end Overlay
+
+   /**
+    * A loaded graph and the changes made since.
+    */
+   private static class Snapshot {
+      final Csr[] lists;
+      final long loadedAt = System.currentTimeMillis();
+      final Overlay overlay = new Overlay();
+      // highest user id in the graph and the overlay
+      int maxId;
+
+      Snapshot(Csr[] lists, int maxId) {
+         this.lists = lists;
+         this.maxId = maxId;
+      }
+
+      long edges() {
+         long n = 0;
+         for (Csr csr : lists) n += csr.targets.length;
+         return n;
+      }
+
+      void apply(int op, Storage.UserList list, int user, int member) {
+         overlay.changes++;
+         maxId = Math.max(maxId, Math.max(user, member));
+         if (op == DELETE_USER) {
+            overlay.deleted.add(user);
+            return;
+         }//end if
+         int l = list.ordinal();
+         boolean loaded = lists[l].contains(user, member);
+         IntHashSet added = Overlay.row(overlay.added.get(l), user, op == ADD && !loaded);
+         IntHashSet removed = Overlay.row(overlay.removed.get(l), user, op == REMOVE && loaded);
+         if (op == ADD) {
+            if (removed != null) removed.remove(member);
+            if (!loaded) added.add(member);
+         }else {
+            if (added != null) added.remove(member);
+            if (loaded) removed.add(member);
+         }//end if
+      }//end apply
+
+      boolean has(Storage.UserList list, int user, int member) {
+         int l = list.ordinal();
+         IntHashSet added = overlay.added.get(l).get(user);
+         if (added != null && added.contains(member)) return true;
+         IntHashSet removed = overlay.removed.get(l).get(user);
+         return (removed == null || !removed.contains(member)) && lists[l].contains(user, member);
+      }//end has
+   }//end Snapshot
+
+   private volatile Snapshot current = null;
+
+   // changes made while a reload runs, applied to the reloaded graph
+   private List<int[]> pending = null;
+
+   // mutual contact counts of the suggestion in progress, -1 for users
+   // that are not suggested, and the users counted
+   private int[] counts = new int[0];
+   private int[] touched = new int[64];
+
+   private long reloads = 0;
+
+   /**
+    * The users suggested as contacts of a user, most mutual contacts
+    * first, then lowest id.
+    *
+    * @param source the storage the graph is read from
+    * @return at most limit suggestions
+    */
+   Storage.Suggestion[] suggest(Storage source, int user, int limit) throws SQLException {
+      Snapshot s = current;
+      if (s == null) {
+         load(source);
+         s = current;
+      }else if (System.currentTimeMillis() - s.loadedAt > refreshMillis || s.overlay.changes > Math.max(1024L, s.edges() / 16)) {
+         reloadInBackground(source);
+      }//end if
+      return suggest(s, user, limit);
+   }//end suggest
+
+   private synchronized Storage.Suggestion[] suggest(Snapshot s, int user, int limit) {
+      if (counts.length <= s.maxId) counts = new int[s.maxId + 1 + (s.maxId >> 3)];
+      int n = 0;
+      try {
+         if (user >= counts.length || s.overlay.deleted.contains(user)) return new Storage.Suggestion[0];
+         // the user, its contacts and the users it blocked are not suggested
+         n = mark(user, n);
+         int[] contacts = members(s, Storage.UserList.CONTACTS, user);
+         for (int c : contacts) n = mark(c, n);
+         for (int b : members(s, Storage.UserList.BLOCKED, user)) n = mark(b, n);
+
+         Csr graph = s.lists[Storage.UserList.CONTACTS.ordinal()];
+         IntHashMap<IntHashSet> added = s.overlay.added.get(Storage.UserList.CONTACTS.ordinal());
+         IntHashMap<IntHashSet> removed = s.overlay.removed.get(Storage.UserList.CONTACTS.ordinal());
+         for (int c : contacts) {
+            IntHashSet gone = removed.get(c);
+            for (int i = graph.start(c), end = graph.end(c); i < end; i++) {
+               int w = graph.targets[i];
+               if (gone != null && gone.contains(w)) continue;
+               n = count(w, n);
+            }//end for
+            IntHashSet more = added.get(c);
+            if (more != null) {
+               for (int w : more.toArray()) n = count(w, n);
+            }//end if
+         }//end for
+         return top(s, user, n, limit);
+      }finally {
+         for (int i = 0; i < n; i++) counts[touched[i]] = 0;
+      }//end try
+   }//end suggest
+
+   private int mark(int w, int n) {
+      if (counts[w] == 0) n = touch(w, n);
+      counts[w] = -1;
+      return n;
+   }
+
+   private int count(int w, int n) {
+      if (counts[w] < 0) return n;
+      if (counts[w]++ == 0) n = touch(w, n);
+      return n;
+   }
+
+   private int touch(int w, int n) {
+      if (n == touched.length) touched = Arrays.copyOf(touched, n << 1);
+      touched[n] = w;
+      return n + 1;
+   }
+
+   /**
+    * Picks the limit best counted users, leaving out deleted users and
+    * the ones who blocked the user.
+    */
+   private Storage.Suggestion[] top(Snapshot s, int user, int n, int limit) {
+      if (limit <= 0) return new Storage.Suggestion[0];
+      int[] best = new int[limit];
+      int size = 0;
+      for (int i = 0; i < n; i++) {
+         int w = touched[i];
+         if (counts[w] <= 0) continue;
+         if (size == limit && !better(w, best[size - 1])) continue;
+         if (s.overlay.deleted.contains(w) || s.has(Storage.UserList.BLOCKED, w, user)) continue;
+         int j = size == limit ? size - 1 : size++;
+         while (j > 0 && better(w, best[j - 1])) {
+            best[j] = best[j - 1];
+            j--;
+         }//end while
+         best[j] = w;
+      }//end for
+      Storage.Suggestion[] suggestions = new Storage.Suggestion[size];
+      for (int i = 0; i < size; i++) {
+         suggestions[i] = new Storage.Suggestion(best[i], counts[best[i]]);
+      }//end for
+      return suggestions;
+   }//end top
+
+   private boolean better(int a, int b) {
+      return counts[a] != counts[b] ? counts[a] > counts[b] : a < b;
+   }
+
+   /**
+    * @return the members of a list of a user, with the overlay applied
+    */
+   private static int[] members(Snapshot s, Storage.UserList list, int user) {
+      Csr csr = s.lists[list.ordinal()];
+      IntHashSet added = s.overlay.added.get(list.ordinal()).get(user);
+      IntHashSet removed = s.overlay.removed.get(list.ordinal()).get(user);
+      int[] members = Arrays.copyOfRange(csr.targets, csr.start(user), csr.end(user));
+      if (added == null && removed == null && s.overlay.deleted.size() == 0) return members;
+      int n = 0;
+      for (int m : members) {
+         if (removed != null && removed.contains(m)) continue;
+         members[n++] = m;
+      }//end for
+      members = Arrays.copyOf(members, n + (added == null ? 0 : added.size()));
+      if (added != null) {
+         for (int m : added.toArray()) members[n++] = m;
+      }//end if
+      n = 0;
+      for (int m : members) {
+         if (!s.overlay.deleted.contains(m)) members[n++] = m;
+      }//end for
+      return Arrays.copyOf(members, n);
+   }//end members
+
+   /**
+    * Records a member added to a list.
+    */
+   void added(int user, Storage.UserList list, int member) {
+      change(ADD, list, user, member);
+   }
+
+   /**
+    * Records a member removed from a list.
+    */
+   void removed(int user, Storage.UserList list, int member) {
+      change(REMOVE, list, user, member);
+   }
+
+   /**
+    * Records a deleted account, it is neither suggested nor counted.
+    */
+   void userDeleted(int user) {
+      change(DELETE_USER, Storage.UserList.CONTACTS, user, user);
+   }
+
+   private synchronized void change(int op, Storage.UserList list, int user, int member) {
+      if (current != null) current.apply(op, list, user, member);
+      if (pending != null) pending.add(new int[] { op, list.ordinal(), user, member });
+   }//end change
+
+   /**
+    * Reads the graph, replacing the one in use.
+    */
+   void load(Storage source) throws SQLException {
+      synchronized (this) {
+         if (pending == null) pending = new ArrayList<int[]>();
+      }//end synchronized
+      Snapshot loaded = null;
+      try {
+         Storage.UserList[] kinds = Storage.UserList.values();
+         Csr[] lists = new Csr[kinds.length];
+         Edges[] edges = new Edges[kinds.length];
+         int maxId = 0;
+         for (int l = 0; l < kinds.length; l++) {
+            edges[l] = new Edges();
+            source.listEdges(kinds[l], edges[l]);
+            maxId = Math.max(maxId, edges[l].maxId);
+         }//end for
+         for (int l = 0; l < kinds.length; l++) {
+            lists[l] = Csr.of(edges[l].from, edges[l].to, edges[l].count, maxId + 1);
+            edges[l] = null;
+         }//end for
+         loaded = new Snapshot(lists, maxId);
+      }finally {
+         synchronized (this) {
+            if (loaded != null) {
+               // the changes made while reading may or may not be in the rows
+               for (int[] c : pending) {
+                  loaded.apply(c[0], Storage.UserList.values()[c[1]], c[2], c[3]);
+               }//end for
+               current = loaded;
+               reloads++;
+            }//end if
+            pending = null;
+         }//end synchronized
+      }//end try
+   }//end load
+
+   private synchronized void reloadInBackground(final Storage source) {
+      if (pending != null) return;
+      pending = new ArrayList<int[]>();
+      Thread t = new Thread(new Runnable() {
+         public void run() {
+            try {
+               load(source);
+            }catch (Exception e) {
+               // the old graph stays in use, the next suggestion tries again
+            }//end try
+         }
+      }, "messenger-contact-graph");
+      t.setDaemon(true);
+      t.start();
+   }//end reloadInBackground
+
+   /**
+    * @return the number of list members in the graph, 0 before the first load
+    */
+   long edges() {
+      Snapshot s = current;
+      return s == null ? 0 : s.edges();
+   }
+
+   synchronized long reloads() {
+      return reloads;
+   }
+
+}//end ContactGraph
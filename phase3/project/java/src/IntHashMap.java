@@ -0,0 +1,155 @@
+/**
+ * Open addressing hash map from primitive int keys to objects.
+ *
+ * Keys are stored unboxed in a flat array with linear probing, so lookups
+ * do not allocate.  Removal uses backward shifting, no tombstones are
+ * left behind.  Not thread safe, callers synchronize.
+ *
+ */
+class IntHashMap<V> {
+
+   private static final float LOAD_FACTOR = 0.6f;
+
+   private int[] keys;
+   private Object[] values;
+   private boolean[] used;
+   private int size = 0;
+   private int resizeAt;
+
+   public IntHashMap() {
+      this(16);
+   }
+
+   public IntHashMap(int expected) {
+      int capacity = 16;
+      while (capacity * LOAD_FACTOR < expected) capacity <<= 1;
+      allocate(capacity);
+   }//end IntHashMap
+
+   private void allocate(int capacity) {
+      keys = new int[capacity];
+      values = new Object[capacity];
+      used = new boolean[capacity];
+      resizeAt = (int) (capacity * LOAD_FACTOR);
+   }//end allocate
+
+   private static int mix(int key) {
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+
+   private int slotOf(int key) {
+      int mask = keys.length - 1;
+      int i = mix(key) & mask;
+      while (used[i]) {
+         if (keys[i] == key) return i;
+         i = (i + 1) & mask;
+      }//end while
+      return -1;
+   }//end slotOf
+
+   @SuppressWarnings("unchecked")
+   public V get(int key) {
+      int i = slotOf(key);
+      return i < 0 ? null : (V) values[i];
+   }
+
+   public boolean containsKey(int key) {
+      return slotOf(key) >= 0;
+   }
+
+   /**
+    * Associates the value with the key.
+    *
+    * @return the previous value, or null
+    */
+   @SuppressWarnings("unchecked")
+   public V put(int key, V value) {
+      int mask = keys.length - 1;
+      int i = mix(key) & mask;
+      while (used[i]) {
+         if (keys[i] == key) {
+            V old = (V) values[i];
+            values[i] = value;
+            return old;
+         }//end if
+         i = (i + 1) & mask;
+      }//end while
+      used[i] = true;
+      keys[i] = key;
+      values[i] = value;
+      if (++size > resizeAt) rehash(keys.length << 1);
+      return null;
+   }//end put
+
+   /**
+    * Removes the key.
+    *
+    * @return the removed value, or null
+    */
+   @SuppressWarnings("unchecked")
+   public V remove(int key) {
+      int i = slotOf(key);
+      if (i < 0) return null;
+      V old = (V) values[i];
+      int mask = keys.length - 1;
+      // shift back the entries of the probe chain that follows the hole
+      int hole = i;
+      int j = (i + 1) & mask;
+      while (used[j]) {
+         int home = mix(keys[j]) & mask;
+         if (((j - home) & mask) >= ((j - hole) & mask)) {
+            keys[hole] = keys[j];
+            values[hole] = values[j];
+            hole = j;
+         }//end if
+         j = (j + 1) & mask;
+      }//end while
+      used[hole] = false;
+      values[hole] = null;
+      size--;
+      return old;
+   }//end remove
+
+   public int size() {
+      return size;
+   }
+
+   public void clear() {
+      java.util.Arrays.fill(used, false);
+      java.util.Arrays.fill(values, null);
+      size = 0;
+   }//end clear
+
+   /**
+    * Returns the keys currently in the map.
+    */
+   public int[] keys() {
+      int[] out = new int[size];
+      int n = 0;
+      for (int i = 0; i < keys.length; i++) {
+         if (used[i]) out[n++] = keys[i];
+      }//end for
+      return out;
+   }//end keys
+
+   private void rehash(int capacity) {
+      int[] oldKeys = keys;
+      Object[] oldValues = values;
+      boolean[] oldUsed = used;
+      allocate(capacity);
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldUsed[i]) {
+            int mask = keys.length - 1;
+            int j = mix(oldKeys[i]) & mask;
+            while (used[j]) j = (j + 1) & mask;
+            used[j] = true;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+            size++;
+         }//end if
+      }//end for
+   }//end rehash
+
+}//end IntHashMap
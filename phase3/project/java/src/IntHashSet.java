@@ -0,0 +1,51 @@
+/**
+ * Open addressing hash set of primitive ints, the set counterpart of
+ * IntHashMap.  Not thread safe, callers synchronize.
+ *
+ */
+class IntHashSet {
+
+   private final IntHashMap<Boolean> map;
+
+   public IntHashSet() {
+      map = new IntHashMap<Boolean>();
+   }
+
+   public IntHashSet(int expected) {
+      map = new IntHashMap<Boolean>(expected);
+   }
+
+   /**
+    * @return true if the value was not in the set yet
+    */
+   public boolean add(int value) {
+      return map.put(value, Boolean.TRUE) == null;
+   }
+
+   /**
+    * @return true if the value was in the set
+    */
+   public boolean remove(int value) {
+      return map.remove(value) != null;
+   }
+
+   public boolean contains(int value) {
+      return map.containsKey(value);
+   }
+
+   public int size() {
+      return map.size();
+   }
+
+   public void clear() {
+      map.clear();
+   }
+
+   /**
+    * Returns the values currently in the set.
+    */
+   public int[] toArray() {
+      return map.keys();
+   }
+
+}//end IntHashSet
@@ -0,0 +1,127 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets.
+ *
+ * Values are recorded in microseconds.  Every power of two is split into
+ * SUB_BUCKETS linear sub-buckets, so any recorded value is reported within
+ * about 3% of its real value.  Recording never allocates and never blocks.
+ *
+ */
+class LatencyHistogram {
+
+   // 2^SUB_BITS linear sub-buckets per power of two
+   private static final int SUB_BITS = 5;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+   // largest trackable value is 2^MAX_EXP microseconds (about 19 hours)
+   private static final int MAX_EXP = 36;
+   private static final long MAX_VALUE = (1L << MAX_EXP) - 1;
+
+   static final int BUCKETS = (MAX_EXP - SUB_BITS + 1) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong total = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Records one observation.
+    *
+    * @param micros the elapsed time in microseconds
+    */
+   public void record(long micros) {
+      if (micros < 0) micros = 0;
+      if (micros > MAX_VALUE) micros = MAX_VALUE;
+      counts.incrementAndGet(bucketOf(micros));
+      total.incrementAndGet();
+      sum.addAndGet(micros);
+      long m = max.get();
+      while (micros > m && !max.compareAndSet(m, micros)) {
+         m = max.get();
+      }//end while
+   }//end record
+
+   public long count() {
+      return total.get();
+   }
+
+   public long sumMicros() {
+      return sum.get();
+   }
+
+   public long maxMicros() {
+      return max.get();
+   }
+
+   /**
+    * Returns the number of observations in the given bucket.
+    */
+   public long bucketCount(int bucket) {
+      return counts.get(bucket);
+   }
+
+   /**
+    * Returns the value at the given percentile, in microseconds.  The
+    * result is the upper bound of the bucket the percentile falls into.
+    *
+    * @param percentile a value between 0 and 100
+    */
+   public long percentile(double percentile) {
+      long n = total.get();
+      if (n == 0) return 0;
+      long rank = (long) Math.ceil(n * percentile / 100.0);
+      if (rank < 1) rank = 1;
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += counts.get(i);
+         if (seen >= rank) return Math.min(upperBound(i), max.get());
+      }//end for
+      return max.get();
+   }//end percentile
+
+   /**
+    * Maps a value to its bucket.
+    */
+   static int bucketOf(long micros) {
+      if (micros < 2 * SUB_BUCKETS) return (int) micros;
+      int exp = 63 - Long.numberOfLeadingZeros(micros);
+      int shift = exp - SUB_BITS;
+      int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+      return (shift + 1) * SUB_BUCKETS + sub;
+   }//end bucketOf
+
+   /**
+    * Returns the smallest value that falls into the bucket.
+    */
+   static long lowerBound(int bucket) {
+      if (bucket < 2 * SUB_BUCKETS) return bucket;
+      int shift = bucket / SUB_BUCKETS - 1;
+      long sub = bucket % SUB_BUCKETS;
+      return (SUB_BUCKETS + sub) << shift;
+   }//end lowerBound
+
+   /**
+    * Returns the largest value that falls into the bucket.
+    */
+   static long upperBound(int bucket) {
+      if (bucket < 2 * SUB_BUCKETS) return bucket;
+      int shift = bucket / SUB_BUCKETS - 1;
+      return lowerBound(bucket) + (1L << shift) - 1;
+   }//end upperBound
+
+   /**
+    * Prints one summary line: count, mean, p50, p90, p99 and max in ms.
+    */
+   public void printSummary(PrintStream out, String name) {
+      long n = count();
+      double mean = n == 0 ? 0 : (double) sumMicros() / n;
+      out.println(String.format("%-40s %8d %9.2f %9.2f %9.2f %9.2f %9.2f",
+            name, n, mean / 1000.0,
+            percentile(50) / 1000.0, percentile(90) / 1000.0,
+            percentile(99) / 1000.0, maxMicros() / 1000.0));
+   }//end printSummary
+
+}//end LatencyHistogram
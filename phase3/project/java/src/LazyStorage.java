@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Storage on a database connection that is opened in the background.
+ *
+ * Loading the JDBC driver and connecting to the primary, the replicas
+ * and the shards takes a good part of a session's startup.  With
+ * -Dmessenger.lazyConnect=true the menu is shown at once and the
+ * connection is made by a thread of its own while the user reads the
+ * greeting and types login and password; the first call that needs the
+ * database waits for it.  If the database cannot be reached the calls
+ * try to connect again, as after a lost connection (see Messenger).
+ *
+ */
+class LazyStorage implements Storage {
+
+   private final FutureTask<Messenger> connecting;
+
+   // the Messenger the connecting thread made, and whether close() ran;
+   // guarded by this
+   private Messenger made = null;
+   private boolean closed = false;
+
+   /**
+    * Starts connecting, the connected Messenger is handed to the
+    * listener from the connecting thread.
+    */
+   LazyStorage(final String url, final List<String> replicaUrls, final String user, final String passwd, final Listener listener) {
+      connecting = new FutureTask<Messenger>(new Callable<Messenger>() {
+         public Messenger call() throws Exception {
+            Class.forName("org.postgresql.Driver").newInstance();
+            Messenger esql;
+            try {
+               esql = new Messenger(url, replicaUrls, user, passwd, false);
+            }catch (SQLException e) {
+               // the first statement connects again
+               Messenger.breaker.failure();
+               esql = Messenger.disconnected(url, replicaUrls, user, passwd);
+            }//end try
+            synchronized (LazyStorage.this) {
+               if (!closed) {
+                  made = esql;
+                  if (listener != null) listener.connected(esql);
+                  return esql;
+               }//end if
+            }//end synchronized
+            // the session ended while connecting, nobody else closes it
+            esql.cleanup();
+            throw new SQLException("Closed while connecting");
+         }
+      });
+      Thread t = new Thread(connecting, "messenger-connect");
+      t.setDaemon(true);
+      t.start();
+   }//end LazyStorage
+
+   /**
+    * Told when the connection is up.
+    */
+   interface Listener {
+      void connected(Messenger esql);
+   }//end Listener
+
+   /**
+    * Waits for the connection.
+    *
+    * @throws java.sql.SQLException if it could not be made
+    */
+   Messenger connection() throws SQLException {
+      try {
+         return connecting.get();
+      }catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         throw new SQLException("Unable to Connect to Database: " + cause.getMessage());
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while connecting");
+      }//end try
+   }//end connection
+
+   private Storage store() throws SQLException {
+      return connection().store;
+   }
+
+   /**
+    * Closes the connection if it is made, without waiting for it; a
+    * connection made later is closed by the connecting thread, which
+    * then does not tell the listener.
+    */
+   void close() {
+      Messenger esql;
+      synchronized (this) {
+         closed = true;
+         esql = made;
+         made = null;
+      }//end synchronized
+      if (esql != null) esql.cleanup();
+   }//end close
+
+   public void createUser(String login, String password, String phone) throws SQLException {
+      store().createUser(login, password, phone);
+   }
+
+   public int logIn(String login, String password) throws SQLException {
+      return store().logIn(login, password);
+   }
+
+   public int userId(String login) throws SQLException {
+      return store().userId(login);
+   }
+
+   public String login(int user) throws SQLException {
+      return store().login(user);
+   }
+
+   public String[] logins(int[] users) throws SQLException {
+      return store().logins(users);
+   }
+
+   public void setStatus(int user, String status) throws SQLException {
+      store().setStatus(user, status);
+   }
+
+   public String[] statuses(int[] users) throws SQLException {
+      return store().statuses(users);
+   }
+
+   public void setSeen(int user, Presence.State state) throws SQLException {
+      store().setSeen(user, state);
+   }
+
+   public Seen[] seen(int[] users) throws SQLException {
+      return store().seen(users);
+   }
+
+   public int[] usersByPhone(String[] numbers) throws SQLException {
+      return store().usersByPhone(numbers);
+   }
+
+   public void deleteUser(int user) throws SQLException {
+      store().deleteUser(user);
+   }
+
+   public void addToList(int user, UserList list, int member) throws SQLException {
+      store().addToList(user, list, member);
+   }
+
+   public boolean removeFromList(int user, UserList list, int member) throws SQLException {
+      return store().removeFromList(user, list, member);
+   }
+
+   public int[] addToList(int user, UserList list, int[] members) throws SQLException {
+      return store().addToList(user, list, members);
+   }
+
+   public int[] listMembers(int user, UserList list) throws SQLException {
+      return store().listMembers(user, list);
+   }
+
+   public long listEdges(UserList list, EdgeHandler handler) throws SQLException {
+      return store().listEdges(list, handler);
+   }
+
+   public Suggestion[] suggestContacts(int user, int limit) throws SQLException {
+      return store().suggestContacts(user, limit);
+   }
+
+   public int createChat(String type, int owner, int[] members, String key) throws SQLException {
+      return store().createChat(type, owner, members, key);
+   }
+
+   public int[] chatsOf(int user) throws SQLException {
+      return store().chatsOf(user);
+   }
+
+   public int[] chatMembers(int chat) throws SQLException {
+      return store().chatMembers(chat);
+   }
+
+   public ChatSummary[] chatSummaries(int[] chats) throws SQLException {
+      return store().chatSummaries(chats);
+   }
+
+   public void markRead(int chat, int user, int msgId) throws SQLException {
+      store().markRead(chat, user, msgId);
+   }
+
+   public void flushReads() throws SQLException {
+      store().flushReads();
+   }
+
+   public int[] unreadCounts(int user, int[] chats) throws SQLException {
+      return store().unreadCounts(user, chats);
+   }
+
+   public boolean isOwner(int chat, int user) throws SQLException {
+      return store().isOwner(chat, user);
+   }
+
+   public boolean isMember(int chat, int user) throws SQLException {
+      return store().isMember(chat, user);
+   }
+
+   public void addMember(int chat, int user) throws SQLException {
+      store().addMember(chat, user);
+   }
+
+   public void removeMember(int chat, int user) throws SQLException {
+      store().removeMember(chat, user);
+   }
+
+   public void deleteChat(int chat) throws SQLException {
+      store().deleteChat(chat);
+   }
+
+   public void addMessage(int chat, int sender, String text, Timestamp time, String key) throws SQLException {
+      store().addMessage(chat, sender, text, time, key);
+   }
+
+   public boolean editMessage(int chat, int msgId, int sender, String text) throws SQLException {
+      return store().editMessage(chat, msgId, sender, text);
+   }
+
+   public boolean deleteMessage(int chat, int msgId, int sender) throws SQLException {
+      return store().deleteMessage(chat, msgId, sender);
+   }
+
+   public List<Message> messages(int chat) throws SQLException {
+      return store().messages(chat);
+   }
+
+   public List<Message> recentMessages(int chat, int limit) throws SQLException {
+      return store().recentMessages(chat, limit);
+   }
+
+   public long streamMessages(int chat, MessageHandler handler) throws SQLException, IOException {
+      return store().streamMessages(chat, handler);
+   }
+
+   public Message message(int chat, int msgId) throws SQLException {
+      return store().message(chat, msgId);
+   }
+
+}//end LazyStorage
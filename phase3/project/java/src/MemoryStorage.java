@@ -0,0 +1,451 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Storage kept entirely in memory, for running the menus and load tests
+ * without a database and for measuring what the database layer costs.
+ *
+ * Users and chats live in int-keyed open addressing maps.  The messages
+ * of a chat are parallel arrays that are only appended to, in id order,
+ * so a message is found by binary search on its id; an edit replaces the
+ * text in place and a delete leaves a null text behind.  Every method
+ * takes the one lock of the store.  Nothing survives the process.
+ *
+ * Enabled with -Dmessenger.storage=memory.
+ *
+ */
+class MemoryStorage implements Storage {
+
+   /**
+    * One user and its two lists.
+    */
+   static class User {
+      final int id;
+      final String login;
+      final String password;
+      final IntHashSet contacts = new IntHashSet();
+      final IntHashSet blocked = new IntHashSet();
+      final IntHashSet chats = new IntHashSet();
+      String status = null;
+      // last activity, 0 when logged out
+      long seen = 0;
+      boolean away = false;
+
+      User(int id, String login, String password) {
+         this.id = id;
+         this.login = login;
+         this.password = password;
+      }
+
+      IntHashSet list(UserList list) {
+         return list == UserList.CONTACTS ? contacts : blocked;
+      }
+   }//end User
+
+   /**
+    * One chat, its members and its append-only messages.
+    */
+   static class Chat {
+      final int id;
+      final int owner;
+      final IntHashSet members = new IntHashSet();
+      // newest message each member has read
+      final IntHashMap<Integer> lastRead = new IntHashMap<Integer>();
+      int count = 0;
+      // messages that were not deleted
+      int live = 0;
+      int[] ids = new int[8];
+      int[] senders = new int[8];
+      long[] times = new long[8];
+      String[] texts = new String[8];
+
+      Chat(int id, int owner) {
+         this.id = id;
+         this.owner = owner;
+      }
+
+      void append(int msgId, int sender, long time, String text) {
+         if (count == ids.length) {
+            int capacity = count << 1;
+            ids = Arrays.copyOf(ids, capacity);
+            senders = Arrays.copyOf(senders, capacity);
+            times = Arrays.copyOf(times, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+         }//end if
+         ids[count] = msgId;
+         senders[count] = sender;
+         times[count] = time;
+         texts[count] = text;
+         count++;
+         live++;
+      }//end append
+
+      void remove(int i) {
+         if (texts[i] == null) return;
+         texts[i] = null;
+         live--;
+      }
+
+      /**
+       * @return the index of a message that was not deleted, or -1
+       */
+      int indexOf(int msgId) {
+         int i = Arrays.binarySearch(ids, 0, count, msgId);
+         return i >= 0 && texts[i] != null ? i : -1;
+      }
+
+      Message message(int i) {
+         return new Message(ids[i], id, senders[i], new Timestamp(times[i]).toString(), texts[i]);
+      }
+   }//end Chat
+
+   private final HashMap<String, User> byLogin = new HashMap<String, User>();
+   private final HashMap<String, User> byPhone = new HashMap<String, User>();
+   // by the normalized numbers, the first user with a number wins
+   private final HashMap<String, User> byNumber = new HashMap<String, User>();
+   private final IntHashMap<User> users = new IntHashMap<User>();
+   private final IntHashMap<Chat> chats = new IntHashMap<Chat>();
+   private final HashMap<String, Integer> chatByKey = new HashMap<String, Integer>();
+   private final HashSet<String> messageKeys = new HashSet<String>();
+   private int nextUser = 1;
+   private int nextChat = 1;
+   private int nextMessage = 1;
+
+   // the lists as a graph for the contact suggestions
+   private final ContactGraph graph = new ContactGraph();
+
+   private static SQLException duplicate(String what) {
+      return new SQLException("duplicate key value violates unique constraint: " + what, "23505");
+   }
+
+   private User user(int id) throws SQLException {
+      User u = users.get(id);
+      if (u == null) throw new SQLException("No user " + id, "23503");
+      return u;
+   }
+
+   private Chat chat(int id) throws SQLException {
+      Chat c = chats.get(id);
+      if (c == null) throw new SQLException("No chat " + id, "23503");
+      return c;
+   }
+
+   public synchronized void createUser(String login, String password, String phone) throws SQLException {
+      String l = login.trim();
+      if (byLogin.containsKey(l)) throw duplicate("login " + l);
+      if (byPhone.containsKey(phone.trim())) throw duplicate("phone " + phone);
+      User u = new User(nextUser++, l, password);
+      byLogin.put(l, u);
+      byPhone.put(phone.trim(), u);
+      String number = PhoneNumbers.normalize(phone);
+      if (number != null && !byNumber.containsKey(number)) byNumber.put(number, u);
+      users.put(u.id, u);
+   }//end createUser
+
+   public synchronized int logIn(String login, String password) {
+      User u = byLogin.get(login.trim());
+      return u != null && u.password.equals(password) ? u.id : UserDirectory.UNKNOWN;
+   }
+
+   public synchronized int userId(String login) {
+      User u = byLogin.get(login.trim());
+      return u == null ? UserDirectory.UNKNOWN : u.id;
+   }
+
+   public synchronized String login(int user) {
+      User u = users.get(user);
+      return u == null ? "#" + user : u.login;
+   }
+
+   public synchronized String[] logins(int[] ids) {
+      String[] logins = new String[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+         logins[i] = login(ids[i]);
+      }//end for
+      return logins;
+   }//end logins
+
+   public synchronized void deleteUser(int user) throws SQLException {
+      User u = user(user);
+      for (int chat : u.chats.toArray()) {
+         Chat c = chats.get(chat);
+         if (c.owner == user) deleteChat(chat);
+         else c.members.remove(user);
+      }//end for
+      for (int chat : chats.keys()) {
+         Chat c = chats.get(chat);
+         for (int i = 0; i < c.count; i++) {
+            if (c.senders[i] == user) c.remove(i);
+         }//end for
+      }//end for
+      for (int other : users.keys()) {
+         User o = users.get(other);
+         o.contacts.remove(user);
+         o.blocked.remove(user);
+      }//end for
+      users.remove(user);
+      graph.userDeleted(user);
+      byLogin.remove(u.login);
+      byPhone.values().remove(u);
+      byNumber.values().remove(u);
+   }//end deleteUser
+
+   public synchronized void setStatus(int user, String status) throws SQLException {
+      user(user).status = status;
+   }
+
+   public synchronized String[] statuses(int[] ids) {
+      String[] statuses = new String[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+         User u = users.get(ids[i]);
+         statuses[i] = u == null ? null : u.status;
+      }//end for
+      return statuses;
+   }//end statuses
+
+   public synchronized void setSeen(int user, Presence.State state) throws SQLException {
+      User u = user(user);
+      u.seen = state == Presence.State.OFFLINE ? 0 : System.currentTimeMillis();
+      u.away = state == Presence.State.AWAY;
+   }//end setSeen
+
+   public synchronized Seen[] seen(int[] ids) {
+      Seen[] seen = new Seen[ids.length];
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < ids.length; i++) {
+         User u = users.get(ids[i]);
+         if (u != null && u.seen != 0) seen[i] = new Seen(now - u.seen, u.away);
+      }//end for
+      return seen;
+   }//end seen
+
+   public synchronized int[] usersByPhone(String[] numbers) {
+      int[] ids = new int[numbers.length];
+      for (int i = 0; i < numbers.length; i++) {
+         User u = byNumber.get(numbers[i]);
+         ids[i] = u == null ? UserDirectory.UNKNOWN : u.id;
+      }//end for
+      return ids;
+   }//end usersByPhone
+
+   public synchronized void addToList(int user, UserList list, int member) throws SQLException {
+      user(member);
+      if (!user(user).list(list).add(member)) throw duplicate("list member " + member);
+      graph.added(user, list, member);
+   }
+
+   public synchronized boolean removeFromList(int user, UserList list, int member) throws SQLException {
+      if (!user(user).list(list).remove(member)) return false;
+      graph.removed(user, list, member);
+      return true;
+   }
+
+   public synchronized int[] addToList(int user, UserList list, int[] members) throws SQLException {
+      IntHashSet l = user(user).list(list);
+      IntHashSet added = new IntHashSet(members.length);
+      for (int member : members) {
+         if (member == user || !users.containsKey(member)) continue;
+         if (l.add(member)) {
+            added.add(member);
+            graph.added(user, list, member);
+         }//end if
+      }//end for
+      return added.toArray();
+   }//end addToList
+
+   public synchronized int[] listMembers(int user, UserList list) throws SQLException {
+      return user(user).list(list).toArray();
+   }
+
+   public synchronized long listEdges(UserList list, EdgeHandler handler) {
+      long count = 0;
+      for (int id : users.keys()) {
+         for (int member : users.get(id).list(list).toArray()) {
+            handler.edge(id, member);
+            count++;
+         }//end for
+      }//end for
+      return count;
+   }//end listEdges
+
+   public Suggestion[] suggestContacts(int user, int limit) throws SQLException {
+      return graph.suggest(this, user, limit);
+   }
+
+   public synchronized int createChat(String type, int owner, int[] members, String key) throws SQLException {
+      if (key != null && chatByKey.containsKey(key)) return chatByKey.get(key);
+      for (int m : members) {
+         user(m);
+      }//end for
+      Chat c = new Chat(nextChat++, owner);
+      for (int m : members) {
+         c.members.add(m);
+         users.get(m).chats.add(c.id);
+      }//end for
+      chats.put(c.id, c);
+      if (key != null) chatByKey.put(key, c.id);
+      return c.id;
+   }//end createChat
+
+   public synchronized int[] chatsOf(int user) throws SQLException {
+      return user(user).chats.toArray();
+   }
+
+   public synchronized int[] chatMembers(int chat) throws SQLException {
+      return chat(chat).members.toArray();
+   }
+
+   public synchronized ChatSummary[] chatSummaries(int[] ids) {
+      ChatSummary[] summaries = new ChatSummary[ids.length];
+      for (int n = 0; n < ids.length; n++) {
+         Chat c = chats.get(ids[n]);
+         int last = c == null ? -1 : c.count - 1;
+         while (last >= 0 && c.texts[last] == null) last--;
+         summaries[n] = new ChatSummary(ids[n], c == null ? 0 : c.live, c == null ? 0 : c.members.size(),
+               last < 0 ? null : new Timestamp(c.times[last]).toString(), last < 0 ? UserDirectory.UNKNOWN : c.senders[last]);
+      }//end for
+      return summaries;
+   }//end chatSummaries
+
+   public synchronized void markRead(int chat, int user, int msgId) throws SQLException {
+      Chat c = chat(chat);
+      Integer known = c.lastRead.get(user);
+      if (c.members.contains(user) && (known == null || known < msgId)) c.lastRead.put(user, msgId);
+   }//end markRead
+
+   public void flushReads() {
+      // written at once
+   }
+
+   public synchronized int[] unreadCounts(int user, int[] ids) {
+      int[] unread = new int[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+         Chat c = chats.get(ids[i]);
+         if (c == null) continue;
+         Integer read = c.lastRead.get(user);
+         int from = Arrays.binarySearch(c.ids, 0, c.count, read == null ? 0 : read + 1);
+         if (from < 0) from = -from - 1;
+         for (int j = from; j < c.count && unread[i] < ReadCursors.UNREAD_LIMIT; j++) {
+            if (c.texts[j] != null) unread[i]++;
+         }//end for
+      }//end for
+      return unread;
+   }//end unreadCounts
+
+   public synchronized boolean isOwner(int chat, int user) {
+      Chat c = chats.get(chat);
+      return c != null && c.owner == user;
+   }
+
+   public synchronized boolean isMember(int chat, int user) {
+      Chat c = chats.get(chat);
+      return c != null && c.members.contains(user);
+   }
+
+   public synchronized void addMember(int chat, int user) throws SQLException {
+      Chat c = chat(chat);
+      User u = user(user);
+      if (!c.members.add(user)) throw duplicate("chat member " + user);
+      u.chats.add(chat);
+   }//end addMember
+
+   public synchronized void removeMember(int chat, int user) throws SQLException {
+      Chat c = chat(chat);
+      c.members.remove(user);
+      c.lastRead.remove(user);
+      User u = users.get(user);
+      if (u != null) u.chats.remove(chat);
+   }//end removeMember
+
+   public synchronized void deleteChat(int chat) {
+      Chat c = chats.remove(chat);
+      if (c == null) return;
+      for (int m : c.members.toArray()) {
+         User u = users.get(m);
+         if (u != null) u.chats.remove(chat);
+      }//end for
+   }//end deleteChat
+
+   public synchronized void addMessage(int chat, int sender, String text, Timestamp time, String key) throws SQLException {
+      if (key != null && messageKeys.contains(key)) return;
+      user(sender);
+      Chat c = chat(chat);
+      c.append(nextMessage, sender, time == null ? System.currentTimeMillis() : time.getTime(), text);
+      c.lastRead.put(sender, nextMessage++);
+      if (key != null) messageKeys.add(key);
+   }//end addMessage
+
+   public synchronized boolean editMessage(int chat, int msgId, int sender, String text) {
+      Chat c = chats.get(chat);
+      int i = c == null ? -1 : c.indexOf(msgId);
+      if (i < 0 || c.senders[i] != sender) return false;
+      c.texts[i] = text;
+      return true;
+   }//end editMessage
+
+   public synchronized boolean deleteMessage(int chat, int msgId, int sender) {
+      Chat c = chats.get(chat);
+      int i = c == null ? -1 : c.indexOf(msgId);
+      if (i < 0 || c.senders[i] != sender) return false;
+      c.remove(i);
+      return true;
+   }//end deleteMessage
+
+   public synchronized List<Message> messages(int chat) {
+      List<Message> messages = new ArrayList<Message>();
+      Chat c = chats.get(chat);
+      if (c == null) return messages;
+      for (int i = 0; i < c.count; i++) {
+         if (c.texts[i] != null) messages.add(c.message(i));
+      }//end for
+      return messages;
+   }//end messages
+
+   public synchronized List<Message> recentMessages(int chat, int limit) {
+      List<Message> messages = new ArrayList<Message>();
+      Chat c = chats.get(chat);
+      if (c == null) return messages;
+      for (int i = c.count - 1; i >= 0 && messages.size() < limit; i--) {
+         if (c.texts[i] != null) messages.add(c.message(i));
+      }//end for
+      return messages;
+   }//end recentMessages
+
+   /**
+    * Copies the messages out a chunk at a time, the handler runs without
+    * the lock.
+    */
+   public long streamMessages(int chat, MessageHandler handler) throws IOException {
+      List<Message> chunk = new ArrayList<Message>();
+      long count = 0;
+      int next = 0;
+      while (true) {
+         chunk.clear();
+         synchronized (this) {
+            Chat c = chats.get(chat);
+            if (c == null) return count;
+            for (; next < c.count && chunk.size() < Messenger.FETCH_ROWS; next++) {
+               if (c.texts[next] != null) chunk.add(c.message(next));
+            }//end for
+            if (chunk.isEmpty() && next >= c.count) return count;
+         }
+         for (Message m : chunk) {
+            handler.message(m);
+         }//end for
+         count += chunk.size();
+      }//end while
+   }//end streamMessages
+
+   public synchronized Message message(int chat, int msgId) {
+      Chat c = chats.get(chat);
+      int i = c == null ? -1 : c.indexOf(msgId);
+      return i < 0 ? null : c.message(i);
+   }
+
+}//end MemoryStorage
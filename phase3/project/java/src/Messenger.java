@@ -1,1005 +1,2438 @@
-/*
- * Template JAVA User Interface
- * =============================
- *
- * Database Management Systems
- * Department of Computer Science &amp; Engineering
- * University of California - Riverside
- *
- * Target DBMS: 'Postgres'
- *
- */
-
-
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
-import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.List;
-import java.util.ArrayList;
-
-/**
- * This class defines a simple embedded SQL utility class that is designed to
- * work with PostgreSQL JDBC drivers.
- *
- */
-public class Messenger {
-
-   // reference to physical database connection.
-   private Connection _connection = null;
-
-   // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
-
-   public String username;
-   /**
-    * Creates a new instance of Messenger
-    *
-    * @param hostname the MySQL or PostgreSQL server hostname
-    * @param database the name of the database
-    * @param username the user name used to login to the database
-    * @param password the user login password
-    * @throws java.sql.SQLException when failed to make a connection.
-    */
-   public Messenger (String dbname, String dbport, String user, String passwd) throws SQLException {
-
-      System.out.print("Connecting to database...");
-      try{
-         username = user;
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
-
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
-         System.out.println("Done");
-      }catch (Exception e){
-         System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
-         System.out.println("Make sure you started postgres on this machine");
-         System.exit(-1);
-      }//end catch
-   }//end Messenger
-
-   /**
-    * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
-    *
-    * @param sql the input SQL string
-    * @throws java.sql.SQLException when update failed
-    */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
-
-   /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
-    *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-         if(outputHeader){
-            for(int i = 1; i <= numCol; i++){
-               System.out.print(rsmd.getColumnName(i) + "\t");
-            }
-            System.out.println();
-            outputHeader = false;
-         }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
-
-   /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
-    *
-    * @param query the input query string
-    * @return the query result as a list of records
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-      // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
-
-      // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
-
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
-
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-         List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
-      stmt.close (); 
-      return result; 
-   }//end executeQueryAndReturnResult
-
-   /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
-    *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public int executeQuery (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      int rowCount = 0;
-
-      // iterates through the result set and count nuber of results.
-      if(rs.next()){
-         rowCount++;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }
-
-   /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current 
-    * value of sequence used for autogenerated keys
-    *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement ();
-
-      ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
-   }
-
-   /**
-    * Method to close the physical connection if it is open.
-    */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
-   }//end cleanup
-
-   /**
-    * The main execution method
-    *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
-    */
-   public static void main (String[] args) {
-      if (args.length != 3) {
-         System.err.println (
-               "Usage: " +
-               "java [-classpath <classpath>] " +
-               Messenger.class.getName () +
-               " <dbname> <port> <user>");
-         return;
-      }//end if
-
-      Greeting();
-      Messenger esql = null;
-      try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the Messenger object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new Messenger (dbname, dbport, user, "");
-
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println();
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println(".........................");
-            System.out.println("0. EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 0: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-
-            if (authorisedUser != null) {
-               boolean usermenu = true;
-               while(usermenu) {
-                  System.out.println();
-                  System.out.println("MAIN MENU");
-                  System.out.println("---------");
-                  System.out.println("1. Add to contact list");
-                  System.out.println("2. Delete from contact list");
-                  System.out.println("3. Browse contact list");
-                  System.out.println("4. Add to blocked list");
-                  System.out.println("5. Delete from blocked list");
-                  System.out.println("6. Browse blocked list");
-                  System.out.println("7. Create a new chat");
-                  System.out.println("8. Browse chats");
-                  System.out.println(".........................");
-                  System.out.println("0. Log out");
-                  switch (readChoice()){
-                     case 1: AddToContact(esql, authorisedUser); break;
-                     case 2: DeleteFromContact(esql, authorisedUser); break;
-                     case 3: ListContacts(esql, authorisedUser); break;
-                     case 4: AddToBlocked(esql, authorisedUser); break;
-                     case 5: DeleteFromBlocked(esql, authorisedUser); break;
-                     case 6: ListBlocked(esql, authorisedUser); break;
-                     case 7: NewChat(esql, authorisedUser); break;
-                     case 8: SelectChat(esql, authorisedUser); break;
-                     case 0: usermenu = false; break;
-                     default : System.out.println("Unrecognized choice!"); break;
-                  }
-               }
-            }
-         }//end while
-      }
-
-      catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
-      }//end try
-   }//end main
-
-   public static void Greeting(){
-      System.out.println(
-            "\n\n*******************************************************\n" +
-            "              User Interface      	               \n" +
-            "*******************************************************\n");
-   }//end Greeting
-
-   /*
-    * Reads the users choice given from the keyboard
-    * @int
-    **/
-   public static int readChoice() {
-      int input;
-      // returns only if a correct value is given.
-      do {
-         System.out.print("Please make your choice: ");
-         try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
-            break;
-         }catch (Exception e) {
-            System.out.println("Your input is invalid!");
-            continue;
-         }//end try
-      }while (true);
-      return input;
-   }//end readChoice
-
-   /*
-    * Creates a new user with privided login, passowrd and phoneNum
-    * An empty block and contact list would be generated and associated with a user
-    **/
-   public static void CreateUser(Messenger esql){
-      try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
-         System.out.print("\tEnter user phone: ");
-         String phone = in.readLine();
-
-         //Creating empty contact\block lists for a user
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-         int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-         int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-
-         String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
-      }catch(Exception e){
-         System.err.println (e.getMessage ());
-      }
-   }//end
-
-   /*
-    * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
-    **/
-   public static String LogIn(Messenger esql){
-      try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
-
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s';", login, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0)
-            return login;
-         return null;
-      }catch(Exception e){
-         System.err.println (e.getMessage ());
-         return null;
-      }
-   }//end
-
-   /*
-    * Prompt user for another user to add to contact list
-    **/
-   public static void AddToContact(Messenger esql, String username){
-      try {
-         System.out.print("Enter username: ");
-         String userToAdd = in.readLine();
-         String query = "SELECT contact_list FROM USR WHERE login = '";
-//         System.out.println(username);
-         query += username;
-         query += "';";
-
-         // users own contact list id
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         String index = result.get(0).get(0);
-//         System.out.println(index);
-         query = String.format("INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES ('%s', '%s')", index, userToAdd);
-         esql.executeUpdate(query);
-         System.out.print("User <");
-         System.out.print(userToAdd);
-         System.out.println("> added to contact list");
-         return;
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-         return;
-      }
-
-   }//end
-
-   /*
-    * Allows user to delete selected contact from contact list
-    **/
-   public static void DeleteFromContact(Messenger esql, String username) {
-      try {
-         System.out.print("Enter user to be deleted: ");
-         String input = in.readLine();
-         String query = String.format("SELECT a.list_member FROM USER_LIST_CONTAINS a, USR b WHERE b.login = '%s' AND b.contact_list = a.list_id;", username);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         // check to verify that user is in contact list
-//         System.out.print(result.size());
-//         System.out.println(" users in contact list: ");
-/*         boolean flag = false;
-//         System.out.print(input);
-         for (int i = 0; i < result.size(); i++) {
-            if (input.equals(result.get(i).get(0))) {
-               flag = true;
-               System.out.println(result.get(i).get(0));
-               break;
-            }
-         }
-         if (!flag) {
-            System.out.println("user not found in contact list");
-//            return;
-         }*/
-         query = String.format("SELECT contact_list FROM USR WHERE login = '%s';", username);
-         result = esql.executeQueryAndReturnResult(query);
-         query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_member = '%s' AND list_id = '%s';", input, result.get(0).get(0));
-         esql.executeUpdate(query);
-         System.out.print("User <");
-         System.out.print(input);
-         System.out.println("> removed from contact list");
-         return;
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-         return;
-      }
-   }
-
-   /*
-    * Loops over contact list and prints each contact on its own line
-    **/
-   public static void ListContacts(Messenger esql, String username){
-      try {
-         String query = String.format("SELECT a.list_member FROM USER_LIST_CONTAINS a, USR b WHERE b.login = '%s' AND b.contact_list = a.list_id;", username);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         System.out.print(result.size());
-         System.out.println(" users in contact list: ");
-         for (int i = 0; i < result.size(); i++) {
-            System.out.println(result.get(i).get(0));
-         }
-         return;
-
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-         return;
-      }
-
-   }//end
-
-   /* 
-    * Add another user to one's own blocked list
-    **/
-   public static void AddToBlocked(Messenger esql, String username){
-      try {
-         System.out.print("Enter username: ");
-         String userToAdd = in.readLine();
-         String query = "SELECT block_list FROM USR WHERE login = '";
-//         System.out.println(username);
-         query += username;
-         query += "';";
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-
-         // ID of user's blocked list
-         String index = result.get(0).get(0);
-//         System.out.println(index);
-         query = String.format("INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES ('%s', '%s')", index, userToAdd);
-         esql.executeUpdate(query);
-         System.out.print("User <");
-         System.out.print(userToAdd);
-         System.out.println("> added to blocked list");
-         return;
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-         return;
-      }
-
-   }//end
-
-   /*
-    * Allow user to delete selected user from own blocked list
-    **/
-   public static void DeleteFromBlocked(Messenger esql, String username) {
-      try {
-         System.out.print("Enter user to be deleted: ");
-         String input = in.readLine();
-         String query = String.format("SELECT a.list_member FROM USER_LIST_CONTAINS a, USR b WHERE b.login = '%s' AND b.block_list = a.list_id;", username);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-//         System.out.print(result.size());
-//         System.out.println(" users in blocked list: ");
-/*         boolean flag = false;
-//         System.out.print(input);
-         for (int i = 0; i < result.size(); i++) {
-            if (input.equals(result.get(i).get(0))) {
-               flag = true;
-               System.out.println(result.get(i).get(0));
-               break;
-            }
-         }
-         if (!flag) {
-            System.out.println("user not found in contact list");
-//            return;
-         }*/
-         query = String.format("SELECT block_list FROM USR WHERE login = '%s';", username);
-         result = esql.executeQueryAndReturnResult(query);
-         query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_member = '%s' AND list_id = '%s';", input, result.get(0).get(0));
-         esql.executeUpdate(query);
-         System.out.print("User <");
-         System.out.print(input);
-         System.out.println("> removed from blocked list");
-         return;
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-         return;
-      }
-   }
-
-   /*
-    * List all users in one's blocked list, each on its own line
-    **/
-   public static void ListBlocked(Messenger esql, String username){
-      try {
-         String query = String.format("SELECT a.list_member FROM USER_LIST_CONTAINS a, USR b WHERE b.login = '%s' AND b.block_list = a.list_id;", username);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         System.out.print(result.size());
-         System.out.println(" users in blocked list: ");
-         for (int i = 0; i < result.size(); i++) {
-            System.out.println(result.get(i).get(0));
-         }
-         return;
-
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-         return;
-      }
-
-   }//end
-
-
-   /*
-    * Allow user to create new chat
-    * Chat can contain any number of users, not restricted to contact list
-    * After starting chat, user will be prompted to create a message
-    **/
-   public static void NewChat(Messenger esql, String username){
-      try {
-         System.out.println("Enter users to chat with, each on its own line");
-         System.out.println("Enter empty line to finish");
-         List<String> users = new ArrayList<String>();
-         while(true) {
-            String input = in.readLine();
-            if (input.equals("")) break;
-            users.add(input);
-         }
-         String type = "";
-         if (users.size() == 0) {
-            System.out.println("No users added");
-            return;
-         }
-         else if (users.size() == 1) {
-            type = "private";
-         }
-         else {
-            type = "group";
-         }
-
-         String query = String.format("INSERT INTO CHAT(chat_type, init_sender) VALUES('%s', '%s');", type, username);
-         esql.executeUpdate(query);
-      
-         query = "SELECT MAX(chat_id) FROM CHAT;";
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         String id = result.get(0).get(0);
-
-         for (int i = 0; i < users.size(); i++) {
-            query = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES(%s, '%s');", id, users.get(i));
-            esql.executeUpdate(query);
-         }
-         query = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES(%s, '%s');", id, username);
-         esql.executeUpdate(query);
-         System.out.println("...Chat created");
-
-         System.out.println("Enter message(300 characters)");
-         String message = in.readLine();
-
-         if (message.length() > 300) {
-            System.out.println("Message too long");
-            return;
-         }
-         query = String.format("INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) VALUES('%s', NOW(), '%s', %s);", message, username, id);
-         esql.executeUpdate(query);
-
-         System.out.println();
-         System.out.println("...Message sent");
-
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-      }
-   }//end 
-
-   /*
-    * Lists all chats that user is a part of
-    * Chats are identified by a serial sequence of numbers,
-    * as well as all the members of the chat
-    * Following the list of chats, the user will be prompted to 
-    * select a chat to perform further actions on
-    * The chosen chat will be displayed by showing the last 10 messages sent
-    * A menu of options will then be show to allow further actions
-    **/
-   public static void SelectChat(Messenger esql, String username) {
-      try {
-         String query = String.format("SELECT chat_id FROM CHAT_LIST WHERE member = '%s';", username);
-         List<List<String>> chats = esql.executeQueryAndReturnResult(query);
-         //System.out.println(username);
-         System.out.println(query);
-         System.out.println(chats.size());
-
-         //print out all the members of each chat
-         for (int i = 0; i < chats.size(); i++) {
-            query = String.format("SELECT member FROM CHAT_LIST WHERE chat_id = '%s';", chats.get(i).get(0));
-            List<List<String>> mems = esql.executeQueryAndReturnResult(query); 
-            System.out.print(i);
-            System.out.print(": ");
-            for (int j = 0; j < mems.size(); j++) {
-               System.out.print(mems.get(j).get(0).trim());
-               System.out.print(", ");
-            }
-            System.out.println();
-         }
-
-         System.out.println();
-         //System.out.print("Select chat number: ");
-         int input = readChoice();
-         String chat_num = chats.get(input).get(0);
-         query = String.format("SELECT * FROM MESSAGE WHERE chat_id = %s ORDER BY msg_timestamp;", chat_num);
-         List<List<String>> messages = esql.executeQueryAndReturnResult(query);
-         int msg_num = 0;
-         msg_num = DisplayTen(esql, messages, msg_num);
-
-         //menu
-         boolean chatmenu = true;
-         while (chatmenu) {
-            messages = esql.executeQueryAndReturnResult(query);
-            System.out.println();
-            System.out.println("----------CHAT MENU----------");
-            System.out.println("1: Display next 10 messages");
-            System.out.println("2: Add user to chat");
-            System.out.println("3: Remove user from chat");
-            System.out.println("4: Add message to chat");
-            System.out.println("5: Edit previous message");
-            System.out.println("6: Delete previous message");
-            System.out.println("7: Remove entire chat");
-            System.out.println(".........................");
-            System.out.println("0: Exit chat viewer");
-            System.out.print("Enter choice: ");
-
-            switch(readChoice()) {
-               case 1: msg_num = DisplayTen(esql, messages, msg_num); break;
-               case 2: AddUserToChat(esql, username, chat_num); break;
-               case 3: RemoveUserFromChat(esql, username, chat_num); break;
-               case 4: AddMessage(esql, username, chat_num);
-                       msg_num -= 10;
-                       if (msg_num < 0) msg_num = 0;
-                       break;
-               case 5: EditMessage(esql, username, chat_num); 
-                       msg_num -= 10;
-                       if (msg_num < 0) msg_num = 0;
-                       break;
-               case 6: DeleteMessage(esql, username, chat_num);
-                       msg_num -= 10;
-                       if (msg_num < 0) msg_num = 0;
-                       break;
-               case 7: DeleteChat(esql, username, chat_num); break;
-               case 0: chatmenu = false; break;
-               default: System.out.println("Unrecognized choice!"); break;
-            }//end switch
-         }
-      }
-
-      catch(Exception e) {
-         System.out.println(e.getMessage());
-      }
-      return;
-   }
-
-   /*
-    * Shows initial sender, timestamp, message id, and message content
-    * of specified message
-    **/ 
-   public static void DisplayMessage(Messenger esql, String id) {
-      try {
-         String query = String.format("SELECT * FROM MESSAGE WHERE msg_id = %s;", id);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         System.out.print("Sender: ");
-         System.out.println(result.get(0).get(3));
-         System.out.print("Time: ");
-         System.out.println(result.get(0).get(2));
-         System.out.print("Message ID: ");
-         System.out.println(result.get(0).get(0));
-         System.out.println();
-         System.out.println(result.get(0).get(1));
-         //System.out.println();
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-      }
-
-      return;
-   }
-
-   /*
-    * Displays next ten newest messages, 
-    * starting with message indicated by msg_num
-    * @return the updated starting message number
-    **/
-   public static int DisplayTen (Messenger esql, List<List<String>> messages, int msg_num) {
-      try {
-         System.out.println();
-         System.out.println("-------------------------");
-         System.out.println();
-         if (msg_num >= messages.size()) 
-            System.out.println("No older messages");
-         for (; msg_num < msg_num + 10; msg_num++) {
-            if (msg_num >= messages.size()) {
-               return msg_num;
-            }
-            DisplayMessage(esql, messages.get(msg_num).get(0));
-            System.out.println("-------------------------");
-            System.out.println();
-         }
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-      }
-      return msg_num;
-   }
-
-   /*
-    * Allows creator of chat to add new user
-    **/
-   public static void AddUserToChat (Messenger esql, String username, String chat_num) {
-      try {
-         String query = String.format("SELECT * FROM CHAT WHERE chat_id = %s AND init_sender = '%s';", chat_num, username);
-         // will be 1 if user is owner of chat, 0 otherwise
-         int check = esql.executeQuery(query);
-
-         if (check < 1) {
-            System.out.println("Only the owner of a chat can add users");
-            return;
-         }
-         System.out.print("Enter user to add: ");
-         String userToAdd = in.readLine();
-         query = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES(%s, '%s');", chat_num, userToAdd);
-         esql.executeUpdate(query);
-         System.out.println("User added");
-      }
-      
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-      }
-      return;
-   }
-
-   /*
-    * Allows creator of chat to remove user
-    **/
-   public static void RemoveUserFromChat (Messenger esql, String name, String num) {
-      try {
-         String query = String.format("SELECT * FROM CHAT WHERE chat_id = %s AND init_sender = '%s';", num, name);
-         // will be 1 if user is owner of chat, 0 otherwise
-         int check = esql.executeQuery(query);
-
-         if (check < 1) {
-            System.out.println("Only the owner of a chat can add users");
-            return;
-         }
-         System.out.print("Enter user to remove: ");
-         String userToRemove = in.readLine();
-         query = String.format("DELETE FROM CHAT_LIST WHERE chat_id = %s AND member = '%s';", num, userToRemove);
-         esql.executeUpdate(query);
-         System.out.println("User removed");
-      }
-      
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-      }
-      return;
-   }
-
-   /*
-    * User can write new message for a chat
-    **/
-   public static void AddMessage (Messenger esql, String name, String num) {
-      try {
-         System.out.println("Enter message(300 characters)");
-         String message = in.readLine();
-         if (message.length() > 300) {
-            System.out.println("Message too long");
-            return;
-         }
-
-         String query = String.format("INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) VALUES('%s', NOW(), '%s', %s);", message, name, num);
-         esql.executeUpdate(query);
-
-         System.out.println();
-         System.out.println("...Message sent");
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-      }
-      return;
-   }
-
-   /*
-    * User can edit a previously written message
-    **/
-   public static void EditMessage (Messenger esql, String name, String num) {
-      try {
-         System.out.print("Enter message number: ");
-         String msg_num = in.readLine();
-         String query = String.format("SELECT * FROM MESSAGE WHERE msg_id = %s AND sender_login = '%s' AND chat_id = %s;", msg_num, name, num);
-         
-         // 1 if valid message, 0 otherwise
-         int check = esql.executeQuery(query);
-         if (check < 1) {
-            System.out.println("Not a valid message");
-            return;
-         }
-
-         System.out.println("Enter new message(300 characters)");
-         String message = in.readLine();
-         if (message.length() > 300) {
-            System.out.println("Message too long");
-            return;
-         }
-
-         query = String.format("UPDATE MESSAGE SET msg_text = '%s' WHERE msg_id = %s;", message, msg_num);
-         esql.executeUpdate(query);
-         System.out.println();
-         System.out.println("...Edit complete");
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-      }
-   }
-
-   /*
-    * User can delete a previously written message
-    **/
-   public static void DeleteMessage (Messenger esql, String name, String num) {
-      try {
-         System.out.print("Enter message number: ");
-         String msg_num = in.readLine();
-         String query = String.format("SELECT * FROM MESSAGE WHERE msg_id = %s AND sender_login = '%s' AND chat_id = %s;", msg_num, name, num);
-         
-         // 1 if valid message, 0 otherwise
-         int check = esql.executeQuery(query);
-         if (check < 1) {
-            System.out.println("Not a valid message");
-            return;
-         }
-
-         query = String.format("DELETE FROM MESSAGE WHERE msg_id = %s;", msg_num);
-         esql.executeUpdate(query);
-         System.out.println();
-         System.out.println("...Message deleted");
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-      }
-   }
-
-   /*
-    * Owner of chat can delete entire chat, along with all associated messages
-    **/
-   public static void DeleteChat (Messenger esql, String name, String num) {
-      try {
-         System.out.print("Delete entire chat and all associated messages? (y/n): ");
-         if (!in.readLine().equals('y')) {
-            return;
-         }
-         String q = String.format("SELECT * FROM CHAT WHERE chat_id = %s AND init_sender = name;", num, name);
-         
-         // 1 if valid message, 0 otherwise
-         int check = esql.executeQuery(q);
-         if (check < 1) {
-            System.out.println("Only the owner can remove a chat");
-            return;
-         }
-
-         q = String.format("DELETE FROM MESSAGES WHERE chat_id = %s;", num);
-         esql.executeUpdate(q);
-         q = String.format("DELETE FROM CHAT_LIST WHERE chat_id = %s;", num);
-         esql.executeUpdate(q);
-         q = String.format("DELETE FROM CHAT WHERE chat_id = %s;", num);
-         esql.executeUpdate(q);
-         System.out.println();
-         System.out.println("...Chat deleted");
-      }
-
-      catch (Exception e) {
-         System.out.println(e.getMessage());
-      }
-   }
-
-
-
-   /*
-    * I don't know what this is for
-    **/
-   public static void Query6(Messenger esql){
-      // Your code goes here.
-      // ...
-      // ...
-   }//end Query6
-
-}//end Messenger
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * This class defines a simple embedded SQL utility class that is designed to
+ * work with PostgreSQL JDBC drivers.
+ *
+ */
+public class Messenger {
+
+   // rows per round trip of executeQueryStreaming
+   static final int FETCH_ROWS = Integer.getInteger("messenger.fetchRows", 1000);
+
+   // reference to physical database connection.
+   private Connection _connection = null;
+
+   // sends queries to the replicas, if any, and updates to _connection
+   private ConnectionRouter router = null;
+
+   // databases holding the messages and members of the chats, null if
+   // they are kept on _connection
+   private ShardMap shards = null;
+
+   // where to connect again after the connection was lost, url is null
+   // without a database
+   private String url = null;
+   private List<String> replicaUrls = null;
+   private String user = null;
+   private String passwd = null;
+   private boolean interactive = false;
+
+   // whether the deployment has shards, known while disconnected too
+   private boolean sharded = false;
+
+   // stops all sessions of the process from retrying a database that is down
+   static final CircuitBreaker breaker = new CircuitBreaker();
+
+   // attempts to connect again before a statement fails
+   static final int reconnectAttempts = Integer.getInteger("messenger.reconnectAttempts", 3);
+
+   // handling the keyboard inputs through a BufferedReader
+   // This variable can be global for convenience.
+   static BufferedReader in = new BufferedReader(
+                                new InputStreamReader(System.in));
+
+   public String username;
+
+   // users, lists, chats and messages the menus work on
+   Storage store;
+
+   // local log the sends go through while the database is away, null if
+   // they go straight to store; set by the connecting thread with
+   // messenger.lazyConnect
+   volatile Outbox outbox = null;
+
+   // removes the rows of deleted chats and accounts, null with in-memory storage
+   volatile Purger purger = null;
+
+   // who is online and the status texts, shared by the sessions of the process
+   static final Presence presence = new Presence();
+
+   /**
+    * Creates a new instance of Messenger
+    *
+    * @param hostname the MySQL or PostgreSQL server hostname
+    * @param database the name of the database
+    * @param username the user name used to login to the database
+    * @param password the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Messenger (String dbname, String dbport, String user, String passwd) throws SQLException {
+      this ("jdbc:postgresql://localhost:" + dbport + "/" + dbname, new ArrayList<String>(), user, passwd);
+   }//end Messenger
+
+   /**
+    * Creates a new instance of Messenger without a database connection
+    *
+    * @param store the storage the menus work on
+    */
+   public Messenger (Storage store) {
+      this.store = store;
+   }//end Messenger
+
+   /**
+    * Creates a new instance of Messenger that reads from streaming replicas
+    *
+    * @param url the connection URL of the primary
+    * @param replicaUrls the connection URLs of the replicas, may be empty
+    * @param username the user name used to login to the database
+    * @param password the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Messenger (String url, List<String> replicaUrls, String user, String passwd) throws SQLException {
+      this (url, replicaUrls, user, passwd, true);
+   }//end Messenger
+
+   /**
+    * Creates a new instance of Messenger
+    *
+    * @param url the connection URL of the primary
+    * @param replicaUrls the connection URLs of the replicas, may be empty
+    * @param username the user name used to login to the database
+    * @param password the user login password
+    * @param interactive false for a background connection, which does
+    *        not print progress and throws instead of carrying on
+    *        disconnected on failure
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   Messenger (String url, List<String> replicaUrls, String user, String passwd, boolean interactive) throws SQLException {
+
+      if (interactive) System.out.print("Connecting to database...");
+      username = user;
+      this.url = url;
+      this.replicaUrls = replicaUrls;
+      this.user = user;
+      this.passwd = passwd;
+      this.interactive = interactive;
+      String dbname = url.substring(url.lastIndexOf('/') + 1);
+      List<String> shardUrls = ShardMap.urlsFromProperties(dbname);
+      this.sharded = !shardUrls.isEmpty();
+      this.store = new PgStorage(this);
+      try{
+         if (interactive) {
+            System.out.println ("Connection URL: " + url + "\n");
+            for (String replica : replicaUrls)
+               System.out.println ("Replica URL: " + replica + "\n");
+            for (String shard : shardUrls)
+               System.out.println ("Shard URL: " + shard + "\n");
+         }//end if
+
+         // obtain a physical connection
+         connect ();
+         breaker.success ();
+         if (interactive) System.out.println("Done");
+      }catch (SQLException e){
+         if (!interactive) throw e;
+         // the session goes on, the next request connects again
+         breaker.failure ();
+         System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
+         System.out.println("Make sure you started postgres on this machine, every request tries to connect again");
+      }//end catch
+   }//end Messenger
+
+   /**
+    * Returns a Messenger that has not connected yet, its first statement
+    * connects.
+    */
+   static Messenger disconnected (String url, List<String> replicaUrls, String user, String passwd) {
+      Messenger esql = new Messenger ((Storage) null);
+      esql.username = user;
+      esql.url = url;
+      esql.replicaUrls = replicaUrls;
+      esql.user = user;
+      esql.passwd = passwd;
+      esql.sharded = !ShardMap.urlsFromProperties(url.substring(url.lastIndexOf('/') + 1)).isEmpty();
+      esql.store = new PgStorage(esql);
+      return esql;
+   }//end disconnected
+
+   /**
+    * Opens the connections to the primary, the replicas and the shards,
+    * closing what was opened if one of them fails.
+    */
+   private void connect () throws SQLException {
+      String dbname = this.url.substring(this.url.lastIndexOf('/') + 1);
+      try{
+         this._connection = DriverManager.getConnection(this.url, this.user, this.passwd);
+         OpStats.openConnections.incrementAndGet();
+         this.router = new ConnectionRouter(this._connection, this.replicaUrls, this.user, this.passwd);
+         this.shards = ShardMap.fromProperties(this._connection, dbname, this.user, this.passwd);
+      }catch (SQLException e){
+         disconnect ();
+         throw e;
+      }//end try
+   }//end connect
+
+   /**
+    * Connects again if the connection was lost.  A failed attempt is
+    * retried after a jittered, growing pause, messenger.reconnectAttempts
+    * times in all (default 3), unless the attempts of this or other
+    * sessions opened the circuit breaker, which then fails every request
+    * at once until it lets one try again.
+    *
+    * @throws java.sql.SQLException with SQLState 08001 if the database
+    *         cannot be reached
+    */
+   private synchronized void ensureConnected () throws SQLException {
+      if (this._connection != null || this.url == null) return;
+      SQLException last = null;
+      for (int attempt = 0; attempt < reconnectAttempts; attempt++) {
+         boolean probe = breaker.check ();
+         boolean reported = false;
+         try{
+            if (attempt > 0) {
+               try{
+                  Thread.sleep (CircuitBreaker.backoffMillis (attempt - 1));
+               }catch (InterruptedException e){
+                  Thread.currentThread ().interrupt ();
+                  break;
+               }//end try
+            }//end if
+            try{
+               connect ();
+               reported = true;
+               breaker.success ();
+               OpStats.reconnects.incrementAndGet();
+               if (this.interactive) System.err.println ("Connected to the database again");
+               return;
+            }catch (SQLException e){
+               last = e;
+               reported = true;
+               if (breaker.failure ()) break;
+            }//end try
+         }finally{
+            // interrupted or failed otherwise, the half open breaker must not wait for us
+            if (probe && !reported) breaker.release ();
+         }//end try
+      }//end for
+      SQLException e = new SQLException("Unable to Connect to Database" + (last == null ? "" : ": " + last.getMessage()), "08001");
+      if (last != null) e.initCause(last);
+      throw e;
+   }//end ensureConnected
+
+   /**
+    * Tells a lost connection from a statement the DBMS rejected: after an
+    * error that can mean a broken connection, the connections are pinged
+    * and, if one of them is dead, all of them are closed so the next
+    * statement connects again.
+    *
+    * @return true if the connection was lost
+    */
+   private boolean dropIfLost (SQLException e) {
+      if (this._connection == null) return true;
+      if (!CircuitBreaker.isConnectionError (e)) return false;
+      boolean alive = alive (this._connection);
+      if (alive && this.shards != null)
+         for (int i = 0; alive && i < this.shards.size (); i++)
+            alive = alive (this.shards.connection (i));
+      if (alive) return false;
+      disconnect ();
+      return true;
+   }//end dropIfLost
+
+   private static boolean alive (Connection conn) {
+      try{
+         if (conn.isClosed ()) return false;
+         Statement stmt = conn.createStatement ();
+         try{
+            stmt.execute ("SELECT 1;");
+         }finally{
+            stmt.close ();
+         }//end try
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end alive
+
+   /**
+    * A read that can be sent again once the connection is back.
+    */
+   private interface Read<T> {
+      T run () throws SQLException;
+   }//end Read
+
+   /**
+    * Runs a read, and runs it once more if it failed because the
+    * connection was lost.
+    */
+   private <T> T retryRead (Read<T> read) throws SQLException {
+      ensureConnected ();
+      try{
+         return read.run ();
+      }catch (SQLException e){
+         if (!dropIfLost (e)) throw e;
+      }//end try
+      ensureConnected ();
+      return read.run ();
+   }//end retryRead
+
+   /**
+    * Method to execute an update SQL statement.  Update SQL instructions
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    *
+    * @param sql the input SQL string
+    * @param params the values of the ? placeholders, if any
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      ensureConnected ();
+      return executeUpdate (this._connection, sql, params);
+   }//end executeUpdate
+
+   /**
+    * Executes an update SQL statement on the messages or members of a
+    * chat, on the database that holds them.
+    *
+    * @param chat the chat id the statement writes to
+    * @param sql the input SQL string
+    * @param params the values of the ? placeholders, if any
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (int chat, String sql, Object... params) throws SQLException {
+      ensureConnected ();
+      if (this.shards == null) return executeUpdate (sql, params);
+      return executeUpdate (this.shards.forWrite (chat), sql, params);
+   }//end executeUpdate
+
+   /**
+    * Executes an update SQL statement on the primary and on every shard,
+    * for the messages or memberships of a user, which can be in any chat.
+    *
+    * @param sql the input SQL string
+    * @return the number of rows affected on all databases
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdateOnAll (String sql) throws SQLException {
+      int rowCount = executeUpdate (sql);
+      if (this.shards == null) return rowCount;
+      for (int i = 0; i < this.shards.size (); i++)
+         rowCount += executeUpdate (this.shards.connection (i), sql, NO_PARAMS);
+      return rowCount;
+   }//end executeUpdateOnAll
+
+   /**
+    * Builds the statement of a batch for the chats one database holds.
+    */
+   interface ChatBatch {
+      String sql (int[] chats);
+   }//end ChatBatch
+
+   /**
+    * Executes an update on the messages or members of several chats with
+    * one statement per database holding some of them.
+    *
+    * @param chats the chat ids the statements write to
+    * @param batch builds the statement for the chats of one database
+    * @return the number of rows affected on all databases
+    * @throws java.sql.SQLException when update failed, or one of the
+    *         chats is being moved
+    */
+   public int executeUpdateByChat (int[] chats, ChatBatch batch) throws SQLException {
+      ensureConnected ();
+      if (chats.length == 0) return 0;
+      if (this.shards == null) return executeUpdate (batch.sql (chats));
+      Map<Connection, IntHashSet> byDatabase = new IdentityHashMap<Connection, IntHashSet>();
+      for (int chat : chats) {
+         Connection conn = this.shards.forWrite (chat);
+         IntHashSet held = byDatabase.get (conn);
+         if (held == null) {
+            held = new IntHashSet ();
+            byDatabase.put (conn, held);
+         }//end if
+         held.add (chat);
+      }//end for
+      int rowCount = 0;
+      for (Map.Entry<Connection, IntHashSet> e : byDatabase.entrySet ())
+         rowCount += executeUpdate (e.getKey (), batch.sql (e.getValue ().toArray ()), NO_PARAMS);
+      return rowCount;
+   }//end executeUpdateByChat
+
+   /**
+    * Executes an update SQL statement with a RETURNING clause on the
+    * database that holds a chat and returns the rows it produced.  Like
+    * any update it is not sent again after a lost connection.
+    *
+    * @param chat the chat id the statement writes to
+    * @param sql the input SQL string
+    * @param params the values of the ? placeholders, if any
+    * @return the returned rows as a list of records
+    * @throws java.sql.SQLException when update failed
+    */
+   public List<List<String>> executeUpdateReturning (int chat, String sql, Object... params) throws SQLException {
+      ensureConnected ();
+      return executeUpdateReturning (this.shards == null ? this._connection : this.shards.forWrite (chat), sql, params);
+   }//end executeUpdateReturning
+
+   /**
+    * Executes an update SQL statement with a RETURNING clause on the
+    * primary database, like executeUpdateReturning above.
+    */
+   public List<List<String>> executeUpdateReturning (String sql, Object... params) throws SQLException {
+      ensureConnected ();
+      return executeUpdateReturning (this._connection, sql, params);
+   }//end executeUpdateReturning
+
+   private List<List<String>> executeUpdateReturning (Connection conn, String sql, Object[] params) throws SQLException {
+      long start = OpStats.sqlStart();
+      Watchdog.Guard guard = null;
+      try{
+         // creates a statement object, with the values bound
+         Statement stmt = createStatement (conn, sql, params);
+
+         // issues the update and reads the rows it returns, within the operation's budget
+         List<List<String>> result = new ArrayList<List<String>>();
+         try{
+            guard = Watchdog.watch (stmt);
+            ResultSet rs = params.length == 0 ? stmt.executeQuery (sql) : ((PreparedStatement) stmt).executeQuery ();
+            try{
+               int numCol = rs.getMetaData ().getColumnCount ();
+               while (rs.next ()){
+                  List<String> record = new ArrayList<String>();
+                  for (int i = 1; i <= numCol; ++i)
+                     record.add (rs.getString (i));
+                  result.add (record);
+               }//end while
+            }finally{
+               rs.close ();
+            }//end try
+         }finally{
+            // close the instruction
+            stmt.close ();
+         }//end try
+         Watchdog.done (guard);
+         OpStats.updateDone(sql, result.size (), start);
+         if (conn == this._connection) this.router.wrote ();
+         return result;
+      }catch (SQLException e){
+         e = Watchdog.failed (guard, e);
+         OpStats.sqlFailed(sql, e, start);
+         dropIfLost (e);
+         throw e;
+      }//end try
+   }//end executeUpdateReturning
+
+   private int executeUpdate (Connection conn, String sql, Object[] params) throws SQLException {
+      long start = OpStats.sqlStart();
+      Watchdog.Guard guard = null;
+      try{
+         // creates a statement object, with the values bound
+         Statement stmt = createStatement (conn, sql, params);
+
+         // issues the update instruction, within the operation's budget
+         int rowCount;
+         try{
+            guard = Watchdog.watch (stmt);
+            rowCount = params.length == 0 ? stmt.executeUpdate (sql) : ((PreparedStatement) stmt).executeUpdate ();
+         }finally{
+            // close the instruction
+            stmt.close ();
+         }//end try
+         Watchdog.done (guard);
+         OpStats.updateDone(sql, rowCount, start);
+         // remember how far the replicas must be to see this write
+         if (conn == this._connection) this.router.wrote ();
+         return rowCount;
+      }catch (SQLException e){
+         e = Watchdog.failed (guard, e);
+         OpStats.sqlFailed(sql, e, start);
+         // not sent again, it may have been applied before the connection broke
+         dropIfLost (e);
+         throw e;
+      }//end try
+   }//end executeUpdate
+
+   private static final Object[] NO_PARAMS = new Object[0];
+
+   /**
+    * Creates the statement of an update: a plain one, or a prepared one
+    * with the values bound to its ? placeholders if there are any, so
+    * text from the user never has to be quoted into the SQL.
+    */
+   private static Statement createStatement (Connection conn, String sql, Object[] params) throws SQLException {
+      if (params.length == 0) return conn.createStatement ();
+      PreparedStatement stmt = conn.prepareStatement (sql);
+      try{
+         for (int i = 0; i < params.length; i++)
+            stmt.setObject (i + 1, params[i]);
+      }catch (SQLException e){
+         stmt.close ();
+         throw e;
+      }//end try
+      return stmt;
+   }//end createStatement
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and outputs the results to
+    * standard out.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query) throws SQLException {
+      long start = OpStats.sqlStart();
+
+      // issues the query instruction, on a replica if possible
+      ResultSet rs = executeRead (query, start);
+      Statement stmt = rs.getStatement ();
+
+      /*
+       ** obtains the metadata object for the returned result set.  The metadata
+       ** contains row and column info.
+       */
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      int rowCount = 0;
+      long bytes = 0;
+      String[] header = new String[numCol];
+      for (int i = 1; i <= numCol; i++)
+         header[i - 1] = rsmd.getColumnName (i);
+
+      // iterates through the result set and output them to standard out,
+      // aligned and flushed once at the end
+      Screen screen = new Screen ();
+      Screen.Table table = screen.table (header);
+      while (rs.next()){
+         String[] record = new String[numCol];
+         for (int i=1; i<=numCol; ++i){
+            String value = rs.getString (i);
+            if (value != null) bytes += value.length();
+            record[i - 1] = value;
+         }
+         table.row (record);
+         ++rowCount;
+      }//end while
+      table.end ();
+      screen.flush ();
+      stmt.close ();
+      OpStats.sqlDone(query, rowCount, bytes, start);
+      return rowCount;
+   }//end executeQuery
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as
+    * a list of records. Each record in turn is a list of attribute values
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+      long start = OpStats.sqlStart();
+
+      // issues the query instruction, on a replica if possible 
+      ResultSet rs = executeRead (query, start); 
+      return collectResult (rs, query, start);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Executes a query on the messages or members of a chat, on the
+    * database that holds them, and returns the results as a list of
+    * records.
+    *
+    * @param chat the chat id the query reads
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (final int chat, final String query) throws SQLException {
+      ensureConnected ();
+      if (this.shards == null || this.shards.forRead (chat) == this._connection)
+         return executeQueryAndReturnResult (query);
+      return retryRead (new Read<List<List<String>>>() {
+         public List<List<String>> run () throws SQLException {
+            long start = OpStats.sqlStart();
+            return collectResult (executeTimed (shards.forRead (chat).createStatement (), query, start), query, start);
+         }
+      });
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Executes a query whose first column is a chat id on every database
+    * holding chats, in parallel, and returns the rows of each chat from
+    * the database it lives on.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records, in no particular order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnChatRows (final String query) throws SQLException {
+      ensureConnected ();
+      if (this.shards == null) return executeQueryAndReturnResult (query);
+      return retryRead (new Read<List<List<String>>>() {
+         public List<List<String>> run () throws SQLException {
+            long start = OpStats.sqlStart();
+            try{
+               List<List<String>> result = shards.queryChats (query);
+               long bytes = 0;
+               for (List<String> record : result)
+                  for (String value : record)
+                     if (value != null) bytes += value.length();
+               OpStats.sqlDone(query, result.size(), bytes, start);
+               return result;
+            }catch (SQLException e){
+               OpStats.sqlFailed(query, e, start);
+               throw e;
+            }//end try
+         }
+      });
+   }//end executeQueryAndReturnChatRows
+
+   /**
+    * Receives the records of a streamed query one at a time.
+    */
+   interface RowHandler {
+      void row (List<String> record) throws IOException;
+   }//end RowHandler
+
+   /**
+    * Executes a query on the messages of a chat through a server-side
+    * cursor and hands the records to the handler as they arrive, fetching
+    * messenger.fetchRows (default 1000) at a time, so a result of any size
+    * is read in constant memory.  The cursor runs in a transaction of its
+    * own on the database holding the chat, a replica if possible.  It is
+    * not sent again if the connection breaks, the handler has seen rows.
+    *
+    * @param chat the chat id the query reads
+    * @param query the input query string
+    * @param handler receives each record
+    * @return the number of records
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when the handler failed
+    */
+   public long executeQueryStreaming (int chat, String query, RowHandler handler) throws SQLException, IOException {
+      ensureConnected ();
+      return executeQueryStreaming (this.shards == null ? this.router.forRead () : this.shards.forRead (chat), query, handler);
+   }//end executeQueryStreaming
+
+   /**
+    * Executes a query on the users and lists through a server-side cursor
+    * like executeQueryStreaming above, on the primary database or one of
+    * its replicas.
+    */
+   public long executeQueryStreaming (String query, RowHandler handler) throws SQLException, IOException {
+      ensureConnected ();
+      return executeQueryStreaming (this.router.forRead (), query, handler);
+   }//end executeQueryStreaming
+
+   private long executeQueryStreaming (Connection conn, String query, RowHandler handler) throws SQLException, IOException {
+      String declare = "DECLARE messenger_stream NO SCROLL CURSOR FOR " + query.trim ().replaceAll (";$", "") + ";";
+      String fetch = "FETCH FORWARD " + FETCH_ROWS + " FROM messenger_stream;";
+      long rowCount = 0;
+      conn.setAutoCommit (false);
+      try{
+         long start = OpStats.sqlStart();
+         Statement stmt = conn.createStatement ();
+         try{
+            stmt.execute (declare);
+            OpStats.updateDone(declare, 0, start);
+         }catch (SQLException e){
+            OpStats.sqlFailed(declare, e, start);
+            throw e;
+         }finally{
+            stmt.close ();
+         }//end try
+         while (true) {
+            start = OpStats.sqlStart();
+            List<List<String>> records = collectResult (executeTimed (conn.createStatement (), fetch, start), fetch, start);
+            for (List<String> record : records)
+               handler.row (record);
+            rowCount += records.size ();
+            if (records.size () < FETCH_ROWS) break;
+         }//end while
+         return rowCount;
+      }catch (SQLException e){
+         dropIfLost (e);
+         throw e;
+      }finally{
+         // read only, the transaction only held the cursor
+         try{
+            conn.rollback ();
+            conn.setAutoCommit (true);
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end try
+   }//end executeQueryStreaming
+
+   /**
+    * Returns true if this session reads from replicas, which must be told
+    * about the writes made for it elsewhere (see wroteAt).
+    */
+   public boolean readsFromReplicas () {
+      ConnectionRouter r = this.router;
+      return r != null && r.hasReplicas ();
+   }
+
+   /**
+    * Returns the WAL position of the primary after this session's
+    * writes, for another session that has to see them.
+    */
+   public long primaryLsn () throws SQLException {
+      ensureConnected ();
+      return this.router.primaryLsn ();
+   }
+
+   /**
+    * Makes the reads of this session wait for a write another connection
+    * made for it, e.g. a message replayed from the outbox, at the given
+    * WAL position of the primary.
+    */
+   public void wroteAt (long lsn) {
+      ConnectionRouter r = this.router;
+      if (r != null) r.wroteAt (lsn);
+   }
+
+   /**
+    * Returns true if the chats are spread over shard databases.
+    */
+   public boolean isSharded () {
+      return this.sharded || this.shards != null;
+   }
+
+   /**
+    * Opens the reports on connections of their own, their queries and
+    * cursors run beside the sessions' statements and outside the
+    * Watchdog budgets.
+    *
+    * @return the reports, or null without a database
+    */
+   Reports reports () throws SQLException {
+      if (this.url == null) return null;
+      return Reports.connect(this.url, this.user, this.passwd);
+   }
+
+   /**
+    * Reads a result set into a list of records and closes its statement.
+    */
+   private List<List<String>> collectResult (ResultSet rs, String query, long start) throws SQLException {
+      Statement stmt = rs.getStatement (); 
+
+      /* 
+       ** obtains the metadata object for the returned result set.  The metadata 
+       ** contains row and column info. 
+       */ 
+      ResultSetMetaData rsmd = rs.getMetaData (); 
+      int numCol = rsmd.getColumnCount (); 
+      int rowCount = 0; 
+
+      // iterates through the result set and saves the data returned by the query. 
+      boolean outputHeader = false;
+      long bytes = 0;
+      List<List<String>> result  = new ArrayList<List<String>>(); 
+      while (rs.next()){
+         List<String> record = new ArrayList<String>(); 
+         for (int i=1; i<=numCol; ++i){
+            String value = rs.getString (i);
+            if (value != null) bytes += value.length();
+            record.add(value); 
+         }
+         result.add(record); 
+      }//end while 
+      stmt.close (); 
+      OpStats.sqlDone(query, result.size(), bytes, start);
+      return result; 
+   }//end collectResult
+
+   /**
+    * Checks on the server whether a query has any row: the DBMS evaluates
+    * SELECT EXISTS(query), stops at the first row and sends back one
+    * boolean.  The parameters are bound to the ? of the query in order.
+    * Runs on a replica that has seen this session's writes if possible.
+    *
+    * @param query the input query string, e.g. SELECT 1 FROM ... WHERE ...
+    * @param params the values of the ? placeholders
+    * @return true if the query has at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      return isTrue (readValue (existsQuery (query), params));
+   }//end exists
+
+   /**
+    * Checks on the server whether a query on the messages or members of a
+    * chat has any row, on the database that holds them.
+    *
+    * @param chat the chat id the query reads
+    * @param query the input query string
+    * @param params the values of the ? placeholders
+    * @return true if the query has at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (int chat, String query, Object... params) throws SQLException {
+      ensureConnected ();
+      if (this.shards == null) return exists (query, params);
+      return isTrue (shardValue (chat, existsQuery (query), params));
+   }//end exists
+
+   /**
+    * Checks whether a query has any row on the given connection, for the
+    * tools that open their own connections.
+    *
+    * @param conn the connection to run the query on
+    * @param query the input query string
+    * @param params the values of the ? placeholders
+    * @return true if the query has at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   static boolean exists (Connection conn, String query, Object... params) throws SQLException {
+      return isTrue (selectValue (conn, existsQuery (query), params));
+   }//end exists
+
+   /**
+    * Counts rows on the server with SELECT count(*), so only the number
+    * comes back.  Runs on a replica that has seen this session's writes
+    * if possible.
+    *
+    * @param table the table, or tables, to count in
+    * @param where the condition the rows must meet, with ? placeholders
+    * @param params the values of the ? placeholders
+    * @return the number of rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long count (String table, String where, Object... params) throws SQLException {
+      return Long.parseLong (readValue (countQuery (table, where), params).trim ());
+   }//end count
+
+   /**
+    * Counts the messages or members of a chat on the database that holds
+    * them.
+    *
+    * @param chat the chat id the query reads
+    * @param table the table, or tables, to count in
+    * @param where the condition the rows must meet, with ? placeholders
+    * @param params the values of the ? placeholders
+    * @return the number of rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long count (int chat, String table, String where, Object... params) throws SQLException {
+      ensureConnected ();
+      if (this.shards == null) return count (table, where, params);
+      return Long.parseLong (shardValue (chat, countQuery (table, where), params).trim ());
+   }//end count
+
+   /**
+    * Reads a single value, e.g. an id looked up by a unique key, with the
+    * parameters bound to the ? of the query in order.  Runs on a replica
+    * that has seen this session's writes if possible.
+    *
+    * @param query the input query string
+    * @param params the values of the ? placeholders
+    * @return the first column of the first row, null if there is no row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String value (String query, Object... params) throws SQLException {
+      return readValue (query, params);
+   }//end value
+
+   private static String existsQuery (String query) {
+      return "SELECT EXISTS(" + query.trim ().replaceAll (";$", "") + ");";
+   }
+
+   // booleans come back as "t" or "true" depending on the driver
+   private static boolean isTrue (String value) {
+      return value != null && (value.equals ("t") || value.equals ("true"));
+   }
+
+   private static String countQuery (String table, String where) {
+      return "SELECT count(*) FROM " + table + " WHERE " + where + ";";
+   }
+
+   /**
+    * Runs a query returning a single value on a replica that has seen
+    * this session's writes, or on the primary if the replica went away.
+    */
+   private String readValue (final String query, final Object[] params) throws SQLException {
+      return retryRead (new Read<String>() {
+         public String run () throws SQLException {
+            Connection conn = router.forRead ();
+            try{
+               return selectValue (conn, query, params);
+            }catch (SQLException e){
+               if (!router.failed (conn, e)) throw e;
+            }//end try
+            return selectValue (_connection, query, params);
+         }
+      });
+   }//end readValue
+
+   /**
+    * Runs a query returning a single value on the database holding a chat.
+    */
+   private String shardValue (final int chat, final String query, final Object[] params) throws SQLException {
+      return retryRead (new Read<String>() {
+         public String run () throws SQLException {
+            return selectValue (shards.forRead (chat), query, params);
+         }
+      });
+   }//end shardValue
+
+   /**
+    * Runs a query returning a single value with bound parameters.
+    *
+    * @return the value of the first column of the first row, null if none
+    */
+   private static String selectValue (Connection conn, String query, Object[] params) throws SQLException {
+      long start = OpStats.sqlStart();
+      Watchdog.Guard guard = null;
+      try{
+         PreparedStatement stmt = conn.prepareStatement (query);
+         String value;
+         try{
+            for (int i = 0; i < params.length; i++)
+               stmt.setObject (i + 1, params[i]);
+            guard = Watchdog.watch (stmt);
+            ResultSet rs = stmt.executeQuery ();
+            value = rs.next () ? rs.getString (1) : null;
+         }finally{
+            stmt.close ();
+         }//end try
+         Watchdog.done (guard);
+         OpStats.sqlDone(query, 1, value == null ? 0 : value.length(), start);
+         return value;
+      }catch (SQLException e){
+         e = Watchdog.failed (guard, e);
+         OpStats.sqlFailed(query, e, start);
+         throw e;
+      }//end try
+   }//end selectValue
+
+   /**
+    * Issues a query and records it as failed in the operation statistics
+    * if the DBMS rejects it.
+    *
+    * @param stmt the statement to run the query on
+    * @param query the input query string
+    * @param start the value returned by OpStats.sqlStart()
+    * @return the result set of the query
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   private ResultSet executeTimed (Statement stmt, String query, long start) throws SQLException {
+      Watchdog.Guard guard = null;
+      try{
+         guard = Watchdog.watch (stmt);
+         ResultSet rs = stmt.executeQuery (query);
+         Watchdog.done (guard);
+         return rs;
+      }catch (SQLException e){
+         stmt.close ();
+         e = Watchdog.failed (guard, e);
+         OpStats.sqlFailed(query, e, start);
+         throw e;
+      }//end try
+   }//end executeTimed
+
+   /**
+    * Issues a read-only query on a replica that has seen this session's
+    * writes, or on the primary.  A query that fails because its replica
+    * went away is retried once on the primary, one that fails because the
+    * connection to the primary was lost is sent again once connected.
+    *
+    * @param query the input query string
+    * @param start the value returned by OpStats.sqlStart()
+    * @return the result set of the query, close its statement when done
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   private ResultSet executeRead (String query, long start) throws SQLException {
+      ensureConnected ();
+      try{
+         return readOnce (query, start);
+      }catch (SQLException e){
+         if (!dropIfLost (e)) throw e;
+      }//end try
+      ensureConnected ();
+      // the failed attempt was counted as done
+      OpStats.sqlStart();
+      return readOnce (query, start);
+   }//end executeRead
+
+   private ResultSet readOnce (String query, long start) throws SQLException {
+      Connection conn = this.router.forRead ();
+      Statement stmt = conn.createStatement ();
+      Watchdog.Guard guard = null;
+      try{
+         guard = Watchdog.watch (stmt);
+         ResultSet rs = stmt.executeQuery (query);
+         Watchdog.done (guard);
+         return rs;
+      }catch (SQLException e){
+         stmt.close ();
+         e = Watchdog.failed (guard, e);
+         if (!this.router.failed (conn, e)){
+            OpStats.sqlFailed(query, e, start);
+            throw e;
+         }//end if
+      }//end try
+      return executeTimed (this._connection.createStatement (), query, start);
+   }//end readOnce
+
+   /**
+    * Method to fetch the last value from sequence. This
+    * method issues the query to the DBMS and returns the current 
+    * value of sequence used for autogenerated keys
+    *
+    * @param sequence name of the DB sequence
+    * @return current value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getCurrSeqVal(String sequence) throws SQLException {
+      ensureConnected ();
+      Statement stmt = this._connection.createStatement ();
+      long start = OpStats.sqlStart();
+
+      String query = String.format("Select currval('%s')", sequence);
+      ResultSet rs;
+      try{
+         rs = executeTimed (stmt, query, start);
+      }catch (SQLException e){
+         dropIfLost (e);
+         throw e;
+      }//end try
+      try{
+         int value = -1;
+         if (rs.next())
+            value = rs.getInt(1);
+         OpStats.sqlDone(query, 1, 4, start);
+         return value;
+      }catch (SQLException e){
+         OpStats.sqlFailed(query, e, start);
+         throw e;
+      }finally{
+         rs.close ();
+         stmt.close ();
+      }//end try
+   }
+
+   /**
+    * Method to close the physical connection if it is open.
+    */
+   public void cleanup(){
+      // the connection of a session that connected in the background
+      if (this.store instanceof LazyStorage) ((LazyStorage) this.store).close ();
+      disconnect ();
+   }//end cleanup
+
+   /**
+    * Closes the connections to the primary, the replicas and the shards.
+    */
+   private void disconnect(){
+      if (this.router != null){
+         this.router.closeReplicas ();
+         this.router = null;
+      }//end if
+      if (this.shards != null){
+         this.shards.close ();
+         this.shards = null;
+      }//end if
+      if (this._connection != null){
+         Connection conn = this._connection;
+         this._connection = null;
+         OpStats.openConnections.decrementAndGet();
+         try{
+            conn.close ();
+         }catch (SQLException e){
+            // ignored, a lost connection may not close cleanly.
+         }//end try
+      }//end if
+   }//end disconnect
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+               "Usage: " +
+               "java [-classpath <classpath>] " +
+               Messenger.class.getName () +
+               " <dbname> <port> <user> [<replica host:port> ...]");
+         return;
+      }//end if
+
+      Greeting();
+      MetricsServer.startFromProperties();
+      Messenger esql = null;
+      try{
+         // with messenger.lazyConnect the driver is loaded by the connecting thread
+         boolean lazy = Boolean.getBoolean("messenger.lazyConnect");
+         // use postgres JDBC driver.
+         if (!lazy) Class.forName ("org.postgresql.Driver").newInstance ();
+         // instantiate the Messenger object and creates a physical
+         // connection.
+         String dbname = args[0];
+         String dbport = args[1];
+         String user = args[2];
+         // any further arguments are streaming replicas serving the reads
+         List<String> replicas = new ArrayList<String>();
+         for (int i = 3; i < args.length; i++)
+            replicas.add("jdbc:postgresql://" + args[i] + "/" + dbname);
+         if ("memory".equals(System.getProperty("messenger.storage"))) {
+            System.out.println("Keeping all data in memory, nothing is saved");
+            esql = new Messenger (new MemoryStorage ());
+         }else if (lazy) {
+            // driver and connections are set up while the menu is shown
+            esql = connectInBackground("jdbc:postgresql://localhost:" + dbport + "/" + dbname, replicas, user, "");
+         }else{
+            String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+            esql = new Messenger (url, replicas, user, "");
+            esql.outbox = Outbox.fromProperties(esql, url, user, "");
+            esql.purger = Purger.fromProperties(url, user, "");
+         }//end if
+
+         boolean keepon = true;
+         while(keepon) {
+            // These are sample SQL statements
+            System.out.println();
+            System.out.println("MAIN MENU");
+            System.out.println("---------");
+            System.out.println("1. Create user");
+            System.out.println("2. Log in");
+            System.out.println(".........................");
+            System.out.println("0. EXIT");
+            String authorisedUser = null;
+            switch (readChoice()){
+               case 1: CreateUser(esql); break;
+               case 2: authorisedUser = LogIn(esql); break;
+               case 0: keepon = false; break;
+               default : System.out.println("Unrecognized choice!"); break;
+            }//end switch
+
+            if (authorisedUser != null) {
+               boolean usermenu = true;
+               while(usermenu) {
+                  ShowRejected(esql, authorisedUser);
+                  System.out.println();
+                  System.out.println("MAIN MENU");
+                  System.out.println("---------");
+                  System.out.println("1. Add to contact list");
+                  System.out.println("2. Delete from contact list");
+                  System.out.println("3. Browse contact list");
+                  System.out.println("4. Add to blocked list");
+                  System.out.println("5. Delete from blocked list");
+                  System.out.println("6. Browse blocked list");
+                  System.out.println("7. Create a new chat");
+                  System.out.println("8. Browse chats");
+                  System.out.println("9. Delete my account");
+                  System.out.println("10. Reports");
+                  System.out.println("11. Suggested contacts");
+                  System.out.println("12. Import contacts by phone number");
+                  System.out.println("13. Update status");
+                  System.out.println(".........................");
+                  System.out.println("0. Log out");
+                  int choice = readChoice();
+                  Heartbeat(esql, authorisedUser, false);
+                  switch (choice){
+                     case 1: AddToContact(esql, authorisedUser); break;
+                     case 2: DeleteFromContact(esql, authorisedUser); break;
+                     case 3: ListContacts(esql, authorisedUser); break;
+                     case 4: AddToBlocked(esql, authorisedUser); break;
+                     case 5: DeleteFromBlocked(esql, authorisedUser); break;
+                     case 6: ListBlocked(esql, authorisedUser); break;
+                     case 7: NewChat(esql, authorisedUser); break;
+                     case 8: SelectChat(esql, authorisedUser); break;
+                     case 9: if (DeleteOwnAccount(esql, authorisedUser)) usermenu = false;
+                             break;
+                     case 10: Query6(esql); break;
+                     case 11: SuggestContacts(esql, authorisedUser); break;
+                     case 12: ImportContacts(esql, authorisedUser); break;
+                     case 13: UpdateStatus(esql, authorisedUser); break;
+                     case 0: usermenu = false; break;
+                     default : System.out.println("Unrecognized choice!"); break;
+                  }
+               }
+               Heartbeat(esql, authorisedUser, true);
+            }
+         }//end while
+      }
+
+      catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(esql != null && esql.outbox != null) {
+               esql.outbox.close(Long.getLong("messenger.outboxDrainMs", 5000L));
+            }//end if
+            if(esql != null && esql.purger != null) {
+               esql.purger.close();
+            }//end if
+            if(esql != null && esql.store != null) {
+               // the read cursors still waiting for their batch
+               try{
+                  esql.store.flushReads();
+               }catch (SQLException e) {
+                  // the chats are read again next time
+               }//end try
+            }//end if
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+         if (Boolean.getBoolean("messenger.stats")) {
+            OpStats.printSummary(System.out);
+         }//end if
+         MetricsServer.stop();
+      }//end try
+   }//end main
+
+   /*
+    * Returns a Messenger whose storage connects in a thread of its own,
+    * the outbox and the purger are started once the connection is up
+    **/
+   static Messenger connectInBackground(final String url, List<String> replicas, final String user, final String passwd) {
+      final Messenger esql = new Messenger ((Storage) null);
+      esql.store = new LazyStorage (url, replicas, user, passwd, new LazyStorage.Listener() {
+         public void connected(Messenger connected) {
+            // the connected Messenger serves the reads the replays must show up in
+            esql.outbox = Outbox.fromProperties(connected, url, user, passwd);
+            esql.purger = Purger.fromProperties(url, user, passwd);
+         }
+      });
+      return esql;
+   }//end connectInBackground
+
+   public static void Greeting(){
+      System.out.println(
+            "\n\n*******************************************************\n" +
+            "              User Interface      	               \n" +
+            "*******************************************************\n");
+   }//end Greeting
+
+   /*
+    * Reads one line from the keyboard.  Time spent waiting for the user
+    * is not counted against the running operation.
+    * @String
+    **/
+   public static String readLine() throws IOException {
+      OpStats.pause();
+      try {
+         return in.readLine();
+      }finally {
+         OpStats.resume();
+      }//end try
+   }//end readLine
+
+   /*
+    * Reads the users choice given from the keyboard
+    * @int
+    **/
+   public static int readChoice() {
+      int input;
+      // returns only if a correct value is given.
+      do {
+         System.out.print("Please make your choice: ");
+         try { // read the integer, parse it and break.
+            input = Integer.parseInt(readLine());
+            break;
+         }catch (Exception e) {
+            System.out.println("Your input is invalid!");
+            continue;
+         }//end try
+      }while (true);
+      return input;
+   }//end readChoice
+
+   /*
+    * Creates a new user with privided login, passowrd and phoneNum
+    * An empty block and contact list would be generated and associated with a user
+    **/
+   public static void CreateUser(Messenger esql){
+      OpStats.begin("CreateUser");
+      try{
+         System.out.print("\tEnter user login: ");
+         String login = readLine();
+         System.out.print("\tEnter user password: ");
+         String password = readLine();
+         System.out.print("\tEnter user phone: ");
+         String phone = readLine();
+
+         esql.store.createUser(login, password, phone);
+         System.out.println ("User successfully created!");
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+      finally {
+         OpStats.end();
+      }
+   }//end
+
+   /*
+    * Check log in credentials for an existing user
+    * @return User login or null is the user does not exist
+    **/
+   public static String LogIn(Messenger esql){
+      OpStats.begin("LogIn");
+      try{
+         System.out.print("\tEnter user login: ");
+         String login = readLine();
+         System.out.print("\tEnter user password: ");
+         String password = readLine();
+
+         int id = esql.store.logIn(login, password);
+         if (id != UserDirectory.UNKNOWN) {
+            Heartbeat(esql, login, false);
+            return login;
+         }
+         return null;
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+         return null;
+      }
+      finally {
+         OpStats.end();
+      }
+   }//end
+
+   /*
+    * Prompt user for another user to add to contact list
+    **/
+   public static void AddToContact(Messenger esql, String username){
+      OpStats.begin("AddToContact");
+      try {
+         System.out.print("Enter username: ");
+         String userToAdd = readLine();
+         int member = esql.store.userId(userToAdd);
+         if (member == UserDirectory.UNKNOWN) {
+            System.out.println("User <" + userToAdd + "> does not exist");
+            return;
+         }
+         esql.store.addToList(esql.store.userId(username), Storage.UserList.CONTACTS, member);
+         System.out.print("User <");
+         System.out.print(userToAdd);
+         System.out.println("> added to contact list");
+         return;
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return;
+      }
+      finally {
+         OpStats.end();
+      }
+
+   }//end
+
+   /*
+    * Shows the sends of the user that the database rejected after they
+    * left the outbox, each once
+    **/
+   static void ShowRejected(Messenger esql, String username) {
+      if (esql.outbox == null) return;
+      try {
+         List<Outbox.DeadLetter> rejected = esql.outbox.takeDeadLetters(esql.store.userId(username));
+         for (Outbox.DeadLetter d : rejected) {
+            String to = d.chat() == 0 ? "new chat" : "chat " + d.chat();
+            System.out.println("NOT SENT to " + to + ": " + (d.text() == null ? "" : Screen.display(d.text().trim())));
+            System.out.println("   the database rejected it: " + d.reason);
+         }
+      }
+      catch (Exception e) {
+         // still in the dead-letter file, shown with the next menu
+      }
+   }
+
+   /*
+    * Marks the logged in user as active, or as gone when it logs out,
+    * and tells the other processes when it is time
+    **/
+   static void Heartbeat(Messenger esql, String username, boolean loggedOut) {
+      try {
+         int me = esql.store.userId(username);
+         if (loggedOut) presence.loggedOut(me);
+         else if (!presence.heartbeat(me)) return;
+         esql.store.setSeen(me, presence.state(me));
+      }
+      catch (Exception e) {
+         // the account is gone or the database is away, presence can wait
+      }
+   }
+
+   /*
+    * Returns the status texts of the users from memory, reading the ones
+    * that are not known yet with one query
+    **/
+   static String[] statuses(Messenger esql, int[] ids) throws SQLException {
+      IntHashSet missing = new IntHashSet();
+      for (int id : ids) {
+         if (!presence.knowsStatus(id)) missing.add(id);
+      }
+      if (missing.size() > 0) {
+         int[] load = missing.toArray();
+         String[] loaded = esql.store.statuses(load);
+         for (int i = 0; i < load.length; i++) presence.loaded(load[i], loaded[i]);
+      }
+      String[] statuses = new String[ids.length];
+      for (int i = 0; i < ids.length; i++) statuses[i] = presence.status(ids[i]);
+      return statuses;
+   }
+
+   /*
+    * Returns the presence of the users, reading the ones logged in to
+    * other processes with one query unless they were read a short while ago
+    **/
+   static Presence.State[] states(Messenger esql, int[] ids) throws SQLException {
+      IntHashSet missing = new IntHashSet();
+      for (int id : ids) {
+         if (!presence.knowsSeen(id)) missing.add(id);
+      }
+      if (missing.size() > 0) {
+         int[] load = missing.toArray();
+         Storage.Seen[] loaded = esql.store.seen(load);
+         for (int i = 0; i < load.length; i++) presence.loadedSeen(load[i], loaded[i]);
+      }
+      Presence.State[] states = new Presence.State[ids.length];
+      for (int i = 0; i < ids.length; i++) states[i] = presence.state(ids[i]);
+      return states;
+   }
+
+   /*
+    * Sets one's status text and whether one shows as away
+    * The text is only written when it changed
+    **/
+   public static void UpdateStatus(Messenger esql, String username){
+      OpStats.begin("UpdateStatus");
+      try {
+         int me = esql.store.userId(username);
+         String current = statuses(esql, new int[] { me })[0];
+         System.out.println("Your status: " + (current == null ? "(none)" : current) + ", " + presence.state(me).name);
+         System.out.print("Enter new status (blank keeps it, - clears it): ");
+         String input = readLine().trim();
+         if (input.length() > 140) {
+            System.out.println("A status has at most 140 characters");
+            return;
+         }
+         if (input.length() > 0) {
+            String status = input.equals("-") ? null : input;
+            if (presence.changes(me, status)) {
+               esql.store.setStatus(me, status);
+               presence.loaded(me, status);
+            }
+         }
+         System.out.print("Show as away? (y/n): ");
+         presence.away(me, readLine().trim().equalsIgnoreCase("y"));
+         esql.store.setSeen(me, presence.state(me));
+         System.out.println("...Status updated: " + presence.state(me).name);
+         return;
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return;
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+   /*
+    * Adds the users of an address book to the contact list: phone numbers
+    * separated by commas, or a file with one number per line
+    * The numbers are resolved with one query and added with one insert
+    * per messenger.importPhones numbers (default 10000)
+    **/
+   public static void ImportContacts(Messenger esql, String username){
+      OpStats.begin("ImportContacts");
+      try {
+         System.out.print("Enter phone numbers separated by commas, or a file with one per line: ");
+         String input = readLine().trim();
+         StringBuilder text = new StringBuilder();
+         if (new File(input).isFile()) {
+            BufferedReader file = new BufferedReader(new FileReader(input));
+            try {
+               for (String line = file.readLine(); line != null; line = file.readLine()) {
+                  text.append(line).append('\n');
+               }
+            }
+            finally {
+               file.close();
+            }
+         }
+         else {
+            text.append(input);
+         }
+
+         List<String> numbers = PhoneNumbers.split(text.toString());
+         int me = esql.store.userId(username);
+         int batch = Integer.getInteger("messenger.importPhones", 10000);
+         int[] found = new int[numbers.size()];
+         IntHashSet added = new IntHashSet();
+         int matched = 0;
+         for (int from = 0; from < numbers.size(); from += batch) {
+            List<String> chunk = numbers.subList(from, Math.min(numbers.size(), from + batch));
+            List<String> valid = new ArrayList<String>();
+            for (String number : chunk) {
+               String n = PhoneNumbers.normalize(number);
+               if (n != null) valid.add(n);
+            }
+            int[] ids = esql.store.usersByPhone(valid.toArray(new String[valid.size()]));
+            IntHashSet members = new IntHashSet(ids.length);
+            int v = 0;
+            for (int i = 0; i < chunk.size(); i++) {
+               found[from + i] = PhoneNumbers.normalize(chunk.get(i)) == null ? UserDirectory.UNKNOWN : ids[v++];
+               if (found[from + i] != UserDirectory.UNKNOWN) {
+                  matched++;
+                  members.add(found[from + i]);
+               }
+            }
+            for (int id : esql.store.addToList(me, Storage.UserList.CONTACTS, members.toArray())) {
+               added.add(id);
+            }
+         }
+
+         IntHashSet users = new IntHashSet(matched);
+         for (int id : found) {
+            if (id != UserDirectory.UNKNOWN) users.add(id);
+         }
+         int[] ids = users.toArray();
+         String[] names = esql.store.logins(ids);
+         IntHashMap<String> logins = new IntHashMap<String>(ids.length);
+         for (int i = 0; i < ids.length; i++) logins.put(ids[i], names[i]);
+         Screen screen = new Screen();
+         screen.print(numbers.size()).print(" numbers: ").print(matched).print(" matched, ")
+               .print(added.size()).print(" added, ").print(numbers.size() - matched).println(" unmatched");
+         Screen.Table table = screen.table("number", "user", "result");
+         for (int i = 0; i < found.length; i++) {
+            String result;
+            if (found[i] == UserDirectory.UNKNOWN) result = PhoneNumbers.normalize(numbers.get(i)) == null ? "not a phone number" : "no user";
+            else if (found[i] == me) result = "your own number";
+            else if (added.remove(found[i])) result = "added";
+            else result = "already a contact";
+            table.row(numbers.get(i), found[i] == UserDirectory.UNKNOWN ? "" : logins.get(found[i]), result);
+         }
+         table.end();
+         screen.flush();
+         return;
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return;
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+   /*
+    * Allows user to delete selected contact from contact list
+    **/
+   public static void DeleteFromContact(Messenger esql, String username) {
+      OpStats.begin("DeleteFromContact");
+      try {
+         System.out.print("Enter user to be deleted: ");
+         String input = readLine();
+         esql.store.removeFromList(esql.store.userId(username), Storage.UserList.CONTACTS, esql.store.userId(input));
+         System.out.print("User <");
+         System.out.print(input);
+         System.out.println("> removed from contact list");
+         return;
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return;
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+   /*
+    * Loops over contact list and prints each contact on its own line,
+    * with its presence and status, from memory where they are known
+    **/
+   public static void ListContacts(Messenger esql, String username){
+      OpStats.begin("ListContacts");
+      try {
+         int[] ids = esql.store.listMembers(esql.store.userId(username), Storage.UserList.CONTACTS);
+         String[] contacts = esql.store.logins(ids);
+         String[] statuses = statuses(esql, ids);
+         Presence.State[] states = states(esql, ids);
+         Screen screen = new Screen();
+         screen.print(contacts.length).println(" users in contact list: ");
+         Screen.Table table = screen.table();
+         for (int i = 0; i < contacts.length; i++) {
+            table.row(contacts[i], states[i].name, statuses[i] == null ? "" : statuses[i]);
+         }
+         table.end();
+         screen.flush();
+         return;
+
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return;
+      }
+      finally {
+         OpStats.end();
+      }
+
+   }//end
+
+   /*
+    * Lists the contacts of one's contacts who are not contacts yet, with
+    * the number of contacts in common
+    **/
+   public static void SuggestContacts(Messenger esql, String username){
+      OpStats.begin("SuggestContacts");
+      try {
+         Storage.Suggestion[] suggestions = esql.store.suggestContacts(esql.store.userId(username), Integer.getInteger("messenger.suggestions", 10));
+         int[] ids = new int[suggestions.length];
+         for (int i = 0; i < ids.length; i++) ids[i] = suggestions[i].user;
+         String[] logins = esql.store.logins(ids);
+         Screen screen = new Screen();
+         screen.print(logins.length).println(" suggested contacts: ");
+         Screen.Table table = screen.table("user", "mutual contacts");
+         for (int i = 0; i < logins.length; i++) {
+            table.row(logins[i], Integer.toString(suggestions[i].mutual));
+         }
+         table.end();
+         screen.flush();
+         return;
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return;
+      }
+      finally {
+         OpStats.end();
+      }
+
+   }//end
+
+   /* 
+    * Add another user to one's own blocked list
+    **/
+   public static void AddToBlocked(Messenger esql, String username){
+      OpStats.begin("AddToBlocked");
+      try {
+         System.out.print("Enter username: ");
+         String userToAdd = readLine();
+         int member = esql.store.userId(userToAdd);
+         if (member == UserDirectory.UNKNOWN) {
+            System.out.println("User <" + userToAdd + "> does not exist");
+            return;
+         }
+         esql.store.addToList(esql.store.userId(username), Storage.UserList.BLOCKED, member);
+         System.out.print("User <");
+         System.out.print(userToAdd);
+         System.out.println("> added to blocked list");
+         return;
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return;
+      }
+      finally {
+         OpStats.end();
+      }
+
+   }//end
+
+   /*
+    * Allow user to delete selected user from own blocked list
+    **/
+   public static void DeleteFromBlocked(Messenger esql, String username) {
+      OpStats.begin("DeleteFromBlocked");
+      try {
+         System.out.print("Enter user to be deleted: ");
+         String input = readLine();
+         esql.store.removeFromList(esql.store.userId(username), Storage.UserList.BLOCKED, esql.store.userId(input));
+         System.out.print("User <");
+         System.out.print(input);
+         System.out.println("> removed from blocked list");
+         return;
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return;
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+   /*
+    * List all users in one's blocked list, each on its own line
+    **/
+   public static void ListBlocked(Messenger esql, String username){
+      OpStats.begin("ListBlocked");
+      try {
+         int[] ids = esql.store.listMembers(esql.store.userId(username), Storage.UserList.BLOCKED);
+         String[] blocked = esql.store.logins(ids);
+         Screen screen = new Screen();
+         screen.print(blocked.length).println(" users in blocked list: ");
+         Screen.Table table = screen.table();
+         for (int i = 0; i < blocked.length; i++) {
+            table.row(blocked[i]);
+         }
+         table.end();
+         screen.flush();
+         return;
+
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return;
+      }
+      finally {
+         OpStats.end();
+      }
+
+   }//end
+
+
+   /*
+    * Allow user to create new chat
+    * Chat can contain any number of users, not restricted to contact list
+    * After starting chat, user will be prompted to create a message
+    **/
+   public static void NewChat(Messenger esql, String username){
+      OpStats.begin("NewChat");
+      try {
+         System.out.println("Enter users to chat with, each on its own line");
+         System.out.println("Enter empty line to finish");
+         List<String> users = new ArrayList<String>();
+         while(true) {
+            String input = readLine();
+            if (input.equals("")) break;
+            users.add(input);
+         }
+         String type = "";
+         if (users.size() == 0) {
+            System.out.println("No users added");
+            return;
+         }
+         else if (users.size() == 1) {
+            type = "private";
+         }
+         else {
+            type = "group";
+         }
+
+         int self = esql.store.userId(username);
+         int[] members = new int[users.size() + 1];
+         for (int i = 0; i < users.size(); i++) {
+            members[i] = esql.store.userId(users.get(i));
+            if (members[i] == UserDirectory.UNKNOWN) {
+               System.out.println("User <" + users.get(i) + "> does not exist");
+               return;
+            }
+         }
+         members[users.size()] = self;
+
+         if (esql.outbox != null) {
+            // chat and first message are queued together
+            System.out.println("Enter message(300 characters)");
+            String message = readLine();
+            if (message.length() > 300) {
+               System.out.println("Message too long");
+               message = null;
+            }
+            esql.outbox.createChat(type, self, members, message);
+            System.out.println("...Chat created");
+            if (message != null) {
+               System.out.println();
+               System.out.println("...Message sent");
+            }
+            if (esql.outbox.isFailing())
+               System.out.println("(database unavailable, it will be delivered when it is back)");
+            return;
+         }
+
+         int chat = esql.store.createChat(type, self, members, null);
+         System.out.println("...Chat created");
+
+         System.out.println("Enter message(300 characters)");
+         String message = readLine();
+
+         if (message.length() > 300) {
+            System.out.println("Message too long");
+            return;
+         }
+         esql.store.addMessage(chat, self, message, null, null);
+
+         System.out.println();
+         System.out.println("...Message sent");
+
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+   }//end 
+
+   /*
+    * Lists all chats that user is a part of
+    * Chats are identified by a serial sequence of numbers,
+    * as well as all the members of the chat
+    * Following the list of chats, the user will be prompted to 
+    * select a chat to perform further actions on
+    * The chosen chat will be displayed by showing the last 10 messages sent
+    * A menu of options will then be show to allow further actions
+    **/
+   public static void SelectChat(Messenger esql, String username) {
+      OpStats.begin("SelectChat");
+      try {
+         // most recently active first, from the precomputed statistics
+         int me = esql.store.userId(username);
+         Storage.ChatSummary[] summaries = esql.store.chatSummaries(esql.store.chatsOf(me));
+         sortByActivity(summaries);
+         int[] chats = new int[summaries.length];
+         for (int i = 0; i < chats.length; i++) chats[i] = summaries[i].chat;
+         // all chats in one query, each counted from its read cursor on
+         int[] unread = esql.store.unreadCounts(me, chats);
+         //System.out.println(username);
+         Screen screen = new Screen();
+         screen.println(Integer.toString(chats.length));
+
+         //print out all the members of each chat
+         Screen.Table table = screen.table();
+         for (int i = 0; i < chats.length; i++) {
+            String[] names = esql.store.logins(esql.store.chatMembers(chats[i]));
+            StringBuilder members = new StringBuilder();
+            for (int j = 0; j < names.length; j++) {
+               if (j > 0) members.append(", ");
+               members.append(Screen.display(names[j]));
+            }
+            table.row(i + ":", members.toString(), summaries[i].messages + " messages",
+                  unread[i] == 0 ? "" : unread[i] + (unread[i] >= ReadCursors.UNREAD_LIMIT ? "+" : "") + " unread",
+                  summaries[i].lastActivity == null ? "" : "last " + summaries[i].lastActivity);
+         }
+         table.end();
+
+         screen.println();
+         screen.flush();
+         //System.out.print("Select chat number: ");
+         if (chats.length == 0) {
+            System.out.println("No chats to select");
+            return;
+         }
+         int input = readChoice();
+         while (input < 0 || input >= chats.length) {
+            System.out.println("Choose a chat between 0 and " + (chats.length - 1));
+            input = readChoice();
+         }
+         int chat = chats[input];
+         String chat_num = Integer.toString(chat);
+         // opens at the oldest unread message, newer pages with 9
+         int newest = Math.max(0, unread[input] - 10);
+         List<Storage.Message> messages = chatMessages(esql, chat, newest + 10);
+         if (unread[input] > 0) System.out.println(unread[input] + " unread messages");
+         int msg_num = DisplayTen(esql, messages, newest);
+         MarkRead(esql, chat, me, messages, newest);
+
+         //menu
+         boolean chatmenu = true;
+         while (chatmenu) {
+            // enough for the next page, a hot chat is read from memory
+            messages = chatMessages(esql, chat, msg_num + 10);
+            System.out.println();
+            System.out.println("----------CHAT MENU----------");
+            System.out.println("1: Display next 10 messages");
+            System.out.println("2: Add user to chat");
+            System.out.println("3: Remove user from chat");
+            System.out.println("4: Add message to chat");
+            System.out.println("5: Edit previous message");
+            System.out.println("6: Delete previous message");
+            System.out.println("7: Remove entire chat");
+            System.out.println("8: Export chat to a file");
+            System.out.println("9: Display newer messages");
+            System.out.println(".........................");
+            System.out.println("0: Exit chat viewer");
+            System.out.print("Enter choice: ");
+
+            switch(readChoice()) {
+               case 1: int shown = msg_num;
+                       msg_num = DisplayTen(esql, messages, msg_num);
+                       MarkRead(esql, chat, me, messages, shown);
+                       break;
+               case 2: AddUserToChat(esql, username, chat_num); break;
+               case 3: RemoveUserFromChat(esql, username, chat_num); break;
+               case 4: AddMessage(esql, username, chat_num);
+                       msg_num -= 10;
+                       if (msg_num < 0) msg_num = 0;
+                       break;
+               case 5: EditMessage(esql, username, chat_num); 
+                       msg_num -= 10;
+                       if (msg_num < 0) msg_num = 0;
+                       break;
+               case 6: DeleteMessage(esql, username, chat_num);
+                       msg_num -= 10;
+                       if (msg_num < 0) msg_num = 0;
+                       break;
+               case 7: if (DeleteChat(esql, username, chat_num)) chatmenu = false;
+                       break;
+               case 8: ExportChat(esql, chat_num); break;
+               case 9: if (newest == 0) {
+                          System.out.println("No newer messages");
+                          break;
+                       }
+                       newest = Math.max(0, newest - 10);
+                       DisplayTen(esql, messages.subList(0, Math.min(messages.size(), newest + 10)), newest);
+                       MarkRead(esql, chat, me, messages, newest);
+                       break;
+               case 0: chatmenu = false; break;
+               default: System.out.println("Unrecognized choice!"); break;
+            }//end switch
+         }
+         esql.store.flushReads();
+      }
+
+      catch(Exception e) {
+         System.out.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+      return;
+   }
+
+   /*
+    * Moves the read cursor to the newest message of the page starting at
+    * index, the write waits to be batched with the next ones
+    **/
+   static void MarkRead(Messenger esql, int chat, int me, List<Storage.Message> messages, int index) {
+      if (index >= messages.size() || messages.get(index).id == Outbox.PENDING) return;
+      try {
+         esql.store.markRead(chat, me, messages.get(index).id);
+      }
+      catch (SQLException e) {
+         // kept and written with the next batch
+      }
+   }
+
+   /*
+    * Orders chats by the time of their newest message, newest first,
+    * chats without messages last
+    **/
+   static void sortByActivity(Storage.ChatSummary[] summaries) {
+      Arrays.sort(summaries, new Comparator<Storage.ChatSummary>() {
+         public int compare(Storage.ChatSummary a, Storage.ChatSummary b) {
+            if (a.lastActivity == null || b.lastActivity == null) {
+               if (a.lastActivity != b.lastActivity) return a.lastActivity == null ? 1 : -1;
+               return Integer.compare(b.chat, a.chat);
+            }
+            // same timestamp format on both sides, compares as text
+            int c = b.lastActivity.compareTo(a.lastActivity);
+            return c != 0 ? c : Integer.compare(b.chat, a.chat);
+         }
+      });
+   }
+
+   /*
+    * Returns the newest messages of a chat, newest first, after the ones
+    * of this session still waiting in the outbox
+    **/
+   static List<Storage.Message> chatMessages(Messenger esql, int chat, int limit) throws SQLException {
+      // pending first: a message sent in between shows twice, not never
+      List<Storage.Message> pending = esql.outbox == null ? null : esql.outbox.pending(chat);
+      List<Storage.Message> messages = new ArrayList<Storage.Message>();
+      if (pending != null) {
+         for (int i = pending.size() - 1; i >= 0; i--)
+            messages.add(pending.get(i));
+      }
+      messages.addAll(esql.store.recentMessages(chat, limit));
+      return messages;
+   }
+
+   /*
+    * Shows initial sender, timestamp, message id, and message content
+    * of specified message
+    **/ 
+   public static void DisplayMessage(Messenger esql, int chat, int id) {
+      Screen screen = new Screen();
+      DisplayMessage(esql, chat, id, screen);
+      screen.flush();
+   }
+
+   /*
+    * Shows a message on a screen that the caller flushes
+    **/ 
+   static void DisplayMessage(Messenger esql, int chat, int id, Screen screen) {
+      OpStats.begin("DisplayMessage");
+      try {
+         Storage.Message message = esql.store.message(chat, id);
+         if (message == null) {
+            screen.println("Not a valid message");
+            return;
+         }
+         printMessage(esql, message, screen);
+      }
+
+      catch (Exception e) {
+         screen.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+   /*
+    * Shows a message that was already read, or one still in the outbox
+    **/ 
+   public static void DisplayMessage(Messenger esql, Storage.Message message) {
+      Screen screen = new Screen();
+      DisplayMessage(esql, message, screen);
+      screen.flush();
+   }
+
+   static void DisplayMessage(Messenger esql, Storage.Message message, Screen screen) {
+      OpStats.begin("DisplayMessage");
+      try {
+         printMessage(esql, message, screen);
+      }
+
+      catch (Exception e) {
+         screen.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+
+      return;
+   }
+
+   private static void printMessage(Messenger esql, Storage.Message message, Screen screen) throws SQLException {
+      screen.print("Sender: ").println(Screen.display(esql.store.login(message.sender)));
+      screen.print("Time: ").println(message.time);
+      screen.print("Message ID: ").println(message.id == Outbox.PENDING ? "pending" : Integer.toString(message.id));
+      screen.println();
+      screen.println(Screen.display(message.text));
+      //System.out.println();
+   }
+
+   /*
+    * Displays next ten newest messages, 
+    * starting with message indicated by msg_num
+    * @return the updated starting message number
+    **/
+   public static int DisplayTen (Messenger esql, List<Storage.Message> messages, int msg_num) {
+      // the ten messages are written out together
+      Screen screen = new Screen();
+      try {
+         screen.println();
+         screen.println("-------------------------");
+         screen.println();
+         if (msg_num >= messages.size()) 
+            screen.println("No older messages");
+         for (; msg_num < msg_num + 10; msg_num++) {
+            if (msg_num >= messages.size()) {
+               return msg_num;
+            }
+            // shown as read, without a round trip per message
+            DisplayMessage(esql, messages.get(msg_num), screen);
+            screen.println("-------------------------");
+            screen.println();
+         }
+      }
+
+      catch (Exception e) {
+         screen.println(e.getMessage());
+      }
+      finally {
+         screen.flush();
+      }
+      return msg_num;
+   }
+
+   /*
+    * Allows creator of chat to add new user
+    **/
+   public static void AddUserToChat (Messenger esql, String username, String chat_num) {
+      int chat = Integer.parseInt(chat_num.trim());
+      OpStats.begin("AddUserToChat");
+      try {
+         if (!esql.store.isOwner(chat, esql.store.userId(username))) {
+            System.out.println("Only the owner of a chat can add users");
+            return;
+         }
+         System.out.print("Enter user to add: ");
+         String userToAdd = readLine();
+         int member = esql.store.userId(userToAdd);
+         if (member == UserDirectory.UNKNOWN) {
+            System.out.println("User <" + userToAdd + "> does not exist");
+            return;
+         }
+         esql.store.addMember(chat, member);
+         System.out.println("User added");
+      }
+      
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+      return;
+   }
+
+   /*
+    * Allows creator of chat to remove user
+    **/
+   public static void RemoveUserFromChat (Messenger esql, String name, String num) {
+      int chat = Integer.parseInt(num.trim());
+      OpStats.begin("RemoveUserFromChat");
+      try {
+         if (!esql.store.isOwner(chat, esql.store.userId(name))) {
+            System.out.println("Only the owner of a chat can remove users");
+            return;
+         }
+         System.out.print("Enter user to remove: ");
+         String userToRemove = readLine();
+         esql.store.removeMember(chat, esql.store.userId(userToRemove));
+         System.out.println("User removed");
+      }
+      
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+      return;
+   }
+
+   /*
+    * User can write new message for a chat
+    **/
+   public static void AddMessage (Messenger esql, String name, String num) {
+      OpStats.begin("AddMessage");
+      try {
+         int self = esql.store.userId(name);
+         int chat = Integer.parseInt(num.trim());
+         boolean member;
+         try {
+            member = esql.store.isMember(chat, self);
+         }
+         catch (SQLException e) {
+            if (esql.outbox == null) throw e;
+            // checked again when the outbox sends the message
+            member = true;
+         }
+         if (!member) {
+            System.out.println("Only members of a chat can send messages to it");
+            return;
+         }
+         System.out.println("Enter message(300 characters)");
+         String message = readLine();
+         if (message.length() > 300) {
+            System.out.println("Message too long");
+            return;
+         }
+
+         if (esql.outbox != null)
+            esql.outbox.addMessage(chat, self, message);
+         else
+            esql.store.addMessage(chat, self, message, null, null);
+
+         System.out.println();
+         System.out.println("...Message sent");
+         if (esql.outbox != null && esql.outbox.isFailing())
+            System.out.println("(database unavailable, it will be delivered when it is back)");
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+      return;
+   }
+
+   /*
+    * User can edit a previously written message
+    **/
+   public static void EditMessage (Messenger esql, String name, String num) {
+      OpStats.begin("EditMessage");
+      try {
+         System.out.print("Enter message number: ");
+         int msg_num = Integer.parseInt(readLine().trim());
+         int self = esql.store.userId(name);
+         int chat = Integer.parseInt(num.trim());
+         if (!esql.store.isMember(chat, self)) {
+            System.out.println("Not a valid message");
+            return;
+         }
+
+         System.out.println("Enter new message(300 characters)");
+         String message = readLine();
+         if (message.length() > 300) {
+            System.out.println("Message too long");
+            return;
+         }
+
+         if (!esql.store.editMessage(chat, msg_num, self, message)) {
+            System.out.println("Not a valid message");
+            return;
+         }
+         System.out.println();
+         System.out.println("...Edit complete");
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+   /*
+    * User can delete a previously written message
+    **/
+   public static void DeleteMessage (Messenger esql, String name, String num) {
+      OpStats.begin("DeleteMessage");
+      try {
+         System.out.print("Enter message number: ");
+         int msg_num = Integer.parseInt(readLine().trim());
+         int self = esql.store.userId(name);
+         int chat = Integer.parseInt(num.trim());
+         if (!esql.store.isMember(chat, self)) {
+            System.out.println("Not a valid message");
+            return;
+         }
+
+         if (!esql.store.deleteMessage(chat, msg_num, self)) {
+            System.out.println("Not a valid message");
+            return;
+         }
+         System.out.println();
+         System.out.println("...Message deleted");
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+   /*
+    * Owner of chat can delete entire chat, along with all associated messages
+    * The chat disappears at once, its messages are purged in the background
+    * Returns true if the chat was deleted
+    **/
+   public static boolean DeleteChat (Messenger esql, String name, String num) {
+      OpStats.begin("DeleteChat");
+      try {
+         System.out.print("Delete entire chat and all associated messages? (y/n): ");
+         if (!readLine().trim().equalsIgnoreCase("y")) {
+            return false;
+         }
+         int chat = Integer.parseInt(num.trim());
+         if (!esql.store.isOwner(chat, esql.store.userId(name))) {
+            System.out.println("Only the owner can remove a chat");
+            return false;
+         }
+
+         esql.store.deleteChat(chat);
+         if (esql.purger != null) esql.purger.wake();
+         System.out.println();
+         System.out.println("...Chat deleted");
+         return true;
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return false;
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+
+
+   /*
+    * Writes the whole chat to a file, streamed from the database
+    * .csv or .csv.gz for CSV, JSON lines otherwise, .gz compresses
+    **/
+   public static void ExportChat (Messenger esql, String num) {
+      OpStats.begin("ExportChat");
+      try {
+         System.out.print("Export to file (e.g. chat.jsonl.gz): ");
+         String name = readLine().trim();
+         if (name.length() == 0) {
+            return;
+         }
+         ChatExport export = new ChatExport(esql.store, new File(name));
+         try {
+            export.chat(Integer.parseInt(num.trim()));
+         }
+         finally {
+            export.close();
+         }
+         System.out.println();
+         System.out.println("...Chat exported: " + export.summary());
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+   /*
+    * Deletes the account of the logged in user, with the chats it owns,
+    * its messages and its lists
+    * The account is gone at once, its rows are purged in the background
+    * Returns true if the account was deleted
+    **/
+   public static boolean DeleteOwnAccount (Messenger esql, String name) {
+      OpStats.begin("DeleteOwnAccount");
+      try {
+         System.out.print("Delete your account, your chats and all your messages? (y/n): ");
+         if (!readLine().trim().equalsIgnoreCase("y")) {
+            return false;
+         }
+
+         esql.store.deleteUser(esql.store.userId(name));
+         if (esql.purger != null) esql.purger.wake();
+         System.out.println();
+         System.out.println("...Account deleted");
+         return true;
+      }
+
+      catch (Exception e) {
+         System.out.println(e.getMessage());
+         return false;
+      }
+      finally {
+         OpStats.end();
+      }
+   }
+
+   /*
+    * Shows the analytics reports: most active users, largest chats,
+    * messages per hour, contacts per user and block rates
+    * The message summaries are brought up to date first
+    **/
+   public static void Query6(Messenger esql){
+      OpStats.begin("Query6");
+      Reports reports = null;
+      Screen screen = new Screen();
+      try {
+         reports = esql.reports();
+         if (reports == null) {
+            System.out.println("Reports need a database");
+            return;
+         }
+         reports.refresh(false);
+         for (Reports.Report report : Reports.Report.values()) {
+            reports.run(report, screen);
+         }
+      }
+
+      catch (Exception e) {
+         screen.flush();
+         System.out.println(e.getMessage());
+      }
+      finally {
+         screen.flush();
+         if (reports != null) reports.close();
+         OpStats.end();
+      }
+   }//end Query6
+
+}//end Messenger
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
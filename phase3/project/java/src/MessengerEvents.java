@@ -0,0 +1,95 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events emitted by Messenger.
+ *
+ * An Operation event spans one top-level action (CreateUser, LogIn,
+ * AddMessage, ...) and a Jdbc event spans one round trip to the DBMS, so
+ * a recording taken with -XX:StartFlightRecording shows which menu action
+ * drove the database work.  Events are only allocated while a recording
+ * has them enabled.
+ *
+ * Unlike the OpStats histograms, the duration of an Operation event also
+ * covers any prompt the action waited on; the Jdbc events nested in it
+ * show the time spent in the database.
+ *
+ */
+class MessengerEvents {
+
+   private static final EventType operationType = EventType.getEventType(Operation.class);
+   private static final EventType jdbcType = EventType.getEventType(Jdbc.class);
+
+   @Name("messenger.Operation")
+   @Label("Messenger Operation")
+   @Category({"Messenger"})
+   @Description("A top-level Messenger action, including the JDBC calls it made")
+   static class Operation extends Event {
+      @Label("Operation")
+      String operation;
+
+      @Label("Round Trips")
+      int roundTrips;
+
+      @Label("Rows")
+      @Description("Rows returned or affected by all statements of the operation")
+      long rows;
+
+      @Label("Bytes Fetched")
+      @DataAmount
+      long bytes;
+
+      @Label("Failed Statements")
+      int errors;
+   }//end Operation
+
+   @Name("messenger.Jdbc")
+   @Label("Messenger JDBC Call")
+   @Category({"Messenger"})
+   @Description("One statement sent to the DBMS")
+   static class Jdbc extends Event {
+      @Label("Operation")
+      String operation;
+
+      @Label("SQL Template")
+      String sql;
+
+      @Label("Rows")
+      @Description("Rows returned or affected")
+      long rows;
+
+      @Label("Bytes Fetched")
+      @DataAmount
+      long bytes;
+
+      @Label("SQL State")
+      String sqlState;
+   }//end Jdbc
+
+   /**
+    * Starts an Operation event, or returns null if nobody records them.
+    */
+   static Operation beginOperation(String op) {
+      if (!operationType.isEnabled()) return null;
+      Operation ev = new Operation();
+      ev.operation = op;
+      ev.begin();
+      return ev;
+   }//end beginOperation
+
+   /**
+    * Starts a Jdbc event, or returns null if nobody records them.
+    */
+   static Jdbc beginJdbc() {
+      if (!jdbcType.isEnabled()) return null;
+      Jdbc ev = new Jdbc();
+      ev.begin();
+      return ev;
+   }//end beginJdbc
+
+}//end MessengerEvents
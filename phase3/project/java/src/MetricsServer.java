@@ -0,0 +1,213 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP endpoint exporting the OpStats counters and JVM state in
+ * the Prometheus text format.
+ *
+ * The server only listens on the loopback interface and is off unless
+ * -Dmessenger.metrics.port=<port> is given.  All counters are process
+ * wide, so one endpoint covers every session running in the JVM.  The
+ * text is rendered when scraped; nothing is done on the hot path beyond
+ * the atomic updates OpStats already makes.
+ *
+ */
+class MetricsServer {
+
+   // histogram bucket boundaries exported for operation latencies, in seconds
+   private static final double[] BOUNDS = {
+      0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+   };
+   private static final String[] BOUND_LABELS = {
+      "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+   };
+
+   private static HttpServer server = null;
+   private static ExecutorService executor = null;
+
+   /**
+    * Starts the endpoint if messenger.metrics.port is set.
+    */
+   public static synchronized void startFromProperties() {
+      Integer port = Integer.getInteger("messenger.metrics.port");
+      if (port == null || server != null) return;
+      try {
+         server = HttpServer.create(
+               new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+         server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+               byte[] body = render().getBytes("UTF-8");
+               exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+               exchange.sendResponseHeaders(200, body.length);
+               OutputStream out = exchange.getResponseBody();
+               out.write(body);
+               out.close();
+            }
+         });
+         executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "metrics-http");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+         server.setExecutor(executor);
+         server.start();
+         System.out.println("Metrics on http://localhost:" + port + "/metrics");
+      }catch (IOException e) {
+         System.err.println("Metrics endpoint not started: " + e.getMessage());
+         server = null;
+      }//end try
+   }//end startFromProperties
+
+   /**
+    * Stops the endpoint if it is running.
+    */
+   public static synchronized void stop() {
+      if (server == null) return;
+      server.stop(0);
+      executor.shutdownNow();
+      server = null;
+      executor = null;
+   }//end stop
+
+   /**
+    * Renders every metric in the Prometheus text exposition format.
+    */
+   static String render() {
+      StringBuilder sb = new StringBuilder(8192);
+
+      Map<String, OpStats.Counters> ops = new TreeMap<String, OpStats.Counters>();
+      for (OpStats.Counters c : OpStats.operations()) {
+         ops.put(c.name, c);
+      }//end for
+      header(sb, "messenger_operations_total", "counter", "Completed operations by type");
+      for (OpStats.Counters c : ops.values()) {
+         sample(sb, "messenger_operations_total", "op", c.name, c.latency.count());
+      }//end for
+      header(sb, "messenger_operation_errors_total", "counter", "Failed statements by operation");
+      for (OpStats.Counters c : ops.values()) {
+         sample(sb, "messenger_operation_errors_total", "op", c.name, c.errors.get());
+      }//end for
+      header(sb, "messenger_operation_round_trips_total", "counter", "Statements sent by operation");
+      for (OpStats.Counters c : ops.values()) {
+         sample(sb, "messenger_operation_round_trips_total", "op", c.name, c.roundTrips.get());
+      }//end for
+      header(sb, "messenger_operation_over_budget_total", "counter", "Statements stopped by the latency budget of their operation");
+      for (OpStats.Counters c : ops.values()) {
+         sample(sb, "messenger_operation_over_budget_total", "op", c.name, c.overBudget.get());
+      }//end for
+
+      header(sb, "messenger_operation_duration_seconds", "histogram",
+            "Operation latency excluding keyboard input");
+      for (OpStats.Counters c : ops.values()) {
+         histogram(sb, "messenger_operation_duration_seconds", c.name, c.latency);
+      }//end for
+
+      counter(sb, "messenger_db_round_trips_total", "Statements sent to the DBMS", OpStats.roundTrips.get());
+      counter(sb, "messenger_db_rows_fetched_total", "Rows returned by queries", OpStats.rowsFetched.get());
+      counter(sb, "messenger_db_rows_affected_total", "Rows changed by updates", OpStats.rowsAffected.get());
+      counter(sb, "messenger_db_bytes_fetched_total", "Characters fetched from result sets", OpStats.bytesFetched.get());
+      counter(sb, "messenger_db_commits_total", "Committed updates", OpStats.commits.get());
+      counter(sb, "messenger_db_reconnects_total", "Connections made again after one was lost", OpStats.reconnects.get());
+      counter(sb, "messenger_db_breaker_opened_total", "Times the circuit breaker stopped connecting", Messenger.breaker.timesOpened());
+
+      header(sb, "messenger_db_errors_total", "counter", "Failed statements by SQLState");
+      Map<String, AtomicLong> errors = new TreeMap<String, AtomicLong>(OpStats.errorsByState);
+      for (Map.Entry<String, AtomicLong> e : errors.entrySet()) {
+         sample(sb, "messenger_db_errors_total", "sqlstate", e.getKey(), e.getValue().get());
+      }//end for
+
+      gauge(sb, "messenger_db_connections_open", "Open physical connections", OpStats.openConnections.get());
+      gauge(sb, "messenger_db_statements_in_flight", "Statements waiting on the DBMS", OpStats.inFlight.get());
+      counter(sb, "messenger_recent_cache_hits_total", "Chat pages served from the recent message cache", PgStorage.recent.hits());
+      counter(sb, "messenger_recent_cache_misses_total", "Chat pages read from the database", PgStorage.recent.misses());
+      counter(sb, "messenger_recent_cache_evictions_total", "Chats evicted from the recent message cache", PgStorage.recent.evictions());
+      gauge(sb, "messenger_recent_cache_chats", "Chats in the recent message cache", PgStorage.recent.chats());
+      gauge(sb, "messenger_recent_cache_messages", "Messages in the recent message cache", PgStorage.recent.messages());
+      gauge(sb, "messenger_recent_cache_bytes", "Estimated heap held by the recent message cache", PgStorage.recent.bytes());
+      gauge(sb, "messenger_db_breaker_open", "1 while the circuit breaker fails requests without connecting", Messenger.breaker.isOpen() ? 1 : 0);
+
+      MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+      MemoryUsage heap = memory.getHeapMemoryUsage();
+      MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+      header(sb, "jvm_memory_used_bytes", "gauge", "Used JVM memory by area");
+      sample(sb, "jvm_memory_used_bytes", "area", "heap", heap.getUsed());
+      sample(sb, "jvm_memory_used_bytes", "area", "nonheap", nonHeap.getUsed());
+      header(sb, "jvm_memory_committed_bytes", "gauge", "Committed JVM memory by area");
+      sample(sb, "jvm_memory_committed_bytes", "area", "heap", heap.getCommitted());
+      sample(sb, "jvm_memory_committed_bytes", "area", "nonheap", nonHeap.getCommitted());
+      gauge(sb, "jvm_memory_heap_max_bytes", "Maximum heap size", heap.getMax());
+
+      header(sb, "jvm_gc_collections_total", "counter", "Garbage collections by collector");
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         sample(sb, "jvm_gc_collections_total", "gc", gc.getName(), gc.getCollectionCount());
+      }//end for
+      header(sb, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection");
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         sb.append("jvm_gc_collection_seconds_total{gc=\"").append(escape(gc.getName()))
+           .append("\"} ").append(gc.getCollectionTime() / 1000.0).append('\n');
+      }//end for
+      gauge(sb, "jvm_threads_live", "Live JVM threads", ManagementFactory.getThreadMXBean().getThreadCount());
+      return sb.toString();
+   }//end render
+
+   private static void histogram(StringBuilder sb, String name, String op, LatencyHistogram h) {
+      int bucket = 0;
+      long cumulative = 0;
+      for (int i = 0; i < BOUNDS.length; i++) {
+         long limit = (long) (BOUNDS[i] * 1000000.0);
+         while (bucket < LatencyHistogram.BUCKETS && LatencyHistogram.upperBound(bucket) <= limit) {
+            cumulative += h.bucketCount(bucket++);
+         }//end while
+         sb.append(name).append("_bucket{op=\"").append(escape(op)).append("\",le=\"")
+           .append(BOUND_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+      }//end for
+      sb.append(name).append("_bucket{op=\"").append(escape(op)).append("\",le=\"+Inf\"} ")
+        .append(h.count()).append('\n');
+      sb.append(name).append("_sum{op=\"").append(escape(op)).append("\"} ")
+        .append(h.sumMicros() / 1000000.0).append('\n');
+      sb.append(name).append("_count{op=\"").append(escape(op)).append("\"} ")
+        .append(h.count()).append('\n');
+   }//end histogram
+
+   private static void header(StringBuilder sb, String name, String type, String help) {
+      sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+   }
+
+   private static void counter(StringBuilder sb, String name, String help, long value) {
+      header(sb, name, "counter", help);
+      sb.append(name).append(' ').append(value).append('\n');
+   }
+
+   private static void gauge(StringBuilder sb, String name, String help, long value) {
+      header(sb, name, "gauge", help);
+      sb.append(name).append(' ').append(value).append('\n');
+   }
+
+   private static void sample(StringBuilder sb, String name, String label, String value, long n) {
+      sb.append(name).append('{').append(label).append("=\"").append(escape(value))
+        .append("\"} ").append(n).append('\n');
+   }
+
+   private static String escape(String s) {
+      return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+   }
+
+}//end MetricsServer
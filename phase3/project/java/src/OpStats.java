@@ -0,0 +1,529 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Instrumentation for the Messenger SQL helpers.
+ *
+ * Keeps one latency histogram per logical operation (AddMessage, LogIn,
+ * ...) and one per SQL template, where a template is the statement text
+ * with its string and number literals replaced by '?'.  Statements slower
+ * than the slow-query threshold are written to the slow-query log.
+ *
+ * The hot path is lock-free and does not allocate once an operation or
+ * template has been seen: operation histograms live in a concurrent map
+ * keyed by the (interned) operation name, templates are looked up by a
+ * hash computed straight from the statement text.
+ *
+ * Operations and statements are also reported as Flight Recorder events
+ * (see MessengerEvents) while a recording has them enabled.
+ *
+ * Settings (system properties):
+ *    messenger.slowQueryMs   slow-query threshold in ms (default 250)
+ *    messenger.slowQueryLog  file to append slow queries to (default stderr);
+ *                            failed statements are logged there too, but
+ *                            to stderr only when they were also slow, as
+ *                            the caller already reports the error
+ *    messenger.stats         print the latency summary on exit (true/false)
+ *
+ */
+class OpStats {
+
+   // operation reported for statements issued outside any operation
+   static final String NO_OP = "-";
+
+   private static final int TEMPLATE_SLOTS = 1024;
+   private static final int MAX_DEPTH = 16;
+
+   private static final long slowMicros =
+         Long.getLong("messenger.slowQueryMs", 250L) * 1000L;
+   private static final boolean slowLogFile = System.getProperty("messenger.slowQueryLog") != null;
+   private static final PrintStream slowLog = openSlowLog();
+
+   private static final ConcurrentHashMap<String, Counters> ops =
+         new ConcurrentHashMap<String, Counters>();
+
+   // open addressing table of SQL templates, keyed by template hash
+   private static final AtomicLongArray templateKeys = new AtomicLongArray(TEMPLATE_SLOTS);
+   private static final AtomicReferenceArray<Counters> templates =
+         new AtomicReferenceArray<Counters>(TEMPLATE_SLOTS);
+   private static final Counters otherTemplates = new Counters("<other>");
+
+   // process wide totals, exported by MetricsServer
+   static final AtomicLong roundTrips = new AtomicLong();
+   static final AtomicLong rowsFetched = new AtomicLong();
+   static final AtomicLong rowsAffected = new AtomicLong();
+   static final AtomicLong bytesFetched = new AtomicLong();
+   static final AtomicLong commits = new AtomicLong();
+   static final AtomicLong reconnects = new AtomicLong();
+   static final AtomicInteger inFlight = new AtomicInteger();
+   static final AtomicInteger openConnections = new AtomicInteger();
+   static final ConcurrentHashMap<String, AtomicLong> errorsByState =
+         new ConcurrentHashMap<String, AtomicLong>();
+
+   // operation stack of the calling thread
+   private static final ThreadLocal<OpContext> context = new ThreadLocal<OpContext>() {
+      protected OpContext initialValue() {
+         return new OpContext();
+      }
+   };
+
+   /**
+    * Latency histogram plus error counter of an operation or template.
+    */
+   static class Counters {
+      final String name;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong roundTrips = new AtomicLong();
+      // runs stopped by their latency budget, see Watchdog
+      final AtomicLong overBudget = new AtomicLong();
+
+      Counters(String name) {
+         this.name = name;
+      }
+   }//end Counters
+
+   /**
+    * Per-thread stack of running operations.
+    */
+   static class OpContext {
+      final String[] names = new String[MAX_DEPTH];
+      final long[] starts = new long[MAX_DEPTH];
+      final MessengerEvents.Operation[] events = new MessengerEvents.Operation[MAX_DEPTH];
+      final int[] roundTrips = new int[MAX_DEPTH];
+      final long[] rows = new long[MAX_DEPTH];
+      final long[] bytes = new long[MAX_DEPTH];
+      final int[] errors = new int[MAX_DEPTH];
+      int depth = 0;
+      long pausedAt = 0;
+
+      // Flight Recorder event of the statement in flight, if recorded
+      MessengerEvents.Jdbc jdbc;
+
+      String current() {
+         return depth == 0 ? NO_OP : names[Math.min(depth, MAX_DEPTH) - 1];
+      }
+   }//end OpContext
+
+   /**
+    * Marks the start of a logical operation on the calling thread.  Every
+    * call must be paired with end() in a finally block.
+    *
+    * @param op the operation name, a string constant
+    */
+   public static void begin(String op) {
+      OpContext ctx = context.get();
+      if (ctx.depth < MAX_DEPTH) {
+         int d = ctx.depth;
+         ctx.names[d] = op;
+         ctx.roundTrips[d] = 0;
+         ctx.rows[d] = 0;
+         ctx.bytes[d] = 0;
+         ctx.errors[d] = 0;
+         ctx.events[d] = MessengerEvents.beginOperation(op);
+         ctx.starts[d] = System.nanoTime();
+      }//end if
+      ctx.depth++;
+   }//end begin
+
+   /**
+    * Marks the end of the innermost running operation and records its
+    * latency.
+    */
+   public static void end() {
+      OpContext ctx = context.get();
+      if (ctx.depth == 0) return;
+      ctx.depth--;
+      if (ctx.depth >= MAX_DEPTH) return;
+      int d = ctx.depth;
+      long micros = (System.nanoTime() - ctx.starts[d]) / 1000L;
+      countersFor(ctx.names[d]).latency.record(micros);
+      MessengerEvents.Operation ev = ctx.events[d];
+      if (ev != null) {
+         ev.end();
+         if (ev.shouldCommit()) {
+            ev.roundTrips = ctx.roundTrips[d];
+            ev.rows = ctx.rows[d];
+            ev.bytes = ctx.bytes[d];
+            ev.errors = ctx.errors[d];
+            ev.commit();
+         }//end if
+         ctx.events[d] = null;
+      }//end if
+      ctx.names[d] = null;
+   }//end end
+
+   /**
+    * Stops the clock of every running operation on the calling thread,
+    * e.g. while waiting for keyboard input.
+    */
+   public static void pause() {
+      context.get().pausedAt = System.nanoTime();
+   }
+
+   /**
+    * Restarts the clocks stopped by pause().
+    */
+   public static void resume() {
+      OpContext ctx = context.get();
+      if (ctx.pausedAt == 0) return;
+      long idle = System.nanoTime() - ctx.pausedAt;
+      int depth = Math.min(ctx.depth, MAX_DEPTH);
+      for (int i = 0; i < depth; i++) {
+         ctx.starts[i] += idle;
+      }//end for
+      ctx.pausedAt = 0;
+   }//end resume
+
+   /**
+    * Returns the operation running on the calling thread.
+    */
+   public static String currentOp() {
+      return context.get().current();
+   }
+
+   /**
+    * Returns how long the operation running on the calling thread has
+    * been running, without keyboard input, or 0 outside any operation.
+    */
+   public static long currentElapsedMillis() {
+      OpContext ctx = context.get();
+      if (ctx.depth == 0 || ctx.depth > MAX_DEPTH) return 0;
+      long now = ctx.pausedAt != 0 ? ctx.pausedAt : System.nanoTime();
+      return (now - ctx.starts[ctx.depth - 1]) / 1000000L;
+   }//end currentElapsedMillis
+
+   /**
+    * Counts a statement of the running operation that was stopped for
+    * exceeding the operation's latency budget.
+    */
+   public static void overBudget() {
+      countersFor(currentOp()).overBudget.incrementAndGet();
+   }
+
+   /**
+    * Marks the start of a SQL statement.
+    *
+    * @return the start time to hand to sqlDone() or sqlFailed()
+    */
+   public static long sqlStart() {
+      context.get().jdbc = MessengerEvents.beginJdbc();
+      inFlight.incrementAndGet();
+      return System.nanoTime();
+   }//end sqlStart
+
+   /**
+    * Records a finished query.
+    *
+    * @param sql the statement text
+    * @param rows rows returned
+    * @param bytes characters fetched from the result set
+    * @param startNanos the value returned by sqlStart()
+    */
+   public static void sqlDone(String sql, int rows, long bytes, long startNanos) {
+      rowsFetched.addAndGet(rows);
+      bytesFetched.addAndGet(bytes);
+      done(sql, rows, bytes, startNanos);
+   }//end sqlDone
+
+   /**
+    * Records a finished (auto-committed) update.
+    *
+    * @param sql the statement text
+    * @param rows rows affected
+    * @param startNanos the value returned by sqlStart()
+    */
+   public static void updateDone(String sql, int rows, long startNanos) {
+      rowsAffected.addAndGet(rows);
+      commits.incrementAndGet();
+      done(sql, rows, 0, startNanos);
+   }//end updateDone
+
+   private static void done(String sql, int rows, long bytes, long startNanos) {
+      long micros = (System.nanoTime() - startNanos) / 1000L;
+      inFlight.decrementAndGet();
+      roundTrips.incrementAndGet();
+      Counters t = templateFor(sql);
+      t.latency.record(micros);
+      t.rows.addAndGet(rows);
+      OpContext ctx = context.get();
+      countersFor(ctx.current()).roundTrips.incrementAndGet();
+      chargeOperations(ctx, rows, bytes, 0);
+      commitJdbc(ctx, sql, rows, bytes, null);
+      if (micros >= slowMicros) {
+         logSlow(sql, rows, micros);
+      }//end if
+   }//end done
+
+   /**
+    * Records a failed SQL statement against its template and the running
+    * operation, and writes it to the slow-query log.
+    */
+   public static void sqlFailed(String sql, SQLException e, long startNanos) {
+      long micros = (System.nanoTime() - startNanos) / 1000L;
+      inFlight.decrementAndGet();
+      roundTrips.incrementAndGet();
+      templateFor(sql).errors.incrementAndGet();
+      Counters op = countersFor(currentOp());
+      op.errors.incrementAndGet();
+      op.roundTrips.incrementAndGet();
+      errorCounter(e.getSQLState()).incrementAndGet();
+      OpContext ctx = context.get();
+      chargeOperations(ctx, 0, 0, 1);
+      commitJdbc(ctx, sql, 0, 0, e.getSQLState());
+      if (!slowLogFile && micros < slowMicros) return;
+      slowLog.println(String.format("ERROR op=%s ms=%.3f binds=%d state=%s sql=%s msg=%s",
+            currentOp(), micros / 1000.0, countLiterals(sql), e.getSQLState(),
+            template(sql), e.getMessage()));
+   }//end sqlFailed
+
+   /**
+    * Adds a statement to the totals of every running operation, nested
+    * operations are included in the ones enclosing them.
+    */
+   private static void chargeOperations(OpContext ctx, int rows, long bytes, int errors) {
+      int depth = Math.min(ctx.depth, MAX_DEPTH);
+      for (int i = 0; i < depth; i++) {
+         ctx.roundTrips[i]++;
+         ctx.rows[i] += rows;
+         ctx.bytes[i] += bytes;
+         ctx.errors[i] += errors;
+      }//end for
+   }//end chargeOperations
+
+   private static void commitJdbc(OpContext ctx, String sql, int rows, long bytes, String sqlState) {
+      MessengerEvents.Jdbc ev = ctx.jdbc;
+      if (ev == null) return;
+      ctx.jdbc = null;
+      ev.end();
+      if (ev.shouldCommit()) {
+         ev.operation = ctx.current();
+         ev.sql = template(sql);
+         ev.rows = rows;
+         ev.bytes = bytes;
+         ev.sqlState = sqlState;
+         ev.commit();
+      }//end if
+   }//end commitJdbc
+
+   private static void logSlow(String sql, int rows, long micros) {
+      slowLog.println(String.format("SLOW op=%s ms=%.3f rows=%d binds=%d sql=%s",
+            currentOp(), micros / 1000.0, rows, countLiterals(sql), template(sql)));
+   }//end logSlow
+
+   private static AtomicLong errorCounter(String sqlState) {
+      String key = sqlState == null ? "unknown" : sqlState;
+      AtomicLong c = errorsByState.get(key);
+      if (c == null) {
+         AtomicLong fresh = new AtomicLong();
+         c = errorsByState.putIfAbsent(key, fresh);
+         if (c == null) c = fresh;
+      }//end if
+      return c;
+   }//end errorCounter
+
+   /**
+    * Returns the counters of every operation seen so far.
+    */
+   static Collection<Counters> operations() {
+      return ops.values();
+   }
+
+   private static Counters countersFor(String op) {
+      Counters c = ops.get(op);
+      if (c == null) {
+         Counters fresh = new Counters(op);
+         c = ops.putIfAbsent(op, fresh);
+         if (c == null) c = fresh;
+      }//end if
+      return c;
+   }//end countersFor
+
+   private static Counters templateFor(String sql) {
+      long h = templateHash(sql);
+      int mask = TEMPLATE_SLOTS - 1;
+      int slot = (int) (h ^ (h >>> 32)) & mask;
+      for (int probe = 0; probe < TEMPLATE_SLOTS; probe++) {
+         int i = (slot + probe) & mask;
+         long key = templateKeys.get(i);
+         if (key == h) {
+            Counters c = templates.get(i);
+            // claimed by another thread that has not published it yet
+            return c != null ? c : otherTemplates;
+         }//end if
+         if (key == 0 && templateKeys.compareAndSet(i, 0, h)) {
+            Counters c = new Counters(template(sql));
+            templates.set(i, c);
+            return c;
+         }//end if
+         if (key == 0) {
+            // lost the race for this slot, look at it again
+            probe--;
+         }//end if
+      }//end for
+      return otherTemplates;
+   }//end templateFor
+
+   /**
+    * Hashes the template of a statement (FNV-1a over the text with every
+    * literal collapsed to '?') without building the template string.
+    */
+   static long templateHash(String sql) {
+      long h = 0xcbf29ce484222325L;
+      int n = sql.length();
+      int i = 0;
+      while (i < n) {
+         char c = sql.charAt(i);
+         int skip = literalEnd(sql, i);
+         if (skip > i) {
+            c = '?';
+            i = skip;
+         }
+         else {
+            i++;
+         }//end if
+         h ^= c;
+         h *= 0x100000001b3L;
+      }//end while
+      return h == 0 ? 1 : h;
+   }//end templateHash
+
+   /**
+    * Returns the statement with every literal replaced by '?'.
+    */
+   static String template(String sql) {
+      StringBuilder sb = new StringBuilder(sql.length());
+      int n = sql.length();
+      int i = 0;
+      while (i < n) {
+         int skip = literalEnd(sql, i);
+         if (skip > i) {
+            sb.append('?');
+            i = skip;
+         }
+         else {
+            sb.append(sql.charAt(i++));
+         }//end if
+      }//end while
+      return sb.toString();
+   }//end template
+
+   /**
+    * Returns the number of literals (the would-be bind parameters) in a
+    * statement.  Explicit '?' placeholders are counted as well.
+    */
+   static int countLiterals(String sql) {
+      int count = 0;
+      int n = sql.length();
+      int i = 0;
+      while (i < n) {
+         int skip = literalEnd(sql, i);
+         if (skip > i) {
+            count++;
+            i = skip;
+         }
+         else {
+            if (sql.charAt(i) == '?') count++;
+            i++;
+         }//end if
+      }//end while
+      return count;
+   }//end countLiterals
+
+   /**
+    * If a string or number literal starts at position i returns the index
+    * just past it, otherwise returns i.
+    */
+   private static int literalEnd(String sql, int i) {
+      int n = sql.length();
+      char c = sql.charAt(i);
+      if (c == '\'') {
+         int j = i + 1;
+         while (j < n) {
+            if (sql.charAt(j) == '\'') {
+               // '' is an escaped quote inside the literal
+               if (j + 1 < n && sql.charAt(j + 1) == '\'') {
+                  j += 2;
+                  continue;
+               }
+               return j + 1;
+            }
+            j++;
+         }//end while
+         return n;
+      }//end if
+      if (c >= '0' && c <= '9') {
+         // digits that are part of an identifier (user_list2) are not literals
+         if (i > 0) {
+            char p = sql.charAt(i - 1);
+            if (Character.isLetterOrDigit(p) || p == '_') return i;
+         }
+         int j = i + 1;
+         while (j < n && (Character.isDigit(sql.charAt(j)) || sql.charAt(j) == '.')) j++;
+         return j;
+      }//end if
+      return i;
+   }//end literalEnd
+
+   /**
+    * Prints the latency summary of every operation and template.
+    */
+   public static void printSummary(PrintStream out) {
+      String header = String.format("%-40s %8s %9s %9s %9s %9s %9s",
+            "", "count", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms");
+      out.println();
+      out.println("OPERATIONS");
+      out.println(header);
+      Map<String, Counters> sorted = new TreeMap<String, Counters>(ops);
+      for (Counters c : sorted.values()) {
+         c.latency.printSummary(out, c.name);
+      }//end for
+      out.println();
+      out.println("SQL TEMPLATES");
+      out.println(header);
+      for (int i = 0; i < TEMPLATE_SLOTS; i++) {
+         Counters c = templates.get(i);
+         if (c != null) c.latency.printSummary(out, abbreviate(c.name));
+      }//end for
+      if (otherTemplates.latency.count() > 0) {
+         otherTemplates.latency.printSummary(out, otherTemplates.name);
+      }//end if
+      boolean first = true;
+      for (Counters c : sorted.values()) {
+         if (c.overBudget.get() == 0) continue;
+         if (first) {
+            out.println();
+            out.println("OVER BUDGET");
+            first = false;
+         }//end if
+         out.println(String.format("%-40s %8d", c.name, c.overBudget.get()));
+      }//end for
+   }//end printSummary
+
+   private static String abbreviate(String s) {
+      return s.length() <= 40 ? s : s.substring(0, 37) + "...";
+   }
+
+   private static PrintStream openSlowLog() {
+      String file = System.getProperty("messenger.slowQueryLog");
+      if (file == null) return System.err;
+      try {
+         return new PrintStream(new FileOutputStream(file, true), true);
+      }catch (IOException e) {
+         System.err.println("Cannot open slow query log " + file + ": " + e.getMessage());
+         return System.err;
+      }//end try
+   }//end openSlowLog
+
+}//end OpStats
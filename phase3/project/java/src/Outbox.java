@@ -0,0 +1,677 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead log for the messages and chats a session sends.
+ *
+ * AddMessage and NewChat only append to the log and wait until it is on
+ * disk, so sending does not depend on the database being up or fast.
+ * Appends from any number of threads are written and fsync'd together by
+ * one flusher thread (group commit).  A drainer thread with its own
+ * connection replays the entries in order and appends an acknowledgement
+ * for each; an entry that fails because the database is unreachable is
+ * retried with backoff.  One the database rejects is moved to the
+ * dead-letter file before it is acknowledged, and shown to its sender
+ * the next time a menu is drawn (see takeDeadLetters).  Every entry carries a unique key stored with the rows it
+ * creates (client_key), so an entry replayed twice, e.g. after a crash
+ * between the insert and the acknowledgement, is only applied once.
+ * Before an entry is acknowledged, and so stops being shown from the
+ * outbox, the sending session is told the WAL position of the write, so
+ * its next reads wait for a replica that has it (see ConnectionRouter).
+ *
+ * Entries not acknowledged when the session ends are replayed on the
+ * next start.  The log is emptied whenever everything in it has been
+ * acknowledged.  Records are framed with length and CRC, a torn record
+ * at the end of the log is cut off on start.
+ *
+ * The log is messenger-outbox.log in the working directory unless
+ * -Dmessenger.outbox=<file> says otherwise, -Dmessenger.outbox=off sends
+ * straight to the database.  The dead letters are kept next to it, in
+ * messenger-outbox.dead (<file>.dead for other names), until their
+ * sender has seen them.
+ *
+ */
+class Outbox {
+
+   // Storage.Message id of a message still waiting in the outbox
+   static final int PENDING = -1;
+
+   private static final byte MESSAGE = 1;
+   private static final byte CHAT = 2;
+   private static final byte ACK = 3;
+
+   private static final long MAX_BACKOFF_MILLIS = 30000L;
+   private static final long COMPACT_BYTES = 1L << 20;
+
+   /**
+    * One send waiting to be applied to the database.
+    */
+   static class Entry {
+      final byte kind;
+      final String key;
+      final int chat;
+      final int sender;
+      final String type;
+      final int[] members;
+      final String text;
+      final long time;
+
+      Entry(byte kind, String key, int chat, int sender, String type, int[] members, String text, long time) {
+         this.kind = kind;
+         this.key = key;
+         this.chat = chat;
+         this.sender = sender;
+         this.type = type;
+         this.members = members;
+         this.text = text;
+         this.time = time;
+      }
+   }//end Entry
+
+   /**
+    * A send the database rejected, with the reason it gave.
+    */
+   static class DeadLetter {
+      final Entry entry;
+      final String reason;
+
+      DeadLetter(Entry entry, String reason) {
+         this.entry = entry;
+         this.reason = reason;
+      }
+
+      int sender() {
+         return entry.sender;
+      }
+
+      // the chat a message was sent to, 0 for a new chat
+      int chat() {
+         return entry.chat;
+      }
+
+      // the text of the message, or the first message of a new chat; may be null
+      String text() {
+         return entry.text;
+      }
+   }//end DeadLetter
+
+   private final RandomAccessFile raf;
+   private final FileChannel channel;
+   private final FileLock lock;
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final String session;
+   private final File deadFile;
+   // the session whose reads must see the replayed entries, may be null
+   private final Messenger reader;
+   private long sequence = 0;
+
+   // guarded by this: group commit state
+   private final List<byte[]> buffer = new ArrayList<byte[]>();
+   private long appended = 0;
+   private long durable = 0;
+   private IOException failure = null;
+   private int logged = 0;
+   private int acked = 0;
+
+   // guarded by this: entries on disk, not yet applied
+   private final LinkedList<Entry> queue = new LinkedList<Entry>();
+   // guarded by this: rejected entries in the dead-letter file, not yet shown
+   private final List<DeadLetter> dead = new ArrayList<DeadLetter>();
+   private boolean failing = false;
+   private boolean stopped = false;
+
+   private Messenger target = null;
+   private final Thread flusher;
+   private final Thread drainer;
+
+   private Outbox(Messenger reader, File file, String url, String user, String passwd) throws IOException {
+      this.reader = reader;
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.raf = new RandomAccessFile(file, "rw");
+      this.channel = raf.getChannel();
+      this.lock = channel.tryLock();
+      if (lock == null) {
+         raf.close();
+         throw new IOException(file + " is used by another session");
+      }//end if
+      byte[] id = new byte[8];
+      new SecureRandom().nextBytes(id);
+      StringBuilder sb = new StringBuilder();
+      for (byte b : id) sb.append(String.format("%02x", b));
+      this.session = sb.toString();
+      String name = file.getName();
+      this.deadFile = new File(file.getAbsoluteFile().getParentFile(),
+            (name.endsWith(".log") ? name.substring(0, name.length() - 4) : name) + ".dead");
+      recover();
+      readDeadLetters();
+
+      flusher = new Thread(new Runnable() {
+         public void run() {
+            flushLoop();
+         }
+      }, "outbox-flusher");
+      flusher.setDaemon(true);
+      drainer = new Thread(new Runnable() {
+         public void run() {
+            drainLoop();
+         }
+      }, "outbox-drainer");
+      drainer.setDaemon(true);
+      flusher.start();
+      drainer.start();
+   }//end Outbox
+
+   /**
+    * Opens the outbox named by messenger.outbox and starts replaying it
+    * to the database at url.
+    *
+    * @param reader the session that reads what is sent through the outbox
+    * @return the outbox, or null if it is turned off or cannot be opened
+    */
+   public static Outbox fromProperties(Messenger reader, String url, String user, String passwd) {
+      String path = System.getProperty("messenger.outbox", "messenger-outbox.log");
+      if (path.equals("off")) return null;
+      try {
+         Outbox outbox = new Outbox(reader, new File(path), url, user, passwd);
+         if (outbox.backlog() > 0)
+            System.out.println(outbox.backlog() + " unsent messages found in " + path + ", sending them");
+         if (outbox.deadLetters() > 0)
+            System.out.println(outbox.deadLetters() + " rejected messages in " + outbox.deadFile + " are shown to their senders at login");
+         return outbox;
+      }catch (IOException e) {
+         System.err.println("Outbox not available, sending directly: " + e.getMessage());
+         return null;
+      }//end try
+   }//end fromProperties
+
+   // sending
+
+   /**
+    * Queues a message and returns once it is on disk.
+    */
+   public void addMessage(int chat, int sender, String text) throws IOException {
+      append(new Entry(MESSAGE, nextKey(), chat, sender, null, null, text, System.currentTimeMillis()));
+   }
+
+   /**
+    * Queues a new chat and its first message, text may be null.
+    */
+   public void createChat(String type, int owner, int[] members, String text) throws IOException {
+      append(new Entry(CHAT, nextKey(), 0, owner, type, members, text, System.currentTimeMillis()));
+   }
+
+   /**
+    * Returns true while the queued entries cannot be sent.
+    */
+   public synchronized boolean isFailing() {
+      return failing;
+   }
+
+   public synchronized int backlog() {
+      return queue.size();
+   }
+
+   /**
+    * Returns the queued messages of a chat as Storage messages with the
+    * PENDING id, oldest first.
+    */
+   public synchronized List<Storage.Message> pending(int chat) {
+      List<Storage.Message> messages = new ArrayList<Storage.Message>();
+      for (Entry e : queue) {
+         if (e.kind == MESSAGE && e.chat == chat) {
+            messages.add(new Storage.Message(PENDING, chat, e.sender, new Timestamp(e.time).toString(), e.text));
+         }//end if
+      }//end for
+      return messages;
+   }//end pending
+
+   public synchronized int deadLetters() {
+      return dead.size();
+   }
+
+   /**
+    * Hands over the rejected sends of a user and removes them from the
+    * dead-letter file, so each is shown once.
+    *
+    * @return the rejected sends, oldest first
+    */
+   public synchronized List<DeadLetter> takeDeadLetters(int sender) throws IOException {
+      List<DeadLetter> mine = new ArrayList<DeadLetter>();
+      List<DeadLetter> others = new ArrayList<DeadLetter>();
+      for (DeadLetter d : dead) {
+         if (d.sender() == sender) mine.add(d);
+         else others.add(d);
+      }//end for
+      if (mine.isEmpty()) return mine;
+      writeDeadLetters(others);
+      dead.clear();
+      dead.addAll(others);
+      return mine;
+   }//end takeDeadLetters
+
+   private synchronized String nextKey() {
+      return session + "-" + (++sequence);
+   }
+
+   private void append(Entry e) throws IOException {
+      byte[] record = encode(e);
+      synchronized (this) {
+         if (failure != null) throw failure;
+         buffer.add(record);
+         logged++;
+         long mine = ++appended;
+         notifyAll();
+         while (durable < mine && failure == null) {
+            try {
+               wait();
+            }catch (InterruptedException ie) {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while writing the outbox");
+            }//end try
+         }//end while
+         if (durable < mine) throw failure;
+         queue.add(e);
+         notifyAll();
+      }
+   }//end append
+
+   private synchronized void acknowledge(Entry e) {
+      if (queue.peek() == e) queue.removeFirst();
+      try {
+         buffer.add(encode(new Entry(ACK, e.key, 0, 0, null, null, null, 0)));
+      }catch (IOException ignored) {
+         // the entry is replayed once more after a restart, which is harmless
+      }//end try
+      appended++;
+      acked++;
+      notifyAll();
+   }//end acknowledge
+
+   // group commit
+
+   private void flushLoop() {
+      while (true) {
+         List<byte[]> batch;
+         long upTo;
+         synchronized (this) {
+            while (buffer.isEmpty() && !stopped) {
+               try {
+                  wait();
+               }catch (InterruptedException e) {
+                  return;
+               }//end try
+            }//end while
+            if (buffer.isEmpty()) return;
+            batch = new ArrayList<byte[]>(buffer);
+            buffer.clear();
+            upTo = appended;
+         }
+         try {
+            for (byte[] record : batch) {
+               ByteBuffer bb = ByteBuffer.wrap(record);
+               while (bb.hasRemaining()) channel.write(bb, channel.size());
+            }//end for
+            channel.force(false);
+            synchronized (this) {
+               durable = upTo;
+               if (acked == logged && buffer.isEmpty() && channel.size() > COMPACT_BYTES) {
+                  channel.truncate(0);
+                  channel.force(true);
+               }//end if
+               notifyAll();
+            }
+         }catch (IOException e) {
+            synchronized (this) {
+               failure = e;
+               notifyAll();
+            }
+            System.err.println("Outbox write failed: " + e.getMessage());
+            return;
+         }//end try
+      }//end while
+   }//end flushLoop
+
+   // replay
+
+   private void drainLoop() {
+      long backoff = 500;
+      while (true) {
+         Entry e;
+         synchronized (this) {
+            while (queue.isEmpty() && !stopped) {
+               try {
+                  wait();
+               }catch (InterruptedException ie) {
+                  return;
+               }//end try
+            }//end while
+            if (queue.isEmpty()) return;
+            e = queue.peek();
+         }
+         boolean retry = false;
+         OpStats.begin("OutboxReplay");
+         try {
+            if (target == null) target = new Messenger(url, new ArrayList<String>(), user, passwd, false);
+            apply(target.store, e);
+            shareWrite();
+            acknowledge(e);
+         }catch (SQLException ex) {
+            // a chat being moved between shards takes writes again shortly
+            if (reachable() && !"55006".equals(ex.getSQLState())) {
+               // only acknowledged once it is safe in the dead-letter file
+               try {
+                  bury(e, ex.getMessage());
+                  acknowledge(e);
+               }catch (IOException io) {
+                  System.err.println("Outbox: cannot keep a rejected message in " + deadFile + ": " + io.getMessage());
+                  retry = true;
+               }//end try
+            }else {
+               retry = true;
+            }//end if
+         }finally {
+            OpStats.end();
+         }//end try
+
+         synchronized (this) {
+            failing = retry;
+            if (!retry) {
+               backoff = 500;
+               continue;
+            }//end if
+            try {
+               if (!stopped) wait(backoff);
+            }catch (InterruptedException ie) {
+               return;
+            }//end try
+         }
+         if (target != null && !reachable()) disconnect();
+         backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+      }//end while
+   }//end drainLoop
+
+   /**
+    * Tells the sending session how far its replicas must be to show the
+    * entry just applied; if the position cannot be read, it reads from
+    * the primary until its next write.
+    */
+   private void shareWrite() {
+      if (reader == null || !reader.readsFromReplicas()) return;
+      long lsn;
+      try {
+         lsn = target.primaryLsn();
+      }catch (SQLException ex) {
+         lsn = Long.MAX_VALUE;
+      }//end try
+      reader.wroteAt(lsn);
+   }//end shareWrite
+
+   private static void apply(Storage store, Entry e) throws SQLException {
+      Timestamp time = new Timestamp(e.time);
+      if (e.kind == MESSAGE) {
+         if (!store.isMember(e.chat, e.sender)) {
+            throw new SQLException("User " + e.sender + " is not a member of chat " + e.chat);
+         }//end if
+         store.addMessage(e.chat, e.sender, e.text, time, e.key);
+      }else {
+         int chat = store.createChat(e.type, e.sender, e.members, e.key);
+         if (e.text != null) store.addMessage(chat, e.sender, e.text, time, e.key + "-m");
+      }//end if
+   }//end apply
+
+   /**
+    * Tells a rejected entry from an unreachable database.
+    */
+   private boolean reachable() {
+      if (target == null) return false;
+      try {
+         target.exists("SELECT 1");
+         return true;
+      }catch (SQLException e) {
+         return false;
+      }//end try
+   }//end reachable
+
+   private void disconnect() {
+      if (target != null) target.cleanup();
+      target = null;
+   }
+
+   /**
+    * Waits up to the given time for the queued entries to be sent, then
+    * stops the outbox.  Entries still queued are sent on the next start.
+    */
+   public void close(long waitMillis) {
+      long until = System.currentTimeMillis() + waitMillis;
+      synchronized (this) {
+         while (!queue.isEmpty() && !failing && System.currentTimeMillis() < until) {
+            try {
+               wait(Math.max(1, until - System.currentTimeMillis()));
+            }catch (InterruptedException e) {
+               break;
+            }//end try
+         }//end while
+         if (!queue.isEmpty())
+            System.out.println(queue.size() + " messages not sent yet, they are sent on the next start");
+         stopped = true;
+         notifyAll();
+      }
+      try {
+         flusher.join(waitMillis);
+      }catch (InterruptedException e) {
+         // ignored.
+      }//end try
+      drainer.interrupt();
+      disconnect();
+      try {
+         lock.release();
+         raf.close();
+      }catch (IOException e) {
+         // ignored.
+      }//end try
+   }//end close
+
+   // dead letters
+
+   /**
+    * Appends a rejected entry to the dead-letter file and waits until it
+    * is on disk.
+    */
+   private synchronized void bury(Entry e, String reason) throws IOException {
+      DeadLetter d = new DeadLetter(e, reason == null ? "rejected" : reason);
+      RandomAccessFile out = new RandomAccessFile(deadFile, "rw");
+      try {
+         out.seek(out.length());
+         out.write(encodeDead(d));
+         out.getFD().sync();
+      }finally {
+         out.close();
+      }//end try
+      dead.add(d);
+   }//end bury
+
+   /**
+    * Replaces the dead-letter file with the given letters, through a new
+    * file renamed over it.
+    */
+   private void writeDeadLetters(List<DeadLetter> letters) throws IOException {
+      if (letters.isEmpty()) {
+         if (deadFile.exists() && !deadFile.delete()) throw new IOException("Cannot delete " + deadFile);
+         return;
+      }//end if
+      File tmp = new File(deadFile.getPath() + ".tmp");
+      RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+      try {
+         out.setLength(0);
+         for (DeadLetter d : letters) out.write(encodeDead(d));
+         out.getFD().sync();
+      }finally {
+         out.close();
+      }//end try
+      if (!tmp.renameTo(deadFile)) throw new IOException("Cannot replace " + deadFile);
+   }//end writeDeadLetters
+
+   /**
+    * Reads the dead letters left by earlier sessions, a torn record at the
+    * end is ignored.
+    */
+   private void readDeadLetters() throws IOException {
+      if (!deadFile.exists()) return;
+      RandomAccessFile in = new RandomAccessFile(deadFile, "r");
+      try {
+         while (true) {
+            byte[] payload = readRecord(in);
+            if (payload == null) break;
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+            String reason = data.readUTF();
+            byte[] entry = new byte[data.available()];
+            data.readFully(entry);
+            dead.add(new DeadLetter(decode(entry), reason));
+         }//end while
+      }finally {
+         in.close();
+      }//end try
+   }//end readDeadLetters
+
+   private static byte[] encodeDead(DeadLetter d) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(d.reason);
+      out.write(payload(d.entry));
+      out.flush();
+      return frame(bytes.toByteArray());
+   }//end encodeDead
+
+   // log format
+
+   private static byte[] encode(Entry e) throws IOException {
+      return frame(payload(e));
+   }
+
+   private static byte[] payload(Entry e) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(e.kind);
+      out.writeUTF(e.key);
+      if (e.kind == MESSAGE) {
+         out.writeInt(e.chat);
+         out.writeInt(e.sender);
+         out.writeLong(e.time);
+         out.writeUTF(e.text);
+      }else if (e.kind == CHAT) {
+         out.writeInt(e.sender);
+         out.writeUTF(e.type);
+         out.writeInt(e.members.length);
+         for (int m : e.members) out.writeInt(m);
+         out.writeLong(e.time);
+         out.writeBoolean(e.text != null);
+         if (e.text != null) out.writeUTF(e.text);
+      }//end if
+      out.flush();
+      return bytes.toByteArray();
+   }//end payload
+
+   /**
+    * Frames a record with its length and CRC.
+    */
+   private static byte[] frame(byte[] payload) throws IOException {
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+
+      ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.length + 8);
+      DataOutputStream frame = new DataOutputStream(framed);
+      frame.writeInt(payload.length);
+      frame.writeInt((int) crc.getValue());
+      frame.write(payload);
+      frame.flush();
+      return framed.toByteArray();
+   }//end frame
+
+   /**
+    * Reads the next framed record.
+    *
+    * @return its payload, or null at the end or at a torn record
+    */
+   private static byte[] readRecord(RandomAccessFile in) throws IOException {
+      try {
+         int length = in.readInt();
+         int crc = in.readInt();
+         if (length < 0 || length > in.length() - in.getFilePointer()) return null;
+         byte[] payload = new byte[length];
+         in.readFully(payload);
+         CRC32 check = new CRC32();
+         check.update(payload);
+         return (int) check.getValue() == crc ? payload : null;
+      }catch (EOFException e) {
+         return null;
+      }//end try
+   }//end readRecord
+
+   private static Entry decode(byte[] payload) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+      byte kind = in.readByte();
+      String key = in.readUTF();
+      if (kind == MESSAGE) {
+         int chat = in.readInt();
+         int sender = in.readInt();
+         long time = in.readLong();
+         return new Entry(kind, key, chat, sender, null, null, in.readUTF(), time);
+      }else if (kind == CHAT) {
+         int owner = in.readInt();
+         String type = in.readUTF();
+         int[] members = new int[in.readInt()];
+         for (int i = 0; i < members.length; i++) members[i] = in.readInt();
+         long time = in.readLong();
+         String text = in.readBoolean() ? in.readUTF() : null;
+         return new Entry(kind, key, 0, owner, type, members, text, time);
+      }//end if
+      return new Entry(kind, key, 0, 0, null, null, null, 0);
+   }//end decode
+
+   /**
+    * Reads the log, queues the entries that were not acknowledged and cuts
+    * off a torn record at the end.
+    */
+   private void recover() throws IOException {
+      LinkedHashMap<String, Entry> unsent = new LinkedHashMap<String, Entry>();
+      long good = 0;
+      raf.seek(0);
+      while (true) {
+         byte[] payload = readRecord(raf);
+         if (payload == null) break;
+         Entry e = decode(payload);
+         if (e.kind == ACK) unsent.remove(e.key);
+         else unsent.put(e.key, e);
+         good = raf.getFilePointer();
+      }//end while
+      if (unsent.isEmpty()) good = 0;
+      if (good < raf.length()) {
+         channel.truncate(good);
+         channel.force(true);
+      }//end if
+      queue.addAll(unsent.values());
+      logged = queue.size();
+   }//end recover
+
+}//end Outbox
@@ -0,0 +1,492 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage on the PostgreSQL tables, through the statement helpers of a
+ * connected Messenger.
+ *
+ * Logins and chat permissions are cached per session by UserDirectory
+ * and ChatAcl, the newest messages of the hot chats per process by
+ * RecentMessages, the lists of all users per process by ContactGraph.  Statements on MESSAGE and CHAT_LIST are routed to the
+ * shard of their chat when the Messenger has shards.
+ *
+ */
+class PgStorage implements Storage {
+
+   private final Messenger esql;
+
+   // owners and members of the chats this session has touched
+   final ChatAcl acl = new ChatAcl();
+
+   // login <-> user id dictionary, the tables only store user ids
+   final UserDirectory users = new UserDirectory();
+
+   // newest messages of the hot chats, shared with the outbox's sessions
+   static final RecentMessages recent = new RecentMessages();
+
+   // the contact and blocked lists of all users, for the suggestions
+   static final ContactGraph graph = new ContactGraph();
+
+   // read cursors of this session waiting to be written
+   private final ReadCursors reads = new ReadCursors();
+
+   PgStorage(Messenger esql) {
+      this.esql = esql;
+   }
+
+   public void createUser(String login, String password, String phone) throws SQLException {
+      //Creating empty contact\block lists for a user
+      esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
+      int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
+      esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
+      int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
+
+      String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES (?, ?, ?, %d, %d)", block_id, contact_id);
+      esql.executeUpdate(query, phone, login, password);
+   }//end createUser
+
+   public int logIn(String login, String password) throws SQLException {
+      String found = esql.value("SELECT user_id FROM USR WHERE login = ? AND password = ? AND NOT deleted", login, password);
+      if (found == null) return UserDirectory.UNKNOWN;
+      int id = Integer.parseInt(found.trim());
+      users.remember(id, login);
+      return id;
+   }//end logIn
+
+   public int userId(String login) throws SQLException {
+      return users.idOf(esql, login);
+   }
+
+   public String login(int user) throws SQLException {
+      return users.loginOf(esql, user);
+   }
+
+   public String[] logins(int[] ids) throws SQLException {
+      return users.loginsOf(esql, ids);
+   }
+
+   public void deleteUser(int user) throws SQLException {
+      // only the flag and the progress row, Purger deletes the rows in chunks afterwards
+      esql.executeUpdate(String.format("UPDATE USR SET deleted = true WHERE user_id = %d;", user));
+      esql.executeUpdate(String.format("INSERT INTO ACCOUNT_PURGE(user_id) SELECT %d WHERE NOT EXISTS (SELECT 1 FROM ACCOUNT_PURGE WHERE user_id = %d);", user, user));
+      users.forget(user);
+      graph.userDeleted(user);
+   }//end deleteUser
+
+   public void setStatus(int user, String status) throws SQLException {
+      // the driver cannot bind a null without its type
+      if (status == null) esql.executeUpdate("UPDATE USR SET status = NULL WHERE user_id = ?", user);
+      else esql.executeUpdate("UPDATE USR SET status = ? WHERE user_id = ?", status, user);
+   }//end setStatus
+
+   public String[] statuses(int[] ids) throws SQLException {
+      String[] statuses = new String[ids.length];
+      if (ids.length == 0) return statuses;
+      StringBuilder in = new StringBuilder();
+      for (int i = 0; i < ids.length; i++) {
+         if (i > 0) in.append(',');
+         in.append(ids[i]);
+      }//end for
+      IntHashMap<String> byId = new IntHashMap<String>(ids.length);
+      for (List<String> row : esql.executeQueryAndReturnResult(String.format("SELECT user_id, status FROM USR WHERE user_id IN (%s) AND status IS NOT NULL;", in))) {
+         byId.put(Integer.parseInt(row.get(0).trim()), row.get(1).trim());
+      }//end for
+      for (int i = 0; i < ids.length; i++) {
+         statuses[i] = byId.get(ids[i]);
+      }//end for
+      return statuses;
+   }//end statuses
+
+   public void setSeen(int user, Presence.State state) throws SQLException {
+      // the time is the server's, so the clocks of the sessions do not matter
+      if (state == Presence.State.OFFLINE) esql.executeUpdate("UPDATE USR SET last_seen = NULL, away = false WHERE user_id = ?", user);
+      else esql.executeUpdate("UPDATE USR SET last_seen = now(), away = ? WHERE user_id = ?", state == Presence.State.AWAY, user);
+   }//end setSeen
+
+   public Seen[] seen(int[] ids) throws SQLException {
+      Seen[] seen = new Seen[ids.length];
+      if (ids.length == 0) return seen;
+      StringBuilder in = new StringBuilder();
+      for (int i = 0; i < ids.length; i++) {
+         if (i > 0) in.append(',');
+         in.append(ids[i]);
+      }//end for
+      IntHashMap<Seen> byId = new IntHashMap<Seen>(ids.length);
+      for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+            "SELECT user_id, (extract(epoch FROM now() - last_seen) * 1000)::bigint, away FROM USR WHERE user_id IN (%s) AND last_seen IS NOT NULL;", in))) {
+         byId.put(Integer.parseInt(row.get(0).trim()), new Seen(Long.parseLong(row.get(1).trim()), row.get(2).trim().startsWith("t")));
+      }//end for
+      for (int i = 0; i < ids.length; i++) {
+         seen[i] = byId.get(ids[i]);
+      }//end for
+      return seen;
+   }//end seen
+
+   public int[] usersByPhone(String[] numbers) throws SQLException {
+      int[] ids = new int[numbers.length];
+      Arrays.fill(ids, UserDirectory.UNKNOWN);
+      if (numbers.length == 0) return ids;
+      // the numbers are digits only, safe in the literal; one probe of usr_phone_digits each
+      StringBuilder array = new StringBuilder("'{");
+      for (int i = 0; i < numbers.length; i++) {
+         if (i > 0) array.append(',');
+         array.append(numbers[i]);
+      }//end for
+      array.append("}'::text[]");
+      String query = String.format("SELECT phone_digits(phoneNum), user_id, login FROM USR WHERE phone_digits(phoneNum) = ANY(%s) AND NOT deleted ORDER BY user_id;", array);
+      Map<String, Integer> byNumber = new HashMap<String, Integer>();
+      for (List<String> row : esql.executeQueryAndReturnResult(query)) {
+         int id = Integer.parseInt(row.get(1).trim());
+         if (!byNumber.containsKey(row.get(0))) byNumber.put(row.get(0), id);
+         users.remember(id, row.get(2));
+      }//end for
+      for (int i = 0; i < numbers.length; i++) {
+         Integer id = byNumber.get(numbers[i]);
+         if (id != null) ids[i] = id;
+      }//end for
+      return ids;
+   }//end usersByPhone
+
+   public void addToList(int user, UserList list, int member) throws SQLException {
+      String query = String.format("INSERT INTO USER_LIST_CONTAINS(list_id, list_member) SELECT %s, %d FROM USR WHERE user_id = %d;", list.column, member, user);
+      if (esql.executeUpdate(query) > 0) graph.added(user, list, member);
+   }//end addToList
+
+   public boolean removeFromList(int user, UserList list, int member) throws SQLException {
+      String query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_member = %d AND list_id = (SELECT %s FROM USR WHERE user_id = %d);", member, list.column, user);
+      if (esql.executeUpdate(query) == 0) return false;
+      graph.removed(user, list, member);
+      return true;
+   }//end removeFromList
+
+   public int[] addToList(int user, UserList list, int[] members) throws SQLException {
+      if (members.length == 0) return members;
+      StringBuilder array = new StringBuilder();
+      for (int i = 0; i < members.length; i++) {
+         if (i > 0) array.append(',');
+         array.append(members[i]);
+      }//end for
+      // one statement for the whole batch, the members already on the list are skipped
+      String query = String.format("INSERT INTO USER_LIST_CONTAINS(list_id, list_member) SELECT DISTINCT u.%s, m FROM USR u, unnest('{%s}'::int[]) m"
+            + " WHERE u.user_id = %d AND m <> u.user_id ON CONFLICT DO NOTHING RETURNING list_member;", list.column, array, user);
+      int[] added = UserDirectory.ids(esql.executeUpdateReturning(query));
+      for (int member : added) {
+         graph.added(user, list, member);
+      }//end for
+      return added;
+   }//end addToList
+
+   public int[] listMembers(int user, UserList list) throws SQLException {
+      String query = String.format("SELECT a.list_member FROM USER_LIST_CONTAINS a, USR b, USR m WHERE b.user_id = %d AND b.%s = a.list_id AND m.user_id = a.list_member AND NOT m.deleted;", user, list.column);
+      return UserDirectory.ids(esql.executeQueryAndReturnResult(query));
+   }//end listMembers
+
+   public long listEdges(UserList list, final EdgeHandler handler) throws SQLException {
+      // two sequential scans and hash joins, no sort
+      String query = String.format("SELECT u.user_id, a.list_member FROM USR u, USER_LIST_CONTAINS a, USR m WHERE a.list_id = u.%s AND m.user_id = a.list_member AND NOT u.deleted AND NOT m.deleted;", list.column);
+      try {
+         return esql.executeQueryStreaming(query, new Messenger.RowHandler() {
+            public void row(List<String> record) {
+               handler.edge(Integer.parseInt(record.get(0).trim()), Integer.parseInt(record.get(1).trim()));
+            }
+         });
+      }catch (IOException e) {
+         // the handler throws none
+         throw new SQLException(e.toString());
+      }//end try
+   }//end listEdges
+
+   public Suggestion[] suggestContacts(int user, int limit) throws SQLException {
+      return graph.suggest(this, user, limit);
+   }
+
+   public int createChat(String type, int owner, int[] members, String key) throws SQLException {
+      String query;
+      String found;
+      if (key == null) {
+         query = String.format("INSERT INTO CHAT(chat_type, init_sender) VALUES(?, %d);", owner);
+         esql.executeUpdate(query, type);
+         found = esql.value("SELECT MAX(chat_id) FROM CHAT");
+      }else {
+         // a replayed chat finds the row of its first attempt
+         query = String.format("INSERT INTO CHAT(chat_type, init_sender, client_key) SELECT ?, %d, ? WHERE NOT EXISTS (SELECT 1 FROM CHAT WHERE client_key = ?);", owner);
+         esql.executeUpdate(query, type, key, key);
+         found = esql.value("SELECT chat_id FROM CHAT WHERE client_key = ?", key);
+      }//end if
+      int chat = Integer.parseInt(found.trim());
+
+      for (int i = 0; i < members.length; i++) {
+         if (key == null)
+            query = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES(%d, %d);", chat, members[i]);
+         else
+            query = String.format("INSERT INTO CHAT_LIST(chat_id, member) SELECT %d, %d WHERE NOT EXISTS (SELECT 1 FROM CHAT_LIST WHERE chat_id = %d AND member = %d);", chat, members[i], chat, members[i]);
+         esql.executeUpdate(chat, query);
+      }//end for
+      acl.chatCreated(chat, owner, members);
+      return chat;
+   }//end createChat
+
+   public int[] chatsOf(int user) throws SQLException {
+      if (!esql.isSharded()) {
+         String query = String.format("SELECT l.chat_id FROM CHAT_LIST l, CHAT c WHERE l.member = %d AND c.chat_id = l.chat_id AND NOT c.deleted;", user);
+         return UserDirectory.ids(esql.executeQueryAndReturnResult(query));
+      }//end if
+      String query = String.format("SELECT chat_id FROM CHAT_LIST WHERE member = %d;", user);
+      int[] chats = UserDirectory.ids(esql.executeQueryAndReturnChatRows(query));
+      return chats.length == 0 ? chats : withoutDeleted(chats);
+   }//end chatsOf
+
+   /**
+    * Drops the chats flagged as deleted whose rows are still on a shard.
+    */
+   private int[] withoutDeleted(int[] chats) throws SQLException {
+      StringBuilder in = new StringBuilder();
+      for (int i = 0; i < chats.length; i++) {
+         if (i > 0) in.append(',');
+         in.append(chats[i]);
+      }//end for
+      String query = "SELECT chat_id FROM CHAT WHERE deleted AND chat_id IN (" + in + ");";
+      IntHashSet deleted = new IntHashSet();
+      for (int chat : UserDirectory.ids(esql.executeQueryAndReturnResult(query))) {
+         deleted.add(chat);
+      }//end for
+      if (deleted.size() == 0) return chats;
+      int[] kept = new int[chats.length - deleted.size()];
+      int n = 0;
+      for (int chat : chats) {
+         if (!deleted.contains(chat)) kept[n++] = chat;
+      }//end for
+      return kept;
+   }//end withoutDeleted
+
+   public int[] chatMembers(int chat) throws SQLException {
+      String query = String.format("SELECT member FROM CHAT_LIST WHERE chat_id = %d;", chat);
+      return UserDirectory.ids(esql.executeQueryAndReturnResult(chat, query));
+   }//end chatMembers
+
+   public ChatSummary[] chatSummaries(int[] chats) throws SQLException {
+      ChatSummary[] summaries = new ChatSummary[chats.length];
+      if (chats.length == 0) return summaries;
+      StringBuilder in = new StringBuilder();
+      for (int i = 0; i < chats.length; i++) {
+         if (i > 0) in.append(',');
+         in.append(chats[i]);
+      }//end for
+      // kept by the triggers of create_chat_stats.sql, no MESSAGE aggregate
+      String query = "SELECT chat_id, msg_count, member_count, last_activity, last_sender FROM CHAT_STATS WHERE chat_id IN (" + in + ");";
+      List<List<String>> rows = esql.isSharded() ? esql.executeQueryAndReturnChatRows(query) : esql.executeQueryAndReturnResult(query);
+      IntHashMap<ChatSummary> byChat = new IntHashMap<ChatSummary>(rows.size());
+      for (List<String> row : rows) {
+         int chat = Integer.parseInt(row.get(0).trim());
+         String sender = row.get(4);
+         byChat.put(chat, new ChatSummary(chat, Long.parseLong(row.get(1).trim()), Integer.parseInt(row.get(2).trim()),
+               row.get(3), sender == null ? UserDirectory.UNKNOWN : Integer.parseInt(sender.trim())));
+      }//end for
+      for (int i = 0; i < chats.length; i++) {
+         ChatSummary s = byChat.get(chats[i]);
+         // a chat without members or messages has no row
+         summaries[i] = s != null ? s : new ChatSummary(chats[i], 0, 0, null, UserDirectory.UNKNOWN);
+      }//end for
+      return summaries;
+   }//end chatSummaries
+
+   public void markRead(int chat, int user, int msgId) throws SQLException {
+      if (reads.read(chat, user, msgId)) flushReads();
+   }
+
+   public void flushReads() throws SQLException {
+      if (reads.isEmpty()) return;
+      final Map<Long, Integer> due = reads.drain();
+      IntHashSet chats = new IntHashSet();
+      for (Long k : due.keySet()) {
+         chats.add(ReadCursors.chat(k));
+      }//end for
+      try {
+         // one statement per database, cursors only move forward
+         esql.executeUpdateByChat(chats.toArray(), new Messenger.ChatBatch() {
+            public String sql(int[] held) {
+               IntHashSet in = new IntHashSet(held.length);
+               for (int chat : held) in.add(chat);
+               StringBuilder values = new StringBuilder();
+               for (Map.Entry<Long, Integer> e : due.entrySet()) {
+                  if (!in.contains(ReadCursors.chat(e.getKey()))) continue;
+                  if (values.length() > 0) values.append(',');
+                  values.append('(').append(ReadCursors.chat(e.getKey())).append(',').append(ReadCursors.member(e.getKey()))
+                        .append(',').append(e.getValue()).append(')');
+               }//end for
+               return "UPDATE CHAT_LIST l SET last_read_msg_id = v.msg_id FROM (VALUES " + values + ") AS v(chat_id, member, msg_id)"
+                     + " WHERE l.chat_id = v.chat_id AND l.member = v.member AND l.last_read_msg_id < v.msg_id;";
+            }
+         });
+      }catch (SQLException e) {
+         reads.retry(due);
+         throw e;
+      }//end try
+   }//end flushReads
+
+   public int[] unreadCounts(int user, int[] chats) throws SQLException {
+      int[] unread = new int[chats.length];
+      if (chats.length == 0) return unread;
+      flushReads();
+      // one range of message_chat (chat_id, msg_id) per chat, read up to the limit
+      String query = String.format("SELECT l.chat_id, (SELECT count(*) FROM (SELECT 1 FROM MESSAGE m WHERE m.chat_id = l.chat_id"
+            + " AND m.msg_id > l.last_read_msg_id LIMIT %d) u) FROM CHAT_LIST l WHERE l.member = %d;", ReadCursors.UNREAD_LIMIT, user);
+      List<List<String>> rows = esql.isSharded() ? esql.executeQueryAndReturnChatRows(query) : esql.executeQueryAndReturnResult(query);
+      IntHashMap<Integer> byChat = new IntHashMap<Integer>(rows.size());
+      for (List<String> row : rows) {
+         byChat.put(Integer.parseInt(row.get(0).trim()), Integer.parseInt(row.get(1).trim()));
+      }//end for
+      for (int i = 0; i < chats.length; i++) {
+         Integer n = byChat.get(chats[i]);
+         unread[i] = n == null ? 0 : n;
+      }//end for
+      return unread;
+   }//end unreadCounts
+
+   public boolean isOwner(int chat, int user) throws SQLException {
+      return acl.isOwner(esql, chat, user);
+   }
+
+   public boolean isMember(int chat, int user) throws SQLException {
+      return acl.isMember(esql, chat, user);
+   }
+
+   public void addMember(int chat, int user) throws SQLException {
+      try {
+         String query = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES(%d, %d);", chat, user);
+         esql.executeUpdate(chat, query);
+         acl.memberAdded(chat, user);
+      }catch (SQLException e) {
+         acl.invalidate(chat);
+         throw e;
+      }//end try
+   }//end addMember
+
+   public void removeMember(int chat, int user) throws SQLException {
+      try {
+         String query = String.format("DELETE FROM CHAT_LIST WHERE chat_id = %d AND member = %d;", chat, user);
+         esql.executeUpdate(chat, query);
+         acl.memberRemoved(chat, user);
+      }catch (SQLException e) {
+         acl.invalidate(chat);
+         throw e;
+      }//end try
+   }//end removeMember
+
+   public void deleteChat(int chat) throws SQLException {
+      // only the flag, Purger deletes the rows in chunks afterwards
+      String q = String.format("UPDATE CHAT SET deleted = true WHERE chat_id = %d;", chat);
+      esql.executeUpdate(q);
+      acl.chatDeleted(chat);
+      recent.invalidate(chat);
+   }//end deleteChat
+
+   public void addMessage(int chat, int sender, String text, Timestamp time, String key) throws SQLException {
+      String when = time == null ? "NOW()" : "TIMESTAMP '" + time + "'";
+      String query;
+      // id and time come back with the insert, for the chat's cached ring;
+      // the text is bound, the other values are numbers or generated keys
+      if (key == null)
+         query = String.format("INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_id, chat_id) VALUES(?, %s, %d, %d) RETURNING msg_id, msg_timestamp", when, sender, chat);
+      else
+         query = String.format("INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_id, chat_id, client_key) SELECT ?, %s, %d, %d, '%s' WHERE NOT EXISTS (SELECT 1 FROM MESSAGE WHERE client_key = '%s') RETURNING msg_id, msg_timestamp", when, sender, chat, key, key);
+      // the sender has read its own message, in the same statement
+      query = String.format("WITH added AS (%s), sender_read AS (UPDATE CHAT_LIST l SET last_read_msg_id = a.msg_id FROM added a"
+            + " WHERE l.chat_id = %d AND l.member = %d AND l.last_read_msg_id < a.msg_id) SELECT msg_id, msg_timestamp FROM added;", query, chat, sender);
+      try {
+         List<List<String>> result = esql.executeUpdateReturning(chat, query, text);
+         if (result.isEmpty()) {
+            // a replay, the first attempt may not have reached the ring
+            recent.invalidate(chat);
+            return;
+         }//end if
+         List<String> row = result.get(0);
+         recent.added(new Message(Integer.parseInt(row.get(0).trim()), chat, sender, row.get(1), text));
+      }catch (SQLException e) {
+         recent.invalidate(chat);
+         throw e;
+      }//end try
+   }//end addMessage
+
+   public boolean editMessage(int chat, int msgId, int sender, String text) throws SQLException {
+      // the sender check is part of the update, 1 if valid message, 0 otherwise
+      String query = String.format("UPDATE MESSAGE SET msg_text = ? WHERE msg_id = %d AND sender_id = %d AND chat_id = %d;", msgId, sender, chat);
+      try {
+         if (esql.executeUpdate(chat, query, text) == 0) return false;
+         recent.edited(chat, msgId, text);
+         return true;
+      }catch (SQLException e) {
+         recent.invalidate(chat);
+         throw e;
+      }//end try
+   }//end editMessage
+
+   public boolean deleteMessage(int chat, int msgId, int sender) throws SQLException {
+      // the sender check is part of the delete, 1 if valid message, 0 otherwise
+      String query = String.format("DELETE FROM MESSAGE WHERE msg_id = %d AND sender_id = %d AND chat_id = %d;", msgId, sender, chat);
+      try {
+         if (esql.executeUpdate(chat, query) == 0) return false;
+         recent.deleted(chat, msgId);
+         return true;
+      }catch (SQLException e) {
+         recent.invalidate(chat);
+         throw e;
+      }//end try
+   }//end deleteMessage
+
+   public List<Message> messages(int chat) throws SQLException {
+      String query = String.format("SELECT msg_id, chat_id, sender_id, msg_timestamp, msg_text FROM MESSAGE WHERE chat_id = %d ORDER BY msg_timestamp;", chat);
+      List<Message> messages = new ArrayList<Message>();
+      for (List<String> row : esql.executeQueryAndReturnResult(chat, query)) {
+         messages.add(message(row));
+      }//end for
+      return messages;
+   }//end messages
+
+   public List<Message> recentMessages(int chat, int limit) throws SQLException {
+      List<Message> cached = recent.newest(chat, limit);
+      if (cached != null) return cached;
+      // a miss fills the whole ring, the next pages are hits
+      long generation = recent.generation();
+      int rows = Math.max(limit, RecentMessages.capacity);
+      // message_chat (chat_id, msg_id) read backwards, no sort
+      String query = String.format("SELECT msg_id, chat_id, sender_id, msg_timestamp, msg_text FROM MESSAGE WHERE chat_id = %d ORDER BY msg_id DESC LIMIT %d;", chat, rows);
+      List<Message> messages = new ArrayList<Message>();
+      for (List<String> row : esql.executeQueryAndReturnResult(chat, query)) {
+         messages.add(message(row));
+      }//end for
+      recent.loaded(chat, messages, rows, generation);
+      return messages.size() > limit ? new ArrayList<Message>(messages.subList(0, limit)) : messages;
+   }//end recentMessages
+
+   public long streamMessages(int chat, final MessageHandler handler) throws SQLException, IOException {
+      // message_chat (chat_id, msg_id) hands the rows over in order without a sort
+      String query = String.format("SELECT msg_id, chat_id, sender_id, msg_timestamp, msg_text FROM MESSAGE WHERE chat_id = %d ORDER BY msg_id;", chat);
+      return esql.executeQueryStreaming(chat, query, new Messenger.RowHandler() {
+         public void row(List<String> record) throws IOException {
+            handler.message(message(record));
+         }
+      });
+   }//end streamMessages
+
+   public Message message(int chat, int msgId) throws SQLException {
+      Message cached = recent.message(chat, msgId);
+      if (cached != null) return cached;
+      String query = String.format("SELECT msg_id, chat_id, sender_id, msg_timestamp, msg_text FROM MESSAGE WHERE msg_id = %d AND chat_id = %d;", msgId, chat);
+      List<List<String>> result = esql.executeQueryAndReturnResult(chat, query);
+      return result.isEmpty() ? null : message(result.get(0));
+   }//end message
+
+   private static Message message(List<String> row) {
+      String sender = row.get(2);
+      return new Message(Integer.parseInt(row.get(0).trim()), Integer.parseInt(row.get(1).trim()),
+            sender == null ? UserDirectory.UNKNOWN : Integer.parseInt(sender.trim()), row.get(3), row.get(4));
+   }//end message
+
+}//end PgStorage
@@ -0,0 +1,55 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Phone numbers as the contact import compares them: the digits only,
+ * with the country code.  "+1(180)393-1512", "1 180 393 1512",
+ * "001-180-393-1512" and "(180) 393-1512" are all 11803931512; ten digits
+ * without a code are taken to be North American like the loaded users.
+ * The phone_digits function of create_indexes.sql normalizes
+ * USR.phoneNum the same way, and its index resolves the numbers.
+ *
+ */
+final class PhoneNumbers {
+
+   // E.164 allows at most 15 digits, the shortest local numbers have 7
+   static final int MIN_DIGITS = 7;
+   static final int MAX_DIGITS = 15;
+
+   private PhoneNumbers() {
+   }
+
+   /**
+    * @return the number as digits with the country code, or null if it
+    *         is not a phone number
+    */
+   static String normalize(String phone) {
+      StringBuilder digits = new StringBuilder(phone.length());
+      for (int i = 0; i < phone.length(); i++) {
+         char c = phone.charAt(i);
+         if (c >= '0' && c <= '9') digits.append(c);
+         else if (Character.isLetter(c)) return null;
+      }//end for
+      String d = digits.toString();
+      if (d.startsWith("00")) d = d.substring(2);
+      if (d.length() == 10) d = "1" + d;
+      return d.length() >= MIN_DIGITS && d.length() <= MAX_DIGITS ? d : null;
+   }//end normalize
+
+   /**
+    * Splits an address book into its numbers, separated by new lines,
+    * commas or semicolons.
+    *
+    * @return the numbers as given, each once, in order
+    */
+   static List<String> split(String text) {
+      Set<String> numbers = new LinkedHashSet<String>();
+      for (String part : text.split("[,;\\r\\n]+")) {
+         if (part.trim().length() > 0) numbers.add(part.trim());
+      }//end for
+      return new ArrayList<String>(numbers);
+   }//end split
+
+}//end PhoneNumbers
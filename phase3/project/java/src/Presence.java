@@ -0,0 +1,204 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Presence and status texts of the users, kept in the memory of the
+ * process, so showing a contact list needs no join against USR.
+ *
+ * Every menu action of a logged in user is a heartbeat.  A user is online
+ * while its last heartbeat is younger than messenger.presenceTtlMs
+ * (default 60s), away after that or when it said so, and offline once it
+ * logged out.  Every session is a process of its own, so the heartbeats
+ * are shared through USR.last_seen and USR.away: a heartbeat writes them
+ * at most once per half TTL, logging out and going away right away.  The
+ * users logged in elsewhere are read from there in bulk, again after half
+ * a TTL; as their last_seen may be that old twice over, they show online
+ * until it is two TTLs old.
+ *
+ * The status texts are the USR.status of the users, read in bulk for the
+ * users the map lacks and kept for messenger.statusTtlMs (default 60s),
+ * after which they are read again to see the changes of other processes.
+ * A new status is written to USR only if it differs from the known one.
+ *
+ */
+class Presence {
+
+   static final long ttlMillis = Long.getLong("messenger.presenceTtlMs", 60000L);
+   static final long statusTtlMillis = Long.getLong("messenger.statusTtlMs", 60000L);
+
+   // how often last_seen is written, and read for the other processes' users
+   static final long sharedMillis = ttlMillis / 2;
+
+   /**
+    * What the contacts see of a user.
+    */
+   enum State {
+      ONLINE("online"),
+      AWAY("away"),
+      OFFLINE("offline");
+
+      final String name;
+
+      State(String name) {
+         this.name = name;
+      }
+   }//end State
+
+   /**
+    * Presence and status of one user.
+    */
+   private static class Entry {
+      // last heartbeat, 0 when logged out or never seen
+      volatile long seen = 0;
+      volatile boolean away = false;
+      // logged in to this process, else seen and away are read from USR
+      volatile boolean local = false;
+      // when seen was written, or read for a user of another process
+      volatile long sharedAt = 0;
+      // the status text, and when it was read or written; 0 if unknown
+      volatile String status = null;
+      volatile long statusAt = 0;
+   }//end Entry
+
+   private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+
+   private volatile long swept = System.currentTimeMillis();
+
+   private Entry entry(int user) {
+      Entry e = entries.get(user);
+      if (e == null) {
+         Entry fresh = new Entry();
+         e = entries.putIfAbsent(user, fresh);
+         if (e == null) e = fresh;
+      }//end if
+      return e;
+   }//end entry
+
+   /**
+    * Records an action of a logged in user.
+    *
+    * @return true if it is time to write last_seen
+    */
+   boolean heartbeat(int user) {
+      Entry e = entry(user);
+      long now = System.currentTimeMillis();
+      e.local = true;
+      e.seen = now;
+      sweep();
+      if (now - e.sharedAt < sharedMillis) return false;
+      e.sharedAt = now;
+      return true;
+   }//end heartbeat
+
+   /**
+    * Shows the user as away until it comes back, last_seen has to be
+    * written.
+    */
+   void away(int user, boolean away) {
+      Entry e = entry(user);
+      e.local = true;
+      e.away = away;
+      e.seen = e.sharedAt = System.currentTimeMillis();
+   }//end away
+
+   /**
+    * Forgets the session, last_seen has to be cleared.
+    */
+   void loggedOut(int user) {
+      Entry e = entries.get(user);
+      if (e != null) {
+         e.local = false;
+         e.seen = 0;
+         e.away = false;
+         e.sharedAt = 0;
+      }//end if
+   }//end loggedOut
+
+   State state(int user) {
+      Entry e = entries.get(user);
+      if (e == null || e.seen == 0) return State.OFFLINE;
+      long ttl = e.local ? ttlMillis : ttlMillis + 2 * sharedMillis;
+      if (e.away || System.currentTimeMillis() - e.seen > ttl) return State.AWAY;
+      return State.ONLINE;
+   }//end state
+
+   /**
+    * @return true if the user is logged in here or was read from USR
+    *         a short while ago
+    */
+   boolean knowsSeen(int user) {
+      Entry e = entries.get(user);
+      return e != null && (e.local || System.currentTimeMillis() - e.sharedAt <= sharedMillis);
+   }//end knowsSeen
+
+   /**
+    * Remembers when a user of another process was last seen, null if it
+    * is logged out.
+    */
+   void loadedSeen(int user, Storage.Seen seen) {
+      Entry e = entry(user);
+      if (e.local) return;
+      long now = System.currentTimeMillis();
+      e.seen = seen == null ? 0 : now - seen.ago;
+      e.away = seen != null && seen.away;
+      e.sharedAt = now;
+   }//end loadedSeen
+
+   /**
+    * @return true if the status of the user is known and young enough
+    */
+   boolean knowsStatus(int user) {
+      Entry e = entries.get(user);
+      return e != null && e.statusAt != 0 && System.currentTimeMillis() - e.statusAt <= statusTtlMillis;
+   }//end knowsStatus
+
+   /**
+    * @return the status text of the user, null if it has none or it is not known
+    */
+   String status(int user) {
+      Entry e = entries.get(user);
+      return e == null ? null : e.status;
+   }
+
+   /**
+    * Remembers a status read from the database.
+    */
+   void loaded(int user, String status) {
+      Entry e = entry(user);
+      e.status = status;
+      e.statusAt = System.currentTimeMillis();
+   }//end loaded
+
+   /**
+    * @return true if the status differs from the known one and has to be
+    *         written
+    */
+   boolean changes(int user, String status) {
+      if (!knowsStatus(user)) return true;
+      String known = status(user);
+      return known == null ? status != null : !known.equals(status);
+   }//end changes
+
+   /**
+    * Drops the users that are not logged in here and whose status and
+    * presence are old, at most once per status TTL.
+    */
+   private void sweep() {
+      long now = System.currentTimeMillis();
+      if (now - swept < statusTtlMillis) return;
+      swept = now;
+      for (Iterator<Map.Entry<Integer, Entry>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+         Entry e = i.next().getValue();
+         if (!e.local && now - e.statusAt > statusTtlMillis && now - e.sharedAt > sharedMillis) i.remove();
+      }//end for
+   }//end sweep
+
+   /**
+    * @return the number of users in the map
+    */
+   int size() {
+      return entries.size();
+   }
+
+}//end Presence
@@ -0,0 +1,340 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes the rows of deleted chats and deleted accounts in the
+ * background.
+ *
+ * Deleting a chat only sets CHAT.deleted, deleting an account only sets
+ * USR.deleted; the readers skip flagged rows, so the user does not wait
+ * for the data to go.  The purger thread, with its own connection, then
+ * deletes the rows messenger.purgeChunk at a time (default 1000), each
+ * chunk its own short transaction, and pauses messenger.purgePauseMs
+ * (default 100ms) between chunks so a chat or user with millions of
+ * messages neither holds its locks for long nor writes its whole WAL at
+ * once.
+ *
+ * A chat loses its messages, then its members, then its CHAT row.  An
+ * account goes through the steps below, recorded with the rows deleted
+ * so far in ACCOUNT_PURGE: the chats it owns (purged like deleted
+ * chats), the messages it sent and its chat memberships on every
+ * database, its entries in other users' lists, and last its own lists
+ * and the USR row.
+ *
+ * The flags and ACCOUNT_PURGE are the only state: a purge cut short by
+ * the end of the session, a chat being moved between shards or a lost
+ * connection is picked up again by the next pass of any session.  Passes
+ * run when this session deletes something and every minute otherwise,
+ * but only one session runs a pass at a time: a pass takes an advisory
+ * lock on the primary and is skipped if another session holds it.
+ * -Dmessenger.purge=off leaves the purge to other sessions.
+ *
+ *    java Purger <dbname> <port> <user> status|run
+ *
+ * prints the pending purges, or runs one pass in the foreground.
+ *
+ */
+class Purger {
+
+   static final int chunkRows = Integer.getInteger("messenger.purgeChunk", 1000);
+   static final long pauseMillis = Long.getLong("messenger.purgePauseMs", 100L);
+
+   // how often to look for chats and accounts deleted by other sessions
+   private static final long IDLE_MILLIS = 60000L;
+
+   // ACCOUNT_PURGE.step
+   static final int OWNED_CHATS = 0;
+   static final int MESSAGES = 1;
+   static final int MEMBERSHIPS = 2;
+   static final int LISTED = 3;
+   static final int ACCOUNT = 4;
+   static final int DONE = 5;
+
+   // where deleteChunks runs a statement that is not about one chat
+   private static final int ON_PRIMARY = -1;
+   private static final int ON_ALL = -2;
+
+   // advisory lock held on the primary while a pass runs ("purger")
+   private static final long PASS_LOCK = 0x707572676572L;
+
+   private static final String[] STEPS = { "owned chats", "messages", "chat memberships", "other users' lists", "account", "done" };
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+
+   private boolean stopped = false;
+   private boolean woken = false;
+
+   private Messenger target = null;
+   private final Thread worker;
+
+   private Purger(String url, String user, String passwd, boolean background) {
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      if (!background) {
+         worker = null;
+         return;
+      }//end if
+      worker = new Thread(new Runnable() {
+         public void run() {
+            purgeLoop();
+         }
+      }, "purger");
+      worker.setDaemon(true);
+      worker.start();
+   }//end Purger
+
+   /**
+    * Starts purging the deleted chats and accounts of the database at url.
+    *
+    * @return the purger, or null if messenger.purge is off
+    */
+   public static Purger fromProperties(String url, String user, String passwd) {
+      if ("off".equals(System.getProperty("messenger.purge"))) return null;
+      return new Purger(url, user, passwd, true);
+   }//end fromProperties
+
+   public static void main(String[] args) {
+      if (args.length < 4) {
+         System.err.println("Usage: java Purger <dbname> <port> <user> status|run");
+         return;
+      }//end if
+      Purger p = null;
+      try {
+         Class.forName("org.postgresql.Driver").newInstance();
+         p = new Purger("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "", false);
+         p.target = new Messenger(p.url, new ArrayList<String>(), p.user, p.passwd, false);
+         if (args[3].equals("status")) {
+            p.status(p.target);
+         }else if (args[3].equals("run")) {
+            if (!p.purgeDeleted(p.target)) System.out.println("Another session is running a pass");
+            p.status(p.target);
+         }else {
+            System.err.println("Unknown command: " + args[3]);
+         }//end if
+      }catch (Exception e) {
+         System.err.println(e.getMessage());
+      }finally {
+         if (p != null) p.disconnect();
+      }//end try
+   }//end main
+
+   /**
+    * Starts a pass now, e.g. after a chat was deleted.
+    */
+   public synchronized void wake() {
+      woken = true;
+      notifyAll();
+   }
+
+   private void purgeLoop() {
+      while (true) {
+         try {
+            if (target == null) target = new Messenger(url, new ArrayList<String>(), user, passwd, false);
+            purgeDeleted(target);
+         }catch (SQLException e) {
+            // the next pass tries again on a new connection
+            disconnect();
+         }//end try
+         synchronized (this) {
+            try {
+               if (!woken && !stopped) wait(IDLE_MILLIS);
+            }catch (InterruptedException e) {
+               return;
+            }//end try
+            if (stopped) return;
+            woken = false;
+         }
+      }//end while
+   }//end purgeLoop
+
+   /**
+    * Prints the accounts and chats waiting to be purged.
+    */
+   void status(Messenger esql) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+            "SELECT user_id, step, rows_done, requested, updated FROM ACCOUNT_PURGE WHERE step < " + DONE + " ORDER BY requested;");
+      System.out.println(rows.size() + " accounts being purged");
+      for (List<String> row : rows) {
+         System.out.println("user " + row.get(0).trim() + ": " + STEPS[Integer.parseInt(row.get(1).trim())]
+               + ", " + row.get(2).trim() + " rows deleted since " + row.get(3) + ", last progress " + row.get(4));
+      }//end for
+      System.out.println(esql.count("CHAT", "deleted") + " deleted chats not purged yet");
+   }//end status
+
+   /**
+    * Runs a pass unless another session is running one.
+    *
+    * @return false if the pass was left to another session
+    */
+   private boolean purgeDeleted(Messenger esql) throws SQLException {
+      if (!esql.exists("SELECT 1 WHERE pg_try_advisory_lock(?)", PASS_LOCK)) return false;
+      try {
+         purgePass(esql);
+         return true;
+      }finally {
+         try {
+            esql.exists("SELECT 1 WHERE pg_advisory_unlock(?)", PASS_LOCK);
+         }catch (SQLException e) {
+            // a lost connection has released the lock already
+         }//end try
+      }//end try
+   }//end purgeDeleted
+
+   /**
+    * Purges every account and chat flagged as deleted, skipping the ones
+    * that touch a chat being moved to another shard.
+    */
+   private void purgePass(Messenger esql) throws SQLException {
+      // accounts flagged by a session that ended before recording them
+      esql.executeUpdate("INSERT INTO ACCOUNT_PURGE(user_id) SELECT u.user_id FROM USR u WHERE u.deleted AND NOT EXISTS (SELECT 1 FROM ACCOUNT_PURGE p WHERE p.user_id = u.user_id);");
+      List<List<String>> accounts = esql.executeQueryAndReturnResult(
+            "SELECT user_id, step FROM ACCOUNT_PURGE WHERE step < " + DONE + " ORDER BY requested;");
+      for (List<String> row : accounts) {
+         if (isStopped()) return;
+         try {
+            purgeAccount(esql, Integer.parseInt(row.get(0).trim()), Integer.parseInt(row.get(1).trim()));
+         }catch (SQLException e) {
+            if (!"55006".equals(e.getSQLState())) throw e;
+         }//end try
+      }//end for
+
+      List<List<String>> chats = esql.executeQueryAndReturnResult("SELECT chat_id FROM CHAT WHERE deleted;");
+      for (List<String> row : chats) {
+         if (isStopped()) return;
+         try {
+            purgeChat(esql, Integer.parseInt(row.get(0).trim()));
+         }catch (SQLException e) {
+            if (!"55006".equals(e.getSQLState())) throw e;
+         }//end try
+      }//end for
+   }//end purgePass
+
+   /**
+    * Deletes the messages and members of a deleted chat in chunks, then
+    * the chat itself.
+    *
+    * @return false if the purger was stopped before it was done
+    */
+   boolean purgeChat(Messenger esql, int chat) throws SQLException {
+      if (!deleteChunks(esql, chat, chat, -1, "DELETE FROM MESSAGE WHERE msg_id IN (SELECT msg_id FROM MESSAGE WHERE chat_id = %1$d LIMIT %2$d);")) return false;
+      if (!deleteChunks(esql, chat, chat, -1, "DELETE FROM CHAT_LIST WHERE chat_id = %1$d AND member IN (SELECT member FROM CHAT_LIST WHERE chat_id = %1$d LIMIT %2$d);")) return false;
+      esql.executeUpdate(String.format("DELETE FROM CHAT WHERE chat_id = %d AND deleted;", chat));
+      return true;
+   }//end purgeChat
+
+   /**
+    * Runs the remaining steps of an account purge, recording each step
+    * and the rows deleted in ACCOUNT_PURGE as it goes.
+    */
+   void purgeAccount(Messenger esql, int id, int step) throws SQLException {
+      for (; step < DONE; step++) {
+         if (!runStep(esql, id, step)) return;
+         esql.executeUpdate(String.format("UPDATE ACCOUNT_PURGE SET step = %d, updated = NOW() WHERE user_id = %d;", step + 1, id));
+      }//end for
+   }//end purgeAccount
+
+   /**
+    * @return false if the purger was stopped before the step was done
+    */
+   private boolean runStep(Messenger esql, int id, int step) throws SQLException {
+      switch (step) {
+         case OWNED_CHATS:
+            // the chats of a deleted owner go with the account
+            esql.executeUpdate(String.format("UPDATE CHAT SET deleted = true WHERE init_sender = %d AND NOT deleted;", id));
+            for (List<String> row : esql.executeQueryAndReturnResult(String.format("SELECT chat_id FROM CHAT WHERE init_sender = %d;", id))) {
+               if (!purgeChat(esql, Integer.parseInt(row.get(0).trim()))) return false;
+            }//end for
+            return true;
+         case MESSAGES:
+            return deleteChunks(esql, ON_ALL, id, id, "DELETE FROM MESSAGE WHERE msg_id IN (SELECT msg_id FROM MESSAGE WHERE sender_id = %1$d LIMIT %2$d);");
+         case MEMBERSHIPS:
+            return deleteChunks(esql, ON_ALL, id, id, "DELETE FROM CHAT_LIST WHERE member = %1$d AND chat_id IN (SELECT chat_id FROM CHAT_LIST WHERE member = %1$d LIMIT %2$d);");
+         case LISTED:
+            return deleteChunks(esql, ON_PRIMARY, id, id, "DELETE FROM USER_LIST_CONTAINS WHERE list_member = %1$d AND list_id IN (SELECT list_id FROM USER_LIST_CONTAINS WHERE list_member = %1$d LIMIT %2$d);");
+         case ACCOUNT:
+            // rows added by sessions that had not seen the flag yet
+            if (!runStep(esql, id, MESSAGES) || !runStep(esql, id, MEMBERSHIPS)) return false;
+            for (Storage.UserList list : Storage.UserList.values()) {
+               if (!deleteChunks(esql, ON_PRIMARY, id, id, "DELETE FROM USER_LIST_CONTAINS WHERE list_id = (SELECT " + list.column + " FROM USR WHERE user_id = %1$d)"
+                     + " AND list_member IN (SELECT a.list_member FROM USER_LIST_CONTAINS a, USR b WHERE b.user_id = %1$d AND a.list_id = b." + list.column + " LIMIT %2$d);")) return false;
+            }//end for
+            List<List<String>> lists = esql.executeQueryAndReturnResult(String.format("SELECT block_list, contact_list FROM USR WHERE user_id = %d;", id));
+            esql.executeUpdate(String.format("DELETE FROM USR WHERE user_id = %d AND deleted;", id));
+            for (List<String> row : lists) {
+               for (String list : row) {
+                  if (list != null) esql.executeUpdate("DELETE FROM USER_LIST WHERE list_id = " + list.trim() + ";");
+               }//end for
+            }//end for
+            return true;
+         default:
+            return true;
+      }//end switch
+   }//end runStep
+
+   /**
+    * Runs a chunked delete until it deletes less than a chunk.
+    *
+    * @param where the chat whose database the rows are on, ON_PRIMARY or
+    *              ON_ALL for rows of a user that can be on any shard
+    * @param id the chat or user id the statement is formatted with
+    * @param account the user whose purge the rows count towards, or -1
+    * @param sql the statement, formatted with the id and the chunk size
+    * @return false if the purger was stopped before it was done
+    */
+   private boolean deleteChunks(Messenger esql, int where, int id, int account, String sql) throws SQLException {
+      String query = String.format(sql, id, chunkRows);
+      while (true) {
+         int rows;
+         OpStats.begin("Purge");
+         try {
+            if (where == ON_ALL) rows = esql.executeUpdateOnAll(query);
+            else if (where == ON_PRIMARY) rows = esql.executeUpdate(query);
+            else rows = esql.executeUpdate(where, query);
+            if (account >= 0 && rows > 0)
+               esql.executeUpdate(String.format("UPDATE ACCOUNT_PURGE SET rows_done = rows_done + %d, updated = NOW() WHERE user_id = %d;", rows, account));
+         }finally {
+            OpStats.end();
+         }//end try
+         if (rows < chunkRows) return true;
+         synchronized (this) {
+            try {
+               if (!stopped) wait(pauseMillis);
+            }catch (InterruptedException e) {
+               return false;
+            }//end try
+            if (stopped) return false;
+         }
+      }//end while
+   }//end deleteChunks
+
+   private synchronized boolean isStopped() {
+      return stopped;
+   }
+
+   private void disconnect() {
+      if (target != null) target.cleanup();
+      target = null;
+   }
+
+   /**
+    * Stops the purger once its current chunk is done, the rest of the
+    * purge is left to the next session.
+    */
+   public void close() {
+      synchronized (this) {
+         stopped = true;
+         notifyAll();
+      }
+      try {
+         worker.join(1000);
+      }catch (InterruptedException e) {
+         // ignored.
+      }//end try
+      if (!worker.isAlive()) disconnect();
+   }//end close
+
+}//end Purger
@@ -0,0 +1,75 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read cursors of a session waiting to be written: for each chat member,
+ * the newest message it has seen.
+ *
+ * Paging through a chat moves the cursor forward many times in a few
+ * seconds, so the moves are coalesced here, the newest one per member
+ * wins, and written together once the oldest has waited
+ * messenger.readDebounceMs (default 2000), or when the inbox is shown or
+ * the session ends.  A cursor never moves back.  Not thread safe, each
+ * session has its own.
+ *
+ */
+class ReadCursors {
+
+   static final long debounceMillis = Long.getLong("messenger.readDebounceMs", 2000L);
+
+   // unread messages are counted up to this many per chat
+   static final int UNREAD_LIMIT = Integer.getInteger("messenger.unreadLimit", 100);
+
+   // (chat << 32 | member) -> newest message read
+   private Map<Long, Integer> pending = new HashMap<Long, Integer>();
+   private long since = 0;
+
+   private static long key(int chat, int member) {
+      return ((long) chat << 32) | (member & 0xffffffffL);
+   }
+
+   static int chat(long key) {
+      return (int) (key >>> 32);
+   }
+
+   static int member(long key) {
+      return (int) key;
+   }
+
+   /**
+    * Records that the member has read the chat up to the message.
+    *
+    * @return true if the waiting cursors are due to be written
+    */
+   boolean read(int chat, int member, int msgId) {
+      Long k = key(chat, member);
+      Integer known = pending.get(k);
+      if (known == null || known < msgId) pending.put(k, msgId);
+      if (since == 0) since = System.currentTimeMillis();
+      return System.currentTimeMillis() - since >= debounceMillis;
+   }//end read
+
+   boolean isEmpty() {
+      return pending.isEmpty();
+   }
+
+   /**
+    * Hands the waiting cursors over for writing.
+    */
+   Map<Long, Integer> drain() {
+      Map<Long, Integer> due = pending;
+      pending = new HashMap<Long, Integer>();
+      since = 0;
+      return due;
+   }//end drain
+
+   /**
+    * Takes back cursors whose write failed, unless newer ones came since.
+    */
+   void retry(Map<Long, Integer> failed) {
+      for (Map.Entry<Long, Integer> e : failed.entrySet()) {
+         read(chat(e.getKey()), member(e.getKey()), e.getValue());
+      }//end for
+   }//end retry
+
+}//end ReadCursors
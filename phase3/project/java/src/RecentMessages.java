@@ -0,0 +1,274 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of the newest messages of the hot chats, so opening
+ * a chat that was read or written lately needs no round trip.
+ *
+ * A cached chat keeps its last messenger.recentMessages messages (default
+ * 50, five pages of the chat viewer) in a ring buffer, a new message
+ * overwriting the oldest.  The sends, edits and deletes of the sessions
+ * in this process go through to the rings; changes made by other
+ * processes are picked up when a chat is reloaded after
+ * messenger.recentTtlMs (default 10s).  All rings together hold at most
+ * messenger.recentCacheBytes (default 8 MB) of estimated heap, the chats
+ * opened least recently are evicted first.  messenger.recentMessages=0
+ * turns the cache off.
+ *
+ * Messages are keyed by msg_id, the rings are in id order.
+ *
+ */
+class RecentMessages {
+
+   static final int capacity = Integer.getInteger("messenger.recentMessages", 50);
+   private static final long ttlMillis = Long.getLong("messenger.recentTtlMs", 10000L);
+   static final long maxBytes = Long.getLong("messenger.recentCacheBytes", 8L << 20);
+
+   // headers, fields and references of a Message and its two strings
+   private static final int MESSAGE_OVERHEAD = 96;
+
+   /**
+    * The newest messages of one chat.
+    */
+   static class Ring {
+      final Storage.Message[] slots = new Storage.Message[capacity];
+      int head = 0;
+      int size = 0;
+      long bytes = 0;
+      // true if the ring holds every message of the chat
+      boolean complete;
+      final long loadedAt = System.currentTimeMillis();
+
+      /**
+       * @return the i-th newest message, 0 for the newest
+       */
+      Storage.Message newest(int i) {
+         return slots[(head + size - 1 - i) % capacity];
+      }
+
+      void append(Storage.Message m) {
+         if (size == capacity) {
+            bytes -= sizeOf(slots[head]);
+            slots[head] = null;
+            head = (head + 1) % capacity;
+            size--;
+            complete = false;
+         }//end if
+         slots[(head + size) % capacity] = m;
+         size++;
+         bytes += sizeOf(m);
+      }//end append
+
+      /**
+       * @return the position from the oldest, -1 if not in the ring
+       */
+      int indexOf(int msgId) {
+         for (int i = 0; i < size; i++) {
+            if (slots[(head + i) % capacity].id == msgId) return i;
+         }//end for
+         return -1;
+      }//end indexOf
+
+      Storage.Message get(int i) {
+         return slots[(head + i) % capacity];
+      }
+
+      void set(int i, Storage.Message m) {
+         bytes += sizeOf(m) - sizeOf(get(i));
+         slots[(head + i) % capacity] = m;
+      }
+
+      void remove(int i) {
+         bytes -= sizeOf(get(i));
+         for (; i < size - 1; i++) {
+            slots[(head + i) % capacity] = slots[(head + i + 1) % capacity];
+         }//end for
+         slots[(head + size - 1) % capacity] = null;
+         size--;
+      }//end remove
+   }//end Ring
+
+   // in access order, the eldest is the chat opened least recently
+   private final LinkedHashMap<Integer, Ring> chats = new LinkedHashMap<Integer, Ring>(16, 0.75f, true);
+   private long bytes = 0;
+   private long messages = 0;
+   // bumped by every write, a load that raced a write is not cached
+   private long generation = 0;
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+
+   /**
+    * Returns the newest messages of a chat if the cache holds enough of
+    * them.
+    *
+    * @return up to limit messages, newest first, or null on a miss
+    */
+   public synchronized List<Storage.Message> newest(int chat, int limit) {
+      Ring r = chats.get(chat);
+      if (r != null && System.currentTimeMillis() - r.loadedAt >= ttlMillis) {
+         drop(chat);
+         r = null;
+      }//end if
+      if (r == null || (r.size < limit && !r.complete)) {
+         misses.incrementAndGet();
+         return null;
+      }//end if
+      hits.incrementAndGet();
+      int n = Math.min(limit, r.size);
+      List<Storage.Message> result = new ArrayList<Storage.Message>(n);
+      for (int i = 0; i < n; i++) {
+         result.add(r.newest(i));
+      }//end for
+      return result;
+   }//end newest
+
+   /**
+    * @return the message if its chat is cached and holds it, null otherwise
+    */
+   public synchronized Storage.Message message(int chat, int msgId) {
+      Ring r = chats.get(chat);
+      if (r == null || System.currentTimeMillis() - r.loadedAt >= ttlMillis) return null;
+      int i = r.indexOf(msgId);
+      return i < 0 ? null : r.get(i);
+   }//end message
+
+   /**
+    * @return the value to hand to loaded() with the rows read after it
+    */
+   public synchronized long generation() {
+      return generation;
+   }
+
+   /**
+    * Caches the newest messages of a chat read from the database.
+    *
+    * @param rows the messages read, newest first
+    * @param limit the number of messages the read asked for
+    * @param generation the value of generation() before the read
+    */
+   public synchronized void loaded(int chat, List<Storage.Message> rows, int limit, long generation) {
+      if (capacity == 0 || generation != this.generation) return;
+      drop(chat);
+      Ring r = new Ring();
+      for (int i = Math.min(rows.size(), capacity) - 1; i >= 0; i--) {
+         r.append(rows.get(i));
+      }//end for
+      r.complete = rows.size() < limit && rows.size() <= capacity;
+      chats.put(chat, r);
+      bytes += r.bytes;
+      messages += r.size;
+      evict();
+   }//end loaded
+
+   /**
+    * Adds a message sent by this process to its chat's ring.
+    */
+   public synchronized void added(Storage.Message m) {
+      generation++;
+      Ring r = chats.get(m.chat);
+      if (r == null) return;
+      if (r.size > 0 && r.newest(0).id > m.id) {
+         // a replayed message older than the ring, reload in order
+         drop(m.chat);
+         return;
+      }//end if
+      bytes -= r.bytes;
+      messages -= r.size;
+      r.append(m);
+      bytes += r.bytes;
+      messages += r.size;
+      evict();
+   }//end added
+
+   public synchronized void edited(int chat, int msgId, String text) {
+      generation++;
+      Ring r = chats.get(chat);
+      if (r == null) return;
+      int i = r.indexOf(msgId);
+      if (i < 0) return;
+      Storage.Message old = r.get(i);
+      bytes -= r.bytes;
+      r.set(i, new Storage.Message(old.id, old.chat, old.sender, old.time, text));
+      bytes += r.bytes;
+   }//end edited
+
+   public synchronized void deleted(int chat, int msgId) {
+      generation++;
+      Ring r = chats.get(chat);
+      if (r == null) return;
+      int i = r.indexOf(msgId);
+      if (i < 0) return;
+      bytes -= r.bytes;
+      r.remove(i);
+      bytes += r.bytes;
+      messages--;
+   }//end deleted
+
+   /**
+    * Drops a cached chat, e.g. after a write on it failed.
+    */
+   public synchronized void invalidate(int chat) {
+      generation++;
+      drop(chat);
+   }
+
+   public long hits() {
+      return hits.get();
+   }
+
+   public long misses() {
+      return misses.get();
+   }
+
+   public long evictions() {
+      return evictions.get();
+   }
+
+   public synchronized int chats() {
+      return chats.size();
+   }
+
+   public synchronized long messages() {
+      return messages;
+   }
+
+   /**
+    * @return the estimated heap held by the cached messages
+    */
+   public synchronized long bytes() {
+      return bytes;
+   }
+
+   private void drop(int chat) {
+      Ring r = chats.remove(chat);
+      if (r == null) return;
+      bytes -= r.bytes;
+      messages -= r.size;
+   }//end drop
+
+   private void evict() {
+      Iterator<Map.Entry<Integer, Ring>> it = chats.entrySet().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+         Ring r = it.next().getValue();
+         it.remove();
+         bytes -= r.bytes;
+         messages -= r.size;
+         evictions.incrementAndGet();
+      }//end while
+   }//end evict
+
+   private static long sizeOf(Storage.Message m) {
+      return MESSAGE_OVERHEAD + 2L * (length(m.text) + length(m.time));
+   }
+
+   private static int length(String s) {
+      return s == null ? 0 : s.length();
+   }
+
+}//end RecentMessages
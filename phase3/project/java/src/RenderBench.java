@@ -0,0 +1,75 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Compares printing a large contact list field by field on System.out
+ * with rendering it through a Screen, as ListContacts does.
+ *
+ *    java RenderBench [<contacts> [<file>]]
+ *
+ * One user of an in-memory store gets <contacts> contacts (default
+ * 100000) and the list is printed both ways, -Dbench.runs times each
+ * (default 5), into <file> (default /dev/null) through a PrintStream set
+ * up like the JVM's System.out.  The best time of each is reported.
+ *
+ */
+class RenderBench {
+
+   private static final int runs = Integer.getInteger("bench.runs", 5);
+
+   public static void main(String[] args) throws Exception {
+      int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+      String file = args.length > 1 ? args[1] : "/dev/null";
+
+      Messenger esql = new Messenger(new MemoryStorage());
+      esql.store.createUser("owner", "pw", "0");
+      int owner = esql.store.userId("owner");
+      for (int i = 0; i < contacts; i++) {
+         esql.store.createUser("contact" + i, "pw", Integer.toString(i + 1));
+         esql.store.addToList(owner, Storage.UserList.CONTACTS, esql.store.userId("contact" + i));
+      }//end for
+
+      PrintStream console = System.out;
+      // System.out is a 128 byte buffer flushed on every println
+      PrintStream target = new PrintStream(new BufferedOutputStream(new FileOutputStream(file), 128), true);
+      long unbuffered = Long.MAX_VALUE;
+      long screen = Long.MAX_VALUE;
+      try {
+         System.setOut(target);
+         for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            printUnbuffered(esql, "owner");
+            unbuffered = Math.min(unbuffered, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            Messenger.ListContacts(esql, "owner");
+            screen = Math.min(screen, System.nanoTime() - start);
+         }//end for
+      }finally {
+         System.setOut(console);
+         target.close();
+      }//end try
+      report("System.out.print per field", contacts, unbuffered);
+      report("Screen", contacts, screen);
+   }//end main
+
+   /**
+    * ListContacts as it printed before the Screen.
+    */
+   private static void printUnbuffered(Messenger esql, String username) throws Exception {
+      int[] ids = esql.store.listMembers(esql.store.userId(username), Storage.UserList.CONTACTS);
+      String[] contacts = esql.store.logins(ids);
+      System.out.print(contacts.length);
+      System.out.println(" users in contact list: ");
+      for (int i = 0; i < contacts.length; i++) {
+         System.out.println(contacts[i]);
+      }//end for
+   }//end printUnbuffered
+
+   private static void report(String phase, long rows, long nanos) {
+      double secs = nanos / 1e9;
+      System.out.println(String.format("%-36s %8d rows %10.3f s %12.0f rows/s", phase, rows, secs, rows / secs));
+   }//end report
+
+}//end RenderBench
@@ -0,0 +1,507 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Operational analytics over the messages, chats and lists, shown by
+ * Query6 and by
+ *
+ *    java [-Dmessenger.shards=<host:port>,...] Reports <dbname> <port> <user> [refresh|rebuild|<report>...]
+ *
+ * Reports (all of them if none is named):
+ *    active    the users who sent the most messages
+ *    chats     the chats with the most messages, from CHAT_STATS
+ *    hourly    messages per hour
+ *    degrees   contact-graph degree distribution: users per number of contacts
+ *    blocks    block rates and the users blocked most
+ *
+ * The aggregations run in the DBMS; the work on the primary and on each
+ * shard runs at the same time, one thread per database, and the
+ * partial results are merged here.  The message reports read the
+ * summary tables of create_reports.sql, which a refresh brings up to
+ * date from a watermark: only the messages above REPORT_WATERMARK are
+ * aggregated, through the primary key, never the whole MESSAGE table.
+ * "rebuild" counts everything again, e.g. after many messages were
+ * deleted, an import with explicit ids or a rebalance.  The list reports
+ * read USER_LIST_CONTAINS on the primary, whose rows come and go.
+ *
+ * The rows of a report are written to the screen as they arrive, the
+ * long ones are read through a cursor messenger.fetchRows at a time.
+ * The top lists have messenger.reportTop rows (default 10).
+ *
+ */
+class Reports {
+
+   static final int top = Integer.getInteger("messenger.reportTop", 10);
+
+   /**
+    * The reports, in the order they are shown.
+    */
+   enum Report {
+      ACTIVE("active", "Most active users"),
+      CHATS("chats", "Largest chats"),
+      HOURLY("hourly", "Messages per hour"),
+      DEGREES("degrees", "Contacts per user"),
+      BLOCKS("blocks", "Block rates");
+
+      final String name;
+      final String title;
+
+      Report(String name, String title) {
+         this.name = name;
+         this.title = title;
+      }
+
+      /**
+       * @return the report, or null if there is none by that name
+       */
+      static Report named(String name) {
+         for (Report r : values()) {
+            if (r.name.equals(name)) return r;
+         }//end for
+         return null;
+      }//end named
+   }//end Report
+
+   /**
+    * Work done on one database.
+    */
+   interface PerDatabase<T> {
+      T run(Connection conn) throws SQLException;
+   }//end PerDatabase
+
+   /**
+    * Messages of one sender, summed over the databases.
+    */
+   private static class Sender {
+      final int id;
+      long messages = 0;
+      String lastSent = null;
+
+      Sender(int id) {
+         this.id = id;
+      }
+   }//end Sender
+
+   private final Connection primary;
+   private final ShardMap shards;
+   private final ExecutorService pool;
+
+   Reports(Connection primary, ShardMap shards) {
+      this.primary = primary;
+      this.shards = shards;
+      this.pool = shards == null ? null : Executors.newFixedThreadPool(shards.size() + 1);
+   }//end Reports
+
+   /**
+    * Opens the reports on the database at url and its shards.
+    */
+   static Reports connect(String url, String user, String passwd) throws SQLException {
+      String dbname = url.substring(url.lastIndexOf('/') + 1);
+      Connection primary = DriverManager.getConnection(url, user, passwd);
+      try {
+         return new Reports(primary, ShardMap.fromProperties(primary, dbname, user, passwd));
+      }catch (SQLException e) {
+         primary.close();
+         throw e;
+      }//end try
+   }//end connect
+
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         System.err.println("Usage: java [-Dmessenger.shards=<host:port>,...] Reports <dbname> <port> <user>"
+               + " [refresh|rebuild|active|chats|hourly|degrees|blocks ...]");
+         return;
+      }//end if
+      Reports reports = null;
+      Screen screen = new Screen();
+      try {
+         Class.forName("org.postgresql.Driver").newInstance();
+         reports = connect("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+         if (args.length == 4 && (args[3].equals("refresh") || args[3].equals("rebuild"))) {
+            long added = reports.refresh(args[3].equals("rebuild"));
+            screen.println(added + " messages added to the summaries");
+            return;
+         }//end if
+         List<Report> chosen = new ArrayList<Report>();
+         for (int i = 3; i < args.length; i++) {
+            Report r = Report.named(args[i]);
+            if (r == null) {
+               System.err.println("Unknown report: " + args[i]);
+               return;
+            }//end if
+            chosen.add(r);
+         }//end for
+         if (chosen.isEmpty()) Collections.addAll(chosen, Report.values());
+         reports.refresh(false);
+         for (Report r : chosen) {
+            reports.run(r, screen);
+         }//end for
+      }catch (Exception e) {
+         screen.flush();
+         System.err.println(e.getMessage());
+      }finally {
+         screen.flush();
+         if (reports != null) reports.close();
+      }//end try
+   }//end main
+
+   /**
+    * Brings the message summaries of every database up to date.
+    *
+    * @param rebuild count all messages again instead of the new ones
+    * @return the number of messages aggregated
+    */
+   public long refresh(final boolean rebuild) throws SQLException {
+      long added = 0;
+      for (Long n : onAll(new PerDatabase<Long>() {
+         public Long run(Connection conn) throws SQLException {
+            return refresh(conn, rebuild);
+         }
+      })) {
+         added += n;
+      }//end for
+      return added;
+   }//end refresh
+
+   private static long refresh(Connection conn, boolean rebuild) throws SQLException {
+      conn.setAutoCommit(false);
+      Statement stmt = conn.createStatement();
+      try {
+         // waits for the sends in flight, so every id up to the newest
+         // one is committed; released at once, sends go on meanwhile
+         stmt.execute("LOCK TABLE MESSAGE IN SHARE MODE;");
+         long upper = value(conn, "SELECT COALESCE(max(msg_id), 0) FROM MESSAGE;");
+         conn.commit();
+
+         // FOR UPDATE: one refresh at a time per database
+         long from = value(conn, "SELECT last_msg_id FROM REPORT_WATERMARK WHERE name = 'messages' FOR UPDATE;");
+         if (rebuild) {
+            stmt.executeUpdate("DELETE FROM REPORT_SENDER;");
+            stmt.executeUpdate("DELETE FROM REPORT_HOURLY;");
+            from = 0;
+         }//end if
+         long added = 0;
+         if (upper > from) {
+            String range = "msg_id > " + from + " AND msg_id <= " + upper;
+            added = value(conn, "WITH hours AS (SELECT date_trunc('hour', msg_timestamp) AS hour, count(*) AS n FROM MESSAGE WHERE " + range + " GROUP BY 1),"
+                  + " merged AS (INSERT INTO REPORT_HOURLY AS r (hour, messages) SELECT hour, n FROM hours"
+                  + " ON CONFLICT (hour) DO UPDATE SET messages = r.messages + EXCLUDED.messages)"
+                  + " SELECT COALESCE(sum(n), 0) FROM hours;");
+            stmt.executeUpdate("INSERT INTO REPORT_SENDER AS r (sender_id, messages, last_sent)"
+                  + " SELECT sender_id, count(*), max(msg_timestamp) FROM MESSAGE WHERE " + range + " AND sender_id IS NOT NULL GROUP BY sender_id"
+                  + " ON CONFLICT (sender_id) DO UPDATE SET messages = r.messages + EXCLUDED.messages,"
+                  + " last_sent = GREATEST(r.last_sent, EXCLUDED.last_sent);");
+            stmt.executeUpdate("UPDATE REPORT_WATERMARK SET last_msg_id = " + upper + ", refreshed = NOW() WHERE name = 'messages';");
+         }//end if
+         conn.commit();
+         return added;
+      }catch (SQLException e) {
+         try {
+            conn.rollback();
+         }catch (SQLException ignored) {
+            // reported below.
+         }//end try
+         throw e;
+      }finally {
+         stmt.close();
+         conn.setAutoCommit(true);
+      }//end try
+   }//end refresh
+
+   /**
+    * Writes one report to the screen.
+    */
+   public void run(Report report, Screen screen) throws SQLException, IOException {
+      screen.println().println(report.title).println("-------------------------");
+      switch (report) {
+         case ACTIVE: active(screen); break;
+         case CHATS: chats(screen); break;
+         case HOURLY: hourly(screen); break;
+         case DEGREES: degrees(screen); break;
+         case BLOCKS: blocks(screen); break;
+      }//end switch
+      screen.flush();
+   }//end run
+
+   private void active(Screen screen) throws SQLException {
+      // a user's messages can be on every database, so the shards send
+      // all their rows and the sums are ranked here
+      final String query = "SELECT sender_id, messages, last_sent FROM REPORT_SENDER"
+            + (shards == null ? " ORDER BY messages DESC, sender_id LIMIT " + top : "") + ";";
+      IntHashMap<Sender> byId = new IntHashMap<Sender>();
+      List<Sender> senders = new ArrayList<Sender>();
+      for (List<List<String>> rows : onAll(query)) {
+         for (List<String> row : rows) {
+            int id = Integer.parseInt(row.get(0).trim());
+            Sender s = byId.get(id);
+            if (s == null) {
+               s = new Sender(id);
+               byId.put(id, s);
+               senders.add(s);
+            }//end if
+            s.messages += Long.parseLong(row.get(1).trim());
+            if (s.lastSent == null || (row.get(2) != null && row.get(2).compareTo(s.lastSent) > 0)) s.lastSent = row.get(2);
+         }//end for
+      }//end for
+      Collections.sort(senders, new Comparator<Sender>() {
+         public int compare(Sender a, Sender b) {
+            return a.messages != b.messages ? Long.compare(b.messages, a.messages) : Integer.compare(a.id, b.id);
+         }
+      });
+      if (senders.size() > top) senders = senders.subList(0, top);
+      int[] ids = new int[senders.size()];
+      for (int i = 0; i < ids.length; i++) ids[i] = senders.get(i).id;
+      IntHashMap<String> logins = logins(ids);
+
+      Screen.Table table = screen.table("#", "user", "messages", "last sent");
+      for (int i = 0; i < senders.size(); i++) {
+         Sender s = senders.get(i);
+         table.row(Integer.toString(i + 1), login(logins, s.id), Long.toString(s.messages), s.lastSent);
+      }//end for
+      table.end();
+   }//end active
+
+   private void chats(Screen screen) throws SQLException {
+      // each chat is counted on the database holding it; a few more than
+      // shown, the deleted ones waiting for the purge are left out
+      String query = "SELECT chat_id, msg_count, member_count, last_activity FROM CHAT_STATS ORDER BY msg_count DESC, chat_id LIMIT " + (2 * top) + ";";
+      IntHashMap<List<String>> byChat = new IntHashMap<List<String>>();
+      List<List<String>> chats = new ArrayList<List<String>>();
+      for (List<List<String>> rows : onAll(query)) {
+         for (List<String> row : rows) {
+            int id = Integer.parseInt(row.get(0).trim());
+            // on two databases while it is being moved, the old copy is complete
+            List<String> seen = byChat.get(id);
+            if (seen != null && Long.parseLong(seen.get(1).trim()) >= Long.parseLong(row.get(1).trim())) continue;
+            if (seen != null) chats.remove(seen);
+            byChat.put(id, row);
+            chats.add(row);
+         }//end for
+      }//end for
+      IntHashSet deleted = new IntHashSet();
+      if (!chats.isEmpty()) {
+         StringBuilder in = new StringBuilder();
+         for (List<String> row : chats) {
+            if (in.length() > 0) in.append(',');
+            in.append(row.get(0).trim());
+         }//end for
+         for (List<String> row : ShardMap.rows(primary, "SELECT chat_id FROM CHAT WHERE deleted AND chat_id IN (" + in + ");")) {
+            deleted.add(Integer.parseInt(row.get(0).trim()));
+         }//end for
+      }//end if
+      Collections.sort(chats, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            return Long.compare(Long.parseLong(b.get(1).trim()), Long.parseLong(a.get(1).trim()));
+         }
+      });
+
+      Screen.Table table = screen.table("chat", "messages", "members", "last activity");
+      int shown = 0;
+      for (List<String> row : chats) {
+         if (shown == top) break;
+         if (deleted.contains(Integer.parseInt(row.get(0).trim()))) continue;
+         table.row(row.get(0).trim(), row.get(1).trim(), row.get(2).trim(), row.get(3));
+         shown++;
+      }//end for
+      table.end();
+   }//end chats
+
+   private void hourly(Screen screen) throws SQLException, IOException {
+      final Screen.Table table = screen.table("hour", "messages");
+      String query = "SELECT hour, messages FROM REPORT_HOURLY ORDER BY hour";
+      if (shards == null) {
+         stream(primary, query, new Messenger.RowHandler() {
+            public void row(List<String> record) {
+               table.row(record.get(0), record.get(1).trim());
+            }
+         });
+      }else {
+         // the same hour on several databases, summed in hour order
+         TreeMap<String, Long> hours = new TreeMap<String, Long>();
+         for (List<List<String>> rows : onAll(query + ";")) {
+            for (List<String> row : rows) {
+               Long n = hours.get(row.get(0));
+               hours.put(row.get(0), (n == null ? 0 : n) + Long.parseLong(row.get(1).trim()));
+            }//end for
+         }//end for
+         for (Map.Entry<String, Long> e : hours.entrySet()) {
+            table.row(e.getKey(), e.getValue().toString());
+         }//end for
+      }//end if
+      table.end();
+   }//end hourly
+
+   private void degrees(Screen screen) throws SQLException, IOException {
+      final Screen.Table table = screen.table("contacts", "users");
+      stream(primary, "SELECT degree, count(*) FROM (SELECT u.user_id, count(c.list_member) AS degree"
+            + " FROM USR u LEFT OUTER JOIN USER_LIST_CONTAINS c ON c.list_id = u.contact_list"
+            + " WHERE NOT u.deleted GROUP BY u.user_id) d GROUP BY degree ORDER BY degree", new Messenger.RowHandler() {
+         public void row(List<String> record) {
+            table.row(record.get(0).trim(), record.get(1).trim());
+         }
+      });
+      table.end();
+   }//end degrees
+
+   private void blocks(Screen screen) throws SQLException {
+      List<String> totals = ShardMap.rows(primary, "SELECT count(*), count(*) FILTER (WHERE blocks > 0),"
+            + " COALESCE(sum(blocks), 0), COALESCE(sum(contacts), 0) FROM (SELECT"
+            + " (SELECT count(*) FROM USER_LIST_CONTAINS b WHERE b.list_id = u.block_list) AS blocks,"
+            + " (SELECT count(*) FROM USER_LIST_CONTAINS c WHERE c.list_id = u.contact_list) AS contacts"
+            + " FROM USR u WHERE NOT u.deleted) s;").get(0);
+      long users = Long.parseLong(totals.get(0).trim());
+      long blocking = Long.parseLong(totals.get(1).trim());
+      long blocks = Long.parseLong(totals.get(2).trim());
+      long contacts = Long.parseLong(totals.get(3).trim());
+      Screen.Table summary = screen.table();
+      summary.row("users", Long.toString(users));
+      summary.row("users blocking someone", blocking + String.format(" (%.1f%%)", users == 0 ? 0.0 : 100.0 * blocking / users));
+      summary.row("blocks", Long.toString(blocks));
+      summary.row("blocks per 100 contacts", String.format("%.1f", contacts == 0 ? 0.0 : 100.0 * blocks / contacts));
+      summary.end();
+
+      List<List<String>> rows = ShardMap.rows(primary, "SELECT c.list_member, count(*) FROM USER_LIST_CONTAINS c, USR u"
+            + " WHERE u.block_list = c.list_id AND NOT u.deleted GROUP BY c.list_member ORDER BY 2 DESC, 1 LIMIT " + top + ";");
+      int[] ids = new int[rows.size()];
+      for (int i = 0; i < ids.length; i++) ids[i] = Integer.parseInt(rows.get(i).get(0).trim());
+      IntHashMap<String> logins = logins(ids);
+      screen.println();
+      Screen.Table table = screen.table("most blocked", "blocked by");
+      for (int i = 0; i < ids.length; i++) {
+         table.row(login(logins, ids[i]), rows.get(i).get(1).trim());
+      }//end for
+      table.end();
+   }//end blocks
+
+   private IntHashMap<String> logins(int[] ids) throws SQLException {
+      IntHashMap<String> logins = new IntHashMap<String>(ids.length);
+      if (ids.length == 0) return logins;
+      StringBuilder in = new StringBuilder();
+      for (int i = 0; i < ids.length; i++) {
+         if (i > 0) in.append(',');
+         in.append(ids[i]);
+      }//end for
+      for (List<String> row : ShardMap.rows(primary, "SELECT user_id, login FROM USR WHERE user_id IN (" + in + ");")) {
+         logins.put(Integer.parseInt(row.get(0).trim()), Screen.display(row.get(1)));
+      }//end for
+      return logins;
+   }//end logins
+
+   private static String login(IntHashMap<String> logins, int id) {
+      String login = logins.get(id);
+      return login != null ? login : "#" + id;
+   }
+
+   /**
+    * Runs a query on every database at once.
+    *
+    * @return the rows of each database
+    */
+   private List<List<List<String>>> onAll(final String query) throws SQLException {
+      return onAll(new PerDatabase<List<List<String>>>() {
+         public List<List<String>> run(Connection conn) throws SQLException {
+            return ShardMap.rows(conn, query);
+         }
+      });
+   }//end onAll
+
+   /**
+    * Runs the work on the primary and on every shard at once.
+    *
+    * @return the results, primary first
+    */
+   private <T> List<T> onAll(final PerDatabase<T> work) throws SQLException {
+      List<T> results = new ArrayList<T>();
+      if (shards == null) {
+         results.add(work.run(primary));
+         return results;
+      }//end if
+      List<Future<T>> parts = new ArrayList<Future<T>>();
+      for (int i = ShardMap.PRIMARY; i < shards.size(); i++) {
+         final Connection conn = shards.connection(i);
+         parts.add(pool.submit(new Callable<T>() {
+            public T call() throws SQLException {
+               return work.run(conn);
+            }
+         }));
+      }//end for
+      for (Future<T> part : parts) {
+         try {
+            results.add(part.get());
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the databases");
+         }catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            throw new SQLException(cause.toString());
+         }//end try
+      }//end for
+      return results;
+   }//end onAll
+
+   /**
+    * Hands the rows of a query to the handler as they are fetched through
+    * a cursor, in constant memory.
+    */
+   private static long stream(Connection conn, String query, Messenger.RowHandler handler) throws SQLException, IOException {
+      String fetch = "FETCH FORWARD " + Messenger.FETCH_ROWS + " FROM report_rows;";
+      conn.setAutoCommit(false);
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.execute("DECLARE report_rows NO SCROLL CURSOR FOR " + query + ";");
+         long count = 0;
+         while (true) {
+            List<List<String>> rows = ShardMap.rows(conn, fetch);
+            for (List<String> row : rows) {
+               handler.row(row);
+            }//end for
+            count += rows.size();
+            if (rows.size() < Messenger.FETCH_ROWS) return count;
+         }//end while
+      }finally {
+         stmt.close();
+         // read only, the transaction only held the cursor
+         try {
+            conn.rollback();
+            conn.setAutoCommit(true);
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end stream
+
+   private static long value(Connection conn, String query) throws SQLException {
+      List<List<String>> rows = ShardMap.rows(conn, query);
+      if (rows.isEmpty()) throw new SQLException("No row from " + query + " (was create_reports.sql run on every database?)");
+      return Long.parseLong(rows.get(0).get(0).trim());
+   }//end value
+
+   /**
+    * Closes the connections.
+    */
+   public void close() {
+      if (pool != null) pool.shutdownNow();
+      if (shards != null) shards.close();
+      try {
+         primary.close();
+      }catch (SQLException e) {
+         // ignored.
+      }//end try
+   }//end close
+
+}//end Reports
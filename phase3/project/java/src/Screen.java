@@ -0,0 +1,189 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Console output of one menu screen, written through a single buffered
+ * Writer and handed to System.out in large blocks on flush().
+ *
+ * Printing field by field with System.out.print takes the PrintStream
+ * lock and, with println, flushes to the terminal for every line; for a
+ * few thousand contacts or messages that is most of the time spent.
+ * A Screen collects the lines in its buffer instead, and the menu
+ * flushes it once when the screen is complete.
+ *
+ * Tables are rendered in windows of messenger.renderWindow rows (default
+ * 256): the rows of a window are held until it is full, each column is
+ * padded to the widest value of the window, and the window is written
+ * out.  Columns line up within a window at constant memory, whatever
+ * the number of rows.  Trailing blanks of char(n) values are dropped.
+ *
+ * Like PrintStream, a Screen does not throw: a failed write is
+ * remembered and reported by checkError().
+ *
+ */
+class Screen {
+
+   static final int WINDOW = Integer.getInteger("messenger.renderWindow", 256);
+
+   private static final String SEPARATOR = "  ";
+   private static final String SPACES = "                                                                ";
+
+   private final Writer out;
+   private boolean error = false;
+
+   /**
+    * A screen on System.out, as it is when the screen is created.
+    */
+   Screen() {
+      this(System.out);
+   }
+
+   Screen(PrintStream stream) {
+      this.out = new BufferedWriter(new OutputStreamWriter(stream), 1 << 16);
+   }
+
+   Screen(Writer out) {
+      this.out = out instanceof BufferedWriter ? out : new BufferedWriter(out, 1 << 16);
+   }
+
+   Screen print(String s) {
+      try {
+         out.write(s == null ? "null" : s);
+      }catch (IOException e) {
+         error = true;
+      }//end try
+      return this;
+   }//end print
+
+   private void spaces(int n) {
+      try {
+         for (; n > 0; n -= SPACES.length()) {
+            out.write(SPACES, 0, Math.min(n, SPACES.length()));
+         }//end for
+      }catch (IOException e) {
+         error = true;
+      }//end try
+   }//end spaces
+
+   Screen print(int i) {
+      return print(Integer.toString(i));
+   }
+
+   Screen println(String s) {
+      return print(s).println();
+   }
+
+   Screen println() {
+      return print("\n");
+   }
+
+   /**
+    * Starts a table with the given column names, none for a table
+    * without a header line.
+    */
+   Table table(String... header) {
+      return new Table(header.length == 0 ? null : header);
+   }
+
+   /**
+    * Writes everything printed so far to the underlying stream.
+    */
+   void flush() {
+      try {
+         out.flush();
+      }catch (IOException e) {
+         error = true;
+      }//end try
+   }//end flush
+
+   /**
+    * @return true if a write to the underlying stream failed
+    */
+   boolean checkError() {
+      return error;
+   }
+
+   /**
+    * Rows of one table, aligned per window.
+    */
+   class Table {
+      private final String[] header;
+      private final List<String[]> window = new ArrayList<String[]>();
+      private int rows = 0;
+
+      Table(String[] header) {
+         this.header = header;
+      }
+
+      Table row(String... values) {
+         String[] row = new String[values.length];
+         for (int i = 0; i < values.length; i++) {
+            row[i] = display(values[i]);
+         }//end for
+         window.add(row);
+         rows++;
+         if (window.size() >= WINDOW) render();
+         return this;
+      }//end row
+
+      /**
+       * Writes the rows still held, the screen still has to be flushed.
+       *
+       * @return the number of rows of the table
+       */
+      int end() {
+         render();
+         return rows;
+      }//end end
+
+      private void render() {
+         // the header goes with the first window, once there is a row
+         boolean withHeader = header != null && rows == window.size() && !window.isEmpty();
+         int[] widths = new int[withHeader ? header.length : 0];
+         if (withHeader) {
+            for (int i = 0; i < header.length; i++) widths[i] = header[i].length();
+         }//end if
+         for (String[] row : window) {
+            if (row.length > widths.length) {
+               int[] w = new int[row.length];
+               System.arraycopy(widths, 0, w, 0, widths.length);
+               widths = w;
+            }//end if
+            for (int i = 0; i < row.length; i++) {
+               if (row[i].length() > widths[i]) widths[i] = row[i].length();
+            }//end for
+         }//end for
+         if (withHeader) line(header, widths);
+         for (String[] row : window) {
+            line(row, widths);
+         }//end for
+         window.clear();
+      }//end render
+
+      private void line(String[] values, int[] widths) {
+         for (int i = 0; i < values.length; i++) {
+            print(values[i]);
+            if (i == values.length - 1) break;
+            spaces(widths[i] - values[i].length());
+            print(SEPARATOR);
+         }//end for
+         println();
+      }//end line
+   }//end Table
+
+   /**
+    * The value as shown, without the padding of char(n) columns.
+    */
+   static String display(String value) {
+      if (value == null) return "null";
+      int end = value.length();
+      while (end > 0 && value.charAt(end - 1) == ' ') end--;
+      return value.substring(0, end);
+   }//end display
+
+}//end Screen
@@ -0,0 +1,273 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Places the MESSAGE and CHAT_LIST rows of every chat on one of N shard
+ * databases.
+ *
+ * USR, the user lists and CHAT stay on the primary, which also hands out
+ * the chat ids.  A chat lives on shard hash(chat_id) mod N unless the
+ * CHAT_SHARD table on the primary places it elsewhere; shard -1 there
+ * stands for the primary itself, so an existing database can be sharded
+ * one chat at a time (see ShardRebalancer).  The placements are cached
+ * and reloaded whole every messenger.shardMapTtlMs (default 5s): the
+ * versions come from a sequence, so a placement committed after one with
+ * a higher version would be missed by reading only the newer versions,
+ * and rows deleted from CHAT_SHARD would never be dropped.
+ *
+ * While ShardRebalancer moves a chat its row is flagged as moving: writes
+ * to the chat are refused until the move is done, reads keep going to the
+ * old shard.
+ *
+ * The shards are given as host:port in -Dmessenger.shards and use the
+ * database name and user of the primary.  Without the property there is
+ * no ShardMap and every table stays on the primary.
+ *
+ */
+class ShardMap {
+
+   static final long ttlMillis = Long.getLong("messenger.shardMapTtlMs", 5000L);
+
+   // the CHAT_SHARD shard number of the primary
+   static final int PRIMARY = -1;
+
+   private final Connection primary;
+   private final String[] urls;
+   private final Connection[] shards;
+
+   // chat id -> {shard, 1 if the chat is being moved}
+   private IntHashMap<int[]> placements = new IntHashMap<int[]>();
+   private int onPrimary = 0;
+   private long loadedAt = 0;
+
+   private final ExecutorService fanOut;
+
+   public ShardMap(Connection primary, List<String> urls, String user, String passwd) throws SQLException {
+      this.primary = primary;
+      this.urls = urls.toArray(new String[urls.size()]);
+      this.shards = new Connection[this.urls.length];
+      try {
+         for (int i = 0; i < shards.length; i++) {
+            shards[i] = DriverManager.getConnection(this.urls[i], user, passwd);
+            OpStats.openConnections.incrementAndGet();
+         }//end for
+      }catch (SQLException e) {
+         close();
+         throw e;
+      }//end try
+      fanOut = Executors.newFixedThreadPool(shards.length + 1, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "shard-fan-out");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end ShardMap
+
+   /**
+    * Connects to the shards listed in messenger.shards.
+    *
+    * @param primary the connection to the primary
+    * @param dbname the database name, the same on every shard
+    * @return the shard map, or null if the property is not set
+    */
+   public static ShardMap fromProperties(Connection primary, String dbname, String user, String passwd) throws SQLException {
+      List<String> urls = urlsFromProperties(dbname);
+      if (urls.isEmpty()) return null;
+      return new ShardMap(primary, urls, user, passwd);
+   }//end fromProperties
+
+   static List<String> urlsFromProperties(String dbname) {
+      List<String> urls = new ArrayList<String>();
+      String list = System.getProperty("messenger.shards", "").trim();
+      if (list.length() == 0) return urls;
+      for (String hostPort : list.split(",")) {
+         urls.add("jdbc:postgresql://" + hostPort.trim() + "/" + dbname);
+      }//end for
+      return urls;
+   }//end urlsFromProperties
+
+   public int size() {
+      return shards.length;
+   }
+
+   /**
+    * The shard a chat lives on when CHAT_SHARD does not say otherwise.
+    */
+   static int hashShard(int chatId, int n) {
+      int h = chatId * 0x9E3779B9;
+      h ^= h >>> 16;
+      return (h & 0x7fffffff) % n;
+   }//end hashShard
+
+   /**
+    * Returns the shard number of the chat, PRIMARY if it is on the primary.
+    */
+   public synchronized int shardOf(int chatId) throws SQLException {
+      refresh();
+      int[] p = placements.get(chatId);
+      return p != null ? p[0] : hashShard(chatId, shards.length);
+   }//end shardOf
+
+   public Connection connection(int shard) {
+      return shard == PRIMARY ? primary : shards[shard];
+   }
+
+   public String url(int shard) {
+      return shard == PRIMARY ? "primary" : urls[shard];
+   }
+
+   /**
+    * Returns the connection holding the chat's messages and members.
+    */
+   public Connection forRead(int chatId) throws SQLException {
+      return connection(shardOf(chatId));
+   }
+
+   /**
+    * Returns the connection to write the chat's messages and members to.
+    *
+    * @throws java.sql.SQLException while the chat is being moved
+    */
+   public Connection forWrite(int chatId) throws SQLException {
+      int shard;
+      synchronized (this) {
+         refresh();
+         int[] p = placements.get(chatId);
+         if (p != null && p[1] != 0) {
+            throw new SQLException("Chat " + chatId + " is being moved to another shard, try again in a moment", "55006");
+         }//end if
+         shard = p != null ? p[0] : hashShard(chatId, shards.length);
+      }
+      return connection(shard);
+   }//end forWrite
+
+   /**
+    * Runs a query on every shard in parallel, and on the primary if chats
+    * are left there.  The first column of the query must be a chat id;
+    * rows are only kept from the database the chat lives on, so a chat
+    * that is being copied is not listed twice.
+    *
+    * @return the rows of all shards, in no particular order
+    */
+   public List<List<String>> queryChats(final String query) throws SQLException {
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      List<Integer> from = new ArrayList<Integer>();
+      boolean withPrimary;
+      synchronized (this) {
+         refresh();
+         withPrimary = onPrimary > 0;
+      }
+      for (int i = withPrimary ? PRIMARY : 0; i < shards.length; i++) {
+         final Connection conn = connection(i);
+         parts.add(fanOut.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               return rows(conn, query);
+            }
+         }));
+         from.add(i);
+      }//end for
+
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (int i = 0; i < parts.size(); i++) {
+         for (List<String> row : get(parts.get(i))) {
+            if (shardOf(Integer.parseInt(row.get(0).trim())) == from.get(i)) result.add(row);
+         }//end for
+      }//end for
+      return result;
+   }//end queryChats
+
+   private static List<List<String>> get(Future<List<List<String>>> part) throws SQLException {
+      try {
+         return part.get();
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while querying the shards");
+      }catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+         throw new SQLException(String.valueOf(e.getCause()));
+      }//end try
+   }//end get
+
+   static List<List<String>> rows(Connection conn, String query) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(query);
+         ResultSetMetaData rsmd = rs.getMetaData();
+         int numCol = rsmd.getColumnCount();
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()) {
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i = 1; i <= numCol; ++i) {
+               record.add(rs.getString(i));
+            }//end for
+            result.add(record);
+         }//end while
+         return result;
+      }finally {
+         stmt.close();
+      }//end try
+   }//end rows
+
+   /**
+    * Forgets the cached placements so the next lookup reads CHAT_SHARD.
+    */
+   public synchronized void expire() {
+      loadedAt = 0;
+   }
+
+   /**
+    * Reads CHAT_SHARD again once the cached placements are older than the
+    * TTL.
+    */
+   private void refresh() throws SQLException {
+      long now = System.currentTimeMillis();
+      if (now - loadedAt < ttlMillis) return;
+      Statement stmt = primary.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT chat_id, shard, moving FROM CHAT_SHARD;");
+         IntHashMap<int[]> loaded = new IntHashMap<int[]>();
+         int loadedOnPrimary = 0;
+         while (rs.next()) {
+            int shard = rs.getInt(2);
+            loaded.put(rs.getInt(1), new int[] { shard, rs.getBoolean(3) ? 1 : 0 });
+            if (shard == PRIMARY) loadedOnPrimary++;
+         }//end while
+         placements = loaded;
+         onPrimary = loadedOnPrimary;
+      }finally {
+         stmt.close();
+      }//end try
+      loadedAt = now;
+   }//end refresh
+
+   /**
+    * Closes the shard connections, the primary is closed by Messenger.
+    */
+   public void close() {
+      if (fanOut != null) fanOut.shutdownNow();
+      for (int i = 0; i < shards.length; i++) {
+         if (shards[i] == null) continue;
+         try {
+            shards[i].close();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+         shards[i] = null;
+         OpStats.openConnections.decrementAndGet();
+      }//end for
+   }//end close
+
+}//end ShardMap
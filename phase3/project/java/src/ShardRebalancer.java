@@ -0,0 +1,369 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves chats between the shard databases while Messenger sessions keep
+ * running.
+ *
+ *    java -Dmessenger.shards=localhost:5433,localhost:5434 ShardRebalancer <dbname> <port> <user> <command>
+ *
+ * Commands:
+ *    status              chats and messages on every database
+ *    pin [primary]       gives every chat without a CHAT_SHARD row one, on
+ *                        the shard it hashes to now or on the primary
+ *    move <chat> <shard> moves one chat, -1 is the primary
+ *    spread              moves every chat to the shard it hashes to
+ *
+ * To shard an existing database run "pin primary" before starting any
+ * session with messenger.shards set, then "spread".  To add shards run
+ * "pin" with the old shard list, then "spread" with the new one.
+ *
+ * A move copies the chat's messages while it is still written to, then
+ * flags it as moving in CHAT_SHARD and waits until every session has
+ * seen the flag (twice messenger.shardMapTtlMs) so no more writes reach
+ * the old shard.  The messages written or changed meanwhile and the
+ * member list are copied, the chat is switched to the new shard, and
+ * after another wait for the sessions still reading the old shard its
+ * rows there are deleted.  Writes to the chat are only refused for the
+ * second copy.  Message ids are unique across shards (see
+ * create_shard_tables.sql), so they are copied unchanged, and the id
+ * sequence of the new shard is advanced past the newest of them before
+ * the switch, so the messages written afterwards still sort after the
+ * older ones.  A move that was interrupted is finished by running it
+ * again.
+ *
+ */
+class ShardRebalancer {
+
+   private static final int BATCH = 1000;
+
+   private final Connection primary;
+   private final ShardMap shards;
+
+   ShardRebalancer(Connection primary, ShardMap shards) {
+      this.primary = primary;
+      this.shards = shards;
+   }
+
+   public static void main(String[] args) {
+      if (args.length < 4) {
+         System.err.println("Usage: java -Dmessenger.shards=<host:port>,... ShardRebalancer"
+               + " <dbname> <port> <user> status|pin [primary]|move <chat> <shard>|spread");
+         return;
+      }//end if
+      Connection primary = null;
+      ShardMap shards = null;
+      try {
+         Class.forName("org.postgresql.Driver").newInstance();
+         primary = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+         shards = ShardMap.fromProperties(primary, args[0], args[2], "");
+         if (shards == null) {
+            System.err.println("Set -Dmessenger.shards to the shards' host:port list");
+            return;
+         }//end if
+         ShardRebalancer r = new ShardRebalancer(primary, shards);
+         String command = args[3];
+         if (command.equals("status")) {
+            r.status();
+         }else if (command.equals("pin")) {
+            r.pin(args.length > 4 && args[4].equals("primary"));
+         }else if (command.equals("move") && args.length == 6) {
+            r.move(Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+         }else if (command.equals("spread")) {
+            r.spread();
+         }else {
+            System.err.println("Unknown command: " + command);
+         }//end if
+      }catch (Exception e) {
+         System.err.println(e.getMessage());
+      }finally {
+         if (shards != null) shards.close();
+         try {
+            if (primary != null) primary.close();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+   /**
+    * Prints the number of chats and messages on every database.
+    */
+   void status() throws SQLException {
+      for (int i = ShardMap.PRIMARY; i < shards.size(); i++) {
+         List<List<String>> rows = ShardMap.rows(shards.connection(i),
+               "SELECT count(DISTINCT chat_id), count(*) FROM MESSAGE;");
+         System.out.println(shards.url(i) + ": " + rows.get(0).get(0).trim() + " chats, "
+               + rows.get(0).get(1).trim() + " messages");
+      }//end for
+   }//end status
+
+   /**
+    * Writes a CHAT_SHARD row for every chat that has none, so the chats
+    * stay where they are when the shard list changes.
+    *
+    * @param onPrimary pin the chats to the primary instead of their shard
+    */
+   void pin(boolean onPrimary) throws SQLException {
+      List<List<String>> chats = ShardMap.rows(primary,
+            "SELECT c.chat_id FROM CHAT c WHERE NOT EXISTS (SELECT 1 FROM CHAT_SHARD s WHERE s.chat_id = c.chat_id);");
+      PreparedStatement insert = primary.prepareStatement(
+            "INSERT INTO CHAT_SHARD(chat_id, shard) VALUES (?, ?)");
+      try {
+         primary.setAutoCommit(false);
+         int n = 0;
+         for (List<String> row : chats) {
+            int chat = Integer.parseInt(row.get(0).trim());
+            insert.setInt(1, chat);
+            insert.setInt(2, onPrimary ? ShardMap.PRIMARY : ShardMap.hashShard(chat, shards.size()));
+            insert.addBatch();
+            if (++n % BATCH == 0) insert.executeBatch();
+         }//end for
+         insert.executeBatch();
+         primary.commit();
+      }finally {
+         primary.setAutoCommit(true);
+         insert.close();
+      }//end try
+      System.out.println(chats.size() + " chats pinned");
+   }//end pin
+
+   /**
+    * Moves every chat that is not on the shard its id hashes to.
+    */
+   void spread() throws SQLException, InterruptedException {
+      List<List<String>> rows = ShardMap.rows(primary, "SELECT chat_id, shard FROM CHAT_SHARD ORDER BY chat_id;");
+      int moved = 0;
+      for (List<String> row : rows) {
+         int chat = Integer.parseInt(row.get(0).trim());
+         int target = ShardMap.hashShard(chat, shards.size());
+         if (Integer.parseInt(row.get(1).trim()) == target) continue;
+         move(chat, target);
+         moved++;
+      }//end for
+      System.out.println(moved + " chats moved");
+   }//end spread
+
+   /**
+    * Moves the messages and members of a chat to another shard.
+    */
+   void move(int chat, int target) throws SQLException, InterruptedException {
+      if (target < ShardMap.PRIMARY || target >= shards.size()) {
+         throw new SQLException("No shard " + target);
+      }//end if
+      shards.expire();
+      int source = shards.shardOf(chat);
+      Connection to = shards.connection(target);
+      if (source != target) {
+         Connection from = shards.connection(source);
+         long start = System.currentTimeMillis();
+         System.out.println("Moving chat " + chat + " from " + shards.url(source) + " to " + shards.url(target));
+
+         // a previous attempt may have left rows behind
+         update(to, String.format("DELETE FROM MESSAGE WHERE chat_id = %d;", chat));
+         update(to, String.format("DELETE FROM CHAT_LIST WHERE chat_id = %d;", chat));
+         int copied = copyMessages(from, to, chat, 0, Integer.MAX_VALUE);
+         int watermark = lastMessage(to, chat);
+
+         place(chat, source, true);
+         Thread.sleep(2 * ShardMap.ttlMillis);
+
+         // writes are refused now, catch up with the ones made meanwhile
+         copied += copyMessages(from, to, chat, watermark, Integer.MAX_VALUE);
+         copied += syncChanged(from, to, chat, watermark);
+         copyMembers(from, to, chat);
+         advancePast(to, lastMessage(to, chat));
+
+         place(chat, target, false);
+         System.out.println(copied + " messages copied in " + (System.currentTimeMillis() - start) + " ms");
+         Thread.sleep(ShardMap.ttlMillis);
+      }else {
+         place(chat, target, false);
+      }//end if
+
+      // rows left behind by this or an interrupted move
+      for (int i = ShardMap.PRIMARY; i < shards.size(); i++) {
+         if (i == target) continue;
+         Connection conn = shards.connection(i);
+         update(conn, String.format("DELETE FROM MESSAGE WHERE chat_id = %d;", chat));
+         update(conn, String.format("DELETE FROM CHAT_LIST WHERE chat_id = %d;", chat));
+      }//end for
+   }//end move
+
+   /**
+    * Sets the placement of a chat in CHAT_SHARD.
+    */
+   private void place(int chat, int shard, boolean moving) throws SQLException {
+      String set = String.format("shard = %d, moving = %s, version = nextval('chat_shard_version_seq')",
+            shard, moving ? "true" : "false");
+      if (update(primary, String.format("UPDATE CHAT_SHARD SET %s WHERE chat_id = %d;", set, chat)) == 0) {
+         update(primary, String.format("INSERT INTO CHAT_SHARD(chat_id, shard, moving) VALUES (%d, %d, %s);",
+               chat, shard, moving ? "true" : "false"));
+      }//end if
+   }//end place
+
+   /**
+    * Copies the messages of a chat with ids in (after, upTo] in batches,
+    * without holding more than a batch in memory.
+    *
+    * @return the number of messages copied
+    */
+   private static int copyMessages(Connection from, Connection to, int chat, int after, int upTo) throws SQLException {
+      PreparedStatement insert = to.prepareStatement(
+            "INSERT INTO MESSAGE(msg_id, msg_text, msg_timestamp, sender_id, chat_id, client_key) VALUES (?, ?, ?, ?, ?, ?)");
+      int copied = 0;
+      try {
+         to.setAutoCommit(false);
+         while (true) {
+            Statement stmt = from.createStatement();
+            int n = 0;
+            try {
+               ResultSet rs = stmt.executeQuery(String.format(
+                     "SELECT msg_id, msg_text, msg_timestamp, sender_id, client_key FROM MESSAGE"
+                     + " WHERE chat_id = %d AND msg_id > %d AND msg_id <= %d ORDER BY msg_id LIMIT %d;",
+                     chat, after, upTo, BATCH));
+               while (rs.next()) {
+                  after = rs.getInt(1);
+                  insert.setInt(1, after);
+                  insert.setString(2, rs.getString(2));
+                  insert.setTimestamp(3, rs.getTimestamp(3));
+                  // imported messages of unknown senders have none
+                  int sender = rs.getInt(4);
+                  if (rs.wasNull()) insert.setNull(4, Types.INTEGER);
+                  else insert.setInt(4, sender);
+                  insert.setInt(5, chat);
+                  insert.setString(6, rs.getString(5));
+                  insert.addBatch();
+                  n++;
+               }//end while
+            }finally {
+               stmt.close();
+            }//end try
+            if (n == 0) break;
+            insert.executeBatch();
+            to.commit();
+            copied += n;
+            if (n < BATCH) break;
+         }//end while
+      }finally {
+         to.setAutoCommit(true);
+         insert.close();
+      }//end try
+      return copied;
+   }//end copyMessages
+
+   /**
+    * Brings the already copied messages, ids up to the watermark, in line
+    * with the source after edits and deletes.  Only ids and checksums of
+    * the texts are compared.
+    *
+    * @return the number of messages copied again
+    */
+   private static int syncChanged(Connection from, Connection to, int chat, int watermark) throws SQLException {
+      int recopied = 0;
+      int after = 0;
+      while (after < watermark) {
+         List<List<String>> src = ShardMap.rows(from, String.format(
+               "SELECT msg_id, md5(msg_text) FROM MESSAGE WHERE chat_id = %d AND msg_id > %d AND msg_id <= %d ORDER BY msg_id LIMIT %d;",
+               chat, after, watermark, BATCH));
+         int upTo = src.size() < BATCH ? watermark : Integer.parseInt(src.get(src.size() - 1).get(0).trim());
+         List<List<String>> dst = ShardMap.rows(to, String.format(
+               "SELECT msg_id, md5(msg_text) FROM MESSAGE WHERE chat_id = %d AND msg_id > %d AND msg_id <= %d;",
+               chat, after, upTo));
+
+         Map<String, String> sums = new HashMap<String, String>();
+         for (List<String> row : src) {
+            sums.put(row.get(0).trim(), row.get(1));
+         }//end for
+         List<String> stale = new ArrayList<String>();
+         for (List<String> row : dst) {
+            String id = row.get(0).trim();
+            String sum = sums.remove(id);
+            if (sum == null) {
+               stale.add(id);
+            }else if (!sum.equals(row.get(1))) {
+               stale.add(id);
+               sums.put(id, sum);
+            }//end if
+         }//end for
+         for (String id : stale) {
+            update(to, String.format("DELETE FROM MESSAGE WHERE msg_id = %s;", id));
+         }//end for
+         // what is left in sums is missing or outdated on the target
+         for (String id : sums.keySet()) {
+            int msg = Integer.parseInt(id);
+            recopied += copyMessages(from, to, chat, msg - 1, msg);
+         }//end for
+         after = upTo;
+      }//end while
+      return recopied;
+   }//end syncChanged
+
+   /**
+    * Replaces the member list of the chat on the target, with the read
+    * cursors of the members.
+    */
+   private static void copyMembers(Connection from, Connection to, int chat) throws SQLException {
+      List<List<String>> members = ShardMap.rows(from,
+            String.format("SELECT member, last_read_msg_id FROM CHAT_LIST WHERE chat_id = %d;", chat));
+      PreparedStatement insert = to.prepareStatement("INSERT INTO CHAT_LIST(chat_id, member, last_read_msg_id) VALUES (?, ?, ?)");
+      try {
+         to.setAutoCommit(false);
+         Statement stmt = to.createStatement();
+         stmt.executeUpdate(String.format("DELETE FROM CHAT_LIST WHERE chat_id = %d;", chat));
+         stmt.close();
+         for (List<String> row : members) {
+            insert.setInt(1, chat);
+            insert.setInt(2, Integer.parseInt(row.get(0).trim()));
+            insert.setInt(3, Integer.parseInt(row.get(1).trim()));
+            insert.addBatch();
+         }//end for
+         insert.executeBatch();
+         to.commit();
+      }finally {
+         to.setAutoCommit(true);
+         insert.close();
+      }//end try
+   }//end copyMembers
+
+   private static int lastMessage(Connection conn, int chat) throws SQLException {
+      List<List<String>> rows = ShardMap.rows(conn,
+            String.format("SELECT MAX(msg_id) FROM MESSAGE WHERE chat_id = %d;", chat));
+      String max = rows.get(0).get(0);
+      return max == null ? 0 : Integer.parseInt(max.trim());
+   }//end lastMessage
+
+   /**
+    * Advances the message id sequence of a database past an id.  The
+    * sequence is moved with nextval, never set, so the ids other chats
+    * take from it meanwhile cannot be handed out twice; the two extra
+    * steps cover a sequence that has not been used yet.
+    */
+   private static void advancePast(Connection conn, int msgId) throws SQLException {
+      ShardMap.rows(conn, String.format(
+            "SELECT count(nextval('message_msg_id_seq')) FROM"
+            + " (SELECT COALESCE(last_value, start_value) AS last, increment_by FROM pg_sequences"
+            + " WHERE sequencename = 'message_msg_id_seq') s,"
+            + " generate_series(1, (%d - s.last) / s.increment_by + 2) WHERE s.last <= %d;",
+            msgId, msgId));
+   }//end advancePast
+
+   private static int update(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         return stmt.executeUpdate(sql);
+      }finally {
+         stmt.close();
+      }//end try
+   }//end update
+
+}//end ShardRebalancer
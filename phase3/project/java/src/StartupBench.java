@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how fast an interactive session starts, by launching the
+ * Messenger as a child process the way a user does.
+ *
+ *    java StartupBench <dbname> <port> <user> [<login> <password>]
+ *    java StartupBench memory
+ *
+ * Reports, per launch mode, the time from starting the JVM to the first
+ * menu prompt (time-to-first-prompt) and to the prompt after a log in,
+ * which needs the first query (time-to-first-query).  The modes are the
+ * default launch, -Dmessenger.lazyConnect=true, and lazy connect on the
+ * class-data-sharing archive -Dbench.archive=<file> when one is given
+ * (see scripts/fast_start.sh).  Each mode runs -Dbench.runs times
+ * (default 5) and the median is reported.  The child gets the class path
+ * of the benchmark and runs with the outbox and the purger off.
+ *
+ */
+class StartupBench {
+
+   private static final int runs = Integer.getInteger("bench.runs", 5);
+   private static final String PROMPT = "Please make your choice: ";
+
+   public static void main(String[] args) throws Exception {
+      List<String> app = new ArrayList<String>();
+      List<String> memory = new ArrayList<String>();
+      String login = "startup-bench";
+      String password = "startup-bench";
+      if (args.length == 1 && args[0].equals("memory")) {
+         memory.add("-Dmessenger.storage=memory");
+         app.add("db");
+         app.add("0");
+         app.add("user");
+      }else if (args.length == 3 || args.length == 5) {
+         for (int i = 0; i < 3; i++) app.add(args[i]);
+         if (args.length == 5) {
+            login = args[3];
+            password = args[4];
+         }//end if
+      }else {
+         System.err.println("Usage: java StartupBench memory | <dbname> <port> <user> [<login> <password>]");
+         return;
+      }//end if
+      String input = "2\n" + login + "\n" + password + "\n0\n";
+
+      measure("default", memory, app, input);
+      List<String> lazy = new ArrayList<String>(memory);
+      lazy.add("-Dmessenger.lazyConnect=true");
+      measure("lazy connect", lazy, app, input);
+      String archive = System.getProperty("bench.archive");
+      if (archive != null) {
+         List<String> cds = new ArrayList<String>(lazy);
+         cds.add("-XX:SharedArchiveFile=" + archive);
+         measure("lazy connect + AppCDS", cds, app, input);
+      }//end if
+   }//end main
+
+   private static void measure(String mode, List<String> jvmArgs, List<String> app, String input) throws Exception {
+      long[] prompt = new long[runs];
+      long[] query = new long[runs];
+      for (int run = 0; run < runs; run++) {
+         long[] t = launch(jvmArgs, app, input);
+         prompt[run] = t[0];
+         query[run] = t[1];
+      }//end for
+      java.util.Arrays.sort(prompt);
+      java.util.Arrays.sort(query);
+      System.out.println(String.format("%-24s first prompt %7.1f ms   first query %7.1f ms",
+            mode, prompt[runs / 2] / 1e6, query[runs / 2] / 1e6));
+   }//end measure
+
+   /**
+    * Runs one session.
+    *
+    * @return nanoseconds to the first prompt and to the prompt after the
+    *         log in
+    */
+   private static long[] launch(List<String> jvmArgs, List<String> app, String input) throws Exception {
+      List<String> command = new ArrayList<String>();
+      command.add(System.getProperty("java.home") + "/bin/java");
+      command.addAll(jvmArgs);
+      command.add("-Dmessenger.outbox=off");
+      command.add("-Dmessenger.purge=off");
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add("Messenger");
+      command.addAll(app);
+
+      long start = System.nanoTime();
+      Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+      InputStream out = p.getInputStream();
+      OutputStream in = p.getOutputStream();
+      long[] times = new long[2];
+      try {
+         waitFor(out, PROMPT);
+         times[0] = System.nanoTime() - start;
+         in.write(input.getBytes("UTF-8"));
+         in.flush();
+         waitFor(out, PROMPT);
+         times[1] = System.nanoTime() - start;
+         while (out.read() >= 0) { }
+      }finally {
+         in.close();
+         p.waitFor();
+      }//end try
+      return times;
+   }//end launch
+
+   /**
+    * Reads the child's output up to and including the text.
+    */
+   private static void waitFor(InputStream out, String text) throws IOException {
+      byte[] pattern = text.getBytes("UTF-8");
+      int matched = 0;
+      while (matched < pattern.length) {
+         int b = out.read();
+         if (b < 0) throw new IOException("Session ended before \"" + text.trim() + "\"");
+         if (b == pattern[matched]) matched++;
+         else matched = b == pattern[0] ? 1 : 0;
+      }//end while
+   }//end waitFor
+
+}//end StartupBench
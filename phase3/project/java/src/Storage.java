@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * The data the Messenger menus work on: users, their contact and blocked
+ * lists, chats and messages.
+ *
+ * PgStorage keeps them in the PostgreSQL tables, MemoryStorage in the
+ * heap of the running process.  Users, chats and messages are identified
+ * by int ids; UserDirectory.UNKNOWN stands for a user that does not
+ * exist.  Failures are reported as SQLException by both engines, with the
+ * PostgreSQL SQLState where one applies (e.g. 23505 for duplicates).
+ *
+ * Chats and messages can be created with an idempotency key: a second
+ * call with a key that was already used changes nothing, createChat then
+ * returns the chat created the first time.  Outbox relies on this to
+ * replay sends safely.
+ *
+ */
+interface Storage {
+
+   /**
+    * The two lists every user has.
+    */
+   enum UserList {
+      CONTACTS("contact_list", "contact"),
+      BLOCKED("block_list", "block");
+
+      // column of USR referencing the list, and the USER_LIST.list_type
+      final String column;
+      final String type;
+
+      UserList(String column, String type) {
+         this.column = column;
+         this.type = type;
+      }
+   }//end UserList
+
+   /**
+    * One message of a chat.
+    */
+   static class Message {
+      final int id;
+      final int chat;
+      final int sender;
+      final String time;
+      final String text;
+
+      Message(int id, int chat, int sender, String time, String text) {
+         this.id = id;
+         this.chat = chat;
+         this.sender = sender;
+         this.time = time;
+         this.text = text;
+      }
+   }//end Message
+
+   /**
+    * Message count, member count and newest message of a chat.
+    */
+   static class ChatSummary {
+      final int chat;
+      final long messages;
+      final int members;
+      // time and sender of the newest message, null and UNKNOWN without messages
+      final String lastActivity;
+      final int lastSender;
+
+      ChatSummary(int chat, long messages, int members, String lastActivity, int lastSender) {
+         this.chat = chat;
+         this.messages = messages;
+         this.members = members;
+         this.lastActivity = lastActivity;
+         this.lastSender = lastSender;
+      }
+   }//end ChatSummary
+
+   /**
+    * A user suggested as a contact and the number of the contacts it has
+    * in common with the user it is suggested to.
+    */
+   static class Suggestion {
+      final int user;
+      final int mutual;
+
+      Suggestion(int user, int mutual) {
+         this.user = user;
+         this.mutual = mutual;
+      }
+   }//end Suggestion
+
+   /**
+    * When a logged in user was last active, as stored for the other
+    * processes.
+    */
+   static class Seen {
+      // milliseconds since
+      final long ago;
+      final boolean away;
+
+      Seen(long ago, boolean away) {
+         this.ago = ago;
+         this.away = away;
+      }
+   }//end Seen
+
+   /**
+    * Receives the members of the lists one at a time.
+    */
+   interface EdgeHandler {
+      void edge(int user, int member);
+   }//end EdgeHandler
+
+   /**
+    * Receives the messages of a chat one at a time.
+    */
+   interface MessageHandler {
+      void message(Message m) throws IOException;
+   }//end MessageHandler
+
+   // users
+
+   /**
+    * Creates a user with an empty contact and blocked list.
+    */
+   void createUser(String login, String password, String phone) throws SQLException;
+
+   /**
+    * @return the id of the user, or UNKNOWN if login or password is wrong
+    */
+   int logIn(String login, String password) throws SQLException;
+
+   /**
+    * @return the id of the user, or UNKNOWN if there is no such user
+    */
+   int userId(String login) throws SQLException;
+
+   /**
+    * @return the login of the user, or "#<id>" if there is no such user
+    */
+   String login(int user) throws SQLException;
+
+   /**
+    * @return the logins of the users, in the order of the ids
+    */
+   String[] logins(int[] users) throws SQLException;
+
+   /**
+    * Sets the status text of the user, null clears it.
+    */
+   void setStatus(int user, String status) throws SQLException;
+
+   /**
+    * @return the status texts of the users, in the order of the ids, null
+    *         for the users without one
+    */
+   String[] statuses(int[] users) throws SQLException;
+
+   /**
+    * Records that the user is active now, away if the state is AWAY, or
+    * that it logged out if it is OFFLINE.
+    */
+   void setSeen(int user, Presence.State state) throws SQLException;
+
+   /**
+    * @return when the users were last active, in the order of the ids,
+    *         null for the users that are logged out
+    */
+   Seen[] seen(int[] users) throws SQLException;
+
+   /**
+    * Resolves phone numbers, normalized by PhoneNumbers.normalize, with
+    * one lookup.
+    *
+    * @return the ids of the users with the numbers, in the order of the
+    *         numbers, UNKNOWN where no user has it
+    */
+   int[] usersByPhone(String[] numbers) throws SQLException;
+
+   /**
+    * Deletes the account with its chats, messages, memberships and
+    * lists.  The user is gone for the readers on return, its rows may be
+    * removed later.
+    */
+   void deleteUser(int user) throws SQLException;
+
+   // contact and blocked lists
+
+   void addToList(int user, UserList list, int member) throws SQLException;
+
+   /**
+    * @return true if the member was on the list
+    */
+   boolean removeFromList(int user, UserList list, int member) throws SQLException;
+
+   /**
+    * Adds the members to the list at once, skipping the ones already on
+    * it and the user itself.
+    *
+    * @return the members that were added
+    */
+   int[] addToList(int user, UserList list, int[] members) throws SQLException;
+
+   int[] listMembers(int user, UserList list) throws SQLException;
+
+   /**
+    * Hands every member of the given list of every user to the handler,
+    * in no particular order, without holding all of them in memory.
+    * Deleted users are left out on both ends.
+    *
+    * @return the number of members
+    */
+   long listEdges(UserList list, EdgeHandler handler) throws SQLException;
+
+   /**
+    * @return at most limit users the user might know: the contacts of its
+    *         contacts, most contacts in common first, without its
+    *         contacts and the users blocked by or blocking it
+    */
+   Suggestion[] suggestContacts(int user, int limit) throws SQLException;
+
+   // chats
+
+   /**
+    * Creates a chat.
+    *
+    * @param type "private" or "group"
+    * @param owner the user creating the chat
+    * @param members all members, including the owner
+    * @param key idempotency key, or null
+    * @return the id of the new chat
+    */
+   int createChat(String type, int owner, int[] members, String key) throws SQLException;
+
+   /**
+    * @return the ids of the chats the user is a member of
+    */
+   int[] chatsOf(int user) throws SQLException;
+
+   int[] chatMembers(int chat) throws SQLException;
+
+   /**
+    * @return the summaries of the chats, in the order of the ids
+    */
+   ChatSummary[] chatSummaries(int[] chats) throws SQLException;
+
+   /**
+    * Moves the user's read cursor of the chat forward to the message.
+    * The cursors may be written later, together with others.
+    */
+   void markRead(int chat, int user, int msgId) throws SQLException;
+
+   /**
+    * Writes the read cursors that are waiting.
+    */
+   void flushReads() throws SQLException;
+
+   /**
+    * @return the number of messages of each chat newer than the user's
+    *         read cursor, in the order of the chats, counted up to
+    *         ReadCursors.UNREAD_LIMIT
+    */
+   int[] unreadCounts(int user, int[] chats) throws SQLException;
+
+   boolean isOwner(int chat, int user) throws SQLException;
+
+   boolean isMember(int chat, int user) throws SQLException;
+
+   void addMember(int chat, int user) throws SQLException;
+
+   void removeMember(int chat, int user) throws SQLException;
+
+   /**
+    * Deletes the chat with its members and messages.  The chat is gone
+    * for the readers on return, its rows may be removed later.
+    */
+   void deleteChat(int chat) throws SQLException;
+
+   // messages
+
+   /**
+    * Adds a message to the chat.
+    *
+    * @param time when the message was sent, null for now
+    * @param key idempotency key, or null
+    */
+   void addMessage(int chat, int sender, String text, Timestamp time, String key) throws SQLException;
+
+   /**
+    * Replaces the text of a message written by the sender.
+    *
+    * @return false if the chat has no such message from the sender
+    */
+   boolean editMessage(int chat, int msgId, int sender, String text) throws SQLException;
+
+   /**
+    * Deletes a message written by the sender.
+    *
+    * @return false if the chat has no such message from the sender
+    */
+   boolean deleteMessage(int chat, int msgId, int sender) throws SQLException;
+
+   /**
+    * @return the messages of the chat, oldest first
+    */
+   List<Message> messages(int chat) throws SQLException;
+
+   /**
+    * @return the newest messages of the chat, at most limit, newest first
+    */
+   List<Message> recentMessages(int chat, int limit) throws SQLException;
+
+   /**
+    * Hands every message of the chat to the handler in id order, without
+    * holding the whole chat in memory.
+    *
+    * @return the number of messages
+    */
+   long streamMessages(int chat, MessageHandler handler) throws SQLException, IOException;
+
+   /**
+    * @return the message, or null if the chat has no such message
+    */
+   Message message(int chat, int msgId) throws SQLException;
+
+}//end Storage
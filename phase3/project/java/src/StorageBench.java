@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Load test driving the Storage operations the menus use, to compare the
+ * PostgreSQL engine with the in-memory one.
+ *
+ *    java StorageBench memory
+ *    java StorageBench postgres <dbname> <port> <user>
+ *
+ * -Dbench.users (default 1000), -Dbench.contacts (per user, default 10)
+ * and -Dbench.messages (default 20000) size the run.  Every phase runs as
+ * one OpStats operation per call, so the latency table printed at the end
+ * has the same shape as the one of an interactive session.  The postgres
+ * run leaves its users and chats behind, their logins start with "bench".
+ *
+ */
+class StorageBench {
+
+   private static final int users = Integer.getInteger("bench.users", 1000);
+   private static final int contacts = Integer.getInteger("bench.contacts", 10);
+   private static final int messages = Integer.getInteger("bench.messages", 20000);
+
+   public static void main(String[] args) throws Exception {
+      Messenger esql = null;
+      if (args.length == 1 && args[0].equals("memory")) {
+         esql = new Messenger(new MemoryStorage());
+      }else if (args.length == 4 && args[0].equals("postgres")) {
+         Class.forName("org.postgresql.Driver").newInstance();
+         esql = new Messenger(args[1], args[2], args[3], "");
+      }else {
+         System.err.println("Usage: java StorageBench memory | postgres <dbname> <port> <user>");
+         return;
+      }//end if
+      try {
+         run(esql.store);
+      }finally {
+         esql.cleanup();
+      }//end try
+      OpStats.printSummary(System.out);
+   }//end main
+
+   static void run(Storage store) throws Exception {
+      Random random = new Random(42);
+      String prefix = "bench" + Long.toString(System.currentTimeMillis() % 100000000L, 36) + "_";
+      long phoneBase = (System.currentTimeMillis() % 100000000L) * 10000000L;
+
+      long start = System.nanoTime();
+      int[] ids = new int[users];
+      for (int i = 0; i < users; i++) {
+         OpStats.begin("bench.createUser");
+         try {
+            store.createUser(prefix + i, "pw", Long.toString(phoneBase + i));
+            ids[i] = store.logIn(prefix + i, "pw");
+         }finally {
+            OpStats.end();
+         }//end try
+      }//end for
+      report("create + log in users", users, start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < users; i++) {
+         for (int j = 1; j <= contacts && j < users; j++) {
+            OpStats.begin("bench.addToList");
+            try {
+               store.addToList(ids[i], Storage.UserList.CONTACTS, ids[(i + j) % users]);
+            }finally {
+               OpStats.end();
+            }//end try
+         }//end for
+      }//end for
+      report("add contacts", users * Math.min(contacts, users - 1), start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < users; i++) {
+         OpStats.begin("bench.listContacts");
+         try {
+            store.logins(store.listMembers(ids[i], Storage.UserList.CONTACTS));
+         }finally {
+            OpStats.end();
+         }//end try
+      }//end for
+      report("list contacts", users, start);
+
+      start = System.nanoTime();
+      List<Integer> chats = new ArrayList<Integer>();
+      for (int i = 0; i + 1 < users; i += 2) {
+         OpStats.begin("bench.createChat");
+         try {
+            chats.add(store.createChat("private", ids[i], new int[] { ids[i + 1], ids[i] }, null));
+         }finally {
+            OpStats.end();
+         }//end try
+      }//end for
+      report("create chats", chats.size(), start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < messages; i++) {
+         int c = random.nextInt(chats.size());
+         OpStats.begin("bench.addMessage");
+         try {
+            store.addMessage(chats.get(c), ids[2 * c + random.nextInt(2)], "message " + i, null, null);
+         }finally {
+            OpStats.end();
+         }//end try
+      }//end for
+      report("add messages", messages, start);
+
+      start = System.nanoTime();
+      long read = 0;
+      for (int i = 0; i < users; i++) {
+         OpStats.begin("bench.readChats");
+         try {
+            for (int chat : store.chatsOf(ids[i])) {
+               if (store.isMember(chat, ids[i])) read += store.messages(chat).size();
+            }//end for
+         }finally {
+            OpStats.end();
+         }//end try
+      }//end for
+      report("read chats (" + read + " messages)", users, start);
+   }//end run
+
+   private static void report(String phase, long n, long startNanos) {
+      double secs = (System.nanoTime() - startNanos) / 1e9;
+      System.out.println(String.format("%-36s %8d calls %10.3f s %12.0f calls/s", phase, n, secs, n / secs));
+   }//end report
+
+}//end StorageBench
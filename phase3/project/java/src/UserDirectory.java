@@ -0,0 +1,107 @@
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Two-way dictionary between logins and the integer user ids every
+ * foreign key in the schema uses.
+ *
+ * The tables only store user ids, the menus show and read logins.  Each
+ * login is looked up once per session and then translated in memory, a
+ * list of ids is translated with a single IN query for the ids not seen
+ * before.  Logins are kept without their char(50) padding.
+ *
+ */
+class UserDirectory {
+
+   // user id reported for logins that do not exist
+   static final int UNKNOWN = -1;
+
+   private final HashMap<String, Integer> idByLogin = new HashMap<String, Integer>();
+   private final IntHashMap<String> loginById = new IntHashMap<String>();
+
+   /**
+    * Records a login and its id, e.g. after the user was created.
+    */
+   public synchronized void remember(int id, String login) {
+      String l = login.trim();
+      idByLogin.put(l, id);
+      loginById.put(id, l);
+   }//end remember
+
+   /**
+    * Forgets a user, e.g. after the account was deleted.
+    */
+   public synchronized void forget(int id) {
+      String login = loginById.remove(id);
+      if (login != null) idByLogin.remove(login);
+   }//end forget
+
+   /**
+    * Returns the id of a login, or UNKNOWN if there is no such user or
+    * the account was deleted.
+    */
+   public int idOf(Messenger esql, String login) throws SQLException {
+      String l = login.trim();
+      synchronized (this) {
+         Integer id = idByLogin.get(l);
+         if (id != null) return id;
+      }
+      String found = esql.value("SELECT user_id FROM USR WHERE login = ? AND NOT deleted", l);
+      if (found == null) return UNKNOWN;
+      int id = Integer.parseInt(found.trim());
+      remember(id, l);
+      return id;
+   }//end idOf
+
+   /**
+    * Returns the login of a user id, or the id itself if the user no
+    * longer exists.
+    */
+   public String loginOf(Messenger esql, int id) throws SQLException {
+      return loginsOf(esql, new int[] { id })[0];
+   }
+
+   /**
+    * Translates a list of user ids with at most one round trip.
+    */
+   public String[] loginsOf(Messenger esql, int[] ids) throws SQLException {
+      String[] logins = new String[ids.length];
+      StringBuilder missing = new StringBuilder();
+      synchronized (this) {
+         for (int i = 0; i < ids.length; i++) {
+            logins[i] = loginById.get(ids[i]);
+            if (logins[i] == null) {
+               if (missing.length() > 0) missing.append(',');
+               missing.append(ids[i]);
+            }//end if
+         }//end for
+      }
+      if (missing.length() == 0) return logins;
+
+      String query = "SELECT user_id, login FROM USR WHERE user_id IN (" + missing + ");";
+      List<List<String>> result = esql.executeQueryAndReturnResult(query);
+      for (List<String> row : result) {
+         remember(Integer.parseInt(row.get(0).trim()), row.get(1));
+      }//end for
+      synchronized (this) {
+         for (int i = 0; i < ids.length; i++) {
+            if (logins[i] == null) logins[i] = loginById.get(ids[i]);
+            if (logins[i] == null) logins[i] = "#" + ids[i];
+         }//end for
+      }
+      return logins;
+   }//end loginsOf
+
+   /**
+    * Parses the first column of each row as a user id.
+    */
+   static int[] ids(List<List<String>> rows) {
+      int[] ids = new int[rows.size()];
+      for (int i = 0; i < ids.length; i++) {
+         ids[i] = Integer.parseInt(rows.get(i).get(0).trim());
+      }//end for
+      return ids;
+   }//end ids
+
+}//end UserDirectory
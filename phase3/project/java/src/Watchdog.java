@@ -0,0 +1,187 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency budgets of the operations, enforced on every statement the
+ * Messenger helpers send, so a slow query or a lock wait cannot hold a
+ * session or its connection forever.
+ *
+ * The budget of an operation (the name given to OpStats.begin) covers
+ * all of its statements; time spent waiting for keyboard input does not
+ * count.  Before a statement is sent the operation's time left is
+ * checked, and an operation that is over its budget fails right there.
+ * The statement then runs with three limits:
+ *
+ *    - the JDBC query timeout, set to the time left;
+ *    - a timer that calls Statement.cancel() when the time is up;
+ *    - the server's statement_timeout, set to the budget of the
+ *      operation, which stops the statement even with a driver that can
+ *      neither time out nor cancel (the bundled pg73 driver can't).  It
+ *      is only set again when the budget changes, and not inside
+ *      transactions, whose rollback would undo it.
+ *
+ * A statement stopped by any of them fails with SQLState 57014 and is
+ * counted as over budget against its operation (see OpStats).
+ *
+ * Settings (system properties):
+ *    messenger.budgetMs             budget of every operation (default 30000, 0 for none)
+ *    messenger.budget.<operation>   budget of one operation, e.g. messenger.budget.SelectChat=5000
+ *
+ * ExportChat streams whole chats and has no budget unless one is set.
+ *
+ */
+class Watchdog {
+
+   // SQLState of a statement cancelled by the DBMS or the driver
+   static final String CANCELED = "57014";
+
+   static final long defaultMillis = Long.getLong("messenger.budgetMs", 30000L);
+
+   private static final ConcurrentHashMap<String, Long> budgets = new ConcurrentHashMap<String, Long>();
+
+   // statement_timeout last set on each connection, in ms
+   private static final Map<Connection, Long> serverTimeouts =
+         Collections.synchronizedMap(new WeakHashMap<Connection, Long>());
+
+   private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "messenger-watchdog");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   static {
+      timer.setRemoveOnCancelPolicy(true);
+   }
+
+   /**
+    * One statement being watched.
+    */
+   static class Guard implements Runnable {
+      final Statement stmt;
+      final String op;
+      final long budget;
+      ScheduledFuture<?> future;
+      private boolean finished = false;
+      private boolean fired = false;
+
+      Guard(Statement stmt, String op, long budget) {
+         this.stmt = stmt;
+         this.op = op;
+         this.budget = budget;
+      }
+
+      public void run() {
+         synchronized (this) {
+            if (finished) return;
+            fired = true;
+         }
+         try {
+            stmt.cancel();
+         }catch (SQLException e) {
+            // the driver cannot cancel, statement_timeout ends the statement
+         }//end try
+      }//end run
+
+      synchronized boolean finish() {
+         finished = true;
+         if (future != null) future.cancel(false);
+         return fired;
+      }
+   }//end Guard
+
+   /**
+    * @return the budget of the operation in ms, 0 for none
+    */
+   static long budgetMillis(String op) {
+      Long budget = budgets.get(op);
+      if (budget == null) {
+         budget = Long.getLong("messenger.budget." + op, op.equals("ExportChat") ? 0L : defaultMillis);
+         budgets.putIfAbsent(op, budget);
+      }//end if
+      return budget;
+   }//end budgetMillis
+
+   /**
+    * Starts watching a statement of the running operation, call it right
+    * before the statement is sent and finish the guard with done() or
+    * failed().
+    *
+    * @return the guard, null if the operation has no budget
+    * @throws java.sql.SQLException with SQLState 57014 if the operation
+    *         is over its budget already
+    */
+   static Guard watch(Statement stmt) throws SQLException {
+      String op = OpStats.currentOp();
+      long budget = budgetMillis(op);
+      if (budget <= 0) {
+         // lift the timeout an earlier operation left on the connection
+         serverTimeout(stmt.getConnection(), 0);
+         return null;
+      }//end if
+      long left = budget - OpStats.currentElapsedMillis();
+      if (left <= 0) throw overBudget(op, budget, null);
+
+      stmt.setQueryTimeout((int) ((left + 999) / 1000));
+      serverTimeout(stmt.getConnection(), budget);
+      Guard guard = new Guard(stmt, op, budget);
+      guard.future = timer.schedule(guard, left, TimeUnit.MILLISECONDS);
+      return guard;
+   }//end watch
+
+   /**
+    * Stops watching a statement that completed.
+    */
+   static void done(Guard guard) {
+      if (guard != null) guard.finish();
+   }
+
+   /**
+    * Stops watching a statement that failed.
+    *
+    * @return the error to report: a budget error if the statement was
+    *         stopped for taking too long, the error itself otherwise
+    */
+   static SQLException failed(Guard guard, SQLException e) {
+      boolean fired = guard != null && guard.finish();
+      if (!fired && !CANCELED.equals(e.getSQLState())) return e;
+      OpStats.overBudget();
+      String op = guard != null ? guard.op : OpStats.currentOp();
+      return overBudget(op, guard != null ? guard.budget : budgetMillis(op), e);
+   }//end failed
+
+   private static SQLException overBudget(String op, long budget, SQLException cause) {
+      SQLException e = new SQLException(op + " took longer than its budget of " + budget + " ms", CANCELED);
+      if (cause != null) e.initCause(cause);
+      return e;
+   }//end overBudget
+
+   /**
+    * Sets statement_timeout on the connection if it is not set to the
+    * budget already, 0 turns it off.
+    */
+   private static void serverTimeout(Connection conn, long budget) throws SQLException {
+      Long current = serverTimeouts.get(conn);
+      if (current == null ? budget == 0 : current.longValue() == budget) return;
+      if (!conn.getAutoCommit()) return;
+      // not timed on its own, it is part of the statement being watched
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.execute("SET statement_timeout = " + budget + ";");
+         serverTimeouts.put(conn, budget);
+      }finally {
+         stmt.close();
+      }//end try
+   }//end serverTimeout
+
+}//end Watchdog
@@ -0,0 +1,27 @@
+#!/bin/bash
+# Puts the message id sequences of the primary and the shards in
+# $SHARD_PORTS on the shared 1024 step scheme of create_shard_tables.sql,
+# from a base above every id in use on any of them, e.g.
+#    SHARD_PORTS="5433 5434" ./align_msg_ids.sh
+# For databases sharded before the primary stepped by 1024.  Stop the
+# Messenger sessions and ShardRebalancer first.
+if [ -z "$SHARD_PORTS" ]; then
+   echo "Set SHARD_PORTS to the ports of the shards, in the order of messenger.shards"
+   exit 1
+fi
+
+MAX_ID=0
+for PORT in $PGPORT $SHARD_PORTS; do
+   ID=$(psql -p $PORT $DB_NAME -A -t -c "SELECT GREATEST(COALESCE(MAX(msg_id), 0), (SELECT last_value FROM message_msg_id_seq)) FROM MESSAGE;") || exit 1
+   if [ $ID -gt $MAX_ID ]; then
+      MAX_ID=$ID
+   fi
+done
+BASE=$(( (MAX_ID / 1024 + 1) * 1024 ))
+
+psql -p $PGPORT $DB_NAME -c "ALTER SEQUENCE message_msg_id_seq INCREMENT BY 1024 RESTART WITH $BASE;"
+SHARD=0
+for PORT in $SHARD_PORTS; do
+   psql -p $PORT $DB_NAME -c "ALTER SEQUENCE message_msg_id_seq INCREMENT BY 1024 RESTART WITH $(( BASE + SHARD + 1 ));"
+   SHARD=$(( SHARD + 1 ))
+done
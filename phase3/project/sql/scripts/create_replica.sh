@@ -0,0 +1,20 @@
+#!/bin/bash
+# Creates a streaming replica of the $PGPORT cluster for testing the
+# read/write split, e.g.
+#    REPLICA_PORT=5433 ./create_replica.sh
+#    java ... Messenger $DB_NAME $PGPORT $USER localhost:5433
+# The replica's data directory is $REPLICA_DATA (default /tmp/$USER/replica).
+REPLICA_DATA=${REPLICA_DATA:-/tmp/$USER/replica}
+if [ -z "$REPLICA_PORT" ]; then
+   echo "Set REPLICA_PORT to the port the replica should listen on"
+   exit 1
+fi
+
+# copy the primary and write the standby settings (-R) into the copy
+pg_basebackup -p $PGPORT -D $REPLICA_DATA -R -X stream -c fast || exit 1
+pg_ctl -D $REPLICA_DATA -o "-p $REPLICA_PORT" -l $REPLICA_DATA/logfile start
+
+# wait for the replica to accept connections and show its replay position
+until psql -p $REPLICA_PORT $DB_NAME -c "SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn();" 2>/dev/null; do
+   sleep 1
+done
@@ -0,0 +1,36 @@
+#!/bin/bash
+# Creates one local cluster per port in $SHARD_PORTS for testing the
+# sharded message storage, e.g.
+#    SHARD_PORTS="5433 5434" ./create_shards.sh
+#    java -Dmessenger.shards=localhost:5433,localhost:5434 ... Messenger $DB_NAME $PGPORT $USER
+# Run it after create_db.sh; the data directories are $SHARD_DATA/shard<n>
+# (default /tmp/$USER/shard<n>).
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SHARD_DATA=${SHARD_DATA:-/tmp/$USER}
+if [ -z "$SHARD_PORTS" ]; then
+   echo "Set SHARD_PORTS to the ports the shards should listen on"
+   exit 1
+fi
+
+# message ids step by 1024 on every database from a base above the ids
+# already used: the primary takes BASE + 1024k, shard n BASE + n + 1 + 1024k
+MAX_ID=$(psql -p $PGPORT $DB_NAME -A -t -c "SELECT COALESCE(MAX(msg_id), 0) FROM MESSAGE;")
+BASE=$(( (MAX_ID / 1024 + 1) * 1024 ))
+psql -p $PGPORT $DB_NAME -c "ALTER SEQUENCE message_msg_id_seq INCREMENT BY 1024 RESTART WITH $BASE;"
+
+SHARD=0
+for PORT in $SHARD_PORTS; do
+   DATA=$SHARD_DATA/shard$SHARD
+   if [ ! -d $DATA ]; then
+      initdb -D $DATA || exit 1
+   fi
+   pg_ctl -D $DATA -o "-p $PORT" -l $DATA/logfile start
+   until pg_isready -p $PORT > /dev/null; do
+      sleep 1
+   done
+   createdb -p $PORT $DB_NAME
+   psql -p $PORT $DB_NAME -v start=$(( BASE + SHARD + 1 )) < $DIR/../src/create_shard_tables.sql
+   psql -p $PORT $DB_NAME < $DIR/../src/create_chat_stats.sql
+   psql -p $PORT $DB_NAME < $DIR/../src/create_reports.sql
+   SHARD=$(( SHARD + 1 ))
+done
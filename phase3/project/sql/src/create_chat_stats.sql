@@ -0,0 +1,107 @@
+-- Per-chat statistics: message count, member count and newest message
+-- of every chat with rows on this database, kept up to date by the
+-- triggers on MESSAGE and CHAT_LIST, so the chat list reads them without
+-- aggregating MESSAGE.  Run it on the primary and on every shard, after
+-- the tables are created and loaded; on an existing database it adds the
+-- statistics.  Running it again rebuilds them.
+--
+-- The newest message is the one with the highest msg_id.  The triggers
+-- are per statement and see all rows of an import batch or a purge chunk
+-- at once.  Updates of chat_id and TRUNCATE are not tracked; ChatStats
+-- (java/src/ChatStats.java) compares the table with CHAT_STATS_ACTUAL and
+-- repairs the chats that drifted.
+
+BEGIN;
+
+-- no sends while the statistics are counted
+LOCK TABLE MESSAGE, CHAT_LIST IN SHARE MODE;
+
+DROP TRIGGER IF EXISTS message_stats_insert ON MESSAGE;
+DROP TRIGGER IF EXISTS message_stats_delete ON MESSAGE;
+DROP TRIGGER IF EXISTS chat_list_stats_insert ON CHAT_LIST;
+DROP TRIGGER IF EXISTS chat_list_stats_delete ON CHAT_LIST;
+DROP VIEW IF EXISTS CHAT_STATS_ACTUAL;
+DROP TABLE IF EXISTS CHAT_STATS;
+
+CREATE TABLE CHAT_STATS(
+	chat_id integer,
+	msg_count bigint NOT NULL DEFAULT 0,
+	member_count integer NOT NULL DEFAULT 0,
+	last_msg_id integer,
+	last_activity timestamp,
+	last_sender integer,
+	PRIMARY KEY(chat_id));
+
+-- what CHAT_STATS should hold, counted from the rows
+CREATE VIEW CHAT_STATS_ACTUAL AS
+SELECT COALESCE(m.chat_id, l.chat_id) AS chat_id,
+	COALESCE(m.msg_count, 0) AS msg_count,
+	COALESCE(l.member_count, 0) AS member_count,
+	m.msg_id AS last_msg_id, m.msg_timestamp AS last_activity, m.sender_id AS last_sender
+FROM (SELECT DISTINCT ON (chat_id) chat_id, count(*) OVER (PARTITION BY chat_id) AS msg_count, msg_id, msg_timestamp, sender_id
+	FROM MESSAGE WHERE chat_id IS NOT NULL ORDER BY chat_id, msg_id DESC) m
+FULL OUTER JOIN (SELECT chat_id, count(*) AS member_count
+	FROM CHAT_LIST WHERE chat_id IS NOT NULL GROUP BY chat_id) l ON l.chat_id = m.chat_id;
+
+CREATE OR REPLACE FUNCTION chat_stats_messages_added() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO CHAT_STATS AS s (chat_id, msg_count, last_msg_id, last_activity, last_sender)
+	SELECT DISTINCT ON (chat_id) chat_id, count(*) OVER (PARTITION BY chat_id), msg_id, msg_timestamp, sender_id
+	FROM added WHERE chat_id IS NOT NULL ORDER BY chat_id, msg_id DESC
+	ON CONFLICT (chat_id) DO UPDATE SET
+		msg_count = s.msg_count + EXCLUDED.msg_count,
+		last_msg_id = CASE WHEN s.last_msg_id > EXCLUDED.last_msg_id THEN s.last_msg_id ELSE EXCLUDED.last_msg_id END,
+		last_activity = CASE WHEN s.last_msg_id > EXCLUDED.last_msg_id THEN s.last_activity ELSE EXCLUDED.last_activity END,
+		last_sender = CASE WHEN s.last_msg_id > EXCLUDED.last_msg_id THEN s.last_sender ELSE EXCLUDED.last_sender END;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION chat_stats_messages_removed() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_STATS s SET msg_count = s.msg_count - d.n
+	FROM (SELECT chat_id, count(*) AS n FROM removed GROUP BY chat_id) d
+	WHERE s.chat_id = d.chat_id;
+	-- the newest message went, the next one is found through message_chat
+	UPDATE CHAT_STATS s SET (last_msg_id, last_activity, last_sender) =
+		(SELECT m.msg_id, m.msg_timestamp, m.sender_id FROM MESSAGE m WHERE m.chat_id = s.chat_id ORDER BY m.msg_id DESC LIMIT 1)
+	WHERE s.last_msg_id IN (SELECT msg_id FROM removed);
+	DELETE FROM CHAT_STATS s WHERE s.msg_count = 0 AND s.member_count = 0
+		AND s.chat_id IN (SELECT chat_id FROM removed);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION chat_stats_members_added() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO CHAT_STATS AS s (chat_id, member_count)
+	SELECT chat_id, count(*) FROM added WHERE chat_id IS NOT NULL GROUP BY chat_id
+	ON CONFLICT (chat_id) DO UPDATE SET member_count = s.member_count + EXCLUDED.member_count;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION chat_stats_members_removed() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_STATS s SET member_count = s.member_count - d.n
+	FROM (SELECT chat_id, count(*) AS n FROM removed GROUP BY chat_id) d
+	WHERE s.chat_id = d.chat_id;
+	DELETE FROM CHAT_STATS s WHERE s.msg_count = 0 AND s.member_count = 0
+		AND s.chat_id IN (SELECT chat_id FROM removed);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER message_stats_insert AFTER INSERT ON MESSAGE
+	REFERENCING NEW TABLE AS added FOR EACH STATEMENT EXECUTE PROCEDURE chat_stats_messages_added();
+CREATE TRIGGER message_stats_delete AFTER DELETE ON MESSAGE
+	REFERENCING OLD TABLE AS removed FOR EACH STATEMENT EXECUTE PROCEDURE chat_stats_messages_removed();
+CREATE TRIGGER chat_list_stats_insert AFTER INSERT ON CHAT_LIST
+	REFERENCING NEW TABLE AS added FOR EACH STATEMENT EXECUTE PROCEDURE chat_stats_members_added();
+CREATE TRIGGER chat_list_stats_delete AFTER DELETE ON CHAT_LIST
+	REFERENCING OLD TABLE AS removed FOR EACH STATEMENT EXECUTE PROCEDURE chat_stats_members_removed();
+
+INSERT INTO CHAT_STATS(chat_id, msg_count, member_count, last_msg_id, last_activity, last_sender)
+SELECT chat_id, msg_count, member_count, last_msg_id, last_activity, last_sender FROM CHAT_STATS_ACTUAL;
+
+COMMIT;
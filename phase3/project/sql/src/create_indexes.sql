@@ -0,0 +1,27 @@
+-- idempotency keys of the sends replayed from a client's outbox
+-- (java/src/Outbox.java), only rows created through it have one
+CREATE UNIQUE INDEX chat_client_key ON CHAT(client_key) WHERE client_key IS NOT NULL;
+CREATE UNIQUE INDEX message_client_key ON MESSAGE(client_key) WHERE client_key IS NOT NULL;
+
+-- deleted chats wait here for the purge of their rows (java/src/Purger.java),
+-- which also finds and removes the messages of a chat in chunks through message_chat
+CREATE INDEX chat_deleted ON CHAT(chat_id) WHERE deleted;
+CREATE INDEX message_chat ON MESSAGE(chat_id, msg_id);
+
+-- deleted accounts, and the rows Purger looks up by user while it
+-- removes them in chunks
+CREATE INDEX usr_deleted ON USR(user_id) WHERE deleted;
+CREATE INDEX message_sender ON MESSAGE(sender_id);
+CREATE INDEX chat_list_member ON CHAT_LIST(member);
+CREATE INDEX chat_init_sender ON CHAT(init_sender);
+CREATE INDEX user_list_contains_member ON USER_LIST_CONTAINS(list_member);
+
+-- phone numbers as digits with the country code, "+1(180)393-1512" and
+-- "180 393 1512" are both 11803931512; the contact import resolves
+-- address books through it (java/src/PhoneNumbers.java does the same)
+CREATE OR REPLACE FUNCTION phone_digits(phone text) RETURNS text AS $$
+	SELECT CASE WHEN length(d) = 10 THEN '1' || d ELSE d END
+	FROM (SELECT CASE WHEN n LIKE '00%' THEN substr(n, 3) ELSE n END AS d
+		FROM (SELECT regexp_replace(phone, '[^0-9]', '', 'g') AS n) a) b;
+$$ LANGUAGE sql IMMUTABLE;
+CREATE INDEX usr_phone_digits ON USR(phone_digits(phoneNum));
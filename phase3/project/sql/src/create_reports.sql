@@ -0,0 +1,32 @@
+-- Summary tables of the message reports (java/src/Reports.java).  Run it
+-- on the primary and on every shard; running it again empties them and
+-- the next refresh counts all messages again.
+--
+-- A refresh adds the messages above last_msg_id to the summaries and
+-- moves the watermark up to the newest one, so each message is read
+-- once.  Messages deleted later stay counted until "Reports ... rebuild".
+
+DROP TABLE IF EXISTS REPORT_WATERMARK;
+DROP TABLE IF EXISTS REPORT_SENDER;
+DROP TABLE IF EXISTS REPORT_HOURLY;
+
+CREATE TABLE REPORT_WATERMARK(
+	name varchar(20),
+	last_msg_id integer NOT NULL DEFAULT 0,
+	refreshed timestamp,
+	PRIMARY KEY(name));
+
+INSERT INTO REPORT_WATERMARK(name) VALUES ('messages');
+
+-- messages sent by each user on this database
+CREATE TABLE REPORT_SENDER(
+	sender_id integer,
+	messages bigint NOT NULL,
+	last_sent timestamp,
+	PRIMARY KEY(sender_id));
+
+-- messages sent in each hour on this database
+CREATE TABLE REPORT_HOURLY(
+	hour timestamp,
+	messages bigint NOT NULL,
+	PRIMARY KEY(hour));
@@ -0,0 +1,49 @@
+-- Tables of a shard database, holding the MESSAGE and CHAT_LIST rows of
+-- the chats placed on it.  USR and CHAT stay on the primary, so there
+-- are no foreign keys here.
+--
+-- Message ids must be unique across all databases because chats are moved
+-- with their ids.  Every database therefore counts in steps of 1024 from
+-- a shared base above the ids given out before sharding: the primary
+-- from the base itself, each shard from its own start, the base plus the
+-- shard number plus one, set with psql -v start=<n> (see
+-- scripts/create_shards.sh, and scripts/align_msg_ids.sh for databases
+-- sharded before the primary stepped too).  A chat that is moved
+-- advances the sequence of its new database past its newest message, so
+-- its ids keep growing with time (see java/src/ShardRebalancer.java).
+DROP VIEW CHAT_STATS_ACTUAL;
+DROP TABLE CHAT_STATS;
+DROP TABLE IMPORT_BATCH;
+DROP TABLE MESSAGE;
+DROP TABLE CHAT_LIST;
+DROP SEQUENCE message_msg_id_seq;
+
+CREATE SEQUENCE message_msg_id_seq INCREMENT BY 1024 START WITH :start;
+
+CREATE TABLE CHAT_LIST(
+	chat_id integer, 
+	member integer,
+	last_read_msg_id integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(chat_id,member));
+
+CREATE INDEX chat_list_member ON CHAT_LIST(member);
+
+CREATE TABLE MESSAGE(
+	msg_id integer DEFAULT nextval('message_msg_id_seq'), 
+	msg_text char(300) NOT NULL, 
+	msg_timestamp timestamp NOT NULL,
+	sender_id integer,
+	chat_id integer,
+	client_key varchar(40),
+	PRIMARY KEY(msg_id));
+
+CREATE TABLE IMPORT_BATCH(
+	import_name varchar(100),
+	batch integer,
+	rows integer NOT NULL,
+	imported timestamp NOT NULL DEFAULT NOW(),
+	PRIMARY KEY(import_name, batch));
+
+CREATE INDEX message_chat ON MESSAGE(chat_id, msg_id);
+CREATE INDEX message_sender ON MESSAGE(sender_id);
+CREATE UNIQUE INDEX message_client_key ON MESSAGE(client_key) WHERE client_key IS NOT NULL;
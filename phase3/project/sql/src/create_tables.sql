@@ -1,55 +1,100 @@
-DROP TABLE MESSAGE;
-DROP TABLE CHAT_LIST;
-DROP TABLE CHAT;
-DROP TABLE USER_LIST_CONTAINS;
-DROP TABLE USR;
-DROP TABLE USER_LIST;
-
-CREATE TABLE USER_LIST(
-	list_id serial,
-	list_type char(10) NOT NULL, 
-	PRIMARY KEY(list_id));
-
-CREATE TABLE USR(
-	login char(50), 
-	phoneNum CHAR(16) UNIQUE NOT NULL, 
-	password char(50) NOT NULL,
-	status char(140),
-	block_list integer,
-	contact_list integer,
-	Primary Key(login),
-	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
-	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
-
-CREATE TABLE USER_LIST_CONTAINS(
-	list_id integer,
-	list_member char(50),
-	PRIMARY KEY(list_id,list_member), 
-	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
-	FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
-
-CREATE TABLE CHAT(
-	chat_id serial, 
-	chat_type char(50) NOT NULL,
-	init_sender char(50),
-	PRIMARY KEY(chat_id), 
-	FOREIGN KEY(init_sender) REFERENCES USR(login));
-
-CREATE TABLE CHAT_LIST(
-	chat_id integer, 
-	member char(50),
-	PRIMARY KEY(chat_id,member), 
-	FOREIGN KEY(member) REFERENCES USR(login), 
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
-
-CREATE TABLE MESSAGE(
-	msg_id serial, 
-	msg_text char(300) NOT NULL, 
-	msg_timestamp timestamp NOT NULL,
-		sender_login char(50),
-	chat_id integer,
-	PRIMARY KEY(msg_id), 
-	FOREIGN KEY(sender_login) REFERENCES USR(login),
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
-
-
+DROP VIEW CHAT_STATS_ACTUAL;
+DROP TABLE CHAT_STATS;
+DROP TABLE IMPORT_BATCH;
+DROP TABLE ACCOUNT_PURGE;
+DROP TABLE CHAT_SHARD;
+DROP SEQUENCE chat_shard_version_seq;
+DROP TABLE MESSAGE;
+DROP TABLE CHAT_LIST;
+DROP TABLE CHAT;
+DROP TABLE USER_LIST_CONTAINS;
+DROP TABLE USR;
+DROP TABLE USER_LIST;
+
+CREATE TABLE USER_LIST(
+	list_id serial,
+	list_type char(10) NOT NULL, 
+	PRIMARY KEY(list_id));
+
+CREATE TABLE USR(
+	user_id serial,
+	login char(50) UNIQUE NOT NULL, 
+	phoneNum CHAR(16) UNIQUE NOT NULL, 
+	password char(50) NOT NULL,
+	status char(140),
+	deleted boolean NOT NULL DEFAULT false,
+	-- last heartbeat of a logged in user, NULL once it logged out
+	last_seen timestamp with time zone,
+	away boolean NOT NULL DEFAULT false,
+	block_list integer,
+	contact_list integer,
+	Primary Key(user_id),
+	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
+	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
+
+CREATE TABLE USER_LIST_CONTAINS(
+	list_id integer,
+	list_member integer,
+	PRIMARY KEY(list_id,list_member), 
+	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
+	FOREIGN KEY(list_member) REFERENCES USR(user_id) ON DELETE CASCADE);
+
+CREATE TABLE CHAT(
+	chat_id serial, 
+	chat_type char(50) NOT NULL,
+	init_sender integer,
+	client_key varchar(40),
+	deleted boolean NOT NULL DEFAULT false,
+	PRIMARY KEY(chat_id), 
+	FOREIGN KEY(init_sender) REFERENCES USR(user_id));
+
+CREATE TABLE CHAT_LIST(
+	chat_id integer, 
+	member integer,
+	-- newest message the member has read (java/src/ReadCursors.java)
+	last_read_msg_id integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(chat_id,member), 
+	FOREIGN KEY(member) REFERENCES USR(user_id), 
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
+
+CREATE TABLE MESSAGE(
+	msg_id serial, 
+	msg_text char(300) NOT NULL, 
+	msg_timestamp timestamp NOT NULL,
+	sender_id integer,
+	chat_id integer,
+	client_key varchar(40),
+	PRIMARY KEY(msg_id), 
+	FOREIGN KEY(sender_id) REFERENCES USR(user_id),
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
+
+-- chats whose MESSAGE and CHAT_LIST rows are not on the shard their id
+-- hashes to, shard -1 is this database (see java/src/ShardMap.java)
+CREATE SEQUENCE chat_shard_version_seq;
+
+CREATE TABLE CHAT_SHARD(
+	chat_id integer,
+	shard integer NOT NULL,
+	moving boolean NOT NULL DEFAULT false,
+	version bigint NOT NULL DEFAULT nextval('chat_shard_version_seq'),
+	PRIMARY KEY(chat_id),
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+-- progress of the accounts being deleted, the row outlives the account
+-- (see java/src/Purger.java)
+CREATE TABLE ACCOUNT_PURGE(
+	user_id integer,
+	step integer NOT NULL DEFAULT 0,
+	rows_done bigint NOT NULL DEFAULT 0,
+	requested timestamp NOT NULL DEFAULT NOW(),
+	updated timestamp,
+	PRIMARY KEY(user_id));
+
+-- batches of a chat import committed on this database, an import that
+-- stopped skips them when it is run again (see java/src/ChatImport.java)
+CREATE TABLE IMPORT_BATCH(
+	import_name varchar(100),
+	batch integer,
+	rows integer NOT NULL,
+	imported timestamp NOT NULL DEFAULT NOW(),
+	PRIMARY KEY(import_name, batch));
@@ -4,29 +4,44 @@ WITH DELIMITER ';';
 ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
 
 COPY USR
+	(login,
+	phoneNum,
+	password,
+	status,
+	block_list,
+	contact_list)
 FROM '/tmp/schir001/CS166/phase3/project/data/usr.csv'
 WITH DELIMITER ';';
 
-COPY USER_LIST_CONTAINS
+-- the data files reference users by login, they are loaded into staging
+-- tables and the logins are swapped for user ids on the way in
+CREATE TEMP TABLE USER_LIST_CONTAINS_CSV(list_id integer, list_member char(50));
+COPY USER_LIST_CONTAINS_CSV
 FROM '/tmp/schir001/CS166/phase3/project/data/usr_list_contains.csv'
 WITH DELIMITER ';';
+INSERT INTO USER_LIST_CONTAINS(list_id, list_member)
+	SELECT c.list_id, u.user_id FROM USER_LIST_CONTAINS_CSV c, USR u WHERE u.login = c.list_member;
 
-COPY CHAT
+CREATE TEMP TABLE CHAT_CSV(chat_id integer, chat_type char(50), init_sender char(50));
+COPY CHAT_CSV
 FROM '/tmp/schir001/CS166/phase3/project/data/chat.csv'
 WITH DELIMITER ';';
+INSERT INTO CHAT(chat_id, chat_type, init_sender)
+	SELECT c.chat_id, c.chat_type, u.user_id FROM CHAT_CSV c LEFT OUTER JOIN USR u ON u.login = c.init_sender;
 ALTER SEQUENCE chat_chat_id_seq RESTART 50000;
 
-COPY CHAT_LIST
+CREATE TEMP TABLE CHAT_LIST_CSV(chat_id integer, member char(50));
+COPY CHAT_LIST_CSV
 FROM '/tmp/schir001/CS166/phase3/project/data/chat_list.csv'
 WITH DELIMITER ';';
+INSERT INTO CHAT_LIST(chat_id, member)
+	SELECT c.chat_id, u.user_id FROM CHAT_LIST_CSV c, USR u WHERE u.login = c.member;
 
-COPY MESSAGE
-	(msg_id, 
-	msg_text, 
-	msg_timestamp, 
-	sender_login,
-	chat_id)
+CREATE TEMP TABLE MESSAGE_CSV(msg_id integer, msg_text char(300), msg_timestamp timestamp, sender_login char(50), chat_id integer);
+COPY MESSAGE_CSV
 FROM '/tmp/schir001/CS166/phase3/project/data/message.csv'
 WITH DELIMITER ';';
+INSERT INTO MESSAGE(msg_id, msg_text, msg_timestamp, sender_id, chat_id)
+	SELECT m.msg_id, m.msg_text, m.msg_timestamp, u.user_id, m.chat_id FROM MESSAGE_CSV m LEFT OUTER JOIN USR u ON u.login = m.sender_login;
 ALTER SEQUENCE message_msg_id_seq RESTART 50000;
 
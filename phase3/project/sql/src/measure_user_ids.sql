@@ -0,0 +1,43 @@
+-- Table, index and join measurements for the login -> user id migration.
+-- Run once before migrate_user_ids.sql and once after, from psql:
+--    psql -p $PGPORT $DB_NAME < measure_user_ids.sql
+-- The queries only use column names both schemas share.
+--
+-- Load the data with the login schema, VACUUM ANALYZE, run this script
+-- a few times and keep the last run, then migrate and do the same.
+-- No results have been recorded for this tree.
+
+\timing on
+
+SELECT relname,
+	pg_size_pretty(pg_relation_size(oid)) AS table_size,
+	pg_size_pretty(pg_indexes_size(oid)) AS index_size,
+	pg_indexes_size(oid) AS index_bytes
+FROM pg_class
+WHERE relname IN ('usr', 'user_list_contains', 'chat', 'chat_list', 'message')
+ORDER BY relname;
+
+SELECT c.relname AS index_name, pg_size_pretty(pg_relation_size(c.oid)) AS size
+FROM pg_index i, pg_class c, pg_class t
+WHERE c.oid = i.indexrelid AND t.oid = i.indrelid
+	AND t.relname IN ('chat_list', 'message', 'user_list_contains')
+ORDER BY c.relname;
+
+-- members of every chat a user is in (SelectChat)
+EXPLAIN ANALYZE
+SELECT b.chat_id, b.member
+FROM CHAT_LIST a, CHAT_LIST b
+WHERE a.chat_id = b.chat_id AND a.member = (SELECT member FROM CHAT_LIST LIMIT 1);
+
+-- chats joined with their members
+EXPLAIN ANALYZE
+SELECT count(*) FROM CHAT c, CHAT_LIST l WHERE c.chat_id = l.chat_id AND c.init_sender = l.member;
+
+-- messages of every chat a user is in
+EXPLAIN ANALYZE
+SELECT count(*) FROM MESSAGE m, CHAT_LIST l
+WHERE m.chat_id = l.chat_id AND l.member = (SELECT init_sender FROM CHAT LIMIT 1);
+
+-- contacts that share a chat with anyone, a user column to user column join
+EXPLAIN ANALYZE
+SELECT count(*) FROM USER_LIST_CONTAINS u, CHAT_LIST l WHERE u.list_member = l.member;
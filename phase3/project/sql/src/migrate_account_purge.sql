@@ -0,0 +1,23 @@
+-- Adds account deletion to an existing database.  Run it on the
+-- primary, and the message_sender index on every shard as well.
+-- Deleting an account only sets the flag; Purger removes the rows
+-- afterwards in small chunks and records its progress in ACCOUNT_PURGE.
+
+ALTER TABLE USR ADD COLUMN deleted boolean;
+ALTER TABLE USR ALTER COLUMN deleted SET DEFAULT false;
+UPDATE USR SET deleted = false;
+ALTER TABLE USR ALTER COLUMN deleted SET NOT NULL;
+
+CREATE TABLE ACCOUNT_PURGE(
+	user_id integer,
+	step integer NOT NULL DEFAULT 0,
+	rows_done bigint NOT NULL DEFAULT 0,
+	requested timestamp NOT NULL DEFAULT NOW(),
+	updated timestamp,
+	PRIMARY KEY(user_id));
+
+CREATE INDEX usr_deleted ON USR(user_id) WHERE deleted;
+CREATE INDEX message_sender ON MESSAGE(sender_id);
+CREATE INDEX chat_list_member ON CHAT_LIST(member);
+CREATE INDEX chat_init_sender ON CHAT(init_sender);
+CREATE INDEX user_list_contains_member ON USER_LIST_CONTAINS(list_member);
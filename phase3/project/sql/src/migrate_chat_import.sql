@@ -0,0 +1,11 @@
+-- Adds chat history imports to an existing database.  Run it on the
+-- primary and on every shard: ChatImport records each batch of messages
+-- it commits in IMPORT_BATCH of the database the messages went to, and
+-- skips those batches when a stopped import is run again.
+
+CREATE TABLE IMPORT_BATCH(
+	import_name varchar(100),
+	batch integer,
+	rows integer NOT NULL,
+	imported timestamp NOT NULL DEFAULT NOW(),
+	PRIMARY KEY(import_name, batch));
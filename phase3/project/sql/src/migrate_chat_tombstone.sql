@@ -0,0 +1,11 @@
+-- Adds the deleted flag of chats to an existing database, run it on the
+-- primary.  Deleting a chat only sets the flag; Purger removes the
+-- rows afterwards in small chunks.  The shards already index their
+-- messages by chat (create_shard_tables.sql).
+
+ALTER TABLE CHAT ADD COLUMN deleted boolean;
+ALTER TABLE CHAT ALTER COLUMN deleted SET DEFAULT false;
+UPDATE CHAT SET deleted = false;
+ALTER TABLE CHAT ALTER COLUMN deleted SET NOT NULL;
+CREATE INDEX chat_deleted ON CHAT(chat_id) WHERE deleted;
+CREATE INDEX message_chat ON MESSAGE(chat_id, msg_id);
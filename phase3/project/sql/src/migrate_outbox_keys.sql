@@ -0,0 +1,11 @@
+-- Adds the idempotency keys used by the client outbox to an existing
+-- database.  Run it on the primary and on every shard (the CHAT part
+-- fails on a shard, which has no CHAT table; that is expected).
+-- The partial indexes only cover rows created through the outbox, so
+-- they stay small.
+
+ALTER TABLE MESSAGE ADD COLUMN client_key varchar(40);
+CREATE UNIQUE INDEX message_client_key ON MESSAGE(client_key) WHERE client_key IS NOT NULL;
+
+ALTER TABLE CHAT ADD COLUMN client_key varchar(40);
+CREATE UNIQUE INDEX chat_client_key ON CHAT(client_key) WHERE client_key IS NOT NULL;
@@ -0,0 +1,10 @@
+-- Adds the normalized phone number index used by the contact import
+-- (java/src/PhoneNumbers.java) to an existing database, run it on the
+-- primary.
+
+CREATE OR REPLACE FUNCTION phone_digits(phone text) RETURNS text AS $$
+	SELECT CASE WHEN length(d) = 10 THEN '1' || d ELSE d END
+	FROM (SELECT CASE WHEN n LIKE '00%' THEN substr(n, 3) ELSE n END AS d
+		FROM (SELECT regexp_replace(phone, '[^0-9]', '', 'g') AS n) a) b;
+$$ LANGUAGE sql IMMUTABLE;
+CREATE INDEX usr_phone_digits ON USR(phone_digits(phoneNum));
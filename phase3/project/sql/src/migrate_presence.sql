@@ -0,0 +1,11 @@
+-- Adds the shared presence of the users to an existing database, run it
+-- on the primary.  Every session is a process of its own; a logged in
+-- user's heartbeats are written to last_seen, at most once per half
+-- messenger.presenceTtlMs, and the contact lists of the other sessions
+-- read them from there.  Logging out sets last_seen back to NULL.
+
+ALTER TABLE USR ADD COLUMN last_seen timestamp with time zone;
+ALTER TABLE USR ADD COLUMN away boolean;
+ALTER TABLE USR ALTER COLUMN away SET DEFAULT false;
+UPDATE USR SET away = false;
+ALTER TABLE USR ALTER COLUMN away SET NOT NULL;
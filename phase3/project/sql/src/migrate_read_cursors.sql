@@ -0,0 +1,10 @@
+-- Adds the read cursors of the chat members to an existing database, run
+-- it on the primary and on every shard.  A member has read the messages
+-- of its chat up to last_read_msg_id; the unread ones are counted through
+-- message_chat (chat_id, msg_id).  The history that is already there
+-- counts as read.
+
+ALTER TABLE CHAT_LIST ADD COLUMN last_read_msg_id integer NOT NULL DEFAULT 0;
+UPDATE CHAT_LIST l SET last_read_msg_id = m.last FROM
+	(SELECT chat_id, max(msg_id) AS last FROM MESSAGE GROUP BY chat_id) m
+	WHERE m.chat_id = l.chat_id;
@@ -0,0 +1,62 @@
+-- Moves an existing database from login foreign keys to integer user ids.
+--
+-- USR gets a serial user_id primary key (login stays UNIQUE NOT NULL) and
+-- every column that referenced USR(login) is rewritten to hold the id:
+--    USER_LIST_CONTAINS.list_member, CHAT.init_sender, CHAT_LIST.member,
+--    MESSAGE.sender_login (renamed to sender_id)
+--
+-- Run measure_user_ids.sql before and after to compare sizes and timings.
+-- The whole migration runs in one transaction.
+
+BEGIN;
+
+ALTER TABLE USR ADD COLUMN user_id serial;
+ALTER TABLE USR ADD CONSTRAINT usr_user_id_key UNIQUE(user_id);
+
+-- new id columns next to the login columns
+ALTER TABLE USER_LIST_CONTAINS ADD COLUMN member_id integer;
+UPDATE USER_LIST_CONTAINS c SET member_id = u.user_id FROM USR u WHERE u.login = c.list_member;
+
+ALTER TABLE CHAT ADD COLUMN init_sender_id integer;
+UPDATE CHAT c SET init_sender_id = u.user_id FROM USR u WHERE u.login = c.init_sender;
+
+ALTER TABLE CHAT_LIST ADD COLUMN member_id integer;
+UPDATE CHAT_LIST c SET member_id = u.user_id FROM USR u WHERE u.login = c.member;
+
+ALTER TABLE MESSAGE ADD COLUMN sender_id integer;
+UPDATE MESSAGE m SET sender_id = u.user_id FROM USR u WHERE u.login = m.sender_login;
+
+-- dropping the login columns also drops their primary keys and foreign keys
+ALTER TABLE USER_LIST_CONTAINS DROP COLUMN list_member;
+ALTER TABLE USER_LIST_CONTAINS RENAME COLUMN member_id TO list_member;
+ALTER TABLE USER_LIST_CONTAINS ADD PRIMARY KEY(list_id, list_member);
+
+ALTER TABLE CHAT DROP COLUMN init_sender;
+ALTER TABLE CHAT RENAME COLUMN init_sender_id TO init_sender;
+
+ALTER TABLE CHAT_LIST DROP COLUMN member;
+ALTER TABLE CHAT_LIST RENAME COLUMN member_id TO member;
+ALTER TABLE CHAT_LIST ADD PRIMARY KEY(chat_id, member);
+
+ALTER TABLE MESSAGE DROP COLUMN sender_login;
+
+-- user_id becomes the primary key, login stays unique
+ALTER TABLE USR DROP CONSTRAINT usr_pkey;
+ALTER TABLE USR DROP CONSTRAINT usr_user_id_key;
+ALTER TABLE USR ADD PRIMARY KEY(user_id);
+ALTER TABLE USR ADD CONSTRAINT usr_login_key UNIQUE(login);
+ALTER TABLE USR ALTER COLUMN login SET NOT NULL;
+
+ALTER TABLE USER_LIST_CONTAINS ADD FOREIGN KEY(list_member) REFERENCES USR(user_id) ON DELETE CASCADE;
+ALTER TABLE CHAT ADD FOREIGN KEY(init_sender) REFERENCES USR(user_id);
+ALTER TABLE CHAT_LIST ADD FOREIGN KEY(member) REFERENCES USR(user_id);
+ALTER TABLE MESSAGE ADD FOREIGN KEY(sender_id) REFERENCES USR(user_id);
+
+COMMIT;
+
+-- rewritten rows leave dead tuples behind
+VACUUM ANALYZE USR;
+VACUUM ANALYZE USER_LIST_CONTAINS;
+VACUUM ANALYZE CHAT;
+VACUUM ANALYZE CHAT_LIST;
+VACUUM ANALYZE MESSAGE;